@@ -41,7 +41,7 @@ import com.hellblazer.jackal.gossip.GossipCommunications;
 import com.hellblazer.jackal.gossip.GossipHeartbeatProtocolFactory;
 import com.hellblazer.jackal.gossip.SystemView;
 import com.hellblazer.jackal.gossip.fd.SimpleTimeoutFailureDetectorFactory;
-import com.hellblazer.jackal.gossip.udp.UdpCommunications;
+import com.hellblazer.jackal.gossip.udp.NioUdpCommunications;
 
 /**
  * @author hhildebrand
@@ -50,17 +50,208 @@ import com.hellblazer.jackal.gossip.udp.UdpCommunications;
 @Configuration
 public class GossipHeartbeatAndDiscoveryConfig {
     public static class GossipConfiguration {
+        /**
+         * Builds a gossip configuration. Every setting but the gossip interval
+         * has a default, which leaves the corresponding extension of the
+         * protocol disabled.
+         */
+        public static class Builder {
+            private double         crossZoneFraction = 1.0;
+            private int            fanout            = 1;
+            private int            indirectProbes;
+            private final int      interval;
+            private int            maxInterval;
+            private boolean        merkleAntiEntropy;
+            private int            minInterval;
+            private long           probeTimeout;
+            private int            quarantineDelay;
+            private int            rings             = 1;
+            private long           suspicionTimeout;
+            private final TimeUnit unit;
+            private int            unreachableNodeDelay;
+            private String         zone;
+            private boolean        zoneBridge;
+
+            /**
+             * @param interval
+             *            - the interval between gossip rounds
+             * @param unit
+             *            - the unit of the intervals
+             */
+            public Builder(int interval, TimeUnit unit) {
+                this.interval = interval;
+                this.unit = unit;
+                minInterval = interval;
+                maxInterval = interval;
+            }
+
+            public GossipConfiguration build() {
+                return new GossipConfiguration(this);
+            }
+
+            /**
+             * @param crossZoneFraction
+             *            - the fraction of gossip rounds which include a
+             *            member of another zone
+             */
+            public Builder crossZoneFraction(double crossZoneFraction) {
+                this.crossZoneFraction = crossZoneFraction;
+                return this;
+            }
+
+            /**
+             * @param fanout
+             *            - the number of live members to gossip with each
+             *            round, or Gossip.AUTOMATIC_FANOUT to scale with the
+             *            log of the number of live members
+             */
+            public Builder fanout(int fanout) {
+                this.fanout = fanout;
+                return this;
+            }
+
+            /**
+             * @param indirectProbes
+             *            - the number of members requested to probe a
+             *            suspected member which does not acknowledge a direct
+             *            probe
+             */
+            public Builder indirectProbes(int indirectProbes) {
+                this.indirectProbes = indirectProbes;
+                return this;
+            }
+
+            /**
+             * @param maxInterval
+             *            - the ceiling the gossip interval backs off to while
+             *            the membership is stable
+             */
+            public Builder maxInterval(int maxInterval) {
+                this.maxInterval = maxInterval;
+                return this;
+            }
+
+            /**
+             * @param merkleAntiEntropy
+             *            - true to reconcile with the live members by
+             *            comparing Merkle trees of the heartbeat times rather
+             *            than exchanging the digests of all the members
+             */
+            public Builder merkleAntiEntropy(boolean merkleAntiEntropy) {
+                this.merkleAntiEntropy = merkleAntiEntropy;
+                return this;
+            }
+
+            /**
+             * @param minInterval
+             *            - the floor the gossip interval shortens to while the
+             *            membership is changing
+             */
+            public Builder minInterval(int minInterval) {
+                this.minInterval = minInterval;
+                return this;
+            }
+
+            /**
+             * @param probeTimeout
+             *            - the milliseconds to wait for each phase of a probe,
+             *            or 0 to convict suspected members without probing
+             */
+            public Builder probeTimeout(long probeTimeout) {
+                this.probeTimeout = probeTimeout;
+                return this;
+            }
+
+            public Builder quarantineDelay(int quarantineDelay) {
+                this.quarantineDelay = quarantineDelay;
+                return this;
+            }
+
+            /**
+             * @param rings
+             *            - the number of rings updated heartbeat states are
+             *            forwarded around
+             */
+            public Builder rings(int rings) {
+                this.rings = rings;
+                return this;
+            }
+
+            /**
+             * @param suspicionTimeout
+             *            - the milliseconds a suspected member has to refute
+             *            the suspicion, or 0 to convict members locally
+             *            without disseminating the suspicion
+             */
+            public Builder suspicionTimeout(long suspicionTimeout) {
+                this.suspicionTimeout = suspicionTimeout;
+                return this;
+            }
+
+            public Builder unreachableNodeDelay(int unreachableNodeDelay) {
+                this.unreachableNodeDelay = unreachableNodeDelay;
+                return this;
+            }
+
+            /**
+             * @param zone
+             *            - the zone - rack or data center - of the member, or
+             *            null if members are not grouped into zones
+             */
+            public Builder zone(String zone) {
+                this.zone = zone;
+                return this;
+            }
+
+            /**
+             * @param zoneBridge
+             *            - true if the member includes a member of another
+             *            zone in every gossip round
+             */
+            public Builder zoneBridge(boolean zoneBridge) {
+                this.zoneBridge = zoneBridge;
+                return this;
+            }
+        }
+
+        public final double   crossZoneFraction;
+        public final int      fanout;
+        public final int      indirectProbes;
         public final int      interval;
+        public final int      maxInterval;
+        public final boolean  merkleAntiEntropy;
+        public final int      minInterval;
+        public final long     probeTimeout;
         public final int      quarantineDelay;
+        public final int      rings;
+        public final long     suspicionTimeout;
         public final TimeUnit unit;
         public final int      unreachableNodeDelay;
+        public final String   zone;
+        public final boolean  zoneBridge;
 
         public GossipConfiguration(int interval, TimeUnit unit,
                                    int quarantineDelay, int unreachableNodeDelay) {
-            this.interval = interval;
-            this.unit = unit;
-            this.quarantineDelay = quarantineDelay;
-            this.unreachableNodeDelay = unreachableNodeDelay;
+            this(new Builder(interval, unit).quarantineDelay(quarantineDelay)
+                                            .unreachableNodeDelay(unreachableNodeDelay));
+        }
+
+        private GossipConfiguration(Builder builder) {
+            interval = builder.interval;
+            unit = builder.unit;
+            quarantineDelay = builder.quarantineDelay;
+            unreachableNodeDelay = builder.unreachableNodeDelay;
+            fanout = builder.fanout;
+            indirectProbes = builder.indirectProbes;
+            probeTimeout = builder.probeTimeout;
+            suspicionTimeout = builder.suspicionTimeout;
+            merkleAntiEntropy = builder.merkleAntiEntropy;
+            zone = builder.zone;
+            crossZoneFraction = builder.crossZoneFraction;
+            zoneBridge = builder.zoneBridge;
+            minInterval = builder.minInterval;
+            maxInterval = builder.maxInterval;
+            rings = builder.rings;
         }
     }
 
@@ -82,7 +273,7 @@ public class GossipHeartbeatAndDiscoveryConfig {
     @Bean
     @Primary
     public GossipCommunications communications() throws IOException {
-        return new UdpCommunications(endpoint, gossipDispatchers, 20, 4);
+        return new NioUdpCommunications(endpoint, gossipDispatchers, 20, 4);
     }
 
     @Bean
@@ -99,9 +290,8 @@ public class GossipHeartbeatAndDiscoveryConfig {
     @Primary
     public Gossip gossip() throws IOException {
         return new Gossip(systemView(), new SecureRandom(), communications(),
-                          gossipConfiguration.interval,
-                          gossipConfiguration.unit, failureDetectorFactory,
-                          partitionIdentity);
+                          failureDetectorFactory, partitionIdentity,
+                          gossipConfiguration);
     }
 
     @Bean
@@ -129,6 +319,9 @@ public class GossipHeartbeatAndDiscoveryConfig {
         return new SystemView(new SecureRandom(),
                               communications().getLocalAddress(), seedHosts,
                               gossipConfiguration.quarantineDelay,
-                              gossipConfiguration.unreachableNodeDelay);
+                              gossipConfiguration.unreachableNodeDelay,
+                              gossipConfiguration.zone,
+                              gossipConfiguration.crossZoneFraction,
+                              gossipConfiguration.zoneBridge);
     }
 }
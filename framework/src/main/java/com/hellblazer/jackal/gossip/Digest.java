@@ -23,9 +23,16 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.Comparator;
 
+import com.hellblazer.jackal.util.VarInt;
+
 /**
  * Contains information about a specified list of Endpoints and the largest
  * version of the state they have generated as known by the local endpoint.
+ * <p>
+ * Digests are keyed by the partition id of the member. The address of the
+ * member is only sent when the id is not yet known, i.e. before the member's
+ * heartbeat state has been received. The time is encoded as the difference
+ * from a base time shared by the digests of a message.
  * 
  * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
  * 
@@ -37,34 +44,65 @@ public class Digest {
 
         @Override
         public int compare(Digest digest1, Digest digest2) {
-            return (int) (digest1.time - digest2.time);
+            return digest1.time < digest2.time ? -1
+                                              : digest1.time == digest2.time ? 0
+                                                                             : 1;
         }
     }
 
+    /**
+     * The wire key of a digest which identifies the member by address
+     */
+    public static final int         UNKNOWN_ID = 0xFFFF;
+
+    private static int idOf(HeartbeatState state) {
+        if (state == null || state.getSender() == null) {
+            return -1;
+        }
+        int id = state.getSender().id;
+        return id >= 0 && id < UNKNOWN_ID ? id : -1;
+    }
+
     private final InetSocketAddress address;
+    private final int               id;
     private final long              time;
 
-    public Digest(ByteBuffer msg) throws UnknownHostException {
-        address = HeartbeatState.readInetAddress(msg);
-        assert address != null : "Null digest address";
-        time = msg.getLong();
+    public Digest(ByteBuffer msg, long baseTime) throws UnknownHostException {
+        int key = msg.getShort() & 0xFFFF;
+        if (key == UNKNOWN_ID) {
+            id = -1;
+            address = HeartbeatState.readInetAddress(msg);
+            assert address != null : "Null digest address";
+        } else {
+            id = key;
+            address = null;
+        }
+        time = baseTime + VarInt.readSignedLong(msg);
     }
 
     public Digest(HeartbeatState state) {
         address = state.getHeartbeatAddress();
         assert address != null : "Null heartbeat state address";
+        id = idOf(state);
         time = state.getTime();
     }
 
     public Digest(InetSocketAddress socketAddress, Endpoint ep) {
         address = socketAddress;
         assert address != null : "Null digest address address";
+        id = idOf(ep.getState());
         time = ep.getTime();
     }
 
     public Digest(InetSocketAddress ep, long diffTime) {
-        address = ep;
-        time = diffTime;
+        this(-1, ep, diffTime);
+    }
+
+    public Digest(int id, InetSocketAddress address, long time) {
+        assert id >= 0 || address != null : "Digest must have an id or an address";
+        this.id = id;
+        this.address = address;
+        this.time = time;
     }
 
     @Override
@@ -79,6 +117,9 @@ public class Digest {
             return false;
         }
         Digest other = (Digest) obj;
+        if (id != other.id) {
+            return false;
+        }
         if (address == null) {
             if (other.address != null) {
                 return false;
@@ -92,10 +133,21 @@ public class Digest {
         return true;
     }
 
+    /**
+     * @return the address of the member, or null if the digest was received
+     *         keyed by the member's id
+     */
     public InetSocketAddress getAddress() {
         return address;
     }
 
+    /**
+     * @return the partition id of the member, or -1 if the id is unknown
+     */
+    public int getId() {
+        return id;
+    }
+
     public long getTime() {
         return time;
     }
@@ -104,6 +156,7 @@ public class Digest {
     public int hashCode() {
         final int prime = 31;
         int result = 1;
+        result = prime * result + id;
         result = prime * result + (address == null ? 0 : address.hashCode());
         result = prime * result + (int) (time ^ time >>> 32);
         return result;
@@ -112,14 +165,34 @@ public class Digest {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append(address);
+        if (id >= 0) {
+            sb.append('#');
+            sb.append(id);
+        } else {
+            sb.append(address);
+        }
         sb.append(":");
         sb.append(time);
         return sb.toString();
     }
 
-    public void writeTo(ByteBuffer buffer) {
-        HeartbeatState.writeInetAddress(address, buffer);
-        buffer.putLong(time);
+    /**
+     * Write the digest to the buffer. If the id of the member is known, only
+     * the id is written, otherwise the address of the member is written. The
+     * time is written as the variable length encoded difference from the base
+     * time.
+     * 
+     * @param buffer
+     * @param baseTime
+     *            - the base time of the digests in the message
+     */
+    public void writeTo(ByteBuffer buffer, long baseTime) {
+        if (id >= 0) {
+            buffer.putShort((short) id);
+        } else {
+            buffer.putShort((short) UNKNOWN_ID);
+            HeartbeatState.writeInetAddress(address, buffer);
+        }
+        VarInt.writeSignedLong(time - baseTime, buffer);
     }
 }
@@ -20,6 +20,7 @@ package com.hellblazer.jackal.gossip;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.smartfrog.services.anubis.partition.util.Identity;
+import org.smartfrog.services.anubis.partition.util.NodeIdSet;
 
 /**
  * The Endpoint keeps track of the heartbeat state and the failure detector for
@@ -30,12 +31,22 @@ import org.smartfrog.services.anubis.partition.util.Identity;
  */
 
 public class Endpoint {
-    protected static Logger         logger  = LoggerFactory.getLogger(Endpoint.class);
+    protected static Logger         logger             = LoggerFactory.getLogger(Endpoint.class);
 
+    private volatile long           convictionDeadline;
     private final FailureDetector   fd;
     private volatile GossipMessages handler;
     private volatile HeartbeatState heartbeat;
-    private volatile boolean        isAlive = true;
+    private long                    incarnation;
+    private boolean                 indirectProbe;
+    private volatile boolean        isAlive            = true;
+    private long                    lastAcknowledged   = -1;
+    private boolean                 legacy;
+    private volatile int            memberId           = -1;
+    private int                     probeSequence      = -1;
+    private long                    probeStart;
+    private boolean                 suspected;
+    private long                    suspectedAt;
 
     public Endpoint() {
         fd = null;
@@ -45,12 +56,66 @@ public class Endpoint {
                     FailureDetector failureDetector) {
         heartbeat = heartBeatState;
         fd = failureDetector;
+        incarnation = heartBeatState.getIncarnation();
+        memberId = heartBeatState.getSender().id;
+    }
+
+    /**
+     * Record the acknowledgement of a probe of the endpoint
+     * 
+     * @param sequence
+     *            - the sequence number of the acknowledged probe
+     * @param now
+     *            - the time of the acknowledgement
+     * @return true if the acknowledgement is for the outstanding probe
+     */
+    public synchronized boolean acknowledge(int sequence, long now) {
+        if (probeSequence < 0 || sequence != probeSequence) {
+            return false;
+        }
+        probeSequence = -1;
+        indirectProbe = false;
+        lastAcknowledged = now;
+        return true;
+    }
+
+    /**
+     * Escalate the outstanding probe to an indirect probe
+     * 
+     * @param now
+     *            - the time the indirect probe was sent
+     */
+    public synchronized void escalateProbe(long now) {
+        indirectProbe = true;
+        probeStart = now;
     }
 
     public long getEpoch() {
         return heartbeat.getEpoch();
     }
 
+    /**
+     * Answer the earliest time the failure detector could convict the member,
+     * as of the last recorded heartbeat. Until a heartbeat is recorded, the
+     * deadline is 0, and the failure detector is consulted on every check
+     * 
+     * @return the earliest time of conviction, or Long.MAX_VALUE if the member
+     *         cannot be convicted
+     */
+    public long getConvictionDeadline() {
+        if (heartbeat.isDiscoveryOnly()) {
+            return Long.MAX_VALUE;
+        }
+        return convictionDeadline;
+    }
+
+    /**
+     * @return the highest incarnation of the member known to be alive
+     */
+    public synchronized long getIncarnation() {
+        return incarnation;
+    }
+
     public GossipMessages getHandler() {
         return handler;
     }
@@ -59,6 +124,17 @@ public class Endpoint {
         return heartbeat.getSender();
     }
 
+    /**
+     * Answer the partition id of the member, as of its last recorded heartbeat
+     * state. The id is kept apart from the state so that it is read without
+     * decoding the state.
+     * 
+     * @return the partition id, or -1 if the member's id is not known
+     */
+    public int getMemberId() {
+        return memberId;
+    }
+
     public String getMemberString() {
         return heartbeat.getMemberString();
     }
@@ -67,10 +143,63 @@ public class Endpoint {
         return heartbeat;
     }
 
+    /**
+     * @return the time of the last acknowledged probe, or -1 if no probe has
+     *         been acknowledged
+     */
+    public synchronized long getLastAcknowledged() {
+        return lastAcknowledged;
+    }
+
+    /**
+     * @return the sequence number of the outstanding probe, or -1 if there is
+     *         no outstanding probe
+     */
+    public synchronized int getProbeSequence() {
+        return probeSequence;
+    }
+
+    /**
+     * @return the time the outstanding probe, or the current phase of it, was
+     *         sent
+     */
+    public synchronized long getProbeStart() {
+        return probeStart;
+    }
+
+    /**
+     * @return the time the member was first suspected of failure
+     */
+    public synchronized long getSuspectedAt() {
+        return suspectedAt;
+    }
+
     public long getTime() {
         return heartbeat.getTime();
     }
 
+    /**
+     * @return true if the outstanding probe has been escalated to indirect
+     *         probing through other members
+     */
+    public synchronized boolean isIndirectProbe() {
+        return indirectProbe;
+    }
+
+    /**
+     * @return true if there is an outstanding probe of the endpoint
+     */
+    public synchronized boolean isProbing() {
+        return probeSequence >= 0;
+    }
+
+    /**
+     * @return true if the member is suspected of failure
+     */
+    public synchronized boolean isSuspected() {
+        return suspected;
+    }
+
     public boolean isAlive() {
         return isAlive;
     }
@@ -83,17 +212,114 @@ public class Endpoint {
         isAlive = false;
     }
 
-    public void record(HeartbeatState newHbState) {
-        if (heartbeat != newHbState) {
-            heartbeat = newHbState;
-            fd.record(heartbeat.getTime(), System.currentTimeMillis());
+    /**
+     * Record the new heartbeat state of the member. A heartbeat from a higher
+     * incarnation of the member refutes any suspicion of its failure.
+     * 
+     * @param newHbState
+     * @param now
+     *            - the time of the arrival of the heartbeat state
+     * @return true if the view or the view membership of the member changed
+     */
+    public boolean record(HeartbeatState newHbState, long now) {
+        HeartbeatState previous = heartbeat;
+        if (previous == newHbState) {
+            return false;
+        }
+        heartbeat = newHbState;
+        memberId = newHbState.getSender().id;
+        fd.record(heartbeat.getTime(), now);
+        convictionDeadline = fd.nextConvictionTime();
+        refute(heartbeat.getIncarnation());
+        if (previous == null) {
+            return true;
+        }
+        if (previous.getViewNumber() != newHbState.getViewNumber()) {
+            return true;
+        }
+        NodeIdSet members = newHbState.getMembers();
+        return members == null ? previous.getMembers() != null
+                              : !members.equals(previous.getMembers());
+    }
+
+    /**
+     * Refute the suspicion of the member's failure, if the member has moved on
+     * to a higher incarnation
+     * 
+     * @param newIncarnation
+     *            - the incarnation of the member known to be alive
+     * @return true if the incarnation is higher than the known incarnation of
+     *         the member
+     */
+    public synchronized boolean refute(long newIncarnation) {
+        if (newIncarnation <= incarnation) {
+            return false;
         }
+        incarnation = newIncarnation;
+        suspected = false;
+        return true;
+    }
+
+    /**
+     * Abandon the outstanding probe of the endpoint
+     */
+    public synchronized void resetProbe() {
+        probeSequence = -1;
+        indirectProbe = false;
     }
 
     public void setCommunications(GossipMessages communications) {
         handler = communications;
     }
 
+    /**
+     * Record whether the member is of a wire version older than the local
+     * member's
+     * 
+     * @param isLegacy
+     * @return true if this changed the recorded wire version of the member
+     */
+    public synchronized boolean setLegacy(boolean isLegacy) {
+        if (legacy == isLegacy) {
+            return false;
+        }
+        legacy = isLegacy;
+        return true;
+    }
+
+    /**
+     * Start a direct probe of the endpoint
+     * 
+     * @param sequence
+     *            - the sequence number of the probe
+     * @param now
+     *            - the time the probe was sent
+     */
+    public synchronized void startProbe(int sequence, long now) {
+        probeSequence = sequence;
+        indirectProbe = false;
+        probeStart = now;
+    }
+
+    /**
+     * Suspect the member of failure. The suspicion is ignored if the member
+     * has already refuted it by moving on to a higher incarnation.
+     * 
+     * @param suspectIncarnation
+     *            - the incarnation of the member which is suspected
+     * @param now
+     *            - the time of the suspicion
+     * @return true if the member was not previously suspected
+     */
+    public synchronized boolean suspect(long suspectIncarnation, long now) {
+        if (suspected || suspectIncarnation < incarnation) {
+            return false;
+        }
+        suspected = true;
+        suspectedAt = now;
+        return true;
+    }
+
     /**
      * Answer true if the suspicion level of the failure detector is greater
      * than the conviction threshold
@@ -114,6 +340,7 @@ public class Endpoint {
 
     public void updateState(HeartbeatState newHbState) {
         heartbeat = newHbState;
+        memberId = newHbState.getSender().id;
         if (logger.isTraceEnabled()) {
             logger.trace(String.format("%s new heartbeat time: %s",
                                        heartbeat.getSender(),
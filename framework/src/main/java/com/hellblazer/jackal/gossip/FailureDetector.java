@@ -26,6 +26,17 @@ package com.hellblazer.jackal.gossip;
  */
 public interface FailureDetector {
 
+    /**
+     * Answer the earliest time at which the detector could convict, if no
+     * further heartbeats are recorded. The answer is used to schedule the
+     * next evaluation of the detector, so an answer which is early only costs
+     * an extra evaluation, while an answer which is late delays conviction.
+     * 
+     * @return the earliest time of conviction, or Long.MAX_VALUE if the
+     *         detector cannot convict until a heartbeat is recorded
+     */
+    public abstract long nextConvictionTime();
+
     /**
      * Record the arrival time of a heartbeat.
      * 
@@ -17,6 +17,8 @@
  */
 package com.hellblazer.jackal.gossip;
 
+import com.hellblazer.jackal.util.Clock;
+
 /**
  * Produce instances of a configured failure detector.
  * 
@@ -24,5 +26,10 @@ package com.hellblazer.jackal.gossip;
  * 
  */
 public interface FailureDetectorFactory {
-    FailureDetector create();
+    /**
+     * @param clock
+     *            - the source of the current time of the detector
+     * @return a new failure detector
+     */
+    FailureDetector create(Clock clock);
 }
@@ -25,22 +25,26 @@ import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,7 +55,10 @@ import org.smartfrog.services.anubis.partition.util.Identity;
 import org.smartfrog.services.anubis.partition.views.View;
 import org.smartfrog.services.anubis.partition.wire.msg.Heartbeat;
 
-import com.hellblazer.jackal.gossip.Digest.DigestComparator;
+import com.hellblazer.jackal.configuration.GossipHeartbeatAndDiscoveryConfig.GossipConfiguration;
+import com.hellblazer.jackal.gossip.MembershipEvent.Type;
+import com.hellblazer.jackal.util.Clock;
+import com.hellblazer.jackal.util.TimingWheel;
 
 /**
  * The embodiment of the gossip protocol. This protocol replicates the Anubis
@@ -75,60 +82,86 @@ import com.hellblazer.jackal.gossip.Digest.DigestComparator;
  * 
  */
 public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
-    private final static Logger                              log        = LoggerFactory.getLogger(Gossip.class);
+    /**
+     * The fan-out which scales the number of members gossiped with each round
+     * with ceil(log2(live members))
+     */
+    public static final int                                  AUTOMATIC_FANOUT      = 0;
+    /**
+     * The maximum number of membership events piggybacked on a gossip message
+     */
+    public static final int                                  MAX_EVENTS            = 8;
+    /**
+     * The multiple of the log of the number of members bounding the number of
+     * times a membership event is retransmitted
+     */
+    public static final int                                  RETRANSMIT_MULTIPLIER = 3;
+    /**
+     * The number of buckets in the timing wheel of conviction deadlines
+     */
+    public static final int                                  CONVICTION_WHEEL_SIZE = 256;
+    private final static Logger                              log                   = LoggerFactory.getLogger(Gossip.class);
+    private static final int                                 SORT_INDEX_BITS       = 20;
+    private static final long                                SORT_INDEX_MASK       = (1L << SORT_INDEX_BITS) - 1;
+    private static final long                                MAX_SORT_DIFF         = Long.MAX_VALUE >>> SORT_INDEX_BITS;
+    private static final int                                 INITIAL_MEMBERS       = 64;
 
     private final GossipCommunications                       communications;
-    private final ConcurrentMap<InetSocketAddress, Endpoint> endpoints  = new ConcurrentHashMap<InetSocketAddress, Endpoint>();
+    private final ConcurrentMap<InetSocketAddress, Endpoint> endpoints     = new ConcurrentHashMap<InetSocketAddress, Endpoint>();
     private final Random                                     entropy;
-    private final AtomicReference<HeartbeatState>            localState = new AtomicReference<HeartbeatState>();
+    private final AtomicReference<HeartbeatState>            localState    = new AtomicReference<HeartbeatState>();
     private final SystemView                                 view;
-    private ScheduledFuture<?>                               gossipTask;
+    private volatile ScheduledFuture<?>                      gossipTask;
     private final int                                        interval;
     private final TimeUnit                                   intervalUnit;
     private final ScheduledExecutorService                   scheduler;
     private final ExecutorService                            dispatcher;
     private ConnectionManager                                receiver;
-    private final AtomicReference<View>                      ignoring   = new AtomicReference<View>();
-    private final AtomicBoolean                              running    = new AtomicBoolean();
+    private final AtomicReference<View>                      ignoring      = new AtomicReference<View>();
+    private final AtomicBoolean                              running       = new AtomicBoolean();
     private final FailureDetectorFactory                     fdFactory;
     private final Ring                                       ring;
-
     /**
-     * 
-     * @param systemView
-     *            - the system management view of the member state
-     * @param random
-     *            - a source of entropy
-     * @param communicationsService
-     *            - the service which creates outbound connections to other
-     *            members
-     * @param gossipInterval
-     *            - the period of the random gossiping
-     * @param unit
-     *            - time unit for the gossip interval
-     * @param failureDetectorFactory
-     *            - the factory producing instances of the failure detector
-     * @param heartbeatReceiver
-     *            - the reciever of newly acquired heartbeat state
+     * The number of known members of a wire version older than the local
+     * member's
      */
-    public Gossip(SystemView systemView, Random random,
-                  GossipCommunications communicationsService,
-                  int gossipInterval, TimeUnit unit,
-                  FailureDetectorFactory failureDetectorFactory, Identity id) {
-        communications = communicationsService;
-        communications.setGossip(this);
-        entropy = random;
-        view = systemView;
-        interval = gossipInterval;
-        intervalUnit = unit;
-        fdFactory = failureDetectorFactory;
-        ring = new Ring(id.id, communications);
-        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    private final AtomicInteger                              legacyMembers = new AtomicInteger();
+    /**
+     * The endpoints indexed by partition id, grown to the highest id known.
+     * Modified and replaced only while holding the members lock.
+     */
+    private volatile AtomicReferenceArray<Endpoint>          members       = new AtomicReferenceArray<Endpoint>(
+                                                                                                    INITIAL_MEMBERS);
+    private final Object                                     membersLock   = new Object();
+    private final int                                        localId;
+    private final int                                        fanout;
+    private final int                                        indirectProbes;
+    private final long                                       probeTimeout;
+    private final AtomicInteger                              probeSequence = new AtomicInteger();
+    private final long                                       suspicionTimeout;
+    private final AtomicLong                                 incarnation   = new AtomicLong();
+    private final MembershipEvents                           events        = new MembershipEvents(
+                                                                                                  RETRANSMIT_MULTIPLIER);
+    private final MerkleTree                                 merkle;
+    private final int                                        minInterval;
+    private final int                                        maxInterval;
+    private final AtomicLong                                 currentInterval;
+    private final Clock                                      clock;
+    private final AtomicInteger                              roundDeltas   = new AtomicInteger();
+    private volatile int                                     lastRoundDeltas;
+    private final TimingWheel<InetSocketAddress>             convictions;
+    private volatile MembershipSnapshot                      snapshot;
+    private long                                             snapshotPeriod;
+    private TimeUnit                                         snapshotUnit;
+
+    private static ExecutorService newDispatcher() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            volatile int count = 0;
+
             @Override
             public Thread newThread(Runnable r) {
-                int count = 0;
                 Thread daemon = new Thread(r,
-                                           "Gossip heartbeat servicing thread "
+                                           "Gossip dispatching thread "
                                                    + count++);
                 daemon.setDaemon(true);
                 daemon.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
@@ -140,13 +173,15 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
                 return daemon;
             }
         });
-        dispatcher = Executors.newCachedThreadPool(new ThreadFactory() {
-            volatile int count = 0;
+    }
 
+    private static ScheduledExecutorService newScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
+                int count = 0;
                 Thread daemon = new Thread(r,
-                                           "Gossip dispatching thread "
+                                           "Gossip heartbeat servicing thread "
                                                    + count++);
                 daemon.setDaemon(true);
                 daemon.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
@@ -160,28 +195,145 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
         });
     }
 
+    /**
+     * 
+     * @param systemView
+     *            - the system management view of the member state
+     * @param random
+     *            - a source of entropy
+     * @param communicationsService
+     *            - the service which creates outbound connections to other
+     *            members
+     * @param gossipInterval
+     *            - the period of the random gossiping
+     * @param unit
+     *            - time unit for the gossip interval
+     * @param failureDetectorFactory
+     *            - the factory producing instances of the failure detector
+     * @param heartbeatReceiver
+     *            - the reciever of newly acquired heartbeat state
+     */
+    public Gossip(SystemView systemView, Random random,
+                  GossipCommunications communicationsService,
+                  int gossipInterval, TimeUnit unit,
+                  FailureDetectorFactory failureDetectorFactory, Identity id) {
+        this(systemView, random, communicationsService,
+             failureDetectorFactory, id,
+             new GossipConfiguration(gossipInterval, unit, 0, 0));
+    }
+
+    /**
+     * 
+     * @param systemView
+     *            - the system management view of the member state
+     * @param random
+     *            - a source of entropy
+     * @param communicationsService
+     *            - the service which creates outbound connections to other
+     *            members
+     * @param failureDetectorFactory
+     *            - the factory producing instances of the failure detector
+     * @param id
+     *            - the partition identity of the local member
+     * @param configuration
+     *            - the gossip interval, fan-out, probing, suspicion,
+     *            anti-entropy and ring parameters
+     */
+    public Gossip(SystemView systemView, Random random,
+                  GossipCommunications communicationsService,
+                  FailureDetectorFactory failureDetectorFactory, Identity id,
+                  GossipConfiguration configuration) {
+        this(systemView, random, communicationsService,
+             failureDetectorFactory, id, configuration, Clock.SYSTEM,
+             newScheduler(), newDispatcher());
+    }
+
+    /**
+     * 
+     * @param systemView
+     *            - the system management view of the member state
+     * @param random
+     *            - a source of entropy
+     * @param communicationsService
+     *            - the service which creates outbound connections to other
+     *            members
+     * @param failureDetectorFactory
+     *            - the factory producing instances of the failure detector
+     * @param id
+     *            - the partition identity of the local member
+     * @param configuration
+     *            - the gossip interval, fan-out, probing, suspicion,
+     *            anti-entropy and ring parameters
+     * @param clock
+     *            - the source of the current time
+     * @param scheduler
+     *            - the scheduler of the gossip rounds and the periodic tasks,
+     *            shut down when the gossip is terminated
+     * @param dispatcher
+     *            - the executor delivering the notifications to the heartbeat
+     *            receiver
+     */
+    public Gossip(SystemView systemView, Random random,
+                  GossipCommunications communicationsService,
+                  FailureDetectorFactory failureDetectorFactory, Identity id,
+                  GossipConfiguration configuration, Clock clock,
+                  ScheduledExecutorService scheduler,
+                  ExecutorService dispatcher) {
+        if (configuration.fanout < 0) {
+            throw new IllegalArgumentException(
+                                               format("Invalid gossip fanout: %s",
+                                                      configuration.fanout));
+        }
+        if (configuration.minInterval <= 0
+            || configuration.minInterval > configuration.interval
+            || configuration.interval > configuration.maxInterval) {
+            throw new IllegalArgumentException(
+                                               format("Invalid gossip intervals, min: %s, initial: %s, max: %s",
+                                                      configuration.minInterval,
+                                                      configuration.interval,
+                                                      configuration.maxInterval));
+        }
+        this.clock = clock;
+        minInterval = configuration.minInterval;
+        maxInterval = configuration.maxInterval;
+        currentInterval = new AtomicLong(configuration.interval);
+        convictions = new TimingWheel<InetSocketAddress>(
+                                                         CONVICTION_WHEEL_SIZE,
+                                                         Math.max(1,
+                                                                  configuration.unit.toMillis(minInterval)),
+                                                         clock.currentTimeMillis());
+        fanout = configuration.fanout;
+        indirectProbes = configuration.indirectProbes;
+        probeTimeout = configuration.probeTimeout;
+        suspicionTimeout = configuration.suspicionTimeout;
+        merkle = configuration.merkleAntiEntropy ? new MerkleTree(
+                                                                  Identity.MAX_ID + 1)
+                                                : null;
+        communications = communicationsService;
+        communications.setGossip(this);
+        entropy = random;
+        view = systemView;
+        interval = configuration.interval;
+        intervalUnit = configuration.unit;
+        fdFactory = failureDetectorFactory;
+        ring = new Ring(id.id, configuration.rings, communications);
+        localId = id.id;
+        this.scheduler = scheduler;
+        this.dispatcher = dispatcher;
+    }
+
     public void checkStatus() {
-        long now = System.currentTimeMillis();
+        long now = clock.currentTimeMillis();
         if (log.isTraceEnabled()) {
             log.trace("Checking the status of the living...");
         }
-        for (Iterator<Entry<InetSocketAddress, Endpoint>> iterator = endpoints.entrySet().iterator(); iterator.hasNext();) {
-            Entry<InetSocketAddress, Endpoint> entry = iterator.next();
-            InetSocketAddress endpoint = entry.getKey();
-            if (endpoint.equals(view.getLocalAddress())) {
+        for (InetSocketAddress address : convictions.expire(now)) {
+            Endpoint endpoint = endpoints.get(address);
+            if (endpoint == null || !endpoint.isAlive()) {
                 continue;
             }
-
-            Endpoint state = entry.getValue();
-            if (state.isAlive() && state.shouldConvict(now)) {
-                iterator.remove();
-                state.markDead();
-                view.markDead(endpoint, now);
-                if (log.isDebugEnabled()) {
-                    log.debug(format("Endpoint %s is now DEAD on node: %s",
-                                     state.getMemberString(),
-                                     localState.get().getMemberString()));
-                }
+            if (!checkStatus(address, endpoint, now)) {
+                watch(address, endpoint, now);
             }
         }
         if (log.isTraceEnabled()) {
@@ -191,6 +343,27 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
         view.cullUnreachable(now);
     }
 
+    /**
+     * The acknowledgement of a probe of a member
+     * 
+     * @param address
+     *            - the address of the member which was probed
+     * @param sequence
+     *            - the sequence number of the probe
+     */
+    public void acknowledge(InetSocketAddress address, int sequence) {
+        Endpoint endpoint = endpoints.get(address);
+        if (endpoint == null) {
+            return;
+        }
+        if (endpoint.acknowledge(sequence, clock.currentTimeMillis())) {
+            if (log.isDebugEnabled()) {
+                log.debug(format("Member: %s acknowledged probe #%s on: %s",
+                                 endpoint.getMemberString(), sequence, getId()));
+            }
+        }
+    }
+
     public void connectTo(Identity peer) {
         if (log.isDebugEnabled()) {
             log.debug(String.format("Connect request on: %s from: %s", getId(),
@@ -209,9 +382,31 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
         return view.getLocalAddress();
     }
 
+    /**
+     * Answer the current interval between rounds of gossip
+     * 
+     * @return the interval, in the time unit of the gossip interval
+     */
+    public long getCurrentInterval() {
+        return currentInterval.get();
+    }
+
+    /**
+     * Answer the number of changes to the membership observed in the last
+     * completed round of gossip. Changes are discoveries and convictions of
+     * members, suspicions, and changes to the views of the members
+     * 
+     * @return the number of changes
+     */
+    public int getLastRoundDeltas() {
+        return lastRoundDeltas;
+    }
+
     @Override
     public String getStatusString() {
-        return "Gossip heartbeat/discovery, running: " + running.get();
+        return "Gossip heartbeat/discovery, running: " + running.get()
+               + ", interval: " + currentInterval.get() + " " + intervalUnit
+               + ", deltas: " + lastRoundDeltas;
     }
 
     /**
@@ -223,11 +418,162 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
     public void gossip() {
         List<Digest> digests = randomDigests();
         if (digests.size() > 0) {
-            InetSocketAddress member = gossipWithTheLiving(digests);
+            List<InetSocketAddress> members = merkle == null ? gossipWithTheLiving(digests)
+                                                            : reconcileWithTheLiving();
             gossipWithTheDead(digests);
-            gossipWithSeeds(digests, member);
+            gossipWithSeeds(digests, members.isEmpty() ? null : members.get(0));
         }
-        checkStatus();
+    }
+
+    /**
+     * Answer the number of live members to gossip with in a round
+     * 
+     * @return the fan-out of the gossip round
+     */
+    public int getFanout() {
+        if (fanout != AUTOMATIC_FANOUT) {
+            return fanout;
+        }
+        int live = view.getLiveMembers().size();
+        if (live <= 2) {
+            return 1;
+        }
+        return 32 - Integer.numberOfLeadingZeros(live - 1);
+    }
+
+    /**
+     * Process the membership events piggybacked on a gossip message. A
+     * suspicion or confirmation of the failure of the local member is refuted
+     * by moving on to a higher incarnation, which is announced to the other
+     * members. A member announcing that it is leaving is removed immediately,
+     * whether or not suspicion is enabled. Events which change the local view
+     * of a member are queued for further dissemination.
+     * 
+     * @param membershipEvents
+     *            - the events received
+     */
+    public void handle(List<MembershipEvent> membershipEvents) {
+        long now = clock.currentTimeMillis();
+        InetSocketAddress localAddress = view.getLocalAddress();
+        for (MembershipEvent event : membershipEvents) {
+            if (suspicionTimeout <= 0 && event.getType() != Type.LEAVE) {
+                continue;
+            }
+            InetSocketAddress address = event.getMember();
+            if (address.equals(localAddress)) {
+                if (event.getType() != Type.ALIVE) {
+                    refute(event.getIncarnation());
+                }
+                continue;
+            }
+            Endpoint endpoint = endpoints.get(address);
+            if (endpoint == null || !endpoint.isAlive()) {
+                continue;
+            }
+            switch (event.getType()) {
+                case SUSPECT: {
+                    if (endpoint.suspect(event.getIncarnation(), now)) {
+                        if (log.isDebugEnabled()) {
+                            log.debug(format("Member: %s suspected on: %s",
+                                             endpoint.getMemberString(),
+                                             getId()));
+                        }
+                        events.add(event);
+                        noteDelta();
+                    }
+                    break;
+                }
+                case ALIVE: {
+                    if (endpoint.refute(event.getIncarnation())) {
+                        events.add(event);
+                    }
+                    break;
+                }
+                case CONFIRM: {
+                    if (event.getIncarnation() >= endpoint.getIncarnation()
+                        && convict(address, endpoint, now)) {
+                        events.add(event);
+                    }
+                    break;
+                }
+                case LEAVE: {
+                    if (event.getIncarnation() >= endpoint.getIncarnation()
+                        && convict(address, endpoint, now)) {
+                        if (log.isInfoEnabled()) {
+                            log.info(format("Member: %s has left, on: %s",
+                                            endpoint.getMemberString(),
+                                            getId()));
+                        }
+                        events.add(event);
+                        notifyLeave(endpoint);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Anti-entropy of the Merkle trees of the heartbeat times. The hashes of
+     * the sender's tree nodes are compared with the local tree. The hashes of
+     * the children of differing interior nodes are sent back to the sender,
+     * which continues the descent. The members of differing leaves are
+     * reconciled with the existing gossip exchange, by sending the sender the
+     * digests of the leaf's members. If Merkle anti-entropy is not enabled,
+     * the sender is sent the digests of all the members.
+     * 
+     * @param nodes
+     *            - the indexes of the sender's tree nodes
+     * @param hashes
+     *            - the hashes of the sender's tree nodes
+     * @param gossipHandler
+     *            - the handler to send the reply
+     */
+    public void merkle(int[] nodes, long[] hashes, GossipMessages gossipHandler) {
+        if (merkle == null) {
+            gossipHandler.gossip(randomDigests());
+            return;
+        }
+        int[] children = new int[nodes.length * MerkleTree.FANOUT];
+        long[] childHashes = new long[children.length];
+        int childCount = 0;
+        List<Digest> digests = new ArrayList<Digest>();
+        for (int i = 0; i < nodes.length; i++) {
+            int node = nodes[i];
+            if (node < 0 || node >= merkle.size()
+                || merkle.getHash(node) == hashes[i]) {
+                continue;
+            }
+            if (merkle.isLeaf(node)) {
+                addBucketDigests(digests, node);
+                continue;
+            }
+            int first = merkle.firstChild(node);
+            for (int child = first; child < first + MerkleTree.FANOUT; child++) {
+                children[childCount] = child;
+                childHashes[childCount++] = merkle.getHash(child);
+            }
+        }
+        if (childCount > 0) {
+            gossipHandler.merkle(Arrays.copyOf(children, childCount),
+                                 Arrays.copyOf(childHashes, childCount));
+        }
+        if (!digests.isEmpty()) {
+            if (log.isTraceEnabled()) {
+                log.trace(format("Member: %s reconciling digests: %s",
+                                 getId(), digests));
+            }
+            gossipHandler.gossip(digests);
+        }
+    }
+
+    /**
+     * Answer the membership events to piggyback on the next gossip message
+     * 
+     * @return the list of membership events to transmit
+     */
+    public List<MembershipEvent> nextEvents() {
+        return events.next(MAX_EVENTS, view.getLiveMembers().size() + 1);
     }
 
     /**
@@ -258,12 +604,24 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
         return theShunned.contains(id);
     }
 
+    /**
+     * Answer true if the member at the address is being ignored. This is asked
+     * of every inbound datagram, so the bit of the member's partition id is
+     * tested from the id cached by its endpoint, without decoding its state.
+     * 
+     * @param address
+     * @return true if the member is ignored
+     */
     public boolean isIgnoring(InetSocketAddress address) {
+        final View theShunned = ignoring.get();
+        if (theShunned == null) {
+            return false;
+        }
         Endpoint endpoint = endpoints.get(address);
         if (endpoint == null) {
             return false;
         }
-        return isIgnoring(endpoint.getState().getSender());
+        return theShunned.contains(endpoint.getMemberId());
     }
 
     /**
@@ -292,8 +650,7 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
 
         List<HeartbeatState> deltaState = new ArrayList<HeartbeatState>();
         for (Digest digest : digests) {
-            InetSocketAddress addr = digest.getAddress();
-            addUpdatedState(deltaState, addr, digest.getTime());
+            addUpdatedState(deltaState, digest);
         }
         if (!deltaState.isEmpty()) {
             if (log.isTraceEnabled()) {
@@ -338,11 +695,47 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
         }
         final HeartbeatState heartbeatState = HeartbeatState.toHeartbeatState(heartbeat,
                                                                               view.getLocalAddress());
+        heartbeatState.setIncarnation(incarnation.get());
+        heartbeatState.setZone(view.getLocalZone());
+        heartbeatState.setSparseIdSets(readSparseIdSets());
+        int size = heartbeatState.getFrame().remaining();
+        if (size > HeartbeatState.MAX_FRAME_SIZE && log.isErrorEnabled()) {
+            log.error(format("Member: %s heartbeat state of %s bytes is too large to send, the limit is %s bytes",
+                             heartbeatState.getSender(), size,
+                             HeartbeatState.MAX_FRAME_SIZE));
+        }
         localState.set(heartbeatState);
-        ring.update(heartbeatState.getMembers(), endpoints.values());
+        if (merkle != null) {
+            merkle.update(localId, heartbeatState.getTime());
+        }
+        ring.update(heartbeatState.getMembers(), members);
         ring.send(heartbeatState);
     }
 
+    /**
+     * Warm restart the member from the snapshot of the members known before
+     * it was last stopped, and periodically snapshot the known members. Must
+     * be set before the member is started.
+     * 
+     * @param membershipSnapshot
+     *            - the snapshot of the known members
+     * @param period
+     *            - the period between snapshots
+     * @param unit
+     *            - the time unit of the period
+     */
+    public void setSnapshot(MembershipSnapshot membershipSnapshot, long period,
+                            TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException(
+                                               format("Invalid snapshot period: %s",
+                                                      period));
+        }
+        snapshotPeriod = period;
+        snapshotUnit = unit;
+        snapshot = membershipSnapshot;
+    }
+
     @Override
     public void setIgnoring(View ignoringUpdate) {
         ignoring.set(ignoringUpdate);
@@ -359,20 +752,50 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
         if (running.compareAndSet(false, true)) {
             HeartbeatState heartbeatState = HeartbeatState.toHeartbeatState(initialHeartbeat,
                                                                             view.getLocalAddress());
+            heartbeatState.setIncarnation(incarnation.get());
+            heartbeatState.setZone(view.getLocalZone());
+            heartbeatState.setSparseIdSets(readSparseIdSets());
             localState.set(heartbeatState);
+            if (merkle != null) {
+                merkle.update(localId, heartbeatState.getTime());
+            }
             communications.start();
-            gossipTask = scheduler.scheduleWithFixedDelay(gossipTask(),
-                                                          interval, interval,
-                                                          intervalUnit);
+            if (snapshot != null) {
+                rejoin();
+                scheduler.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeSnapshot();
+                    }
+                }, snapshotPeriod, snapshotPeriod, snapshotUnit);
+            }
+            scheduler.scheduleWithFixedDelay(statusTask(), minInterval,
+                                             minInterval, intervalUnit);
+            if (minInterval == maxInterval) {
+                gossipTask = scheduler.scheduleWithFixedDelay(gossipTask(),
+                                                              interval,
+                                                              interval,
+                                                              intervalUnit);
+            } else {
+                scheduleRound(interval);
+            }
         }
     }
 
     @Override
     public void terminate() {
         if (running.compareAndSet(true, false)) {
+            leave();
             communications.terminate();
             scheduler.shutdownNow();
-            gossipTask.cancel(true);
+            if (snapshot != null) {
+                writeSnapshot();
+                snapshot.close();
+            }
+            ScheduledFuture<?> task = gossipTask;
+            if (task != null) {
+                task.cancel(true);
+            }
             gossipTask = null;
         }
     }
@@ -383,7 +806,11 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
         }
         Endpoint endpoint = endpoints.get(address);
         if (endpoint != null) {
-            endpoint.updateState(HeartbeatState.toHeartbeatState(hb, address));
+            HeartbeatState state = HeartbeatState.toHeartbeatState(hb, address);
+            endpoint.updateState(state);
+            if (merkle != null) {
+                index(state, endpoint);
+            }
             return true;
         }
         return false;
@@ -407,24 +834,84 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
         apply(remoteStates);
     }
 
+    /**
+     * Answer true if the member of the state may be discovered. While members
+     * of an older wire version are known the node id sets are written in the
+     * dense encoding, so ids above {@link HeartbeatState#MAX_DENSE_ID} are
+     * refused, as is a member of an older wire version while such ids are in
+     * use, so that every heartbeat state still fits in an update.
+     * 
+     * @param state
+     *            - the heartbeat state of the member
+     */
+    protected boolean admits(HeartbeatState state) {
+        int limit = HeartbeatState.MAX_DENSE_ID;
+        if (state.getWireVersion() < HeartbeatState.WIRE_VERSION) {
+            int highest = highestMemberId();
+            if (highest > limit) {
+                if (log.isErrorEnabled()) {
+                    log.error(format("Member: %s refusing member %s of wire version %s, as member %s is above the id limit of %s for that version",
+                                     localId, state.getSender(),
+                                     state.getWireVersion(), highest, limit));
+                }
+                return false;
+            }
+            return true;
+        }
+        if (!readSparseIdSets() && state.getSender().id > limit) {
+            if (log.isErrorEnabled()) {
+                log.error(format("Member: %s refusing member %s, as its id is above the limit of %s while members of an older wire version are known",
+                                 localId, state.getSender(), limit));
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add the digests of the members of the Merkle tree leaf. Members unknown
+     * to the local member are represented by digests that are manifestly out
+     * of date, so that the receiver will update us with their state if it
+     * knows of them.
+     * 
+     * @param digests
+     *            - the list of digests to add to
+     * @param leaf
+     *            - the leaf of the Merkle tree
+     */
+    protected void addBucketDigests(List<Digest> digests, int leaf) {
+        int first = merkle.firstId(leaf);
+        int last = Math.min(first + MerkleTree.BUCKET_SIZE, Identity.MAX_ID + 1);
+        for (int id = first; id < last; id++) {
+            if (id == localId) {
+                digests.add(new Digest(localState.get()));
+                continue;
+            }
+            Endpoint endpoint = member(id);
+            digests.add(endpoint == null ? new Digest(id, null, -1)
+                                        : new Digest(endpoint.getState()));
+        }
+    }
+
     protected void addUpdatedState(List<HeartbeatState> deltaState,
-                                   InetSocketAddress endpoint, long time) {
-        Endpoint state = endpoints.get(endpoint);
+                                   Digest digest) {
+        long time = digest.getTime();
+        Endpoint state = lookup(digest);
         if (state != null && state.getTime() > time) {
             if (log.isTraceEnabled()) {
                 log.trace(format("local heartbeat time stamp %s greater than %s for %s ",
-                                 state.getTime(), time, endpoint));
+                                 state.getTime(), time, digest));
             }
             deltaState.add(state.getState());
         } else {
-            if (view.getLocalAddress().equals(endpoint)
-                && localState.get().getTime() > time) {
+            if (isLocal(digest) && localState.get().getTime() > time) {
                 deltaState.add(localState.get());
             }
         }
     }
 
     protected void apply(List<HeartbeatState> remoteStates) {
+        long now = clock.currentTimeMillis();
         for (HeartbeatState remoteState : remoteStates) {
             InetSocketAddress endpoint = remoteState.getHeartbeatAddress();
             if (endpoint == null) {
@@ -445,7 +932,19 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
             if (local != null) {
                 if (remoteState.getTime() > local.getTime()) {
                     long oldTime = local.getTime();
-                    local.record(remoteState);
+                    boolean zoned = view.getLocalZone() != null;
+                    String oldZone = zoned ? local.getState().getZone() : null;
+                    if (local.record(remoteState, now)) {
+                        noteDelta();
+                    }
+                    index(remoteState, local);
+                    if (zoned) {
+                        String zone = remoteState.getZone();
+                        if (zone == null ? oldZone != null
+                                        : !zone.equals(oldZone)) {
+                            view.markAlive(endpoint, zone);
+                        }
+                    }
                     notifyUpdate(local.getState());
                     if (log.isTraceEnabled()) {
                         log.trace(format("Updating heartbeat state time stamp to %s from %s for %s",
@@ -458,6 +957,72 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
         }
     }
 
+    /**
+     * Check the status of a member whose conviction deadline has expired,
+     * probing, suspecting and convicting the member as its failure detector
+     * and the probes and suspicions already underway dictate
+     * 
+     * @param address
+     *            - the address of the member
+     * @param endpoint
+     *            - the member
+     * @param now
+     *            - the time of the check
+     * @return true if the member was convicted
+     */
+    protected boolean checkStatus(InetSocketAddress address,
+                                  Endpoint endpoint, long now) {
+        boolean suspected = endpoint.isSuspected();
+        if (!suspected
+            && (endpoint.getConvictionDeadline() > now || !endpoint.shouldConvict(now))) {
+            return false;
+        }
+        if (!suspected && probeTimeout > 0 && !probe(address, endpoint, now)) {
+            return false;
+        }
+        if (suspicionTimeout > 0) {
+            if (!suspect(address, endpoint, now)) {
+                return false;
+            }
+            if (convict(address, endpoint, now)) {
+                events.add(new MembershipEvent(Type.CONFIRM, address,
+                                               endpoint.getIncarnation()));
+                return true;
+            }
+            return false;
+        }
+        return convict(address, endpoint, now);
+    }
+
+    /**
+     * Convict the member of failure, removing it from the living
+     * 
+     * @param address
+     *            - the address of the member
+     * @param endpoint
+     *            - the member
+     * @param now
+     *            - the time of the conviction
+     * @return true if the member was convicted, false if the member had
+     *         already been removed
+     */
+    protected boolean convict(InetSocketAddress address, Endpoint endpoint,
+                              long now) {
+        if (!endpoints.remove(address, endpoint)) {
+            return false;
+        }
+        convictions.cancel(address);
+        unindex(endpoint);
+        endpoint.markDead();
+        view.markDead(address, now);
+        noteDelta();
+        if (log.isDebugEnabled()) {
+            log.debug(format("Endpoint %s is now DEAD on node: %s",
+                             endpoint.getMemberString(), getId()));
+        }
+        return true;
+    }
+
     /**
      * Connect with a member
      * 
@@ -494,7 +1059,7 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
     protected void connectAndGossipWith(final InetSocketAddress address,
                                         final List<Digest> digests) {
         final Endpoint newEndpoint = new Endpoint(new HeartbeatState(address),
-                                                  fdFactory.create());
+                                                  fdFactory.create(clock));
         Runnable connectAction = new Runnable() {
             @Override
             public void run() {
@@ -508,6 +1073,7 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
                     return;
                 }
                 view.markAlive(address);
+                watch(address, newEndpoint, clock.currentTimeMillis());
                 if (log.isDebugEnabled()) {
                     log.debug(format("Member %s is now CONNECTED",
                                      newEndpoint.getMemberString()));
@@ -532,7 +1098,10 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
         if (view.getLocalAddress().equals(address)) {
             return; // it's our state, dummy
         }
-        final Endpoint endpoint = new Endpoint(state, fdFactory.create());
+        if (!admits(state)) {
+            return;
+        }
+        final Endpoint endpoint = new Endpoint(state, fdFactory.create(clock));
         Runnable connectAction = new Runnable() {
             @Override
             public void run() {
@@ -545,7 +1114,10 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
                     }
                     return;
                 }
-                view.markAlive(address);
+                index(state, endpoint);
+                view.markAlive(address, state.getZone());
+                watch(address, endpoint, clock.currentTimeMillis());
+                noteDelta();
                 if (log.isDebugEnabled()) {
                     log.debug(format("Member %s is now UP",
                                      endpoint.getMemberString()));
@@ -566,22 +1138,24 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
         List<HeartbeatState> deltaState = new ArrayList<HeartbeatState>();
         for (Digest digest : digests) {
             long remoteTime = digest.getTime();
-            Endpoint state = endpoints.get(digest.getAddress());
+            Endpoint state = lookup(digest);
             if (state != null) {
                 long localTime = state.getTime();
                 if (remoteTime == localTime) {
                     continue;
                 }
                 if (remoteTime > localTime) {
-                    deltaDigests.add(new Digest(digest.getAddress(), localTime));
+                    deltaDigests.add(new Digest(digest.getId(),
+                                                digest.getAddress(), localTime));
                 } else if (remoteTime < localTime) {
-                    addUpdatedState(deltaState, digest.getAddress(), remoteTime);
+                    addUpdatedState(deltaState, digest);
                 }
             } else {
-                if (view.getLocalAddress().equals(digest.getAddress())) {
-                    addUpdatedState(deltaState, digest.getAddress(), remoteTime);
+                if (isLocal(digest)) {
+                    addUpdatedState(deltaState, digest);
                 } else {
-                    deltaDigests.add(new Digest(digest.getAddress(), -1));
+                    deltaDigests.add(new Digest(digest.getId(),
+                                                digest.getAddress(), -1));
                 }
             }
         }
@@ -602,6 +1176,173 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
         return localState.get().getSender();
     }
 
+    /**
+     * Index the endpoint by the partition id of its heartbeat state, counting
+     * the member if it is of an older wire version
+     * 
+     * @param state
+     *            - the heartbeat state of the endpoint
+     * @param endpoint
+     */
+    protected void index(HeartbeatState state, Endpoint endpoint) {
+        boolean legacy = state.getWireVersion() < HeartbeatState.WIRE_VERSION;
+        if (endpoint.setLegacy(legacy)) {
+            legacyMembers.addAndGet(legacy ? 1 : -1);
+        }
+        int id = state.getSender().id;
+        if (id >= 0 && id <= Identity.MAX_ID) {
+            setMember(id, endpoint);
+            if (merkle != null) {
+                merkle.update(id, state.getTime());
+            }
+        }
+    }
+
+    /**
+     * Answer true if the digest represents the local member
+     * 
+     * @param digest
+     */
+    protected boolean isLocal(Digest digest) {
+        if (digest.getId() >= 0) {
+            return digest.getId() == localId;
+        }
+        return view.getLocalAddress().equals(digest.getAddress());
+    }
+
+    /**
+     * Answer the endpoint represented by the digest, using the partition id of
+     * the digest if known, otherwise the address.
+     * 
+     * @param digest
+     * @return the endpoint, or null if no endpoint is known
+     */
+    protected Endpoint lookup(Digest digest) {
+        int id = digest.getId();
+        if (id >= 0 && id <= Identity.MAX_ID) {
+            Endpoint endpoint = member(id);
+            if (endpoint != null || digest.getAddress() == null) {
+                return endpoint;
+            }
+        }
+        InetSocketAddress address = digest.getAddress();
+        return address == null ? null : endpoints.get(address);
+    }
+
+    /**
+     * Probe a member the failure detector suspects has failed. The member is
+     * first probed directly. If no acknowledgement is received within the
+     * probe timeout, live members are requested to probe the member
+     * indirectly. If no acknowledgement is received within the probe timeout
+     * of the indirect probe, the suspicion is confirmed. An acknowledgement
+     * refutes the suspicion for the probe timeout.
+     * 
+     * @param address
+     *            - the address of the suspected member
+     * @param endpoint
+     *            - the suspected member
+     * @param now
+     *            - the current time
+     * @return true if the suspicion of the member is confirmed
+     */
+    protected boolean probe(InetSocketAddress address, Endpoint endpoint,
+                            long now) {
+        long acknowledged = endpoint.getLastAcknowledged();
+        if (acknowledged >= 0 && now - acknowledged <= probeTimeout) {
+            return false;
+        }
+        if (!endpoint.isProbing()) {
+            int sequence = probeSequence.incrementAndGet() & Integer.MAX_VALUE;
+            endpoint.startProbe(sequence, now);
+            if (log.isDebugEnabled()) {
+                log.debug(format("Member: %s probing suspect: %s", getId(),
+                                 endpoint.getMemberString()));
+            }
+            communications.ping(address, sequence);
+            return false;
+        }
+        if (now - endpoint.getProbeStart() <= probeTimeout) {
+            return false;
+        }
+        if (!endpoint.isIndirectProbe()) {
+            List<InetSocketAddress> relays = view.getRandomLiveMembers(indirectProbes + 1);
+            relays.remove(address);
+            while (relays.size() > indirectProbes) {
+                relays.remove(relays.size() - 1);
+            }
+            if (!relays.isEmpty()) {
+                endpoint.escalateProbe(now);
+                if (log.isDebugEnabled()) {
+                    log.debug(format("Member: %s indirectly probing suspect: %s through: %s",
+                                     getId(), endpoint.getMemberString(),
+                                     relays));
+                }
+                communications.requestPing(address,
+                                           endpoint.getProbeSequence(),
+                                           relays);
+                return false;
+            }
+        }
+        endpoint.resetProbe();
+        return true;
+    }
+
+    /**
+     * Refute the suspicion of the local member's failure by moving on to an
+     * incarnation higher than the suspected incarnation, and announcing that
+     * the local member is alive
+     * 
+     * @param suspected
+     *            - the suspected incarnation of the local member
+     */
+    protected void refute(long suspected) {
+        long current;
+        do {
+            current = incarnation.get();
+            if (current > suspected) {
+                return;
+            }
+        } while (!incarnation.compareAndSet(current, suspected + 1));
+        HeartbeatState state = localState.get();
+        if (state != null) {
+            state.setIncarnation(suspected + 1);
+        }
+        if (log.isInfoEnabled()) {
+            log.info(format("Member: %s refuting suspicion with incarnation: %s",
+                            view.getLocalAddress(), suspected + 1));
+        }
+        events.add(new MembershipEvent(Type.ALIVE, view.getLocalAddress(),
+                                       suspected + 1));
+    }
+
+    /**
+     * Suspect the member of failure. The first suspicion of the member is
+     * disseminated to the other members, and the member has the suspicion
+     * timeout to refute the suspicion before it is convicted.
+     * 
+     * @param address
+     *            - the address of the suspected member
+     * @param endpoint
+     *            - the suspected member
+     * @param now
+     *            - the current time
+     * @return true if the member has not refuted the suspicion within the
+     *         suspicion timeout
+     */
+    protected boolean suspect(InetSocketAddress address, Endpoint endpoint,
+                              long now) {
+        if (endpoint.suspect(endpoint.getIncarnation(), now)) {
+            if (log.isDebugEnabled()) {
+                log.debug(format("Member: %s suspecting: %s", getId(),
+                                 endpoint.getMemberString()));
+            }
+            events.add(new MembershipEvent(Type.SUSPECT, address,
+                                           endpoint.getIncarnation()));
+            return false;
+        }
+        return now - endpoint.getSuspectedAt() > suspicionTimeout;
+    }
+
     protected Runnable gossipTask() {
         return new Runnable() {
             @Override
@@ -611,10 +1352,75 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
                 } catch (Throwable e) {
                     log.warn("Exception while performing gossip", e);
                 }
+                lastRoundDeltas = roundDeltas.getAndSet(0);
             }
         };
     }
 
+    /**
+     * The task checking the status of the members. The check runs on its own
+     * fixed tick of the floor of the gossip interval, so that the conviction
+     * of failed members does not slow down as the gossip rounds back off
+     * 
+     * @return the status checking task
+     */
+    protected Runnable statusTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkStatus();
+                } catch (Throwable e) {
+                    log.warn("Exception while checking member status", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Adapt the gossip interval to the churn of the membership. The interval
+     * is halved, down to the floor, if the last round observed changes to the
+     * membership, and doubled, up to the ceiling, if it did not.
+     * 
+     * @param deltas
+     *            - the number of changes observed in the last round
+     * @return the next gossip interval
+     */
+    protected long adaptInterval(int deltas) {
+        long current = currentInterval.get();
+        long next = deltas > 0 ? Math.max(minInterval, current / 2)
+                              : Math.min(maxInterval, current * 2);
+        currentInterval.set(next);
+        return next;
+    }
+
+    /**
+     * Schedule the next round of gossip, when the interval is adaptive
+     * 
+     * @param delay
+     *            - the delay until the round, in the time unit of the gossip
+     *            interval
+     */
+    protected void scheduleRound(long delay) {
+        if (!running.get()) {
+            return;
+        }
+        final Runnable round = gossipTask();
+        try {
+            gossipTask = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    round.run();
+                    scheduleRound(adaptInterval(lastRoundDeltas));
+                }
+            }, delay, intervalUnit);
+        } catch (RejectedExecutionException e) {
+            if (log.isTraceEnabled()) {
+                log.trace("Gossip round rejected, shutting down");
+            }
+        }
+    }
+
     /**
      * Gossip with one of the kernel members of the system view with some
      * probability. If the live member that we gossiped with is a seed member,
@@ -655,33 +1461,75 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
     }
 
     /**
-     * Gossip with a live member of the view.
+     * Gossip with distinct, randomly selected live members of the view. The
+     * number of members is determined by the fan-out of the gossip.
      * 
      * @param digests
      *            - the digests of interest
-     * @return the address of the member contacted
+     * @return the addresses of the members contacted
      */
-    protected InetSocketAddress gossipWithTheLiving(List<Digest> digests) {
-        InetSocketAddress address = view.getRandomLiveMember();
-        if (address == null) {
-            return null;
+    protected List<InetSocketAddress> gossipWithTheLiving(List<Digest> digests) {
+        List<InetSocketAddress> members = view.getRandomGossipPartners(getFanout());
+        for (Iterator<InetSocketAddress> iterator = members.iterator(); iterator.hasNext();) {
+            InetSocketAddress address = iterator.next();
+            if (!endpoints.containsKey(address)) {
+                if (log.isWarnEnabled()) {
+                    log.warn(format("Inconsistent state!  View thinks %s is alive, but service has no endpoint!",
+                                    address));
+                }
+                view.markDead(address, clock.currentTimeMillis());
+                iterator.remove();
+            }
         }
-        Endpoint endpoint = endpoints.get(address);
-        if (endpoint != null) {
+        if (!members.isEmpty()) {
             if (log.isTraceEnabled()) {
                 log.trace(format("%s gossiping with: %s, #digests: %s",
-                                 getId(), endpoint.getState().getSender(),
-                                 digests.size()));
+                                 getId(), members, digests.size()));
             }
-            endpoint.getHandler().gossip(digests);
-            return address;
+            communications.gossip(digests, members);
         }
-        if (log.isWarnEnabled()) {
-            log.warn(format("Inconsistent state!  View thinks %s is alive, but service has no endpoint!",
-                            address));
+        return members;
+    }
+
+    /**
+     * Announce the graceful departure of the local member. The leave event is
+     * queued for dissemination and piggybacked on a final round of gossip with
+     * the live members of the gossip fan-out and the neighbors on the rings,
+     * so that the departure is spread by the members remaining rather than
+     * detected by the expiry of the local member's heartbeat.
+     */
+    protected void leave() {
+        if (localState.get() == null) {
+            return;
+        }
+        InetSocketAddress localAddress = view.getLocalAddress();
+        events.add(new MembershipEvent(Type.LEAVE, localAddress,
+                                       incarnation.get()));
+        Set<InetSocketAddress> members = new LinkedHashSet<InetSocketAddress>(
+                                                                              view.getRandomLiveMembers(getFanout()));
+        members.addAll(ring.getNeighbors());
+        members.remove(localAddress);
+        if (members.isEmpty()) {
+            return;
+        }
+        if (log.isInfoEnabled()) {
+            log.info(format("Member: %s leaving, notifying: %s", getId(),
+                            members));
+        }
+        communications.gossip(randomDigests(), members);
+    }
+
+    protected void notifyLeave(Endpoint endpoint) {
+        final Identity peer = endpoint.getId();
+        if (peer == null || endpoint.getState().isDiscoveryOnly()) {
+            return;
         }
-        view.markDead(address, System.currentTimeMillis());
-        return null;
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                receiver.leave(peer);
+            }
+        });
     }
 
     protected void notifyUpdate(final HeartbeatState state) {
@@ -706,6 +1554,38 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
         ring.send(state);
     }
 
+    /**
+     * Rejoin the cluster with the members of the snapshot. The members are
+     * preloaded into the view as unreachable members, so that they are
+     * gossiped with until they are found to be alive, and the first round of
+     * gossip is initiated immediately with a logarithmic number of them. A
+     * single live member answering is enough to acquire the full view.
+     */
+    protected void rejoin() {
+        List<InetSocketAddress> members = new ArrayList<InetSocketAddress>();
+        for (HeartbeatState state : snapshot.read()) {
+            if (!state.isDiscoveryOnly() && state.getHeartbeatAddress() != null) {
+                members.add(state.getHeartbeatAddress());
+            }
+        }
+        List<InetSocketAddress> preloaded = view.preload(members,
+                                                         clock.currentTimeMillis());
+        if (preloaded.isEmpty()) {
+            return;
+        }
+        Collections.shuffle(preloaded, entropy);
+        int contacts = Math.min(preloaded.size(),
+                                33 - Integer.numberOfLeadingZeros(preloaded.size()));
+        List<Digest> digests = randomDigests();
+        for (InetSocketAddress address : preloaded.subList(0, contacts)) {
+            connectAndGossipWith(address, digests);
+        }
+        if (log.isInfoEnabled()) {
+            log.info(format("Member: %s rejoining with %s of %s snapshot members",
+                            getId(), contacts, preloaded.size()));
+        }
+    }
+
     protected List<Digest> randomDigests() {
         ArrayList<Digest> digests = new ArrayList<Digest>(endpoints.size() + 1);
         for (Entry<InetSocketAddress, Endpoint> entry : endpoints.entrySet()) {
@@ -719,29 +1599,177 @@ public class Gossip implements HeartbeatCommsIntf, HeartbeatCommsFactory {
         return digests;
     }
 
-    protected void sort(List<Digest> digests) {
-        Map<InetSocketAddress, Digest> endpoint2digest = new HashMap<InetSocketAddress, Digest>();
-        for (Digest digest : digests) {
-            endpoint2digest.put(digest.getAddress(), digest);
+    /**
+     * Start a round of Merkle tree anti-entropy with distinct, randomly
+     * selected live members of the view, by sending them the root hash of the
+     * tree. The number of members is determined by the fan-out of the gossip.
+     * 
+     * @return the addresses of the members contacted
+     */
+    protected List<InetSocketAddress> reconcileWithTheLiving() {
+        List<InetSocketAddress> members = view.getRandomGossipPartners(getFanout());
+        if (!members.isEmpty()) {
+            if (log.isTraceEnabled()) {
+                log.trace(format("%s reconciling with: %s", getId(), members));
+            }
+            communications.merkle(new int[] { 0 },
+                                  new long[] { merkle.getHash(0) }, members);
         }
+        return members;
+    }
 
-        Digest[] diffDigests = new Digest[digests.size()];
-        int i = 0;
-        for (Digest gDigest : digests) {
-            InetSocketAddress ep = gDigest.getAddress();
-            Endpoint state = endpoints.get(ep);
+    /**
+     * Sort the digests in descending order of the difference between the
+     * remote and local time of the member's heartbeat state. The difference
+     * and the index of the digest are packed into a single long, so that the
+     * sort is a sort of primitives.
+     * 
+     * @param digests
+     */
+    protected void sort(List<Digest> digests) {
+        int size = digests.size();
+        if (size > SORT_INDEX_MASK + 1) {
+            throw new IllegalArgumentException(
+                                               format("Too many digests to sort: %s",
+                                                      size));
+        }
+        Digest[] original = digests.toArray(new Digest[size]);
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            Endpoint state = lookup(original[i]);
             long time = state != null ? state.getTime() : -1;
-            long diffTime = Math.abs(time - gDigest.getTime());
-            diffDigests[i++] = new Digest(ep, diffTime);
+            long diffTime = Math.min(Math.abs(time - original[i].getTime()),
+                                     MAX_SORT_DIFF);
+            keys[i] = diffTime << SORT_INDEX_BITS | i;
         }
-
-        Arrays.sort(diffDigests, new DigestComparator());
-        i = 0;
-        for (int j = diffDigests.length - 1; j >= 0; --j) {
-            digests.set(i++, endpoint2digest.get(diffDigests[j].getAddress()));
+        Arrays.sort(keys);
+        int i = 0;
+        for (int j = size - 1; j >= 0; --j) {
+            digests.set(i++, original[(int) (keys[j] & SORT_INDEX_MASK)]);
         }
         if (log.isTraceEnabled()) {
             log.trace(format("Sorted gossip digests are : %s", digests));
         }
     }
+
+    /**
+     * Record a change to the membership observed in the current round
+     */
+    private void noteDelta() {
+        roundDeltas.incrementAndGet();
+    }
+
+    /**
+     * Answer true if every known member reads the sparse encoding of the node
+     * id sets of heartbeat states. A member that does not is seen within a
+     * heartbeat interval of its joining, after which the local state is
+     * written in the dense encoding until the member is no longer known.
+     */
+    private boolean readSparseIdSets() {
+        return legacyMembers.get() == 0;
+    }
+
+    /**
+     * Answer the highest partition id of the local member and the indexed
+     * members
+     */
+    private int highestMemberId() {
+        AtomicReferenceArray<Endpoint> current = members;
+        for (int i = current.length() - 1; i > localId; i--) {
+            if (current.get(i) != null) {
+                return i;
+            }
+        }
+        return localId;
+    }
+
+    /**
+     * Schedule the next check of the status of the member. Suspected members
+     * are checked every tick of the conviction wheel, until they are either
+     * cleared or convicted. Otherwise the check is at the conviction deadline
+     * of the member, but no further out than one rotation of the wheel, as
+     * heartbeats recorded in the meantime may change the deadline.
+     * 
+     * @param address
+     *            - the address of the member
+     * @param endpoint
+     *            - the member
+     * @param now
+     *            - the current time
+     */
+    private void watch(InetSocketAddress address, Endpoint endpoint, long now) {
+        long next = now + convictions.getTickDuration();
+        if (!endpoint.isSuspected()) {
+            next = Math.max(next,
+                            Math.min(endpoint.getConvictionDeadline(),
+                                     now + convictions.getHorizon()));
+        }
+        convictions.schedule(address, next);
+    }
+
+    private void writeSnapshot() {
+        List<HeartbeatState> states = new ArrayList<HeartbeatState>(
+                                                                    endpoints.size());
+        for (Endpoint endpoint : endpoints.values()) {
+            HeartbeatState state = endpoint.getState();
+            if (endpoint.isAlive() && !state.isDiscoveryOnly()) {
+                states.add(state);
+            }
+        }
+        try {
+            snapshot.write(states);
+        } catch (Throwable e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to snapshot the known members", e);
+            }
+        }
+    }
+
+    /**
+     * Answer the endpoint of the partition id, or null if none is known
+     */
+    private Endpoint member(int id) {
+        AtomicReferenceArray<Endpoint> current = members;
+        return id < current.length() ? current.get(id) : null;
+    }
+
+    private boolean removeMember(int id, Endpoint endpoint) {
+        synchronized (membersLock) {
+            AtomicReferenceArray<Endpoint> current = members;
+            return id < current.length()
+                   && current.compareAndSet(id, endpoint, null);
+        }
+    }
+
+    /**
+     * Index the endpoint by its partition id, growing the index to hold the id
+     */
+    private void setMember(int id, Endpoint endpoint) {
+        synchronized (membersLock) {
+            AtomicReferenceArray<Endpoint> current = members;
+            if (id >= current.length()) {
+                int length = Math.min(Identity.MAX_ID + 1,
+                                      Math.max(id + 1, current.length() * 2));
+                AtomicReferenceArray<Endpoint> grown = new AtomicReferenceArray<Endpoint>(
+                                                                                          length);
+                for (int i = 0; i < current.length(); i++) {
+                    grown.set(i, current.get(i));
+                }
+                members = current = grown;
+            }
+            current.set(id, endpoint);
+        }
+    }
+
+    private void unindex(Endpoint endpoint) {
+        if (endpoint.setLegacy(false)) {
+            legacyMembers.decrementAndGet();
+        }
+        int id = endpoint.getState().getSender().id;
+        if (id >= 0 && id <= Identity.MAX_ID) {
+            if (removeMember(id, endpoint) && merkle != null) {
+                merkle.remove(id);
+            }
+        }
+    }
 }
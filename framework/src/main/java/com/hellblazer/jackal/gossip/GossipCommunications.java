@@ -19,6 +19,8 @@ package com.hellblazer.jackal.gossip;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * The service interface for connecting to new members
@@ -48,6 +50,18 @@ public interface GossipCommunications {
     void connect(InetSocketAddress address, Endpoint endpoint,
                  Runnable connectAction) throws IOException;
 
+    /**
+     * The first message of the gossip protocol, sent to a number of members.
+     * The digests are encoded once and the same encoding is sent to each
+     * member.
+     * 
+     * @param digests
+     *            - the list of heartbeat digests the receiver knows about
+     * @param members
+     *            - the addresses of the members to gossip with
+     */
+    void gossip(List<Digest> digests, Collection<InetSocketAddress> members);
+
     /**
      * Answer the local address of the communcations endpoint
      * 
@@ -56,12 +70,56 @@ public interface GossipCommunications {
     InetSocketAddress getLocalAddress();
 
     /**
-     * Send the heartbeat state to the two members
+     * Start a round of Merkle tree anti-entropy with a number of members. The
+     * hashes are encoded once and the same encoding is sent to each member.
+     * 
+     * @param nodes
+     *            - the indexes of the tree nodes
+     * @param hashes
+     *            - the hashes of the tree nodes
+     * @param members
+     *            - the addresses of the members to reconcile with
+     */
+    void merkle(int[] nodes, long[] hashes,
+                Collection<InetSocketAddress> members);
+
+    /**
+     * Probe the liveness of a member directly. If the member is alive, it
+     * acknowledges the probe, resulting in
+     * {@link Gossip#acknowledge(InetSocketAddress, int)}
+     * 
+     * @param target
+     *            - the address of the member to probe
+     * @param sequence
+     *            - the sequence number of the probe
+     */
+    void ping(InetSocketAddress target, int sequence);
+
+    /**
+     * Probe the liveness of a member indirectly, by requesting the relay
+     * members to probe the member on our behalf. The relays forward the
+     * acknowledgement of the probe from the member.
+     * 
+     * @param target
+     *            - the address of the member to probe
+     * @param sequence
+     *            - the sequence number of the probe
+     * @param relays
+     *            - the addresses of the members which probe the target
+     */
+    void requestPing(InetSocketAddress target, int sequence,
+                     Collection<InetSocketAddress> relays);
+
+    /**
+     * Forward the heartbeat state to a number of members. The state is encoded
+     * once and the same encoding is sent to each member.
      * 
      * @param state
-     * @param inetSocketAddress
+     *            - the heartbeat state to forward
+     * @param members
+     *            - the addresses of the members to forward the state to
      */
-    void send(HeartbeatState state, InetSocketAddress inetSocketAddress);
+    void send(HeartbeatState state, Collection<InetSocketAddress> members);
 
     /**
      * Set the gossip service
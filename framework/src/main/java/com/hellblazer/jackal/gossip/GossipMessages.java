@@ -21,6 +21,8 @@ import java.util.List;
 
 import org.smartfrog.services.anubis.partition.util.Identity;
 
+import com.hellblazer.jackal.util.VarInt;
+
 /**
  * The communications interface used by the gossip protocol
  * 
@@ -32,26 +34,20 @@ public interface GossipMessages {
     byte REPLY                      = 1;
     byte UPDATE                     = 2;
     byte CONNECT_TO                 = 3;
+    byte UPDATE_BATCH               = 4;
+    byte PING                       = 5;
+    byte PING_REQ                   = 6;
+    byte ACK                        = 7;
+    byte MERKLE                     = 8;
     int  INET_ADDRESS_V6_BYTE_SIZE  = 16;
     int  INET_ADDRESS_MAX_BYTE_SIZE = INET_ADDRESS_V6_BYTE_SIZE // address
                                     + 1 // addressLength
                                     + 4;  // port
-    int  NODE_ID_SET_MAX_BYTE_SIZE  = 257;
     int  IDENTITY_BYTE_SIZE         = 16;
-    int  HEARTBEAT_STATE_BYTE_SIZE  = IDENTITY_BYTE_SIZE // candidate
-                                      + INET_ADDRESS_MAX_BYTE_SIZE // heartbeat address
-                                      + NODE_ID_SET_MAX_BYTE_SIZE // msgLinks
-                                      + 1 // preferred
-                                      + 1 // discoveryOnly
-                                      + IDENTITY_BYTE_SIZE // sender
-                                      + INET_ADDRESS_MAX_BYTE_SIZE // senderAddress
-                                      + 1 // stable
-                                      + INET_ADDRESS_MAX_BYTE_SIZE // testInterface
-                                      + NODE_ID_SET_MAX_BYTE_SIZE // view
-                                      + 4 // viewNumber
-                                      + 4; // viewTimeStamp 
-    int  DIGEST_BYTE_SIZE           = INET_ADDRESS_MAX_BYTE_SIZE // address
-                                    + 8;  // timestamp
+    int  ZONE_MAX_BYTE_SIZE         = 64;
+    int  DIGEST_BYTE_SIZE           = 2 // id
+                                    + INET_ADDRESS_MAX_BYTE_SIZE // address, if the id is unknown
+                                    + VarInt.MAX_LONG_BYTE_SIZE;  // timestamp delta
 
     /**
      * Close the communications connection
@@ -67,6 +63,18 @@ public interface GossipMessages {
      */
     void gossip(List<Digest> digests);
 
+    /**
+     * Anti-entropy of the Merkle trees of the heartbeat times. Send the hashes
+     * of nodes of the local Merkle tree, for comparison with the receiver's
+     * tree.
+     * 
+     * @param nodes
+     *            - the indexes of the tree nodes
+     * @param hashes
+     *            - the hashes of the tree nodes
+     */
+    void merkle(int[] nodes, long[] hashes);
+
     /**
      * The second message in the gossip protocol. Send a list of digests the
      * node this handler represents, that would like heartbeat state updates
@@ -21,7 +21,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.charset.Charset;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -33,12 +33,70 @@ import org.smartfrog.services.anubis.partition.wire.msg.Heartbeat;
 import org.smartfrog.services.anubis.partition.wire.msg.HeartbeatMsg;
 
 /**
- * The heartbeat state replicated by the gossip protocol
+ * The heartbeat state replicated by the gossip protocol.
+ * <p>
+ * The state is encoded once per version into an immutable frame, which is
+ * shared by every send of the state until the state is next modified. States
+ * read from the wire keep the frame they were read from, so forwarding a
+ * received state never re-encodes it. Only the heartbeat address and the time
+ * of a received state are decoded up front, as that is all that is needed to
+ * discard a stale state; the rest of the state is decoded from the frame on
+ * first use.
+ * <p>
+ * The frame ends with the wire version of the member which encoded it. Frames
+ * of version 0 end with the zone, and their node id sets are always in the
+ * dense encoding. From version 1 the node id sets may be in the sparse
+ * encoding, which the member only writes once every member it knows is of
+ * version 1 or later. Until then the ids of members are limited to
+ * {@link #MAX_DENSE_ID}, so that a dense frame fits in an update.
  * 
  * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
  * 
  */
 public class HeartbeatState implements Heartbeat, Cloneable {
+    /**
+     * The wire version of the frames encoded by this member
+     */
+    public static final byte     WIRE_VERSION   = 1;
+    /**
+     * The largest frame that fits, with its length, in an update datagram of
+     * 1500 bytes after the 6 bytes of the update header
+     */
+    public static final int      MAX_FRAME_SIZE = 1500 - (4 + 1 + 1) - 2;
+    /**
+     * The largest frame of a state less its node id sets
+     */
+    private static final int     FIXED_SIZE     = 2 * GossipMessages.IDENTITY_BYTE_SIZE // candidate, sender
+                                                  + 3 * GossipMessages.INET_ADDRESS_MAX_BYTE_SIZE // addresses
+                                                  + 3 // discoveryOnly, preferred, stable
+                                                  + 4 * 8 // time, viewNumber, viewTimeStamp, incarnation
+                                                  + 1 + GossipMessages.ZONE_MAX_BYTE_SIZE // zone
+                                                  + 1; // wire version
+    /**
+     * The highest partition id which may be held by the node id sets of a
+     * state in the dense encoding, such that the frame of the state fits in
+     * {@link #MAX_FRAME_SIZE} with the largest addresses and zone
+     */
+    public static final int      MAX_DENSE_ID   = ((MAX_FRAME_SIZE - FIXED_SIZE) / 2 - 4) * 8 - 1;
+
+    private static final Charset ZONE_CHARSET   = Charset.forName("UTF-8");
+
+    /**
+     * Read the compact form of a heartbeat state, written by
+     * {@link #writeCompactTo(ByteBuffer)}. The buffer is positioned after the
+     * compact form, even if the state cannot be deserialized.
+     * 
+     * @param buffer
+     * @return the heartbeat state
+     * @throws UnknownHostException
+     */
+    public static HeartbeatState readCompact(ByteBuffer buffer)
+                                                               throws UnknownHostException {
+        int length = buffer.getShort() & 0xFFFF;
+        byte[] frame = new byte[length];
+        buffer.get(frame);
+        return new HeartbeatState(frame);
+    }
 
     public static InetSocketAddress readInetAddress(ByteBuffer msg)
                                                                    throws UnknownHostException {
@@ -55,6 +113,22 @@ public class HeartbeatState implements Heartbeat, Cloneable {
         return new InetSocketAddress(inetAddress, port);
     }
 
+    /**
+     * Read the zone label of a member
+     * 
+     * @param msg
+     * @return the zone label, or null if the member has no zone
+     */
+    public static String readZone(ByteBuffer msg) {
+        int length = msg.get() & 0xFF;
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        msg.get(bytes);
+        return new String(bytes, ZONE_CHARSET);
+    }
+
     public static HeartbeatState toHeartbeatState(Heartbeat heartbeat,
                                                   InetSocketAddress heartbeatAddress) {
         if (heartbeat instanceof HeartbeatState) {
@@ -63,6 +137,23 @@ public class HeartbeatState implements Heartbeat, Cloneable {
         return new HeartbeatState(heartbeat, heartbeatAddress);
     }
 
+    /**
+     * Write the zone label of a member
+     * 
+     * @param zone
+     *            - the zone label, or null if the member has no zone
+     * @param bytes
+     */
+    public static void writeZone(String zone, ByteBuffer bytes) {
+        if (zone == null) {
+            bytes.put((byte) 0);
+            return;
+        }
+        byte[] encoded = zone.getBytes(ZONE_CHARSET);
+        bytes.put((byte) encoded.length);
+        bytes.put(encoded);
+    }
+
     public static void writeInetAddress(InetSocketAddress ipaddress,
                                         ByteBuffer bytes) {
         if (ipaddress == null) {
@@ -77,11 +168,13 @@ public class HeartbeatState implements Heartbeat, Cloneable {
 
     private volatile Identity          candidate;
     private final InetSocketAddress    heartbeatAddress;
+    private volatile long              incarnation;
     private final boolean              discoveryOnly;
-    private final NodeIdSet            msgLinks;
+    private NodeIdSet                  msgLinks;
     private volatile boolean           preferred;
-    private final Identity             sender;
+    private Identity                   sender;
     private InetSocketAddress          senderAddress;
+    private volatile boolean           sparseIdSets;
     private AtomicBoolean              stable        = new AtomicBoolean();
     private volatile InetSocketAddress controllInterface;
     private volatile long              time          = -1;
@@ -89,27 +182,31 @@ public class HeartbeatState implements Heartbeat, Cloneable {
     private AtomicLong                 viewNumber    = new AtomicLong();
 
     private volatile long              viewTimeStamp = View.undefinedTimeStamp;
-
+    private volatile byte              wireVersion   = WIRE_VERSION;
+    private volatile String            zone;
+
+    /**
+     * The encoded state, or null if the state has been modified since it was
+     * last encoded. A frame is never modified once published. The state is
+     * only modified and encoded while holding the lock of the receiver, so a
+     * frame is never encoded from a partially modified state.
+     */
     private volatile byte[]            binaryCache;
+    /**
+     * The offset in the frame of the state following the time, or 0 if the
+     * state has been decoded
+     */
+    private volatile int               undecoded;
 
-    public HeartbeatState(ByteBuffer buffer) throws UnknownHostException {
-        binaryCache = new byte[GossipMessages.HEARTBEAT_STATE_BYTE_SIZE];
-        buffer.get(binaryCache);
-        ByteBuffer msg = ByteBuffer.wrap(binaryCache);
+    private HeartbeatState(byte[] frame) throws UnknownHostException {
+        binaryCache = frame;
+        ByteBuffer msg = ByteBuffer.wrap(frame);
 
-        candidate = new Identity(msg);
+        msg.position(GossipMessages.IDENTITY_BYTE_SIZE); // candidate
         discoveryOnly = msg.get() > 0 ? true : false;
         heartbeatAddress = HeartbeatState.readInetAddress(msg);
         time = msg.getLong();
-        msgLinks = new NodeIdSet(msg);
-        preferred = msg.get() > 0 ? true : false;
-        sender = new Identity(msg);
-        senderAddress = HeartbeatState.readInetAddress(msg);
-        stable.set(msg.get() > 0 ? true : false);
-        controllInterface = HeartbeatState.readInetAddress(msg);
-        view.copyFrom(new NodeIdSet(msg));
-        viewNumber.set(msg.getLong());
-        viewTimeStamp = msg.getLong();
+        undecoded = msg.position();
     }
 
     public HeartbeatState(Heartbeat heartbeat, InetSocketAddress hbAddress) {
@@ -122,7 +219,7 @@ public class HeartbeatState implements Heartbeat, Cloneable {
         senderAddress = heartbeat.getSenderAddress();
         setView(heartbeat.getView());
         setViewNumber(heartbeat.getViewNumber());
-        fillCache();
+        frame();
     }
 
     public HeartbeatState(Identity candidate, boolean discoveryOnly,
@@ -185,9 +282,8 @@ public class HeartbeatState implements Heartbeat, Cloneable {
             return false;
         }
         HeartbeatState other = (HeartbeatState) obj;
-        if (!Arrays.equals(binaryCache, other.binaryCache)) {
-            return false;
-        }
+        decode();
+        other.decode();
         if (candidate == null) {
             if (other.candidate != null) {
                 return false;
@@ -226,7 +322,7 @@ public class HeartbeatState implements Heartbeat, Cloneable {
         } else if (!senderAddress.equals(other.senderAddress)) {
             return false;
         }
-        if (stable != other.stable) {
+        if (stable.get() != other.stable.get()) {
             return false;
         }
         if (controllInterface == null) {
@@ -243,7 +339,7 @@ public class HeartbeatState implements Heartbeat, Cloneable {
         } else if (!view.equals(other.view)) {
             return false;
         }
-        if (viewNumber != other.viewNumber) {
+        if (viewNumber.get() != other.viewNumber.get()) {
             return false;
         }
         if (viewTimeStamp != other.viewTimeStamp) {
@@ -254,15 +350,18 @@ public class HeartbeatState implements Heartbeat, Cloneable {
 
     @Override
     public Identity getCandidate() {
+        decode();
         return candidate;
     }
 
     @Override
     public InetSocketAddress getControllerInterface() {
+        decode();
         return controllInterface;
     }
 
     public long getEpoch() {
+        decode();
         return sender.epoch;
     }
 
@@ -270,26 +369,62 @@ public class HeartbeatState implements Heartbeat, Cloneable {
         return heartbeatAddress;
     }
 
+    /**
+     * The incarnation of the member. The member increments its incarnation to
+     * refute the suspicion of its failure.
+     * 
+     * @return the incarnation of the member
+     */
+    public long getIncarnation() {
+        decode();
+        return incarnation;
+    }
+
+    /**
+     * The zone of the member - the rack or data center the member resides in.
+     * Gossip prefers partners in the same zone.
+     * 
+     * @return the zone label of the member, or null if the member has no zone
+     */
+    public String getZone() {
+        decode();
+        return zone;
+    }
+
     public NodeIdSet getMembers() {
+        decode();
         return view;
     }
 
+    /**
+     * The wire version of the member which encoded the state
+     * 
+     * @return the wire version, 0 if the state predates wire versions
+     */
+    public byte getWireVersion() {
+        decode();
+        return wireVersion;
+    }
+
     public String getMemberString() {
         return "[" + getSender() + " : " + getHeartbeatAddress() + "]";
     }
 
     @Override
     public NodeIdSet getMsgLinks() {
+        decode();
         return msgLinks;
     }
 
     @Override
     public Identity getSender() {
+        decode();
         return sender;
     }
 
     @Override
     public InetSocketAddress getSenderAddress() {
+        decode();
         return senderAddress;
     }
 
@@ -300,19 +435,21 @@ public class HeartbeatState implements Heartbeat, Cloneable {
 
     @Override
     public View getView() {
+        decode();
         return new BitView(stable.get(), view, viewTimeStamp);
     }
 
     @Override
     public long getViewNumber() {
+        decode();
         return viewNumber.get();
     }
 
     @Override
     public int hashCode() {
+        decode();
         final int prime = 31;
         int result = 1;
-        result = prime * result + Arrays.hashCode(binaryCache);
         result = prime * result
                  + (candidate == null ? 0 : candidate.hashCode());
         result = prime * result
@@ -340,41 +477,80 @@ public class HeartbeatState implements Heartbeat, Cloneable {
 
     @Override
     public boolean isPreferred() {
+        decode();
         return preferred;
     }
 
     @Override
-    public void setCandidate(Identity id) {
+    public synchronized void setCandidate(Identity id) {
+        decode();
         candidate = id;
         invalidateCache();
     }
 
     @Override
-    public void setController(InetSocketAddress address) {
+    public synchronized void setController(InetSocketAddress address) {
+        decode();
         controllInterface = address;
         invalidateCache();
     }
 
+    public synchronized void setIncarnation(long incarnation) {
+        decode();
+        this.incarnation = incarnation;
+        invalidateCache();
+    }
+
+    public synchronized void setZone(String zone) {
+        decode();
+        if (zone != null
+            && zone.getBytes(ZONE_CHARSET).length > GossipMessages.ZONE_MAX_BYTE_SIZE) {
+            throw new IllegalArgumentException(
+                                               String.format("Zone label too long: %s",
+                                                             zone));
+        }
+        this.zone = zone;
+        invalidateCache();
+    }
+
     @Override
-    public void setIsPreferred(boolean preferred) {
+    public synchronized void setIsPreferred(boolean preferred) {
+        decode();
         this.preferred = preferred;
         invalidateCache();
     }
 
     @Override
-    public void setMsgLinks(NodeIdSet ml) {
+    public synchronized void setMsgLinks(NodeIdSet ml) {
+        decode();
         msgLinks.copyFrom(ml);
         invalidateCache();
     }
 
+    /**
+     * Set whether the node id sets of the state are written in the sparse
+     * encoding, which can only be read by members of wire version 1 or later
+     * 
+     * @param sparse
+     */
+    public synchronized void setSparseIdSets(boolean sparse) {
+        decode();
+        if (sparseIdSets != sparse) {
+            sparseIdSets = sparse;
+            invalidateCache();
+        }
+    }
+
     @Override
-    public void setTime(long t) {
+    public synchronized void setTime(long t) {
+        decode();
         time = t;
         invalidateCache();
     }
 
     @Override
-    public void setView(View v) {
+    public synchronized void setView(View v) {
+        decode();
         view.copyFrom(v.toBitSet());
         stable.set(v.isStable());
         viewTimeStamp = v.getTimeStamp();
@@ -382,7 +558,8 @@ public class HeartbeatState implements Heartbeat, Cloneable {
     }
 
     @Override
-    public void setViewNumber(long n) {
+    public synchronized void setViewNumber(long n) {
+        decode();
         viewNumber.set(n);
         invalidateCache();
     }
@@ -392,23 +569,125 @@ public class HeartbeatState implements Heartbeat, Cloneable {
         return new HeartbeatMsg(this).toClose();
     }
 
+    /**
+     * Answer a copy of the receiver decoded from its current frame, which is
+     * shared rather than copied as a frame is never modified once published
+     */
+    @Override
+    public HeartbeatState toSnapshot() {
+        try {
+            return new HeartbeatState(frame());
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("Invalid heartbeat state frame", e);
+        }
+    }
+
     @Override
     public String toString() {
-        return "HeartbeatState [" + sender + " | " + heartbeatAddress
+        return "HeartbeatState [" + getSender() + " | " + heartbeatAddress
                + ", time=" + time + "]";
     }
 
-    public synchronized void writeTo(ByteBuffer buffer) {
-        fillCache();
-        buffer.put(binaryCache);
+    /**
+     * Answer the encoded frame of the receiver. The frame is encoded once per
+     * version of the state and shared, read only, by every caller until the
+     * state is next modified.
+     * 
+     * @return a read only buffer positioned at the start of the frame
+     */
+    public ByteBuffer getFrame() {
+        return ByteBuffer.wrap(frame()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Write the compact form of the receiver - the length of the encoded state
+     * followed by the encoded state - if it fits in the remaining space of the
+     * buffer.
+     * 
+     * @param buffer
+     * @return true if the compact form was written, false if there is not
+     *         enough room remaining in the buffer
+     */
+    public boolean writeCompactTo(ByteBuffer buffer) {
+        byte[] frame = frame();
+        if (buffer.remaining() < frame.length + 2) {
+            return false;
+        }
+        buffer.putShort((short) frame.length);
+        buffer.put(frame);
+        return true;
     }
 
-    private void fillCache() {
-        if (binaryCache != null) {
-            return;
+    /**
+     * Decode the remainder of a state read from the wire, if not already
+     * decoded
+     */
+    private void decode() {
+        if (undecoded != 0) {
+            synchronized (this) {
+                if (undecoded != 0) {
+                    try {
+                        decodeFrame();
+                    } catch (UnknownHostException e) {
+                        throw new IllegalStateException(
+                                                        "Invalid heartbeat state frame",
+                                                        e);
+                    }
+                }
+            }
         }
-        binaryCache = new byte[GossipMessages.HEARTBEAT_STATE_BYTE_SIZE];
+    }
+
+    /**
+     * Decode the state following the time from the frame
+     * 
+     * @throws UnknownHostException
+     */
+    private synchronized void decodeFrame() throws UnknownHostException {
         ByteBuffer msg = ByteBuffer.wrap(binaryCache);
+        candidate = new Identity(msg);
+        msg.position(undecoded);
+        msgLinks = new NodeIdSet(msg);
+        preferred = msg.get() > 0 ? true : false;
+        sender = new Identity(msg);
+        senderAddress = HeartbeatState.readInetAddress(msg);
+        stable.set(msg.get() > 0 ? true : false);
+        controllInterface = HeartbeatState.readInetAddress(msg);
+        view.copyFrom(new NodeIdSet(msg));
+        viewNumber.set(msg.getLong());
+        viewTimeStamp = msg.getLong();
+        incarnation = msg.getLong();
+        zone = readZone(msg);
+        wireVersion = msg.hasRemaining() ? msg.get() : 0;
+        undecoded = 0;
+    }
+
+    /**
+     * Answer the encoded frame of the receiver, encoding the state if it has
+     * been modified since last encoded
+     */
+    private byte[] frame() {
+        byte[] frame = binaryCache;
+        if (frame != null) {
+            return frame;
+        }
+        synchronized (this) {
+            if (binaryCache == null) {
+                binaryCache = encode();
+            }
+            return binaryCache;
+        }
+    }
+
+    private static int inetAddressSize(InetSocketAddress ipaddress) {
+        if (ipaddress == null) {
+            return 1;
+        }
+        return 1 + ipaddress.getAddress().getAddress().length + 4;
+    }
+
+    private byte[] encode() {
+        ByteBuffer msg = ByteBuffer.allocate(encodedSize());
 
         candidate.writeTo(msg);
         if (discoveryOnly) {
@@ -418,7 +697,7 @@ public class HeartbeatState implements Heartbeat, Cloneable {
         }
         HeartbeatState.writeInetAddress(heartbeatAddress, msg);
         msg.putLong(time);
-        msgLinks.writeTo(msg);
+        writeIdSet(msgLinks, msg);
         if (preferred) {
             msg.put((byte) 1);
         } else {
@@ -432,17 +711,61 @@ public class HeartbeatState implements Heartbeat, Cloneable {
             msg.put((byte) 0);
         }
         HeartbeatState.writeInetAddress(controllInterface, msg);
-        view.writeTo(msg);
+        writeIdSet(view, msg);
         msg.putLong(viewNumber.get());
         msg.putLong(viewTimeStamp);
+        msg.putLong(incarnation);
+        writeZone(zone, msg);
+        msg.put(WIRE_VERSION);
+        assert !msg.hasRemaining();
+        return msg.array();
+    }
+
+    /**
+     * Answer the number of bytes of the encoded state, so that the frame is
+     * encoded without copying or slack
+     */
+    private int encodedSize() {
+        return GossipMessages.IDENTITY_BYTE_SIZE // candidate
+               + 1 // discoveryOnly
+               + inetAddressSize(heartbeatAddress) // heartbeat address
+               + 8 // time
+               + idSetSize(msgLinks) // msgLinks
+               + 1 // preferred
+               + GossipMessages.IDENTITY_BYTE_SIZE // sender
+               + inetAddressSize(senderAddress) // senderAddress
+               + 1 // stable
+               + inetAddressSize(controllInterface) // testInterface
+               + idSetSize(view) // view
+               + 8 // viewNumber
+               + 8 // viewTimeStamp
+               + 8 // incarnation
+               + 1 + (zone == null ? 0 : zone.getBytes(ZONE_CHARSET).length) // zone
+               + 1; // wire version
+    }
+
+    private int idSetSize(NodeIdSet set) {
+        if (sparseIdSets) {
+            return set.getSparseSize();
+        }
+        return 4 + (set.size() >> 3);
     }
 
     private synchronized void invalidateCache() {
         binaryCache = null;
     }
 
+    private void writeIdSet(NodeIdSet set, ByteBuffer msg) {
+        if (sparseIdSets) {
+            set.writeSparseTo(msg);
+        } else {
+            set.writeTo(msg);
+        }
+    }
+
     @Override
     protected HeartbeatState clone() {
+        decode();
         try {
             return (HeartbeatState) super.clone();
         } catch (CloneNotSupportedException e) {
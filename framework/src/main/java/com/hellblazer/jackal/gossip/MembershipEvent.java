@@ -0,0 +1,145 @@
+/** 
+ * (C) Copyright 2010 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import com.hellblazer.jackal.util.VarInt;
+
+/**
+ * An event in the lifecycle of a member, disseminated by piggybacking on the
+ * gossip messages. A member is suspected of failure, refutes the suspicion by
+ * announcing that it is alive with a higher incarnation, or has its failure
+ * confirmed. The incarnation orders the events of a member: a suspicion
+ * overrides an alive event of the same incarnation, and is itself overridden
+ * by an alive event of a higher incarnation. A confirmation overrides
+ * everything. A member departing gracefully announces that it is leaving,
+ * which, like a confirmation, removes the member without waiting for the
+ * failure to be detected.
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class MembershipEvent {
+    public static enum Type {
+        ALIVE, CONFIRM, SUSPECT, LEAVE;
+    }
+
+    public static final int         MAX_BYTE_SIZE = 1 // type
+                                                  + VarInt.MAX_LONG_BYTE_SIZE // incarnation
+                                                  + GossipMessages.INET_ADDRESS_MAX_BYTE_SIZE; // member
+
+    private final long              incarnation;
+    private final InetSocketAddress member;
+    private final Type              type;
+
+    public MembershipEvent(ByteBuffer msg) throws UnknownHostException {
+        type = Type.values()[msg.get()];
+        incarnation = VarInt.readLong(msg);
+        member = HeartbeatState.readInetAddress(msg);
+        if (member == null) {
+            throw new IllegalArgumentException("Null membership event member");
+        }
+    }
+
+    public MembershipEvent(Type type, InetSocketAddress member,
+                           long incarnation) {
+        assert member != null : "Null membership event member";
+        this.type = type;
+        this.member = member;
+        this.incarnation = incarnation;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        MembershipEvent other = (MembershipEvent) obj;
+        return type == other.type && incarnation == other.incarnation
+               && member.equals(other.member);
+    }
+
+    public long getIncarnation() {
+        return incarnation;
+    }
+
+    /**
+     * @return the heartbeat address of the member
+     */
+    public InetSocketAddress getMember() {
+        return member;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + type.hashCode();
+        result = prime * result + member.hashCode();
+        result = prime * result + (int) (incarnation ^ incarnation >>> 32);
+        return result;
+    }
+
+    /**
+     * Answer true if the receiver overrides the other event of the same member
+     * 
+     * @param other
+     * @return true if the receiver supersedes the other event
+     */
+    public boolean overrides(MembershipEvent other) {
+        switch (type) {
+            case CONFIRM:
+                return other.type != Type.CONFIRM;
+            case LEAVE:
+                return other.type != Type.CONFIRM && other.type != Type.LEAVE;
+            case SUSPECT:
+                return other.type == Type.SUSPECT ? incarnation > other.incarnation
+                                                 : other.type == Type.ALIVE
+                                                   && incarnation >= other.incarnation;
+            case ALIVE:
+                return other.type != Type.CONFIRM && other.type != Type.LEAVE
+                       && incarnation > other.incarnation;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + member + " #" + incarnation;
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put((byte) type.ordinal());
+        VarInt.writeLong(incarnation, buffer);
+        HeartbeatState.writeInetAddress(member, buffer);
+    }
+}
@@ -0,0 +1,126 @@
+/** 
+ * (C) Copyright 2010 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The membership events awaiting dissemination. Only the latest event of each
+ * member is kept. Each event is piggybacked on a bounded number of gossip
+ * messages - a multiple of the log of the number of members - which is
+ * sufficient for the event to reach every member with high probability. The
+ * events which have been transmitted the least are preferred, so that new
+ * events spread quickly.
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class MembershipEvents {
+    private static class Pending {
+        private final MembershipEvent event;
+        private int                   transmissions;
+
+        Pending(MembershipEvent event) {
+            this.event = event;
+        }
+    }
+
+    private static final Comparator<Pending> LEAST_TRANSMITTED = new Comparator<Pending>() {
+        @Override
+        public int compare(Pending p1, Pending p2) {
+            return p1.transmissions - p2.transmissions;
+        }
+    };
+
+    private final Map<InetSocketAddress, Pending> pending = new HashMap<InetSocketAddress, Pending>();
+    private final int                             retransmitMultiplier;
+
+    /**
+     * @param retransmitMultiplier
+     *            - the multiple of the log of the number of members which
+     *            bounds the number of times an event is transmitted
+     */
+    public MembershipEvents(int retransmitMultiplier) {
+        if (retransmitMultiplier <= 0) {
+            throw new IllegalArgumentException(
+                                               "Retransmit multiplier must be positive");
+        }
+        this.retransmitMultiplier = retransmitMultiplier;
+    }
+
+    /**
+     * Queue the event for dissemination, replacing the pending event of the
+     * member if the event overrides it
+     * 
+     * @param event
+     * @return true if the event was queued
+     */
+    public synchronized boolean add(MembershipEvent event) {
+        Pending current = pending.get(event.getMember());
+        if (current != null && !event.overrides(current.event)) {
+            return false;
+        }
+        pending.put(event.getMember(), new Pending(event));
+        return true;
+    }
+
+    /**
+     * Answer the events to piggyback on the next gossip message, counting the
+     * transmission of each. Events which have reached their transmission limit
+     * are dropped.
+     * 
+     * @param max
+     *            - the maximum number of events to answer
+     * @param members
+     *            - the number of members of the system
+     * @return the list of events to transmit
+     */
+    public synchronized List<MembershipEvent> next(int max, int members) {
+        if (pending.isEmpty() || max <= 0) {
+            return Collections.emptyList();
+        }
+        int limit = retransmitMultiplier
+                    * Math.max(1,
+                               32 - Integer.numberOfLeadingZeros(members));
+        List<Pending> candidates = new ArrayList<Pending>(pending.values());
+        Collections.sort(candidates, LEAST_TRANSMITTED);
+        int count = Math.min(max, candidates.size());
+        List<MembershipEvent> next = new ArrayList<MembershipEvent>(count);
+        for (int i = 0; i < count; i++) {
+            Pending p = candidates.get(i);
+            next.add(p.event);
+            if (++p.transmissions >= limit) {
+                pending.remove(p.event.getMember());
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return the number of events awaiting dissemination
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+}
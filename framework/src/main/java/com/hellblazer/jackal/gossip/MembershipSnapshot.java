@@ -0,0 +1,251 @@
+/** 
+ * (C) Copyright 2010 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A crash safe, memory mapped snapshot of the heartbeat states of the known
+ * members, used to warm restart a member. Rather than rediscovering the
+ * cluster from the seeds one round of gossip at a time, a restarted member
+ * preloads the members of the snapshot as probable members to gossip with.
+ * <p>
+ * The file holds two slots, written alternately. A snapshot is written to the
+ * slot not holding the latest snapshot and forced to the disk, so a crash
+ * while writing leaves the previous snapshot intact. Each slot is a header -
+ * the magic number, the CRC of the rest of the slot, the sequence number and
+ * the length of the snapshot - followed by the count of the states and the
+ * compact form of each state. The valid slot with the highest sequence number
+ * is the latest snapshot.
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class MembershipSnapshot {
+    /**
+     * The default capacity of a snapshot, in bytes
+     */
+    public static final int         DEFAULT_CAPACITY = 256 * 1024;
+    private static final int        CRC_OFFSET       = 4;
+    private static final int        HEADER_SIZE      = 4 + 4 + 8 + 4;
+    private static final Logger     log              = LoggerFactory.getLogger(MembershipSnapshot.class);
+    private static final int        MAGIC            = 0x4A534E50;
+    private static final int        SEQUENCE_OFFSET  = 8;
+
+    private final int               capacity;
+    private final RandomAccessFile  file;
+    private final MappedByteBuffer  map;
+    private long                    sequence;
+    private final ByteBuffer        scratch;
+
+    /**
+     * 
+     * @param snapshotFile
+     *            - the file holding the snapshot
+     * @throws IOException
+     */
+    public MembershipSnapshot(File snapshotFile) throws IOException {
+        this(snapshotFile, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * 
+     * @param snapshotFile
+     *            - the file holding the snapshot
+     * @param capacity
+     *            - the maximum size of the snapshot, in bytes. States which do
+     *            not fit are left out of the snapshot
+     * @throws IOException
+     */
+    public MembershipSnapshot(File snapshotFile, int capacity)
+                                                              throws IOException {
+        if (capacity < 4) {
+            throw new IllegalArgumentException(
+                                               format("Invalid snapshot capacity: %s",
+                                                      capacity));
+        }
+        this.capacity = capacity;
+        file = new RandomAccessFile(snapshotFile, "rw");
+        map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                    2L * slotSize());
+        map.order(ByteOrder.BIG_ENDIAN);
+        scratch = ByteBuffer.allocate(SEQUENCE_OFFSET + 8 + 4 + capacity);
+        int latest = latest();
+        sequence = latest < 0 ? 0 : map.getLong(slotOffset(latest)
+                                                + SEQUENCE_OFFSET);
+    }
+
+    /**
+     * Close the snapshot file
+     */
+    public synchronized void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            log.trace("Error closing snapshot", e);
+        }
+    }
+
+    /**
+     * Answer the sequence number of the latest snapshot
+     * 
+     * @return the sequence number, or 0 if no snapshot has been written
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Read the latest valid snapshot
+     * 
+     * @return the heartbeat states of the snapshot, or the empty list if there
+     *         is no valid snapshot
+     */
+    public synchronized List<HeartbeatState> read() {
+        int latest = latest();
+        if (latest < 0) {
+            return Collections.emptyList();
+        }
+        ByteBuffer slot = map.duplicate();
+        int offset = slotOffset(latest);
+        int length = slot.getInt(offset + SEQUENCE_OFFSET + 8);
+        slot.position(offset + HEADER_SIZE);
+        slot.limit(offset + HEADER_SIZE + length);
+        int count = slot.getInt();
+        List<HeartbeatState> states = new ArrayList<HeartbeatState>(count);
+        for (int i = 0; i < count; i++) {
+            try {
+                states.add(HeartbeatState.readCompact(slot));
+            } catch (Throwable e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Cannot read heartbeat state from snapshot", e);
+                }
+                break;
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Write a snapshot of the heartbeat states to the slot not holding the
+     * latest snapshot, forcing the slot to the disk
+     * 
+     * @param states
+     *            - the heartbeat states of the known members
+     * @return the number of states written
+     */
+    public synchronized int write(Collection<HeartbeatState> states) {
+        scratch.clear();
+        scratch.position(SEQUENCE_OFFSET + 8 + 4 + 4);
+        int count = 0;
+        for (HeartbeatState state : states) {
+            if (!state.writeCompactTo(scratch)) {
+                if (log.isInfoEnabled()) {
+                    log.info(format("Snapshot capacity of %s bytes exceeded, %s of %s states written",
+                                    capacity, count, states.size()));
+                }
+                break;
+            }
+            count++;
+        }
+        int end = scratch.position();
+        long next = sequence + 1;
+        scratch.putLong(SEQUENCE_OFFSET, next);
+        scratch.putInt(SEQUENCE_OFFSET + 8, end - HEADER_SIZE);
+        scratch.putInt(HEADER_SIZE, count);
+        CRC32 crc = new CRC32();
+        crc.update(scratch.array(), SEQUENCE_OFFSET, end - SEQUENCE_OFFSET);
+        scratch.putInt(0, MAGIC);
+        scratch.putInt(CRC_OFFSET, (int) crc.getValue());
+
+        ByteBuffer slot = map.duplicate();
+        slot.position(slotOffset((int) (next & 1)));
+        scratch.position(0);
+        scratch.limit(end);
+        slot.put(scratch);
+        map.force();
+        sequence = next;
+        return count;
+    }
+
+    /**
+     * Answer the slot holding the latest valid snapshot
+     * 
+     * @return the index of the slot, or -1 if neither slot is valid
+     */
+    private int latest() {
+        int latest = -1;
+        long latestSequence = -1;
+        for (int i = 0; i < 2; i++) {
+            if (valid(i)) {
+                long s = map.getLong(slotOffset(i) + SEQUENCE_OFFSET);
+                if (s > latestSequence) {
+                    latest = i;
+                    latestSequence = s;
+                }
+            }
+        }
+        return latest;
+    }
+
+    private int slotOffset(int slot) {
+        return slot * slotSize();
+    }
+
+    private int slotSize() {
+        return HEADER_SIZE + capacity;
+    }
+
+    /**
+     * Answer true if the slot holds a snapshot whose CRC is valid
+     */
+    private boolean valid(int slot) {
+        int offset = slotOffset(slot);
+        if (map.getInt(offset) != MAGIC) {
+            return false;
+        }
+        int length = map.getInt(offset + SEQUENCE_OFFSET + 8);
+        if (length < 4 || length > capacity) {
+            return false;
+        }
+        int size = HEADER_SIZE - SEQUENCE_OFFSET + length;
+        byte[] bytes = new byte[size];
+        ByteBuffer slotBuffer = map.duplicate();
+        slotBuffer.position(offset + SEQUENCE_OFFSET);
+        slotBuffer.get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue() == map.getInt(offset + CRC_OFFSET);
+    }
+}
@@ -0,0 +1,203 @@
+/** 
+ * (C) Copyright 2010 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip;
+
+import java.util.Arrays;
+
+/**
+ * A Merkle tree of the heartbeat times of the members, used for anti-entropy
+ * between gossip partners. The members are grouped into buckets of consecutive
+ * partition ids, which are the leaves of the tree. The hash of a node is the
+ * exclusive or of the hashes of the (id, heartbeat time) pairs of the members
+ * below it, so an update of a member's time is applied to the leaf and its
+ * ancestors in time proportional to the depth of the tree.
+ * <p>
+ * The nodes are numbered in breadth first order, with the root at 0 and the
+ * children of node n at n * FANOUT + 1 through n * FANOUT + FANOUT, and are
+ * stored by level of the tree. Only the prefix of each level covering the highest partition id updated is
+ * allocated, so a tree spanning every partition id takes space in proportion
+ * to the ids in use. The indices of the nodes do not depend on the ids in use,
+ * so the trees of members knowing of different ids are compared node by node.
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class MerkleTree {
+    public static final int BUCKET_BITS = 3;
+    public static final int BUCKET_SIZE = 1 << BUCKET_BITS;
+    public static final int FANOUT      = 16;
+
+    /**
+     * Answer the hash of the member's heartbeat time
+     * 
+     * @param id
+     *            - the partition id of the member
+     * @param time
+     *            - the heartbeat time of the member
+     * @return the hash of the pair, which is never 0
+     */
+    public static long hash(int id, long time) {
+        long h = time * 0x9E3779B97F4A7C15L + id;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Answer a copy of the array grown to hold the index, at least doubling its
+     * length unless that exceeds the limit
+     */
+    private static long[] grow(long[] array, int index, int limit) {
+        return Arrays.copyOf(array,
+                             Math.min(limit,
+                                      Math.max(index + 1, array.length * 2)));
+    }
+
+    private long[]         contributions = new long[0];
+    private final int      firstLeaf;
+    private final int      ids;
+    private final int[]    levelStart;
+    private final long[][] levels;
+    private final int      size;
+
+    /**
+     * @param ids
+     *            - the number of partition ids of the members
+     */
+    public MerkleTree(int ids) {
+        this.ids = ids;
+        int buckets = Math.max(1, (ids + BUCKET_SIZE - 1) >> BUCKET_BITS);
+        int depth = 0;
+        int leaves = 1;
+        int internal = 0;
+        while (leaves < buckets) {
+            internal += leaves;
+            leaves *= FANOUT;
+            depth++;
+        }
+        firstLeaf = internal;
+        size = internal + leaves;
+        levelStart = new int[depth + 2];
+        levels = new long[depth + 1][];
+        for (int level = 0, width = 1; level <= depth; level++, width *= FANOUT) {
+            levelStart[level + 1] = levelStart[level] + width;
+            levels[level] = new long[0];
+        }
+    }
+
+    /**
+     * @param node
+     * @return the index of the first child of the node
+     */
+    public int firstChild(int node) {
+        return node * FANOUT + 1;
+    }
+
+    /**
+     * @param leaf
+     * @return the first partition id of the leaf's bucket
+     */
+    public int firstId(int leaf) {
+        return (leaf - firstLeaf) << BUCKET_BITS;
+    }
+
+    /**
+     * @param node
+     * @return the hash of the node
+     */
+    public synchronized long getHash(int node) {
+        int level = levelOf(node);
+        int offset = node - levelStart[level];
+        return offset < levels[level].length ? levels[level][offset] : 0L;
+    }
+
+    /**
+     * @param node
+     * @return true if the node is a leaf of the tree
+     */
+    public boolean isLeaf(int node) {
+        return node >= firstLeaf;
+    }
+
+    /**
+     * Remove the member from the tree
+     * 
+     * @param id
+     *            - the partition id of the member
+     */
+    public synchronized void remove(int id) {
+        set(id, 0L);
+    }
+
+    /**
+     * @return the number of nodes in the tree
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Update the heartbeat time of the member
+     * 
+     * @param id
+     *            - the partition id of the member
+     * @param time
+     *            - the heartbeat time of the member
+     */
+    public synchronized void update(int id, long time) {
+        set(id, hash(id, time));
+    }
+
+    private int levelOf(int node) {
+        int level = levels.length - 1;
+        while (node < levelStart[level]) {
+            level--;
+        }
+        return level;
+    }
+
+    private void set(int id, long contribution) {
+        if (id >= contributions.length) {
+            if (contribution == 0) {
+                return;
+            }
+            contributions = grow(contributions, id, ids);
+        }
+        long delta = contributions[id] ^ contribution;
+        if (delta == 0) {
+            return;
+        }
+        contributions[id] = contribution;
+        int node = firstLeaf + (id >> BUCKET_BITS);
+        for (int level = levels.length - 1;; level--) {
+            int offset = node - levelStart[level];
+            if (offset >= levels[level].length) {
+                levels[level] = grow(levels[level], offset,
+                                     levelStart[level + 1] - levelStart[level]);
+            }
+            levels[level][offset] ^= delta;
+            if (level == 0) {
+                return;
+            }
+            node = (node - 1) / FANOUT;
+        }
+    }
+}
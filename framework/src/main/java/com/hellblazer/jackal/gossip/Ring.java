@@ -1,33 +1,99 @@
 package com.hellblazer.jackal.gossip;
 
 import java.net.InetSocketAddress;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.smartfrog.services.anubis.partition.util.Identity;
 import org.smartfrog.services.anubis.partition.util.NodeIdSet;
 
+/**
+ * The rings heartbeat states are forwarded around. The first ring orders the
+ * members by their partition id. Each additional ring orders the members by a
+ * seeded hash of their id, so that every ring is a different permutation of
+ * the members. A state is forwarded to the left neighbor on every ring, and so
+ * reaches all the members in roughly N/k hops, rather than N, and is not held
+ * up by any single slow member.
+ */
 public class Ring {
-    private final GossipCommunications               comms;
-    private final AtomicReference<InetSocketAddress> neighbor = new AtomicReference<InetSocketAddress>();
-    private final int                                id;
-    private static final Logger                      log      = LoggerFactory.getLogger(Ring.class.getCanonicalName());
+    private static final Logger                            log         = LoggerFactory.getLogger(Ring.class.getCanonicalName());
+    private static final int                               SEED        = 0x9E3779B9;
+
+    private final GossipCommunications                     comms;
+    private final int                                      id;
+    private NodeIdSet                                      members;
+    private final AtomicReference<List<InetSocketAddress>> neighbors   = new AtomicReference<List<InetSocketAddress>>(
+                                                                                                                      Collections.<InetSocketAddress> emptyList());
+    private final int[]                                    neighborIds;
 
     public Ring(int identity, GossipCommunications comms) {
+        this(identity, 1, comms);
+    }
+
+    /**
+     * 
+     * @param identity
+     *            - the partition id of the local member
+     * @param rings
+     *            - the number of rings states are forwarded around
+     * @param comms
+     */
+    public Ring(int identity, int rings, GossipCommunications comms) {
+        if (rings < 1) {
+            throw new IllegalArgumentException(
+                                               String.format("Invalid number of rings: %s",
+                                                             rings));
+        }
         id = identity;
+        neighborIds = new int[rings];
         this.comms = comms;
     }
 
     /**
-     * Send the heartbeat around the ring in both directions.
+     * Answer the position of the member on the hashed ring
+     * 
+     * @param ring
+     *            - the index of the ring
+     * @param member
+     *            - the partition id of the member
+     * @return the unsigned position of the member on the ring
+     */
+    static long position(int ring, int member) {
+        int h = member ^ ring * SEED;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return the addresses of the left neighbors on the rings
+     */
+    public List<InetSocketAddress> getNeighbors() {
+        return neighbors.get();
+    }
+
+    /**
+     * @return the number of rings
+     */
+    public int getRings() {
+        return neighborIds.length;
+    }
+
+    /**
+     * Send the heartbeat to the left neighbor on each ring.
      * 
      * @param state
      */
     public void send(HeartbeatState state) {
-        InetSocketAddress l = neighbor.get();
-        if (l == null) {
+        List<InetSocketAddress> l = neighbors.get();
+        if (l.isEmpty()) {
             if (log.isTraceEnabled()) {
                 log.trace("Ring has not been formed, not forwarding state");
             }
@@ -37,39 +103,83 @@ public class Ring {
     }
 
     /**
-     * Update the neighboring members of the id on the ring represented by the
-     * members.
+     * Update the neighboring members of the id on the rings represented by
+     * the members. The neighbors are only recomputed when the members change.
      * 
      * @param members
      * @param endpoints
+     *            - the endpoints indexed by the partition id of the member
      */
-    public void update(NodeIdSet members, Collection<Endpoint> endpoints) {
-        int n = members.leftNeighborOf(id);
-        if (n == -1) {
+    public synchronized void update(NodeIdSet members,
+                                    AtomicReferenceArray<Endpoint> endpoints) {
+        if (!members.equals(this.members)) {
+            this.members = members.clone();
+            neighborIds[0] = members.leftNeighborOf(id);
+            for (int ring = 1; ring < neighborIds.length; ring++) {
+                neighborIds[ring] = neighborIds[0] == -1 ? -1
+                                                        : leftNeighborOf(ring,
+                                                                         members);
+            }
+        }
+        if (neighborIds[0] == -1) {
             if (log.isTraceEnabled()) {
                 log.trace(String.format("id {%s} does not have a left neighbor in: %s",
                                         id, members));
             }
             return;
         }
-        InetSocketAddress l = null;
-        for (Endpoint endpoint : endpoints) {
-            Identity identity = endpoint.getId();
-            if (identity != null) {
-                int eid = identity.id;
-                if (eid == n) {
-                    l = endpoint.getState().getHeartbeatAddress();
-                    break;
+        InetSocketAddress[] l = new InetSocketAddress[neighborIds.length];
+        int count = 0;
+        next: for (int n : neighborIds) {
+            Endpoint endpoint = n < endpoints.length() ? endpoints.get(n)
+                                                      : null;
+            if (endpoint == null) {
+                continue;
+            }
+            InetSocketAddress address = endpoint.getState().getHeartbeatAddress();
+            for (int i = 0; i < count; i++) {
+                if (l[i].equals(address)) {
+                    continue next;
                 }
             }
+            l[count++] = address;
         }
-        if (l == null) {
+        if (count == 0) {
             if (log.isTraceEnabled()) {
                 log.trace("Ring has not been formed");
             }
-            neighbor.set(null);
+            neighbors.set(Collections.<InetSocketAddress> emptyList());
         } else {
-            neighbor.set(l);
+            neighbors.set(Collections.unmodifiableList(Arrays.asList(l).subList(0,
+                                                                                count)));
+        }
+    }
+
+    /**
+     * Answer the member preceding the local member on the hashed ring,
+     * wrapping around to the last member of the ring
+     */
+    private int leftNeighborOf(int ring, NodeIdSet members) {
+        long home = position(ring, id);
+        int left = -1;
+        long leftPosition = -1;
+        int last = -1;
+        long lastPosition = -1;
+        int member = -1;
+        while ((member = members.nextSetBit(member + 1)) >= 0) {
+            if (member == id) {
+                continue;
+            }
+            long p = position(ring, member);
+            if (p < home && p > leftPosition) {
+                left = member;
+                leftPosition = p;
+            }
+            if (p > lastPosition) {
+                last = member;
+                lastPosition = p;
+            }
         }
+        return left == -1 ? last : left;
     }
 }
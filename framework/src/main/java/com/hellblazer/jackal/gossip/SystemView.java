@@ -20,19 +20,21 @@ package com.hellblazer.jackal.gossip;
 import static java.lang.String.format;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.hellblazer.jackal.util.RandomAccessSet;
+
 /**
  * Provides a view on the known endpoint state for the system. The primary
  * responsibility of the system view is to provide random members from the
@@ -45,42 +47,33 @@ import org.slf4j.LoggerFactory;
  * quarantined. Quarantined members are members that have been marked dead and
  * are prohibited from rejoining the set of live endpoints until the quarantine
  * period has elapsed.
+ * <p>
+ * Members may be grouped into zones, such as the racks or data centers the
+ * members reside in. If the local member has a zone, gossip partners are
+ * selected from the live members of the local zone, and only a fraction of
+ * the rounds of gossip - or every round, if the local member is a bridge
+ * between zones - include a live member of another zone.
  * 
  * 
  * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
  * 
  */
 public class SystemView {
-    private static final Comparator<InetSocketAddress> ADDRESS_COMPARATOR = new Comparator<InetSocketAddress>() {
-                                                                              @Override
-                                                                              public int compare(InetSocketAddress addr1,
-                                                                                                 InetSocketAddress addr2) {
-                                                                                  int hostCompare = addr1.getAddress().getHostAddress().compareTo(addr2.getAddress().getHostAddress());
-                                                                                  if (hostCompare == 0) {
-                                                                                      int port1 = addr1.getPort();
-                                                                                      int port2 = addr2.getPort();
-                                                                                      if (port1 == port2) {
-                                                                                          return 0;
-                                                                                      }
-                                                                                      if (port1 > port2) {
-                                                                                          return 1;
-                                                                                      }
-                                                                                      return -1;
-                                                                                  }
-                                                                                  return hostCompare;
-                                                                              }
-                                                                          };
-    private static final Logger                        log                = LoggerFactory.getLogger(SystemView.class);
-    private final Random                               entropy;
-    private final Set<InetSocketAddress>               live               = new ConcurrentSkipListSet<InetSocketAddress>(
-                                                                                                                         ADDRESS_COMPARATOR);
-    private final InetSocketAddress                    localAddress;
-    private final Map<InetSocketAddress, Long>         quarantined        = new ConcurrentHashMap<InetSocketAddress, Long>();
-    private final int                                  quarantineInterval;
-    private final Set<InetSocketAddress>               seeds              = new ConcurrentSkipListSet<InetSocketAddress>(
-                                                                                                                         ADDRESS_COMPARATOR);
-    private final Map<InetSocketAddress, Long>         unreachable        = new ConcurrentHashMap<InetSocketAddress, Long>();
-    private final int                                  unreachableInterval;
+    private static final Logger                              log                = LoggerFactory.getLogger(SystemView.class);
+    private final Random                                     entropy;
+    private final RandomAccessSet<InetSocketAddress>         live               = new RandomAccessSet<InetSocketAddress>();
+    private final InetSocketAddress                          localAddress;
+    private final Map<InetSocketAddress, Long>               quarantined        = Collections.synchronizedMap(new LinkedHashMap<InetSocketAddress, Long>());
+    private final int                                        quarantineInterval;
+    private final RandomAccessSet<InetSocketAddress>         seeds              = new RandomAccessSet<InetSocketAddress>();
+    private final Map<InetSocketAddress, Long>               unreachable        = new ConcurrentHashMap<InetSocketAddress, Long>();
+    private final RandomAccessSet<InetSocketAddress>         unreachableMembers = new RandomAccessSet<InetSocketAddress>();
+    private final int                                        unreachableInterval;
+    private final double                                     crossZoneFraction;
+    private final String                                     localZone;
+    private final RandomAccessSet<InetSocketAddress>         remoteZoneMembers  = new RandomAccessSet<InetSocketAddress>();
+    private final boolean                                    zoneBridge;
+    private final RandomAccessSet<InetSocketAddress>         zoneMembers        = new RandomAccessSet<InetSocketAddress>();
 
     /**
      * 
@@ -101,7 +94,48 @@ public class SystemView {
     public SystemView(Random random, InetSocketAddress local,
                       Collection<InetSocketAddress> seedHosts,
                       int quarantineDelay, int unreachableDelay) {
+        this(random, local, seedHosts, quarantineDelay, unreachableDelay,
+             null, 1.0, false);
+    }
+
+    /**
+     * 
+     * @param random
+     *            - a source of entropy
+     * @param local
+     *            - the local address of this node
+     * @param seedHosts
+     *            - the kernel set of endpoints used to construct the system
+     *            view
+     * @param quarantineDelay
+     *            - the interval a failing member must remain quarantined before
+     *            rejoining the view a a live member
+     * @param unreachableDelay
+     *            - the interval it takes before the system finally considers a
+     *            member really and truly dead
+     * @param zone
+     *            - the zone of this node, or null if members are not grouped
+     *            into zones
+     * @param crossZoneFraction
+     *            - the fraction of the rounds of gossip which include a member
+     *            of another zone
+     * @param bridge
+     *            - true if this node is a bridge between zones, including a
+     *            member of another zone in every round of gossip
+     */
+    public SystemView(Random random, InetSocketAddress local,
+                      Collection<InetSocketAddress> seedHosts,
+                      int quarantineDelay, int unreachableDelay, String zone,
+                      double crossZoneFraction, boolean bridge) {
         assert validAddresses(seedHosts);
+        if (crossZoneFraction < 0.0 || crossZoneFraction > 1.0) {
+            throw new IllegalArgumentException(
+                                               format("Invalid cross zone fraction: %s",
+                                                      crossZoneFraction));
+        }
+        localZone = zone;
+        this.crossZoneFraction = crossZoneFraction;
+        zoneBridge = bridge;
         entropy = random;
         localAddress = local;
         quarantineInterval = quarantineDelay;
@@ -111,27 +145,32 @@ public class SystemView {
                 seeds.add(seed);
             }
         }
-        log.info(format("System view initialized for: %s, seeds: %s",
-                        localAddress, seeds));
+        log.info(format("System view initialized for: %s, zone: %s, seeds: %s",
+                        localAddress, localZone, seeds));
     }
 
     /**
      * Reconsider endpoints that have been quarantined for a sufficient time.
+     * The quarantined endpoints are kept in the order they were quarantined,
+     * so the scan stops at the first endpoint still serving its quarantine.
      * 
      * @param now
      *            - the time to determine the interval the endpoint has been
      *            quarantined
      */
     public void cullQuarantined(long now) {
-        for (Iterator<Map.Entry<InetSocketAddress, Long>> iterator = quarantined.entrySet().iterator(); iterator.hasNext();) {
-            Map.Entry<InetSocketAddress, Long> entry = iterator.next();
-            if (now - entry.getValue() > quarantineInterval) {
+        synchronized (quarantined) {
+            for (Iterator<Map.Entry<InetSocketAddress, Long>> iterator = quarantined.entrySet().iterator(); iterator.hasNext();) {
+                Map.Entry<InetSocketAddress, Long> entry = iterator.next();
+                if (now - entry.getValue() <= quarantineInterval) {
+                    return;
+                }
                 if (log.isTraceEnabled()) {
                     log.trace(format("%s elapsed, %s gossip quarantine over",
                                      quarantineInterval, entry.getKey()));
                 }
                 iterator.remove();
-                unreachable.put(entry.getKey(), entry.getValue());
+                markUnreachable(entry.getKey(), entry.getValue());
             }
         }
     }
@@ -144,15 +183,18 @@ public class SystemView {
      *            unreachable
      */
     public void cullUnreachable(long now) {
-        for (Iterator<Map.Entry<InetSocketAddress, Long>> iterator = quarantined.entrySet().iterator(); iterator.hasNext();) {
-            Map.Entry<InetSocketAddress, Long> entry = iterator.next();
-            if (now - entry.getValue() > unreachableInterval) {
+        synchronized (quarantined) {
+            for (Iterator<Map.Entry<InetSocketAddress, Long>> iterator = quarantined.entrySet().iterator(); iterator.hasNext();) {
+                Map.Entry<InetSocketAddress, Long> entry = iterator.next();
+                if (now - entry.getValue() <= unreachableInterval) {
+                    return;
+                }
                 if (log.isTraceEnabled()) {
                     log.trace(format("%s elapsed, %s is now considered truly dead",
                                      unreachableInterval, entry.getKey()));
                 }
                 iterator.remove();
-                unreachable.put(entry.getKey(), entry.getValue());
+                markUnreachable(entry.getKey(), entry.getValue());
             }
         }
     }
@@ -190,13 +232,62 @@ public class SystemView {
         return localAddress;
     }
 
+    /**
+     * Answer the zone of this node
+     * 
+     * @return the zone label, or null if members are not grouped into zones
+     */
+    public String getLocalZone() {
+        return localZone;
+    }
+
+    /**
+     * Answer a number of distinct random live members to gossip with. If
+     * members are grouped into zones, the members are selected from the local
+     * zone, adding a member of another zone with the cross zone fraction, or
+     * always if this node is a zone bridge. If there are no other live members
+     * in the local zone, the members are selected from the other zones.
+     * 
+     * @param count
+     *            - the number of members to select
+     * @return the selected live members
+     */
+    public List<InetSocketAddress> getRandomGossipPartners(int count) {
+        if (localZone == null) {
+            return live.sample(count, entropy);
+        }
+        List<InetSocketAddress> partners = zoneMembers.sample(count, entropy);
+        if (partners.isEmpty()) {
+            return remoteZoneMembers.sample(count, entropy);
+        }
+        if (zoneBridge || entropy.nextDouble() < crossZoneFraction) {
+            InetSocketAddress remote = remoteZoneMembers.random(entropy);
+            if (remote != null) {
+                partners.add(remote);
+            }
+        }
+        return partners;
+    }
+
     /**
      * Answer a random member of the live set.
      * 
      * @return the live member, or null if there are no live members
      */
     public InetSocketAddress getRandomLiveMember() {
-        return getRandomMember(live);
+        return live.random(entropy);
+    }
+
+    /**
+     * Answer a number of distinct random members of the live set.
+     * 
+     * @param count
+     *            - the number of members to select
+     * @return the selected live members, which may be fewer than requested if
+     *         there are not enough live members
+     */
+    public List<InetSocketAddress> getRandomLiveMembers(int count) {
+        return live.sample(count, entropy);
     }
 
     /**
@@ -213,7 +304,7 @@ public class SystemView {
      */
     public InetSocketAddress getRandomSeedMember(InetSocketAddress member) {
         if (member == null) {
-            return getRandomMember(seeds);
+            return seeds.random(entropy);
         } else if (seeds.contains(member)) {
             return null;
         }
@@ -225,11 +316,11 @@ public class SystemView {
         InetSocketAddress seed = null;
         do {
             if (live.size() == 0) {
-                seed = getRandomMember(seeds);
+                seed = seeds.random(entropy);
             }
             if (entropy.nextDouble() <= seeds.size()
-                                        / (double) (live.size() + unreachable.size())) {
-                seed = getRandomMember(seeds);
+                                        / (double) (live.size() + unreachableMembers.size())) {
+                seed = seeds.random(entropy);
             }
         } while (localAddress == seed);
         return seed;
@@ -244,9 +335,9 @@ public class SystemView {
      *         available
      */
     public InetSocketAddress getRandomUnreachableMember() {
-        if (entropy.nextDouble() < unreachable.size()
+        if (entropy.nextDouble() < unreachableMembers.size()
                                    / ((double) live.size() + 1)) {
-            return getRandomMember(unreachable.keySet());
+            return unreachableMembers.random(entropy);
         }
         return null;
     }
@@ -257,7 +348,7 @@ public class SystemView {
      * @return the set of unreachable endpoints.
      */
     public Collection<InetSocketAddress> getUnreachableMembers() {
-        return Collections.unmodifiableCollection(unreachable.keySet());
+        return Collections.unmodifiableCollection(unreachableMembers);
     }
 
     /**
@@ -278,8 +369,32 @@ public class SystemView {
      *            - the endpoint to mark as live
      */
     public void markAlive(InetSocketAddress endpoint) {
+        markAlive(endpoint, null);
+    }
+
+    /**
+     * Mark the endpoint as live, noting the zone of the endpoint. Marking a
+     * live endpoint with a different zone moves the endpoint to that zone.
+     * 
+     * @param endpoint
+     *            - the endpoint to mark as live
+     * @param zone
+     *            - the zone of the endpoint, or null if the zone is unknown
+     */
+    public void markAlive(InetSocketAddress endpoint, String zone) {
         live.add(endpoint);
+        unreachableMembers.remove(endpoint);
         unreachable.remove(endpoint);
+        if (localZone == null) {
+            return;
+        }
+        if (localZone.equals(zone)) {
+            remoteZoneMembers.remove(endpoint);
+            zoneMembers.add(endpoint);
+        } else {
+            zoneMembers.remove(endpoint);
+            remoteZoneMembers.add(endpoint);
+        }
     }
 
     /**
@@ -290,7 +405,42 @@ public class SystemView {
      */
     public void markDead(InetSocketAddress endpoint, long now) {
         live.remove(endpoint);
-        quarantined.put(endpoint, now);
+        zoneMembers.remove(endpoint);
+        remoteZoneMembers.remove(endpoint);
+        synchronized (quarantined) {
+            quarantined.remove(endpoint);
+            quarantined.put(endpoint, now);
+        }
+    }
+
+    /**
+     * Preload the members known before a restart as unreachable members, so
+     * that they are gossiped with until they are found to be alive
+     * 
+     * @param members
+     *            - the members known before the restart
+     * @param now
+     *            - the time the members are preloaded
+     * @return the members preloaded, excluding the local member and the
+     *         members already live
+     */
+    public List<InetSocketAddress> preload(Collection<InetSocketAddress> members,
+                                           long now) {
+        List<InetSocketAddress> preloaded = new ArrayList<InetSocketAddress>(
+                                                                             members.size());
+        for (InetSocketAddress member : members) {
+            if (member.equals(localAddress) || live.contains(member)
+                || unreachable.containsKey(member)) {
+                continue;
+            }
+            markUnreachable(member, now);
+            preloaded.add(member);
+        }
+        if (log.isInfoEnabled()) {
+            log.info(format("Preloaded %s members for: %s", preloaded.size(),
+                            localAddress));
+        }
+        return preloaded;
     }
 
     public boolean validAddresses(Collection<InetSocketAddress> hosts) {
@@ -301,28 +451,8 @@ public class SystemView {
         return true;
     }
 
-    /**
-     * Answer a random member of the endpoint collection.
-     * 
-     * @param endpoints
-     *            - the endpoints to sample
-     * @return the selected member
-     */
-    protected InetSocketAddress getRandomMember(Collection<InetSocketAddress> endpoints) {
-        if (endpoints.isEmpty()) {
-            return null;
-        }
-        int size = endpoints.size();
-        int index = size == 1 ? 0 : entropy.nextInt(size);
-        int i = 0;
-        for (InetSocketAddress address : endpoints) {
-            if (i == index) {
-                return address;
-            }
-            i++;
-        }
-        log.info(format("We should have found the selected random member of the supplied endpoint set: %s",
-                        index));
-        return null;
+    private void markUnreachable(InetSocketAddress endpoint, long time) {
+        unreachable.put(endpoint, time);
+        unreachableMembers.add(endpoint);
     }
 }
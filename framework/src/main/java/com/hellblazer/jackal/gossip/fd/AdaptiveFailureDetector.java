@@ -18,8 +18,9 @@
 package com.hellblazer.jackal.gossip.fd;
 
 import com.hellblazer.jackal.gossip.FailureDetector;
-import com.hellblazer.jackal.util.MultiWindow;
-import com.hellblazer.jackal.util.SkipList;
+import com.hellblazer.jackal.util.Clock;
+import com.hellblazer.jackal.util.SortedWindow;
+import com.hellblazer.jackal.util.Window;
 
 /**
  * An adaptive accural failure detector based on the paper:
@@ -29,25 +30,27 @@ import com.hellblazer.jackal.util.SkipList;
  * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
  * 
  */
-public class AdaptiveFailureDetector extends MultiWindow implements
-        FailureDetector {
+public class AdaptiveFailureDetector implements FailureDetector {
 
-    private double         last        = -1.0;
-    private final double   minInterval;
-    private final double   scale;
-    private final SkipList sorted      = new SkipList();
-    private final double   threshold;
-    private double         sumOfDelays = 0.0;
+    private final Window       delays;
+    private double             last        = -1.0;
+    private final double       minInterval;
+    private final double       scale;
+    private final SortedWindow sorted;
+    private final double       threshold;
+    private double             sumOfDelays = 0.0;
 
     public AdaptiveFailureDetector(double convictionThreshold, int windowSize,
                                    double scale, long expectedSampleInterval,
-                                   int initialSamples, double minimumInterval) {
-        super(windowSize, 2);
+                                   int initialSamples,
+                                   double minimumInterval, Clock clock) {
+        sorted = new SortedWindow(windowSize);
+        delays = new Window(windowSize);
         threshold = convictionThreshold;
         minInterval = minimumInterval;
         this.scale = scale;
 
-        long now = System.currentTimeMillis();
+        long now = clock.currentTimeMillis();
         last = now - initialSamples * expectedSampleInterval;
         for (int i = 0; i < initialSamples; i++) {
             record((long) (last + expectedSampleInterval), 0L);
@@ -55,6 +58,32 @@ public class AdaptiveFailureDetector extends MultiWindow implements
         assert last == now;
     }
 
+    /**
+     * The detector convicts when the fraction of the sampled inter arrival
+     * times no greater than the scaled delay reaches the threshold, which is
+     * when the scaled delay reaches the sample at the threshold's rank.
+     * 
+     * @see com.hellblazer.jackal.gossip.FailureDetector#nextConvictionTime()
+     */
+    @Override
+    public synchronized long nextConvictionTime() {
+        int size = sorted.size();
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        int rank = (int) Math.ceil(threshold * size);
+        while (rank > 0 && (double) (rank - 1) / size >= threshold) {
+            rank--;
+        }
+        if (rank > size) {
+            return Long.MAX_VALUE;
+        }
+        if (rank <= 0) {
+            return (long) last;
+        }
+        return (long) (last + sorted.get(rank - 1) / scale);
+    }
+
     @Override
     public synchronized void record(long timeStamp, long delay) {
         if (last >= 0.0) {
@@ -62,23 +91,22 @@ public class AdaptiveFailureDetector extends MultiWindow implements
             if (sample < minInterval) {
                 return;
             }
-            sorted.add(sample);
-            sumOfDelays += delay;
-            if (count == samples.length) {
-                double[] removed = removeFirst();
-                sorted.remove(removed[0]);
-                sumOfDelays -= removed[1];
+            int size = sorted.size();
+            sorted.sample(sample);
+            if (sorted.size() == size) {
+                sumOfDelays -= delays.removeFirst();
             }
-            addLast(sample, delay);
+            sumOfDelays += delay;
+            delays.addLast(delay);
         }
-        last = timeStamp + sumOfDelays / count;
+        last = timeStamp + sumOfDelays / sorted.size();
     }
 
     @Override
     public synchronized boolean shouldConvict(long now) {
         double delta = (now - last) * scale;
         double countLessThanEqualTo = sorted.countLessThanEqualTo(delta);
-        boolean convict = countLessThanEqualTo / count >= threshold;
+        boolean convict = countLessThanEqualTo / sorted.size() >= threshold;
         return convict;
     }
 }
@@ -19,6 +19,7 @@ package com.hellblazer.jackal.gossip.fd;
 
 import com.hellblazer.jackal.gossip.FailureDetector;
 import com.hellblazer.jackal.gossip.FailureDetectorFactory;
+import com.hellblazer.jackal.util.Clock;
 
 /**
  * 
@@ -47,10 +48,11 @@ public class AdaptiveFailureDetectorFactory implements FailureDetectorFactory {
     }
 
     @Override
-    public FailureDetector create() {
+    public FailureDetector create(Clock clock) {
         return new AdaptiveFailureDetector(convictionThreshold, windowSize,
                                            scale, expectedSampleInterval,
-                                           initialSamples, minimumInterval);
+                                           initialSamples, minimumInterval,
+                                           clock);
     }
 
 }
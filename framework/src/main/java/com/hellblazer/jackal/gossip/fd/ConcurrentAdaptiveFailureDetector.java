@@ -0,0 +1,107 @@
+/** 
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.fd;
+
+import com.hellblazer.jackal.util.Clock;
+import com.hellblazer.jackal.util.SortedWindow;
+import com.hellblazer.jackal.util.Window;
+
+/**
+ * A variant of the {@link AdaptiveFailureDetector} which records heartbeats
+ * without allocating and judges conviction without locking. The detector
+ * convicts when the fraction of the sampled inter arrival times no greater
+ * than the scaled time since the last heartbeat reaches the threshold, which
+ * is when that time reaches the sample at the threshold's rank. This horizon
+ * is computed when the heartbeat is recorded, so judging conviction is a
+ * comparison.
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class ConcurrentAdaptiveFailureDetector extends
+        ConcurrentFailureDetector {
+    private final Window       delays;
+    private final double       minInterval;
+    private final SortedWindow sorted;
+    private final double       scale;
+    private double             sumOfDelays = 0.0;
+    private final double       threshold;
+
+    public ConcurrentAdaptiveFailureDetector(double convictionThreshold,
+                                             int windowSize, double scale,
+                                             long expectedSampleInterval,
+                                             int initialSamples,
+                                             double minimumInterval,
+                                             Clock clock) {
+        super(clock.currentTimeMillis() - initialSamples
+              * expectedSampleInterval);
+        threshold = convictionThreshold;
+        minInterval = minimumInterval;
+        this.scale = scale;
+        sorted = new SortedWindow(windowSize);
+        delays = new Window(windowSize);
+        for (int i = 0; i < initialSamples; i++) {
+            record((long) (getLast() + expectedSampleInterval), 0L);
+        }
+    }
+
+    @Override
+    public void record(long timeStamp, long delay) {
+        long writeSequence = beginWrite();
+        try {
+            double sample = timeStamp - getLast();
+            if (sample < minInterval) {
+                return;
+            }
+            int size = sorted.size();
+            sorted.sample(sample);
+            if (sorted.size() == size) {
+                sumOfDelays -= delays.removeFirst();
+            }
+            sumOfDelays += delay;
+            delays.addLast(delay);
+            publish(timeStamp + sumOfDelays / delays.size(), horizon());
+        } finally {
+            endWrite(writeSequence);
+        }
+    }
+
+    @Override
+    protected boolean exceeds(double elapsed, double horizon) {
+        return elapsed >= horizon;
+    }
+
+    /**
+     * Answer the scaled sample at the smallest rank whose fraction of the
+     * samples reaches the threshold
+     */
+    private double horizon() {
+        int count = sorted.size();
+        int rank = (int) Math.ceil(threshold * count);
+        while (rank > 0 && (double) (rank - 1) / count >= threshold) {
+            rank--;
+        }
+        if (rank > count) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (rank == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return sorted.get(rank - 1) / scale;
+    }
+}
@@ -0,0 +1,130 @@
+/** 
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.fd;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hellblazer.jackal.gossip.FailureDetector;
+
+/**
+ * The base of failure detectors whose judgement reduces to the time of the
+ * last heartbeat and a horizon - the time elapsed since the last heartbeat
+ * past which the member is convicted. The recording of heartbeats computes
+ * the horizon, and publishes the pair under a sequence lock: writers
+ * serialize on the sequence, which is odd while a write is in progress, and
+ * readers retry if the sequence changed while they read the pair. Judging
+ * conviction takes no lock and never blocks behind the recording of a
+ * heartbeat.
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+abstract public class ConcurrentFailureDetector implements FailureDetector {
+    private volatile double  horizon  = Double.POSITIVE_INFINITY;
+    private volatile double  last;
+    private final AtomicLong sequence = new AtomicLong();
+
+    protected ConcurrentFailureDetector(double start) {
+        last = start;
+    }
+
+    @Override
+    public long nextConvictionTime() {
+        while (true) {
+            long current = sequence.get();
+            if ((current & 1) != 0) {
+                continue;
+            }
+            double lastRecord = last;
+            double currentHorizon = horizon;
+            if (sequence.get() == current) {
+                return (long) (lastRecord + currentHorizon);
+            }
+        }
+    }
+
+    @Override
+    public boolean shouldConvict(long now) {
+        while (true) {
+            long current = sequence.get();
+            if ((current & 1) != 0) {
+                continue;
+            }
+            double lastRecord = last;
+            double currentHorizon = horizon;
+            if (sequence.get() == current) {
+                return exceeds(now - lastRecord, currentHorizon);
+            }
+        }
+    }
+
+    /**
+     * Begin the recording of a heartbeat, excluding other writers
+     * 
+     * @return the sequence to end the write with
+     */
+    protected long beginWrite() {
+        while (true) {
+            long current = sequence.get();
+            if ((current & 1) == 0
+                && sequence.compareAndSet(current, current + 1)) {
+                return current + 1;
+            }
+        }
+    }
+
+    /**
+     * End the recording of a heartbeat, publishing the writes
+     * 
+     * @param writeSequence
+     *            - the sequence answered by beginWrite
+     */
+    protected void endWrite(long writeSequence) {
+        sequence.set(writeSequence + 1);
+    }
+
+    /**
+     * Answer true if the time elapsed since the last heartbeat exceeds the
+     * horizon
+     * 
+     * @param elapsed
+     * @param horizon
+     */
+    abstract protected boolean exceeds(double elapsed, double horizon);
+
+    /**
+     * @return the time of the last heartbeat. Only valid while writing
+     */
+    protected double getLast() {
+        return last;
+    }
+
+    /**
+     * Publish the time of the last heartbeat and the horizon. Only valid while
+     * writing
+     * 
+     * @param lastRecord
+     * @param newHorizon
+     *            - the horizon, or positive infinity if the member cannot be
+     *            convicted
+     */
+    protected void publish(double lastRecord, double newHorizon) {
+        last = lastRecord;
+        horizon = newHorizon;
+    }
+}
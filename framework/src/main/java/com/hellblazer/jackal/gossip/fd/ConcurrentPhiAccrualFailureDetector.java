@@ -0,0 +1,84 @@
+/** 
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.fd;
+
+import com.hellblazer.jackal.util.Clock;
+import com.hellblazer.jackal.util.RunningAverage;
+import com.hellblazer.jackal.util.RunningMedian;
+import com.hellblazer.jackal.util.SampledWindow;
+
+/**
+ * A variant of the {@link PhiAccrualFailureDetector} which records heartbeats
+ * without allocating and judges conviction without locking. As phi is linear
+ * in the time since the last heartbeat, phi exceeds the conviction threshold
+ * when that time exceeds the threshold multiple of the estimated inter
+ * arrival time, scaled by ln(10). This horizon is computed when the heartbeat
+ * is recorded, so judging conviction is a comparison.
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class ConcurrentPhiAccrualFailureDetector extends
+        ConcurrentFailureDetector {
+    private static final double LN_10 = Math.log(10.0);
+
+    private final double        minInterval;
+    private final double        threshold;
+    private final SampledWindow window;
+
+    public ConcurrentPhiAccrualFailureDetector(double convictThreshold,
+                                               boolean useMedian,
+                                               int windowSize,
+                                               long expectedSampleInterval,
+                                               int initialSamples,
+                                               double minimumInterval,
+                                               Clock clock) {
+        super(clock.currentTimeMillis() - initialSamples
+              * expectedSampleInterval);
+        threshold = convictThreshold;
+        minInterval = minimumInterval;
+        if (useMedian) {
+            window = new RunningMedian(windowSize);
+        } else {
+            window = new RunningAverage(windowSize);
+        }
+        for (int i = 0; i < initialSamples; i++) {
+            record((long) (getLast() + expectedSampleInterval), 0L);
+        }
+    }
+
+    @Override
+    public void record(long now, long delay) {
+        long writeSequence = beginWrite();
+        try {
+            double interArrivalTime = now - getLast();
+            if (interArrivalTime < minInterval) {
+                return;
+            }
+            window.sample(interArrivalTime);
+            publish(now, threshold * LN_10 * window.value());
+        } finally {
+            endWrite(writeSequence);
+        }
+    }
+
+    @Override
+    protected boolean exceeds(double elapsed, double horizon) {
+        return elapsed > horizon;
+    }
+}
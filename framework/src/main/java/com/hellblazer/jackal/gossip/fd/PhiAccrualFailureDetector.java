@@ -20,6 +20,7 @@ package com.hellblazer.jackal.gossip.fd;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.hellblazer.jackal.gossip.FailureDetector;
+import com.hellblazer.jackal.util.Clock;
 import com.hellblazer.jackal.util.RunningAverage;
 import com.hellblazer.jackal.util.RunningMedian;
 import com.hellblazer.jackal.util.SampledWindow;
@@ -42,6 +43,8 @@ import com.hellblazer.jackal.util.SampledWindow;
  * 
  */
 public class PhiAccrualFailureDetector implements FailureDetector {
+    private static final double LN_10     = Math.log(10.0);
+    private final Clock         clock;
     private double              last;
     private final double        minInterval;
     private final ReentrantLock stateLock = new ReentrantLock();
@@ -51,7 +54,9 @@ public class PhiAccrualFailureDetector implements FailureDetector {
     public PhiAccrualFailureDetector(double convictThreshold,
                                      boolean useMedian, int windowSize,
                                      long expectedSampleInterval,
-                                     int initialSamples, double minimumInterval) {
+                                     int initialSamples,
+                                     double minimumInterval, Clock clock) {
+        this.clock = clock;
         threshold = convictThreshold;
         minInterval = minimumInterval;
         if (useMedian) {
@@ -59,7 +64,7 @@ public class PhiAccrualFailureDetector implements FailureDetector {
         } else {
             window = new RunningAverage(windowSize);
         }
-        long now = System.currentTimeMillis();
+        long now = clock.currentTimeMillis();
         last = now - initialSamples * expectedSampleInterval;
         for (int i = 0; i < initialSamples; i++) {
             record((long) (last + expectedSampleInterval), 0L);
@@ -67,6 +72,31 @@ public class PhiAccrualFailureDetector implements FailureDetector {
         assert last == now;
     }
 
+    /**
+     * Phi exceeds the threshold when the time since the last heartbeat
+     * exceeds the threshold multiple of the mean inter arrival time, scaled
+     * by ln(10).
+     * 
+     * @see com.hellblazer.jackal.gossip.FailureDetector#nextConvictionTime()
+     */
+    @Override
+    public long nextConvictionTime() {
+        final ReentrantLock myLock = stateLock;
+        try {
+            myLock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            return clock.currentTimeMillis();
+        }
+        try {
+            if (window.size() == 0) {
+                return Long.MAX_VALUE;
+            }
+            return (long) (last + threshold * window.value() * LN_10);
+        } finally {
+            myLock.unlock();
+        }
+    }
+
     /* (non-Javadoc)
      * @see com.hellblazer.jackal.gossip.FailureDetector#record(long)
      */
@@ -19,6 +19,7 @@ package com.hellblazer.jackal.gossip.fd;
 
 import com.hellblazer.jackal.gossip.FailureDetector;
 import com.hellblazer.jackal.gossip.FailureDetectorFactory;
+import com.hellblazer.jackal.util.Clock;
 
 /**
  * 
@@ -47,11 +48,12 @@ public class PhiFailureDetectorFactory implements FailureDetectorFactory {
     }
 
     @Override
-    public FailureDetector create() {
+    public FailureDetector create(Clock clock) {
         return new PhiAccrualFailureDetector(convictionThreshold, useMedian,
                                              windowSize,
                                              expectedSampleInterval,
-                                             initialSamples, minimumInterval);
+                                             initialSamples, minimumInterval,
+                                             clock);
     }
 
 }
@@ -2,6 +2,7 @@ package com.hellblazer.jackal.gossip.fd;
 
 import com.hellblazer.jackal.gossip.FailureDetector;
 import com.hellblazer.jackal.gossip.FailureDetectorFactory;
+import com.hellblazer.jackal.util.Clock;
 
 public class SimpleTimeoutFailureDetectorFactory implements
         FailureDetectorFactory {
@@ -13,7 +14,7 @@ public class SimpleTimeoutFailureDetectorFactory implements
     }
 
     @Override
-    public FailureDetector create() {
+    public FailureDetector create(Clock clock) {
         return new SimpleTimeoutFailureDector(timeout);
     }
 
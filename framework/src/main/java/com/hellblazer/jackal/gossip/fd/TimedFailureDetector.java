@@ -32,6 +32,15 @@ public class TimedFailureDetector implements FailureDetector {
         this.maxInterval = maxInterval;
     }
 
+    @Override
+    public long nextConvictionTime() {
+        long lastRecord = last;
+        if (lastRecord < 0) {
+            return Long.MAX_VALUE;
+        }
+        return lastRecord + maxInterval + 1;
+    }
+
     @Override
     public void record(long now, long delay) {
         last = now;
@@ -2,6 +2,7 @@ package com.hellblazer.jackal.gossip.fd;
 
 import com.hellblazer.jackal.gossip.FailureDetector;
 import com.hellblazer.jackal.gossip.FailureDetectorFactory;
+import com.hellblazer.jackal.util.Clock;
 
 public class TimedFailureDetectorFactory implements FailureDetectorFactory {
     final long maxInterval;
@@ -11,7 +12,7 @@ public class TimedFailureDetectorFactory implements FailureDetectorFactory {
     }
 
     @Override
-    public FailureDetector create() {
+    public FailureDetector create(Clock clock) {
         return new TimedFailureDetector(maxInterval);
     }
 
@@ -0,0 +1,863 @@
+/** (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.udp;
+
+import static com.hellblazer.jackal.gossip.GossipMessages.ACK;
+import static com.hellblazer.jackal.gossip.GossipMessages.CONNECT_TO;
+import static com.hellblazer.jackal.gossip.GossipMessages.DIGEST_BYTE_SIZE;
+import static com.hellblazer.jackal.gossip.GossipMessages.GOSSIP;
+import static com.hellblazer.jackal.gossip.GossipMessages.MERKLE;
+import static com.hellblazer.jackal.gossip.GossipMessages.PING;
+import static com.hellblazer.jackal.gossip.GossipMessages.PING_REQ;
+import static com.hellblazer.jackal.gossip.GossipMessages.REPLY;
+import static com.hellblazer.jackal.gossip.GossipMessages.UPDATE;
+import static com.hellblazer.jackal.gossip.GossipMessages.UPDATE_BATCH;
+import static java.lang.String.format;
+import static java.util.Arrays.asList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.smartfrog.services.anubis.partition.util.Identity;
+
+import com.hellblazer.jackal.gossip.Digest;
+import com.hellblazer.jackal.gossip.Endpoint;
+import com.hellblazer.jackal.gossip.Gossip;
+import com.hellblazer.jackal.gossip.GossipCommunications;
+import com.hellblazer.jackal.gossip.GossipMessages;
+import com.hellblazer.jackal.gossip.HeartbeatState;
+import com.hellblazer.jackal.gossip.MembershipEvent;
+import com.hellblazer.jackal.gossip.udp.InboundDispatcher.DatagramHandler;
+import com.hellblazer.jackal.gossip.udp.InboundDispatcher.OverloadPolicy;
+import com.hellblazer.jackal.util.ByteBufferPool;
+import com.hellblazer.jackal.util.HexDump;
+import com.hellblazer.jackal.util.VarInt;
+
+/**
+ * The datagram message protocol of the gossip communications, independent of
+ * the mechanism used to move the datagrams across the net. Outbound messages
+ * are encoded into pooled buffers, with the buffer position marking the end of
+ * the message; subclasses transmit exactly those bytes. Inbound datagrams are
+ * handed to {@link #dispatch(InetSocketAddress, ByteBuffer)} with the buffer
+ * flipped for reading, which queues them on the bounded
+ * {@link InboundDispatcher} stage for processing by its fixed workers.
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+abstract public class AbstractUdpCommunications implements
+        GossipCommunications {
+    protected class GossipHandler implements GossipMessages {
+        private final InetSocketAddress target;
+
+        GossipHandler(InetSocketAddress target) {
+            assert target.getPort() != 0 : "Invalid port";
+            this.target = target;
+        }
+
+        @Override
+        public void close() {
+            // no op
+        }
+
+        @Override
+        public void gossip(List<Digest> digests) {
+            sendDigests(digests, GOSSIP, asList(target));
+        }
+
+        @Override
+        public void merkle(int[] nodes, long[] hashes) {
+            sendMerkle(nodes, hashes, asList(target));
+        }
+
+        @Override
+        public void reply(List<Digest> digests, List<HeartbeatState> states) {
+            sendDigests(digests, REPLY, asList(target));
+            update(states);
+        }
+
+        @Override
+        public void requestConnection(Identity node) {
+            ByteBuffer buffer = bufferPool.allocate(MAX_SEG_SIZE);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            buffer.position(4);
+            buffer.put(CONNECT_TO);
+            node.writeTo(buffer);
+            send(buffer, target);
+            bufferPool.free(buffer);
+        }
+
+        @Override
+        public void update(List<HeartbeatState> deltaState) {
+            sendUpdates(deltaState, asList(target));
+        }
+    }
+
+    protected static final int                 DEFAULT_RECEIVE_BUFFER_MULTIPLIER = 4;
+    protected static final int                 DEFAULT_SEND_BUFFER_MULTIPLIER    = 4;
+    @SuppressWarnings("unchecked")
+    private static final List<HeartbeatState>  EMPTY_HEATBEAT_LIST               = Collections.EMPTY_LIST;
+    @SuppressWarnings("unchecked")
+    private static final List<MembershipEvent> EMPTY_EVENT_LIST                  = Collections.EMPTY_LIST;
+    private static final Logger                log                               = LoggerFactory.getLogger(AbstractUdpCommunications.class);
+    protected static final int                 MAGIC_NUMBER                      = 24051967;
+    /**
+     * The maximum number of digests in a datagram, limited by the unsigned
+     * short count of the digests
+     */
+    protected static final int                 MAX_DIGESTS                       = 0xFFFF;
+    /**
+     * The maximum size of the encoding of a Merkle tree node: the variable
+     * length index of the node and the hash of the node
+     */
+    private static final int                   MERKLE_NODE_BYTE_SIZE             = 5 + 8;
+    /**
+     * MAX_SEG_SIZE is a default maximum packet size. This may be small, but any
+     * network will be capable of handling this size so the packet transfer
+     * semantics are atomic (no fragmentation in the network).
+     */
+    protected static final int                 MAX_SEG_SIZE                      = 1500;
+    /**
+     * The number of pooled buffers beyond those held by the inbound
+     * dispatcher, for the datagrams being sent
+     */
+    protected static final int                 OUTBOUND_BUFFERS                  = 16;
+    /**
+     * The maximum number of heartbeat states in an update datagram, limited by
+     * the unsigned byte count of the states
+     */
+    protected static final int                 MAX_UPDATE_BATCH                  = 255;
+    private static final int                   UPDATE_BATCH_HEADER_SIZE          = 4 + 1 + 1;
+
+    protected static String prettyPrint(SocketAddress sender,
+                                        SocketAddress target, ByteBuffer buffer) {
+        ByteBuffer contents = buffer.duplicate();
+        contents.rewind();
+        byte[] bytes = new byte[contents.remaining()];
+        contents.get(bytes);
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        sb.append('\n');
+        sb.append(new SimpleDateFormat().format(new Date()));
+        sb.append(" sender: ");
+        sb.append(sender);
+        sb.append(" target: ");
+        sb.append(target);
+        sb.append('\n');
+        sb.append(toHex(bytes, 0, bytes.length));
+        return sb.toString();
+    }
+
+    private static String toHex(byte[] data, int offset, int length) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
+        PrintStream stream = new PrintStream(baos);
+        HexDump.hexdump(stream, data, offset, length);
+        stream.close();
+        return baos.toString();
+    }
+
+    protected final ByteBufferPool    bufferPool;
+    protected final ExecutorService   dispatcher;
+    protected Gossip                  gossip;
+    protected final InboundDispatcher inbound;
+    protected final AtomicBoolean     running = new AtomicBoolean();
+
+    protected AbstractUdpCommunications(ExecutorService executor,
+                                        ByteBufferPool bufferPool) {
+        this(executor, bufferPool, InboundDispatcher.DEFAULT_WORKERS,
+             InboundDispatcher.DEFAULT_CAPACITY, OverloadPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * 
+     * @param executor
+     *            - the executor running the receive loop and the inbound
+     *            workers
+     * @param bufferPool
+     *            - the pool of datagram buffers
+     * @param dispatchWorkers
+     *            - the number of workers processing inbound datagrams
+     * @param dispatchCapacity
+     *            - the number of inbound datagrams queued per worker
+     * @param overloadPolicy
+     *            - the policy applied when a worker's queue is full
+     */
+    protected AbstractUdpCommunications(ExecutorService executor,
+                                        ByteBufferPool bufferPool,
+                                        int dispatchWorkers,
+                                        int dispatchCapacity,
+                                        OverloadPolicy overloadPolicy) {
+        dispatcher = executor;
+        this.bufferPool = bufferPool;
+        inbound = new InboundDispatcher(dispatchWorkers, dispatchCapacity,
+                                        overloadPolicy, bufferPool,
+                                        new DatagramHandler() {
+                                            @Override
+                                            public void handle(InetSocketAddress sender,
+                                                               ByteBuffer buffer) {
+                                                process(sender, buffer);
+                                            }
+                                        });
+    }
+
+    @Override
+    public void connect(InetSocketAddress address, Endpoint endpoint,
+                        Runnable connectAction) throws IOException {
+        endpoint.setCommunications(new GossipHandler(address));
+        connectAction.run();
+    }
+
+    @Override
+    public void gossip(List<Digest> digests,
+                       Collection<InetSocketAddress> members) {
+        if (!members.isEmpty()) {
+            sendDigests(digests, GOSSIP, members);
+        }
+    }
+
+    @Override
+    public void merkle(int[] nodes, long[] hashes,
+                       Collection<InetSocketAddress> members) {
+        if (!members.isEmpty()) {
+            sendMerkle(nodes, hashes, members);
+        }
+    }
+
+    @Override
+    public void ping(InetSocketAddress target, int sequence) {
+        sendPing(target, sequence, null);
+    }
+
+    @Override
+    public void requestPing(InetSocketAddress target, int sequence,
+                            Collection<InetSocketAddress> relays) {
+        ByteBuffer buffer = bufferPool.allocate(MAX_SEG_SIZE);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.position(4);
+        buffer.put(PING_REQ);
+        buffer.putInt(sequence);
+        HeartbeatState.writeInetAddress(target, buffer);
+        for (InetSocketAddress relay : relays) {
+            send(buffer, relay);
+        }
+        bufferPool.free(buffer);
+    }
+
+    @Override
+    public void send(HeartbeatState state,
+                     Collection<InetSocketAddress> members) {
+        List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>(
+                                                                           members.size());
+        for (InetSocketAddress member : members) {
+            if (!gossip.isIgnoring(member)) {
+                targets.add(member);
+            }
+        }
+        if (!targets.isEmpty()) {
+            sendUpdates(asList(state), targets);
+        }
+    }
+
+    @Override
+    public void setGossip(Gossip gossip) {
+        this.gossip = gossip;
+    }
+
+    /**
+     * Start the service
+     */
+    @Override
+    public void start() {
+        if (running.compareAndSet(false, true)) {
+            inbound.start(dispatcher);
+            dispatcher.execute(serviceTask());
+        }
+    }
+
+    /**
+     * @return the stage dispatching the inbound datagrams, exposing its
+     *         processed, dropped and queued counts
+     */
+    public InboundDispatcher getInboundDispatcher() {
+        return inbound;
+    }
+
+    /**
+     * Queue the inbound datagram for processing by the inbound workers. Must
+     * only be called from the receive loop. The buffer is returned to the pool
+     * when the datagram has been processed or dropped.
+     * 
+     * @param sender
+     *            - the sender of the datagram
+     * @param buffer
+     *            - the datagram contents, flipped for reading
+     */
+    protected void dispatch(InetSocketAddress sender, ByteBuffer buffer) {
+        if (!inbound.dispatch(sender, buffer) && running.get()
+            && log.isTraceEnabled()) {
+            log.trace(format("Inbound datagram from %s dropped: %s", sender,
+                             inbound));
+        }
+    }
+
+    /**
+     * Process the inbound datagram on an inbound worker thread
+     * 
+     * @param sender
+     *            - the sender of the datagram
+     * @param buffer
+     *            - the datagram contents, flipped for reading
+     */
+    protected void process(InetSocketAddress sender, ByteBuffer buffer) {
+        if (log.isTraceEnabled()) {
+            log.trace(String.format("Received packet %s",
+                                    prettyPrint(sender, getLocalAddress(),
+                                                buffer)));
+        }
+        int magic = buffer.getInt();
+        if (MAGIC_NUMBER == magic) {
+            try {
+                processInbound(sender, buffer);
+            } catch (Throwable e) {
+                if (log.isWarnEnabled()) {
+                    log.warn(format("Invalid message: %s",
+                                    prettyPrint(sender, getLocalAddress(),
+                                                buffer)), e);
+                }
+            }
+        } else {
+            if (log.isWarnEnabled()) {
+                log.warn(format("Msg with invalid MAGIC header [%s] discarded %s",
+                                magic,
+                                prettyPrint(sender, getLocalAddress(), buffer)));
+            }
+        }
+    }
+
+    /**
+     * Send the datagram across the net. The datagram is the contents of the
+     * buffer from 0 to the buffer's position. The first 4 bytes of the buffer
+     * are reserved for the magic number, which is filled in here.
+     * 
+     * @param buffer
+     *            - the encoded datagram
+     * @param target
+     *            - the address of the receiver
+     */
+    protected void send(ByteBuffer buffer, SocketAddress target) {
+        buffer.putInt(0, MAGIC_NUMBER);
+        if (log.isTraceEnabled()) {
+            ByteBuffer datagram = buffer.duplicate();
+            datagram.flip();
+            log.trace(String.format("sending packet %s",
+                                    prettyPrint(getLocalAddress(), target,
+                                                datagram)));
+        }
+        try {
+            transmit(buffer, target);
+        } catch (IOException e) {
+            if (running.get() && log.isWarnEnabled()) {
+                log.warn("Error sending packet", e);
+            }
+        }
+    }
+
+    /**
+     * Send the digests to the targets, packing as many digests as will fit
+     * into each datagram. Each datagram is encoded once and sent to all the
+     * targets. The datagram is the message type, the unsigned byte count of
+     * the piggybacked membership events, the events, the unsigned short count
+     * of the digests, the base time of the digests, followed by the digests.
+     * The pending membership events are piggybacked on the first datagram,
+     * and are only taken from the gossip service if a datagram is sent.
+     * 
+     * @param digests
+     *            - the digests to send
+     * @param messageType
+     *            - the type of the digest message
+     * @param targets
+     *            - the addresses of the receivers
+     */
+    protected void sendDigests(List<Digest> digests, byte messageType,
+                               Collection<? extends SocketAddress> targets) {
+        ByteBuffer buffer = bufferPool.allocate(MAX_SEG_SIZE);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < digests.size();) {
+            long baseTime = digests.get(i).getTime();
+            buffer.clear();
+            buffer.limit(MAX_SEG_SIZE);
+            buffer.position(4);
+            buffer.put(messageType);
+            writeEvents(buffer, i == 0);
+            int countIndex = buffer.position();
+            buffer.putShort((short) 0);
+            buffer.putLong(baseTime);
+            int count = 0;
+            while (i < digests.size() && count < MAX_DIGESTS
+                   && buffer.remaining() >= DIGEST_BYTE_SIZE) {
+                digests.get(i++).writeTo(buffer, baseTime);
+                count++;
+            }
+            buffer.putShort(countIndex, (short) count);
+            for (SocketAddress target : targets) {
+                send(buffer, target);
+            }
+        }
+        bufferPool.free(buffer);
+    }
+
+    /**
+     * Send the hashes of the Merkle tree nodes to the targets, packing as many
+     * nodes as will fit into each datagram. The datagram is the message type,
+     * the unsigned byte count of the piggybacked membership events, the
+     * events, the unsigned short count of the nodes, followed by the variable
+     * length index and the hash of each node. As with the digests, the
+     * pending membership events are piggybacked on the first datagram.
+     * 
+     * @param nodes
+     *            - the indexes of the tree nodes
+     * @param hashes
+     *            - the hashes of the tree nodes
+     * @param targets
+     *            - the addresses of the receivers
+     */
+    protected void sendMerkle(int[] nodes, long[] hashes,
+                              Collection<? extends SocketAddress> targets) {
+        ByteBuffer buffer = bufferPool.allocate(MAX_SEG_SIZE);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < nodes.length;) {
+            buffer.clear();
+            buffer.limit(MAX_SEG_SIZE);
+            buffer.position(4);
+            buffer.put(MERKLE);
+            writeEvents(buffer, i == 0);
+            int countIndex = buffer.position();
+            buffer.putShort((short) 0);
+            int count = 0;
+            while (i < nodes.length && count < MAX_DIGESTS
+                   && buffer.remaining() >= MERKLE_NODE_BYTE_SIZE) {
+                VarInt.writeLong(nodes[i], buffer);
+                buffer.putLong(hashes[i++]);
+                count++;
+            }
+            buffer.putShort(countIndex, (short) count);
+            for (SocketAddress target : targets) {
+                send(buffer, target);
+            }
+        }
+        bufferPool.free(buffer);
+    }
+
+    /**
+     * Send the heartbeat states to the targets, packing as many of the states
+     * as will fit into each datagram. Each datagram is encoded once and sent
+     * to all the targets. The datagram is the message type, the unsigned byte
+     * count of the states, followed by the compact form of each state.
+     * 
+     * @param states
+     *            - the heartbeat states to send
+     * @param targets
+     *            - the addresses of the receivers
+     */
+    protected void sendUpdates(List<HeartbeatState> states,
+                               Collection<? extends SocketAddress> targets) {
+        if (states.isEmpty()) {
+            return;
+        }
+        ByteBuffer buffer = bufferPool.allocate(MAX_SEG_SIZE);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        int count = 0;
+        buffer.limit(MAX_SEG_SIZE);
+        buffer.position(UPDATE_BATCH_HEADER_SIZE);
+        for (HeartbeatState state : states) {
+            if (count == MAX_UPDATE_BATCH || !state.writeCompactTo(buffer)) {
+                if (count == 0) {
+                    if (log.isErrorEnabled()) {
+                        log.error(format("Heartbeat state too large to send: %s",
+                                         state));
+                    }
+                    continue;
+                }
+                sendUpdateBatch(buffer, count, targets);
+                count = 0;
+                buffer.clear();
+                buffer.limit(MAX_SEG_SIZE);
+                buffer.position(UPDATE_BATCH_HEADER_SIZE);
+                if (!state.writeCompactTo(buffer)) {
+                    if (log.isErrorEnabled()) {
+                        log.error(format("Heartbeat state too large to send: %s",
+                                         state));
+                    }
+                    continue;
+                }
+            }
+            count++;
+        }
+        if (count > 0) {
+            sendUpdateBatch(buffer, count, targets);
+        }
+        bufferPool.free(buffer);
+    }
+
+    /**
+     * The service loop, receiving inbound datagrams and handing them to
+     * {@link #dispatch(InetSocketAddress, ByteBuffer)}
+     * 
+     * @return the Runnable action implementing the service loop.
+     */
+    abstract protected Runnable serviceTask();
+
+    /**
+     * Transmit the datagram, composed of the bytes of the buffer from 0 to the
+     * buffer's position.
+     * 
+     * @param buffer
+     * @param target
+     * @throws IOException
+     */
+    abstract protected void transmit(ByteBuffer buffer, SocketAddress target)
+                                                                              throws IOException;
+
+    private void sendAck(SocketAddress to, int sequence,
+                         InetSocketAddress target, InetSocketAddress origin) {
+        ByteBuffer buffer = bufferPool.allocate(MAX_SEG_SIZE);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.position(4);
+        buffer.put(ACK);
+        buffer.putInt(sequence);
+        HeartbeatState.writeInetAddress(target, buffer);
+        HeartbeatState.writeInetAddress(origin, buffer);
+        send(buffer, to);
+        bufferPool.free(buffer);
+    }
+
+    private void sendPing(SocketAddress target, int sequence,
+                          InetSocketAddress origin) {
+        ByteBuffer buffer = bufferPool.allocate(MAX_SEG_SIZE);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        buffer.position(4);
+        buffer.put(PING);
+        buffer.putInt(sequence);
+        HeartbeatState.writeInetAddress(origin, buffer);
+        send(buffer, target);
+        bufferPool.free(buffer);
+    }
+
+    private void sendUpdateBatch(ByteBuffer buffer, int count,
+                                 Collection<? extends SocketAddress> targets) {
+        buffer.put(4, UPDATE_BATCH);
+        buffer.put(5, (byte) count);
+        for (SocketAddress target : targets) {
+            send(buffer, target);
+        }
+    }
+
+    /**
+     * Write the count of the piggybacked membership events, followed by the
+     * events. The events are only taken from the gossip service for the first
+     * datagram of a message, as taking them consumes their retransmissions.
+     * 
+     * @param buffer
+     * @param piggyback
+     *            - true if the pending events are piggybacked on the datagram
+     */
+    private void writeEvents(ByteBuffer buffer, boolean piggyback) {
+        List<MembershipEvent> events = piggyback ? gossip.nextEvents()
+                                                : EMPTY_EVENT_LIST;
+        buffer.put((byte) events.size());
+        for (MembershipEvent event : events) {
+            event.writeTo(buffer);
+        }
+    }
+
+    /**
+     * Handle the acknowledgement of a probe. If the acknowledgement carries
+     * the address of the origin of an indirect probe, this node is the relay
+     * and forwards the acknowledgement to the origin.
+     * 
+     * @param msg
+     * @throws UnknownHostException
+     */
+    private void handleAck(ByteBuffer msg) throws UnknownHostException {
+        int sequence = msg.getInt();
+        InetSocketAddress target = HeartbeatState.readInetAddress(msg);
+        InetSocketAddress origin = HeartbeatState.readInetAddress(msg);
+        if (origin != null) {
+            if (log.isTraceEnabled()) {
+                log.trace(format("Relaying ack #%s from %s to %s", sequence,
+                                 target, origin));
+            }
+            sendAck(origin, sequence, target, null);
+            return;
+        }
+        gossip.acknowledge(target, sequence);
+    }
+
+    private void handleConnectTo(ByteBuffer buffer) {
+        Identity peer;
+        try {
+            peer = new Identity(buffer);
+        } catch (Throwable e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Cannot deserialize identity. Ignoring the connection request.",
+                         e);
+            }
+            return;
+        }
+        gossip.connectTo(peer);
+    }
+
+    private void handleGossip(final InetSocketAddress target, ByteBuffer msg)
+                                                                            throws UnknownHostException {
+        readEvents(msg);
+        List<Digest> digests = readDigests(msg);
+        if (log.isTraceEnabled()) {
+            log.trace(format("Gossip digests from %s are : %s", this, digests));
+        }
+        gossip.gossip(digests, new GossipHandler(target));
+    }
+
+    private void handleMerkle(InetSocketAddress target, ByteBuffer msg)
+                                                                        throws UnknownHostException {
+        readEvents(msg);
+        int count = msg.getShort() & 0xFFFF;
+        int[] nodes = new int[count];
+        long[] hashes = new long[count];
+        for (int i = 0; i < count; i++) {
+            nodes[i] = (int) VarInt.readLong(msg);
+            hashes[i] = msg.getLong();
+        }
+        if (log.isTraceEnabled()) {
+            log.trace(format("Merkle nodes from %s are : %s", target,
+                             Arrays.toString(nodes)));
+        }
+        gossip.merkle(nodes, hashes, new GossipHandler(target));
+    }
+
+    private void handleReply(final InetSocketAddress target, ByteBuffer msg)
+                                                                           throws UnknownHostException {
+        readEvents(msg);
+        List<Digest> digests = readDigests(msg);
+        if (log.isTraceEnabled()) {
+            log.trace(format("Reply digests from %s are : %s", this, digests));
+        }
+        gossip.reply(digests, EMPTY_HEATBEAT_LIST, new GossipHandler(target));
+    }
+
+    /**
+     * Acknowledge a probe. The acknowledgement is sent to the sender of the
+     * probe, which is either the origin of the probe or the relay of an
+     * indirect probe.
+     * 
+     * @param sender
+     * @param msg
+     * @throws UnknownHostException
+     */
+    private void handlePing(InetSocketAddress sender, ByteBuffer msg)
+                                                                     throws UnknownHostException {
+        int sequence = msg.getInt();
+        InetSocketAddress origin = HeartbeatState.readInetAddress(msg);
+        sendAck(sender, sequence, getLocalAddress(), origin);
+    }
+
+    /**
+     * Relay a probe to the target on behalf of the sender. No state is kept
+     * for the relayed probe; the origin of the probe travels with the probe
+     * and its acknowledgement.
+     * 
+     * @param sender
+     * @param msg
+     * @throws UnknownHostException
+     */
+    private void handlePingRequest(InetSocketAddress sender, ByteBuffer msg)
+                                                                            throws UnknownHostException {
+        int sequence = msg.getInt();
+        InetSocketAddress target = HeartbeatState.readInetAddress(msg);
+        if (log.isTraceEnabled()) {
+            log.trace(format("Relaying ping #%s from %s to %s", sequence,
+                             sender, target));
+        }
+        sendPing(target, sequence, sender);
+    }
+
+    private void handleUpdateBatch(ByteBuffer msg) {
+        int count = msg.get() & 0xFF;
+        if (log.isTraceEnabled()) {
+            log.trace("Handling update batch, state count: " + count);
+        }
+        List<HeartbeatState> states = new ArrayList<HeartbeatState>(count);
+        for (int i = 0; i < count; i++) {
+            HeartbeatState state;
+            try {
+                state = HeartbeatState.readCompact(msg);
+            } catch (Throwable e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Cannot deserialize heartbeat state. Ignoring the state.",
+                             e);
+                }
+                continue;
+            }
+            states.add(state);
+        }
+        if (log.isTraceEnabled()) {
+            log.trace(format("Heartbeat states from %s are : %s", this, states));
+        }
+        if (!states.isEmpty()) {
+            gossip.update(states);
+        }
+    }
+
+    private void handleUpdate(ByteBuffer msg) {
+        final HeartbeatState state;
+        try {
+            state = HeartbeatState.readCompact(msg);
+        } catch (Throwable e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Cannot deserialize heartbeat state. Ignoring the state.",
+                         e);
+            }
+            return;
+        }
+        if (log.isTraceEnabled()) {
+            log.trace(format("Heartbeat state from %s is : %s", this, state));
+        }
+        gossip.update(asList(state));
+    }
+
+    private List<Digest> readDigests(ByteBuffer msg) {
+        int count = msg.getShort() & 0xFFFF;
+        long baseTime = msg.getLong();
+        if (log.isTraceEnabled()) {
+            log.trace("Reading digests, digest count: " + count);
+        }
+        List<Digest> digests = new ArrayList<Digest>(count);
+        for (int i = 0; i < count; i++) {
+            Digest digest;
+            try {
+                digest = new Digest(msg, baseTime);
+            } catch (UnknownHostException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Cannot deserialize digest. Ignoring the digest.",
+                             e);
+                }
+                continue;
+            }
+            digests.add(digest);
+        }
+        return digests;
+    }
+
+    /**
+     * Read the membership events piggybacked on a gossip message and hand
+     * them to the gossip service
+     * 
+     * @param msg
+     * @throws UnknownHostException
+     */
+    private void readEvents(ByteBuffer msg) throws UnknownHostException {
+        int count = msg.get() & 0xFF;
+        if (count == 0) {
+            return;
+        }
+        List<MembershipEvent> events = new ArrayList<MembershipEvent>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(new MembershipEvent(msg));
+        }
+        if (log.isTraceEnabled()) {
+            log.trace(format("Membership events from %s are : %s", this,
+                             events));
+        }
+        gossip.handle(events);
+    }
+
+    /**
+     * Process the inbound message
+     * 
+     * @param buffer
+     *            - the message bytes
+     */
+    private void processInbound(InetSocketAddress sender, ByteBuffer buffer)
+                                                                            throws UnknownHostException {
+        if (gossip.isIgnoring(sender)) {
+            if (log.isTraceEnabled()) {
+                log.trace(String.format("Ignoring inbound msg from: %s", sender));
+            }
+            return;
+        }
+        byte msgType = buffer.get();
+        switch (msgType) {
+            case GOSSIP: {
+                handleGossip(sender, buffer);
+                break;
+            }
+            case REPLY: {
+                handleReply(sender, buffer);
+                break;
+            }
+            case UPDATE: {
+                handleUpdate(buffer);
+                break;
+            }
+            case CONNECT_TO: {
+                handleConnectTo(buffer);
+                break;
+            }
+            case UPDATE_BATCH: {
+                handleUpdateBatch(buffer);
+                break;
+            }
+            case PING: {
+                handlePing(sender, buffer);
+                break;
+            }
+            case PING_REQ: {
+                handlePingRequest(sender, buffer);
+                break;
+            }
+            case ACK: {
+                handleAck(buffer);
+                break;
+            }
+            case MERKLE: {
+                handleMerkle(sender, buffer);
+                break;
+            }
+            default: {
+                if (log.isInfoEnabled()) {
+                    log.info(format("invalid message type: %s from: %s",
+                                    msgType, this));
+                }
+            }
+        }
+    }
+}
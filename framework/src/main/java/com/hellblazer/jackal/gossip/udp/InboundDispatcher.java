@@ -0,0 +1,334 @@
+/** (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.udp;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hellblazer.jackal.util.ByteBufferPool;
+
+/**
+ * The bounded stage between the receive loop of the gossip communications and
+ * the processing of the inbound datagrams. The stage has a fixed number of
+ * workers, each consuming datagrams from its own preallocated ring. Datagrams
+ * are partitioned among the workers by sender, so the datagrams of a sender
+ * are processed in the order they were received.
+ * <p>
+ * The receive loop is the single producer of every ring. When a worker's ring
+ * is full, the overload policy decides whether the newest datagram or the
+ * oldest queued datagram is dropped. Buffers of dropped and processed
+ * datagrams are returned to the buffer pool.
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class InboundDispatcher {
+
+    /**
+     * The processing of inbound datagrams
+     */
+    public static interface DatagramHandler {
+        /**
+         * Process the datagram. The buffer is returned to the pool by the
+         * dispatcher when the handler returns
+         * 
+         * @param sender
+         *            - the sender of the datagram
+         * @param buffer
+         *            - the datagram contents, flipped for reading
+         */
+        void handle(InetSocketAddress sender, ByteBuffer buffer);
+    }
+
+    /**
+     * The policy applied when a worker's ring is full
+     */
+    public static enum OverloadPolicy {
+        /**
+         * Drop the oldest queued datagram to make room for the new one
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new datagram
+         */
+        DROP_NEWEST;
+    }
+
+    private class Worker implements Runnable {
+        private final ByteBuffer[]        buffers;
+        private volatile long             dropped;
+        private final AtomicLong          head = new AtomicLong();
+        private final int                 mask;
+        private volatile boolean          parked;
+        private volatile long             processed;
+        private final InetSocketAddress[] senders;
+        private volatile long             tail;
+        private volatile Thread           thread;
+
+        private Worker(int capacity) {
+            buffers = new ByteBuffer[capacity];
+            senders = new InetSocketAddress[capacity];
+            mask = capacity - 1;
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (running.get()) {
+                long current = head.get();
+                if (current == tail) {
+                    parked = true;
+                    if (running.get() && head.get() == tail) {
+                        LockSupport.park(this);
+                    }
+                    parked = false;
+                    continue;
+                }
+                int slot = (int) (current & mask);
+                InetSocketAddress sender = senders[slot];
+                ByteBuffer buffer = buffers[slot];
+                if (!head.compareAndSet(current, current + 1)) {
+                    continue; // dropped by the producer
+                }
+                try {
+                    handler.handle(sender, buffer);
+                } catch (Throwable e) {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Exception processing inbound datagram", e);
+                    }
+                } finally {
+                    bufferPool.free(buffer);
+                    processed++;
+                }
+            }
+            drain();
+        }
+
+        private void drain() {
+            while (true) {
+                long current = head.get();
+                if (current == tail) {
+                    return;
+                }
+                ByteBuffer buffer = buffers[(int) (current & mask)];
+                if (head.compareAndSet(current, current + 1)) {
+                    bufferPool.free(buffer);
+                }
+            }
+        }
+
+        private boolean offer(InetSocketAddress sender, ByteBuffer buffer) {
+            long current = tail;
+            long first = head.get();
+            if (current - first > mask) {
+                if (policy == OverloadPolicy.DROP_NEWEST) {
+                    dropped++;
+                    bufferPool.free(buffer);
+                    return false;
+                }
+                ByteBuffer oldest = buffers[(int) (first & mask)];
+                if (head.compareAndSet(first, first + 1)) {
+                    dropped++;
+                    bufferPool.free(oldest);
+                }
+            }
+            int slot = (int) (current & mask);
+            senders[slot] = sender;
+            buffers[slot] = buffer;
+            tail = current + 1;
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+            return true;
+        }
+
+        private int size() {
+            return (int) (tail - head.get());
+        }
+    }
+
+    public static final int        DEFAULT_CAPACITY = 256;
+    public static final int        DEFAULT_WORKERS  = Math.min(4,
+                                                               Runtime.getRuntime().availableProcessors());
+    private static final Logger    log              = LoggerFactory.getLogger(InboundDispatcher.class);
+
+    /**
+     * Answer the number of buffers a pool must retain to hold every datagram a
+     * dispatcher can have in hand - full rings, the datagram each worker is
+     * processing and the one being received - without allocating
+     * 
+     * @param workerCount
+     *            - the number of workers processing datagrams
+     * @param capacity
+     *            - the capacity of each worker's ring
+     * @return the number of buffers
+     */
+    public static int bufferLimit(int workerCount, int capacity) {
+        return workerCount * (ringSize(capacity) + 1) + 1;
+    }
+
+    private static int ringSize(int capacity) {
+        int size = Integer.highestOneBit(capacity);
+        return size < capacity ? size << 1 : size;
+    }
+
+    private final ByteBufferPool   bufferPool;
+    private final DatagramHandler  handler;
+    private final OverloadPolicy   policy;
+    private final AtomicBoolean    running          = new AtomicBoolean();
+    private final Worker[]         workers;
+
+    /**
+     * 
+     * @param workerCount
+     *            - the number of workers processing datagrams
+     * @param capacity
+     *            - the capacity of each worker's ring, rounded up to a power
+     *            of two
+     * @param overloadPolicy
+     *            - the policy applied when a worker's ring is full
+     * @param bufferPool
+     *            - the pool the datagram buffers are returned to
+     * @param handler
+     *            - the processing of the datagrams
+     */
+    public InboundDispatcher(int workerCount, int capacity,
+                             OverloadPolicy overloadPolicy,
+                             ByteBufferPool bufferPool, DatagramHandler handler) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException(
+                                               "Worker count must be positive: "
+                                                       + workerCount);
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: "
+                                               + capacity);
+        }
+        int size = ringSize(capacity);
+        policy = overloadPolicy;
+        this.bufferPool = bufferPool;
+        this.handler = handler;
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(size);
+        }
+    }
+
+    /**
+     * Queue the datagram for processing by the worker of its sender. Must only
+     * be called from a single thread - the receive loop.
+     * 
+     * @param sender
+     *            - the sender of the datagram
+     * @param buffer
+     *            - the datagram contents, flipped for reading
+     * @return true if the datagram was queued, false if it was dropped
+     */
+    public boolean dispatch(InetSocketAddress sender, ByteBuffer buffer) {
+        if (!running.get()) {
+            bufferPool.free(buffer);
+            return false;
+        }
+        int index = (sender.hashCode() & Integer.MAX_VALUE) % workers.length;
+        return workers[index].offer(sender, buffer);
+    }
+
+    /**
+     * @return the number of datagrams dropped because a worker's ring was
+     *         full
+     */
+    public long getDropped() {
+        long dropped = 0;
+        for (Worker worker : workers) {
+            dropped += worker.dropped;
+        }
+        return dropped;
+    }
+
+    /**
+     * @return the number of datagrams processed
+     */
+    public long getProcessed() {
+        long processed = 0;
+        for (Worker worker : workers) {
+            processed += worker.processed;
+        }
+        return processed;
+    }
+
+    /**
+     * @return the number of datagrams queued for processing
+     */
+    public int getQueued() {
+        int queued = 0;
+        for (Worker worker : workers) {
+            queued += worker.size();
+        }
+        return queued;
+    }
+
+    public OverloadPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getWorkers() {
+        return workers.length;
+    }
+
+    /**
+     * Start the workers
+     * 
+     * @param executor
+     *            - the executor running the workers
+     */
+    public void start(ExecutorService executor) {
+        if (running.compareAndSet(false, true)) {
+            for (Worker worker : workers) {
+                executor.execute(worker);
+            }
+        }
+    }
+
+    /**
+     * Stop the workers, returning the buffers of the queued datagrams to the
+     * pool
+     */
+    public void terminate() {
+        if (running.compareAndSet(true, false)) {
+            for (Worker worker : workers) {
+                Thread thread = worker.thread;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "InboundDispatcher [workers=" + workers.length + ", policy="
+               + policy + ", processed=" + getProcessed() + ", dropped="
+               + getDropped() + ", queued=" + getQueued() + "]";
+    }
+}
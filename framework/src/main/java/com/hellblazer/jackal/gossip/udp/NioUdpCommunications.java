@@ -0,0 +1,244 @@
+/** (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.udp;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hellblazer.jackal.gossip.udp.InboundDispatcher.OverloadPolicy;
+import com.hellblazer.jackal.util.ByteBufferPool;
+
+/**
+ * A UDP message protocol implementation of the gossip communications, using a
+ * non blocking datagram channel. Datagrams are received directly into pooled
+ * direct buffers, and only the encoded bytes of outbound messages are sent.
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class NioUdpCommunications extends AbstractUdpCommunications {
+    private static final Logger   log     = LoggerFactory.getLogger(NioUdpCommunications.class);
+
+    private final DatagramChannel channel;
+    private final AtomicLong      dropped = new AtomicLong();
+    private final Selector        selector;
+
+    public NioUdpCommunications(InetSocketAddress endpoint,
+                                ExecutorService executor) {
+        this(endpoint, executor, DEFAULT_RECEIVE_BUFFER_MULTIPLIER,
+             DEFAULT_SEND_BUFFER_MULTIPLIER);
+    }
+
+    public NioUdpCommunications(InetSocketAddress endpoint,
+                                ExecutorService executor,
+                                int receiveBufferMultiplier,
+                                int sendBufferMultiplier) {
+        this(endpoint, executor, receiveBufferMultiplier,
+             sendBufferMultiplier, InboundDispatcher.DEFAULT_WORKERS,
+             InboundDispatcher.DEFAULT_CAPACITY, OverloadPolicy.DROP_OLDEST);
+    }
+
+    public NioUdpCommunications(InetSocketAddress endpoint,
+                                ExecutorService executor,
+                                int receiveBufferMultiplier,
+                                int sendBufferMultiplier, int dispatchWorkers,
+                                int dispatchCapacity, OverloadPolicy overloadPolicy) {
+        super(executor,
+              new ByteBufferPool("NIO UDP Comms",
+                                 InboundDispatcher.bufferLimit(dispatchWorkers,
+                                                               dispatchCapacity)
+                                         + OUTBOUND_BUFFERS, true),
+              dispatchWorkers, dispatchCapacity, overloadPolicy);
+        try {
+            channel = DatagramChannel.open();
+            channel.socket().bind(endpoint);
+        } catch (IOException e) {
+            log.error(format("Unable to bind to: %s", endpoint));
+            throw new IllegalStateException(format("Unable to bind to: %s",
+                                                   endpoint), e);
+        }
+        try {
+            channel.socket().setReceiveBufferSize(MAX_SEG_SIZE
+                                                          * receiveBufferMultiplier);
+            channel.socket().setSendBufferSize(MAX_SEG_SIZE
+                                                       * sendBufferMultiplier);
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            log.error(format("Unable to configure endpoint: %s", endpoint));
+            throw new IllegalStateException(
+                                            format("Unable to configure endpoint: %s",
+                                                   endpoint), e);
+        }
+    }
+
+    /**
+     * Answer the number of outbound datagrams dropped because the socket's
+     * send buffer was full
+     * 
+     * @return the number of dropped datagrams
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) channel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Stop the service
+     */
+    @Override
+    public void terminate() {
+        if (running.compareAndSet(true, false)) {
+            if (log.isInfoEnabled()) {
+                log.info(String.format("Terminating NIO UDP Communications on %s",
+                                       channel.socket().getLocalSocketAddress()));
+            }
+            selector.wakeup();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.trace("Error closing channel", e);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.trace("Error closing selector", e);
+            }
+            inbound.terminate();
+            log.info(inbound.toString());
+            log.info(bufferPool.toString());
+        }
+    }
+
+    /**
+     * Drain the datagrams available on the channel
+     * 
+     * @throws IOException
+     */
+    private void service() throws IOException {
+        selector.select();
+        if (!running.get()) {
+            return;
+        }
+        selector.selectedKeys().clear();
+        while (true) {
+            ByteBuffer buffer = bufferPool.allocate(MAX_SEG_SIZE);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            SocketAddress sender;
+            try {
+                sender = channel.receive(buffer);
+            } catch (IOException e) {
+                bufferPool.free(buffer);
+                throw e;
+            }
+            if (sender == null) {
+                bufferPool.free(buffer);
+                return;
+            }
+            buffer.flip();
+            dispatch((InetSocketAddress) sender, buffer);
+        }
+    }
+
+    /**
+     * The service loop.
+     * 
+     * @return the Runnable action implementing the service loop.
+     */
+    @Override
+    protected Runnable serviceTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (log.isInfoEnabled()) {
+                    log.info(String.format("NIO UDP Gossip communications started on %s",
+                                           channel.socket().getLocalSocketAddress()));
+                }
+                while (running.get()) {
+                    try {
+                        service();
+                    } catch (ClosedChannelException e) {
+                        if (log.isTraceEnabled()) {
+                            log.trace("Channel closed, shutting down");
+                        }
+                        terminate();
+                        return;
+                    } catch (Throwable e) {
+                        if (running.get() && log.isWarnEnabled()) {
+                            log.warn("Exception processing inbound message", e);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Send the datagram across the net. The channel is non blocking, so if the
+     * socket's send buffer is full the datagram is dropped, as it would be in
+     * the network.
+     * 
+     * @param buffer
+     * @param target
+     * @throws IOException
+     */
+    @Override
+    protected void transmit(ByteBuffer buffer, SocketAddress target)
+                                                                     throws IOException {
+        int end = buffer.position();
+        int limit = buffer.limit();
+        buffer.flip();
+        try {
+            if (channel.send(buffer, target) == 0) {
+                dropped.incrementAndGet();
+                if (log.isTraceEnabled()) {
+                    log.trace(format("Send buffer full, dropped datagram to %s",
+                                     target));
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // terminated
+        } catch (SocketException e) {
+            if (running.get()) {
+                throw e;
+            }
+        } finally {
+            buffer.limit(limit);
+            buffer.position(end);
+        }
+    }
+}
@@ -30,6 +30,7 @@ public class ByteBufferPool {
 
     private int                          bytesAllocated = 0;
     private int                          created        = 0;
+    private final boolean                direct;
     private int                          discarded      = 0;
     private final ReentrantLock          lock           = new ReentrantLock();
     private final String                 name;
@@ -38,7 +39,22 @@ public class ByteBufferPool {
     private int                          reused         = 0;
 
     public ByteBufferPool(String name, int limit) {
+        this(name, limit, false);
+    }
+
+    /**
+     * @param name
+     *            - the name of the pool
+     * @param limit
+     *            - the maximum number of buffers retained by the pool
+     * @param direct
+     *            - if true, the pool allocates direct buffers, which avoid the
+     *            copy through a temporary direct buffer that channel I/O
+     *            performs on heap buffers
+     */
+    public ByteBufferPool(String name, int limit, boolean direct) {
         this.name = name;
+        this.direct = direct;
         pool = new RingBuffer<ByteBuffer>(limit);
     }
 
@@ -49,7 +65,7 @@ public class ByteBufferPool {
             if (pool.isEmpty()) {
                 created++;
                 bytesAllocated += capacity;
-                return ByteBuffer.allocate(capacity);
+                return create(capacity);
             }
             int remaining = pool.size();
             while (remaining != 0) {
@@ -65,7 +81,7 @@ public class ByteBufferPool {
             }
             created++;
             bytesAllocated += capacity;
-            return ByteBuffer.allocate(capacity);
+            return create(capacity);
         } finally {
             myLock.unlock();
         }
@@ -125,6 +141,10 @@ public class ByteBufferPool {
         return reused;
     }
 
+    public boolean isDirect() {
+        return direct;
+    }
+
     public int size() {
         return pool.size();
     }
@@ -135,4 +155,9 @@ public class ByteBufferPool {
                              name, bytesAllocated, size(), reused, created,
                              pooled, discarded);
     }
+
+    private ByteBuffer create(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity)
+                     : ByteBuffer.allocate(capacity);
+    }
 }
@@ -0,0 +1,43 @@
+/**
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.util;
+
+/**
+ * The source of the current time. The system clock is used in production;
+ * simulations substitute a virtual clock, so that time only advances as the
+ * simulated events are processed.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public interface Clock {
+    /**
+     * The wall clock time of the system
+     */
+    Clock SYSTEM = new Clock() {
+                     @Override
+                     public long currentTimeMillis() {
+                         return System.currentTimeMillis();
+                     }
+                 };
+
+    /**
+     * @return the current time, in milliseconds
+     */
+    long currentTimeMillis();
+}
@@ -0,0 +1,231 @@
+/**
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.util;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread safe set which supports constant time add, remove, contains and
+ * uniform random sampling. The elements are kept in an array, with a map from
+ * element to its index in the array. Removal moves the last element of the
+ * array into the slot of the removed element.
+ * <p>
+ * Iteration is over a snapshot of the set taken when the iterator is created,
+ * so iterators never throw ConcurrentModificationException. Removal through
+ * the iterator removes the element from the set.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class RandomAccessSet<E> extends AbstractSet<E> {
+    private final List<E>             elements;
+    private final Map<E, Integer>     indexes;
+    private final ReentrantLock       lock = new ReentrantLock();
+
+    public RandomAccessSet() {
+        this(16);
+    }
+
+    public RandomAccessSet(int initialCapacity) {
+        elements = new ArrayList<E>(initialCapacity);
+        indexes = new HashMap<E, Integer>(initialCapacity);
+    }
+
+    @Override
+    public boolean add(E element) {
+        if (element == null) {
+            throw new NullPointerException("Null elements are not supported");
+        }
+        final ReentrantLock myLock = lock;
+        myLock.lock();
+        try {
+            if (indexes.containsKey(element)) {
+                return false;
+            }
+            indexes.put(element, elements.size());
+            elements.add(element);
+            return true;
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        final ReentrantLock myLock = lock;
+        myLock.lock();
+        try {
+            elements.clear();
+            indexes.clear();
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        final ReentrantLock myLock = lock;
+        myLock.lock();
+        try {
+            return indexes.containsKey(o);
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        final Object[] snapshot;
+        final ReentrantLock myLock = lock;
+        myLock.lock();
+        try {
+            snapshot = elements.toArray();
+        } finally {
+            myLock.unlock();
+        }
+        return new Iterator<E>() {
+            private int current = -1;
+
+            @Override
+            public boolean hasNext() {
+                return current + 1 < snapshot.length;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return (E) snapshot[++current];
+            }
+
+            @Override
+            public void remove() {
+                if (current < 0 || snapshot[current] == null) {
+                    throw new IllegalStateException();
+                }
+                RandomAccessSet.this.remove(snapshot[current]);
+                snapshot[current] = null;
+            }
+        };
+    }
+
+    /**
+     * Answer a member of the set, selected uniformly at random
+     * 
+     * @param entropy
+     *            - the source of randomness
+     * @return the selected member, or null if the set is empty
+     */
+    public E random(Random entropy) {
+        final ReentrantLock myLock = lock;
+        myLock.lock();
+        try {
+            int size = elements.size();
+            if (size == 0) {
+                return null;
+            }
+            return elements.get(size == 1 ? 0 : entropy.nextInt(size));
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    /**
+     * Answer a number of distinct members of the set, selected uniformly at
+     * random without replacement. Selection is by Floyd's algorithm, so the
+     * cost is proportional to the number of members selected rather than the
+     * size of the set.
+     * 
+     * @param count
+     *            - the number of members to select
+     * @param entropy
+     *            - the source of randomness
+     * @return the list of selected members, which has the size of the set if
+     *         the set has fewer members than requested
+     */
+    public List<E> sample(int count, Random entropy) {
+        final ReentrantLock myLock = lock;
+        myLock.lock();
+        try {
+            int size = elements.size();
+            if (count >= size) {
+                List<E> all = new ArrayList<E>(elements);
+                Collections.shuffle(all, entropy);
+                return all;
+            }
+            List<E> selected = new ArrayList<E>(count);
+            Set<Integer> chosen = new HashSet<Integer>(count * 2);
+            for (int j = size - count; j < size; j++) {
+                int index = entropy.nextInt(j + 1);
+                if (!chosen.add(index)) {
+                    index = j;
+                    chosen.add(index);
+                }
+                selected.add(elements.get(index));
+            }
+            return selected;
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        final ReentrantLock myLock = lock;
+        myLock.lock();
+        try {
+            Integer index = indexes.remove(o);
+            if (index == null) {
+                return false;
+            }
+            int last = elements.size() - 1;
+            E moved = elements.remove(last);
+            if (index != last) {
+                elements.set(index, moved);
+                indexes.put(moved, index);
+            }
+            return true;
+        } finally {
+            myLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        final ReentrantLock myLock = lock;
+        myLock.lock();
+        try {
+            return elements.size();
+        } finally {
+            myLock.unlock();
+        }
+    }
+}
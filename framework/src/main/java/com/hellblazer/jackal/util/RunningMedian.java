@@ -23,28 +23,18 @@ package com.hellblazer.jackal.util;
  * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
  * 
  */
-public class RunningMedian extends Window implements SampledWindow {
-    private final SkipList sorted = new SkipList();
+public class RunningMedian extends SortedWindow implements SampledWindow {
 
     public RunningMedian(int windowSize) {
         super(windowSize);
     }
 
-    @Override
-    public void sample(double sample) {
-        sorted.add(sample);
-        if (count == samples.length) {
-            sorted.remove(removeFirst());
-        }
-        addLast(sample);
-    }
-
     @Override
     public double value() {
-        if (count == 0) {
+        if (size() == 0) {
             throw new IllegalStateException(
                                             "Must have at least one sample to calculate the median");
         }
-        return sorted.get(sorted.size() / 2);
+        return get(size() / 2);
     }
 }
@@ -1,9 +1,28 @@
 package com.hellblazer.jackal.util;
 
+/**
+ * A window of samples which summarizes the samples as a single value.
+ * Implementations are fixed capacity, and do not allocate when sampling.
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
 public interface SampledWindow {
+    /**
+     * Add the sample to the window, evicting the oldest sample if the window
+     * is full
+     * 
+     * @param sample
+     */
     void sample(double sample);
 
+    /**
+     * @return the number of samples in the window
+     */
     int size();
 
+    /**
+     * @return the summary of the samples in the window
+     */
     double value();
 }
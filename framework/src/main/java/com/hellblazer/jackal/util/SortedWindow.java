@@ -0,0 +1,250 @@
+/** 
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.util;
+
+import java.util.Arrays;
+
+/**
+ * A fixed capacity window of samples which supports order statistics over the
+ * samples in the window. Once the window is full, each sample evicts the
+ * oldest sample.
+ * <p>
+ * The samples are the nodes of a treap - a binary search tree kept balanced
+ * by random heap priorities - whose nodes are annotated with the size of
+ * their subtrees. The treap lives in parallel primitive arrays indexed by the
+ * position of the sample in the window's ring, so sampling, eviction, rank
+ * and selection take expected O(log n) time and never allocate. Samples of
+ * equal value are ordered by their position in the ring.
+ * <p>
+ * This class is not thread safe.
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class SortedWindow {
+    private static final int NIL = -1;
+
+    private int              count;
+    private int              head;
+    private final int[]      left;
+    private final int[]      priorities;
+    private final int[]      right;
+    private int              root = NIL;
+    private int              seed = 0x2545F491;
+    private final int[]      sizes;
+    private final double[]   values;
+
+    public SortedWindow(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be positive: "
+                                               + windowSize);
+        }
+        values = new double[windowSize];
+        priorities = new int[windowSize];
+        left = new int[windowSize];
+        right = new int[windowSize];
+        sizes = new int[windowSize];
+    }
+
+    /**
+     * Answer the number of samples that are <= the supplied value
+     * 
+     * @param value
+     * @return the number of samples no greater than the value
+     */
+    public int countLessThanEqualTo(double value) {
+        int rank = 0;
+        int node = root;
+        while (node != NIL) {
+            if (values[node] <= value) {
+                rank += size(left[node]) + 1;
+                node = right[node];
+            } else {
+                node = left[node];
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Answer the sample at the index of the sorted samples
+     * 
+     * @param index
+     * @return the sample of the rank index + 1
+     */
+    public double get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        int node = root;
+        while (true) {
+            int leftSize = size(left[node]);
+            if (index < leftSize) {
+                node = left[node];
+            } else if (index == leftSize) {
+                return values[node];
+            } else {
+                index -= leftSize + 1;
+                node = right[node];
+            }
+        }
+    }
+
+    /**
+     * reset the state of the receiver
+     */
+    public void reset() {
+        count = 0;
+        head = 0;
+        root = NIL;
+        Arrays.fill(values, 0.0D);
+    }
+
+    /**
+     * Add the sample to the window, evicting the oldest sample if the window
+     * is full
+     * 
+     * @param sample
+     */
+    public void sample(double sample) {
+        int node = head + count;
+        if (node >= values.length) {
+            node -= values.length;
+        }
+        if (count == values.length) {
+            root = delete(root, head);
+            if (++head == values.length) {
+                head = 0;
+            }
+            count--;
+        }
+        values[node] = sample;
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        priorities[node] = seed;
+        left[node] = NIL;
+        right[node] = NIL;
+        sizes[node] = 1;
+        root = insert(root, node);
+        count++;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("[ ");
+        for (int i = 0; i < count; i++) {
+            buf.append(values[(i + head) % values.length]);
+            buf.append(", ");
+        }
+        buf.append("]");
+        return buf.toString();
+    }
+
+    private int delete(int tree, int node) {
+        if (tree == node) {
+            return merge(left[tree], right[tree]);
+        }
+        if (precedes(node, tree)) {
+            left[tree] = delete(left[tree], node);
+        } else {
+            right[tree] = delete(right[tree], node);
+        }
+        sizes[tree]--;
+        return tree;
+    }
+
+    private int insert(int tree, int node) {
+        if (tree == NIL) {
+            return node;
+        }
+        if (precedes(node, tree)) {
+            left[tree] = insert(left[tree], node);
+            if (priorities[left[tree]] > priorities[tree]) {
+                return rotateRight(tree);
+            }
+        } else {
+            right[tree] = insert(right[tree], node);
+            if (priorities[right[tree]] > priorities[tree]) {
+                return rotateLeft(tree);
+            }
+        }
+        sizes[tree]++;
+        return tree;
+    }
+
+    private int merge(int a, int b) {
+        if (a == NIL) {
+            return b;
+        }
+        if (b == NIL) {
+            return a;
+        }
+        if (priorities[a] > priorities[b]) {
+            right[a] = merge(right[a], b);
+            sizes[a] = size(left[a]) + size(right[a]) + 1;
+            return a;
+        }
+        left[b] = merge(a, left[b]);
+        sizes[b] = size(left[b]) + size(right[b]) + 1;
+        return b;
+    }
+
+    /**
+     * Answer true if node a precedes node b in the order of the treap. Equal
+     * samples are ordered by the age of the sample in the ring
+     */
+    private boolean precedes(int a, int b) {
+        if (values[a] != values[b]) {
+            return values[a] < values[b];
+        }
+        return age(a) < age(b);
+    }
+
+    private int age(int node) {
+        int age = node - head;
+        return age < 0 ? age + values.length : age;
+    }
+
+    private int rotateLeft(int tree) {
+        int pivot = right[tree];
+        right[tree] = left[pivot];
+        left[pivot] = tree;
+        sizes[tree] = size(left[tree]) + size(right[tree]) + 1;
+        sizes[pivot] = sizes[tree] + size(right[pivot]) + 1;
+        return pivot;
+    }
+
+    private int rotateRight(int tree) {
+        int pivot = left[tree];
+        left[tree] = right[pivot];
+        right[pivot] = tree;
+        sizes[tree] = size(left[tree]) + size(right[tree]) + 1;
+        sizes[pivot] = size(left[pivot]) + sizes[tree] + 1;
+        return pivot;
+    }
+
+    private int size(int node) {
+        return node == NIL ? 0 : sizes[node];
+    }
+}
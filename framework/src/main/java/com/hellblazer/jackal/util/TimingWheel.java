@@ -0,0 +1,169 @@
+/**
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A hashed timing wheel of deadlines. Time is divided into ticks of a fixed
+ * duration, and the wheel is a ring of buckets, one per tick, holding the
+ * elements whose deadlines fall in that tick. Scheduling and cancelling an
+ * element are constant time, and expiring the deadlines which have passed
+ * only visits the buckets of the ticks that have elapsed, so the cost is
+ * proportional to the number of elements in those buckets rather than the
+ * number of elements in the wheel. Deadlines further out than one rotation of
+ * the wheel share buckets with nearer deadlines, and are passed over until
+ * their rotation comes around.
+ * <p>
+ * Each element has at most one deadline; scheduling an element which is
+ * already scheduled replaces its deadline.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TimingWheel<E> {
+    private final Set<E>[]     buckets;
+    private long               cursor;
+    private final Map<E, Long> deadlines = new HashMap<E, Long>();
+    private final int          mask;
+    private final long         tickDuration;
+
+    /**
+     * 
+     * @param wheelSize
+     *            - the number of buckets in the wheel, rounded up to a power
+     *            of two
+     * @param tickDuration
+     *            - the duration of a tick
+     * @param start
+     *            - the time the wheel starts turning
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public TimingWheel(int wheelSize, long tickDuration, long start) {
+        if (wheelSize <= 0) {
+            throw new IllegalArgumentException("Wheel size must be positive: "
+                                               + wheelSize);
+        }
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException(
+                                               "Tick duration must be positive: "
+                                                       + tickDuration);
+        }
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        buckets = new Set[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new LinkedHashSet<E>();
+        }
+        mask = size - 1;
+        this.tickDuration = tickDuration;
+        cursor = start / tickDuration;
+    }
+
+    /**
+     * Cancel the deadline of the element
+     * 
+     * @param element
+     * @return true if the element was scheduled
+     */
+    public synchronized boolean cancel(E element) {
+        Long deadline = deadlines.remove(element);
+        if (deadline == null) {
+            return false;
+        }
+        buckets[bucket(deadline)].remove(element);
+        return true;
+    }
+
+    /**
+     * Remove and answer the elements whose deadlines are at or before the
+     * tick of the supplied time
+     * 
+     * @param now
+     *            - the current time
+     * @return the elements whose deadlines have expired
+     */
+    public synchronized List<E> expire(long now) {
+        long tick = now / tickDuration;
+        if (tick < cursor) {
+            return new ArrayList<E>(0);
+        }
+        List<E> expired = new ArrayList<E>();
+        long elapsed = Math.min(tick - cursor + 1, buckets.length);
+        for (long i = 0; i < elapsed; i++) {
+            Set<E> bucket = buckets[(int) (cursor + i & mask)];
+            for (Iterator<E> iterator = bucket.iterator(); iterator.hasNext();) {
+                E element = iterator.next();
+                if (deadlines.get(element) / tickDuration <= tick) {
+                    iterator.remove();
+                    deadlines.remove(element);
+                    expired.add(element);
+                }
+            }
+        }
+        cursor = tick + 1;
+        return expired;
+    }
+
+    /**
+     * Answer the span of time covered by one rotation of the wheel
+     * 
+     * @return the product of the tick duration and the number of buckets
+     */
+    public long getHorizon() {
+        return tickDuration * buckets.length;
+    }
+
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    /**
+     * Schedule the deadline of the element, replacing any existing deadline.
+     * Deadlines which have already passed expire on the next tick.
+     * 
+     * @param element
+     * @param deadline
+     */
+    public synchronized void schedule(E element, long deadline) {
+        if (element == null) {
+            throw new NullPointerException("Null elements are not supported");
+        }
+        Long previous = deadlines.put(element, deadline);
+        if (previous != null) {
+            buckets[bucket(previous)].remove(element);
+        }
+        buckets[bucket(deadline)].add(element);
+    }
+
+    public synchronized int size() {
+        return deadlines.size();
+    }
+
+    private int bucket(long deadline) {
+        return (int) (Math.max(deadline / tickDuration, cursor) & mask);
+    }
+}
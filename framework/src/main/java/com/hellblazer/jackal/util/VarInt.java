@@ -0,0 +1,84 @@
+/**
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length encoding of longs, 7 bits per byte with the high bit marking
+ * continuation. Signed values are zig zag encoded so that values of small
+ * magnitude take few bytes regardless of their sign.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class VarInt {
+    /**
+     * The maximum number of bytes in the encoding of a long
+     */
+    public static final int MAX_LONG_BYTE_SIZE = 10;
+
+    public static long readLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift >= 64) {
+                throw new IllegalArgumentException("Malformed variable length long");
+            }
+        }
+    }
+
+    public static long readSignedLong(ByteBuffer buffer) {
+        long value = readLong(buffer);
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    public static int sizeOf(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static int sizeOfSigned(long value) {
+        return sizeOf(value << 1 ^ value >> 63);
+    }
+
+    public static void writeLong(long value, ByteBuffer buffer) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static void writeSignedLong(long value, ByteBuffer buffer) {
+        writeLong(value << 1 ^ value >> 63, buffer);
+    }
+
+    private VarInt() {
+    }
+}
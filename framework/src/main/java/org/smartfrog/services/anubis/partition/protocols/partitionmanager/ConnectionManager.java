@@ -5,4 +5,6 @@ import org.smartfrog.services.anubis.partition.util.Identity;
 
 public interface ConnectionManager extends HeartbeatReceiver {
     void connectTo(Identity peer);
+
+    void leave(Identity peer);
 }
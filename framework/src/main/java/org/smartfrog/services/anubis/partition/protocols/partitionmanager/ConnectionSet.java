@@ -22,12 +22,17 @@ package org.smartfrog.services.anubis.partition.protocols.partitionmanager;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.PostConstruct;
@@ -89,17 +94,17 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
     private volatile long                   heartbeatInterval   = 0;
     private final HeartbeatProtocolFactory  heartbeatProtocolFactory;
     private final Identity                  identity;
+    private final Set<Identity>             inconsistentViews   = new HashSet<Identity>();
     private volatile View                   ignoring            = new BitView();
     private final IntervalExec              intervalExec;
     private final LeaderMgr                 leaderMgr;
     private final LeaderProtocolFactory     leaderProtocolFactory;
-    private final Set<Connection>           msgConDelayedDelete = new HashSet<Connection>();
+    private volatile NodeIdSet              members             = new NodeIdSet();
     private final Set<MessageConnection>    msgConnections      = new HashSet<MessageConnection>();
     private final NodeIdSet                 msgLinks            = new NodeIdSet();
     private final PartitionProtocol         partitionProtocol;
     private volatile long                   quiesce             = 0;
-    private final AtomicBoolean             sendingHeartbeats   = new AtomicBoolean(
-                                                                                    false);
+    private final ExecutorService           sender;
     private volatile long                   stability           = 0;
     private final AtomicBoolean             stablizing          = new AtomicBoolean(
                                                                                     false);
@@ -135,9 +140,12 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
         stability = heartbeatInterval + timeout;
         quiesce = heartbeatInterval + stability;
 
-        // Protocol timing driver thread 
+        // Protocol timing driver thread and event loop
         intervalExec = new IntervalExec(identity, this, heartbeatInterval);
 
+        // Heartbeats are sent outside of the event loop
+        sender = newSender(identity);
+
         // Heartbeat message initialisation 
         heartbeat = heartbeatProtocolFactory.createMsg(identity,
                                                        connectionServer.getAddress());
@@ -152,6 +160,7 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
          */
         connections.put(identity, self);
         connectionView.add(identity);
+        members = connectionView.toBitSet().clone();
 
         log.info(String.format("Connection set: %s started on: %s", identity,
                                connectionServer.getAddress()));
@@ -306,6 +315,49 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
         connect(peer.id);
     }
 
+    /**
+     * The peer has announced that it is leaving. The connection is terminated
+     * and removed immediately: there is no need to wait for the connection to
+     * time out, nor for it to quiesce, as the peer will not be heard from
+     * again. Departures announced on other threads are posted to the interval
+     * executive.
+     * 
+     * @param peer
+     *            - the departing peer
+     */
+    @Override
+    public void leave(final Identity peer) {
+        if (terminated) {
+            return;
+        }
+        if (Thread.holdsLock(this)) {
+            processLeave(peer);
+            return;
+        }
+        intervalExec.post(new Runnable() {
+            @Override
+            public void run() {
+                processLeave(peer);
+            }
+        });
+    }
+
+    private void processLeave(Identity peer) {
+        Connection con = connections.get(peer);
+        if (con == null) {
+            return;
+        }
+        if (log.isTraceEnabled()) {
+            log.trace(String.format("Removing departing connection: %s", con));
+        }
+        if (connectionView.contains(peer)) {
+            con.terminate();
+            removeConnection(con);
+        }
+        connections.remove(peer);
+        inconsistentViews.remove(peer);
+    }
+
     public synchronized boolean contains(Identity sender) {
         return getView().contains(sender);
     }
@@ -377,6 +429,7 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
     public synchronized void disconnect(Identity id) {
         msgLinks.remove(id.id);
         Connection connection = connections.remove(id);
+        inconsistentViews.remove(id);
         if (connection != null) {
             msgConnections.remove(connection);
             connection.terminate();
@@ -514,6 +567,11 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
             partitionProtocol.remove(id);
         }
 
+        Connection con = connections.get(id);
+        if (con != null) {
+            updateConsistency(con);
+        }
+
     }
 
     /**
@@ -551,13 +609,56 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
     }
 
     /**
+     * Heartbeats received on other threads are posted to the interval
+     * executive, which processes them in order holding the monitor. The
+     * result of processing a posted heartbeat is not known to the caller, so
+     * it is accepted.
      * 
      * @param hb
      *            Heartbeat
      * @return boolean
      */
     @Override
-    public synchronized boolean receiveHeartbeat(Heartbeat hb) {
+    public boolean receiveHeartbeat(final Heartbeat hb) {
+        if (terminated) {
+            return false;
+        }
+        if (Thread.holdsLock(this)) {
+            return processHeartbeat(hb);
+        }
+        intervalExec.post(new Runnable() {
+            @Override
+            public void run() {
+                processHeartbeat(hb);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Application objects are not posted to the interval executive, so they
+     * are not held up behind the heartbeats. The object is accepted if the
+     * sender is in the most recently published view.
+     * 
+     * @param obj
+     * @param id
+     * @param time
+     */
+    public void receiveObject(Object obj, Identity id, long time) {
+        if (terminated) {
+            return;
+        }
+        if (members.contains(id.id)) {
+            partitionProtocol.receiveObject(obj, id, time);
+        } else {
+            if (log.isTraceEnabled()) {
+                log.trace(String.format("Ignoring received object: %s from: %s on: %s as it is not in our view",
+                                        obj, id, identity));
+            }
+        }
+    }
+
+    private boolean processHeartbeat(Heartbeat hb) {
         Connection con = getConnection(hb.getSender());
         if (con == null) {
             Candidate can = leaderProtocolFactory.createCandidate(hb);
@@ -588,20 +689,6 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
         return con.receiveHeartbeat(hb);
     }
 
-    public synchronized void receiveObject(Object obj, Identity id, long time) {
-        if (terminated) {
-            return;
-        }
-        if (connectionView.contains(id)) {
-            partitionProtocol.receiveObject(obj, id, time);
-        } else {
-            if (log.isTraceEnabled()) {
-                log.trace(String.format("Ignoring received object: %s from: %s on: %s as it is not in our view",
-                                        obj, id, identity));
-            }
-        }
-    }
-
     public void registerController(ControllerAgent controller) {
         heartbeat.setController(controller.getAddress());
         intervalExec.registerController(controller);
@@ -610,24 +697,26 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
 
     /**
      * Used to indicate that a connection has terminated. This results in the
-     * connection being removed from the local connection set.
+     * connection being removed from the local connection set. Connections
+     * closed by the transport are posted to the interval executive.
      * 
      * @param con
      *            - the terminated connection
      */
-    public synchronized void removeConnection(Connection con) {
-
-        /**
-         * In the special case where this call is nested inside a call to
-         * sendHeartbeats() we delay removing the connection to avoid a
-         * ConcurrentModificationException in sendHeartbeats(). This alternative
-         * has a lower overhead than cloning msgConnections every time.
-         */
-        if (sendingHeartbeats.get()) {
-            msgConDelayedDelete.add(con);
+    public void removeConnection(final Connection con) {
+        if (Thread.holdsLock(this)) {
+            processRemoval(con);
             return;
         }
+        intervalExec.post(new Runnable() {
+            @Override
+            public void run() {
+                processRemoval(con);
+            }
+        });
+    }
 
+    private void processRemoval(Connection con) {
         if (log.isTraceEnabled()) {
             log.trace(String.format("Removing connection: %s from: %s",
                                     con.getSender(), identity));
@@ -640,6 +729,8 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
          * manager immediately.
          */
         connectionView.remove(con.getSender());
+        members = connectionView.toBitSet().clone();
+        recheckConsistency();
         if (con instanceof MessageConnection) {
             msgConnections.remove(con);
         }
@@ -651,40 +742,46 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
 
     /**
      * Send a heartbeat: heartbeats are sent on the multicast comms and each
-     * messaging connection.
+     * messaging connection. The heartbeat is prepared holding the monitor, and
+     * a snapshot of it is sent by the sender thread, so the interval executive
+     * does not wait on the sends.
      * 
      * @param timenow
      */
     public synchronized void sendHeartbeat(long timenow) {
-
-        /**
-         * This flag is used to delay connection removal in removeConnection().
-         */
-        sendingHeartbeats.set(true);
-
-        /**
-         * send the heartbeat using multicast for heartbeat connections
-         */
-        heartbeatComms.sendHeartbeat(prepareHeartbeat(timenow));
-
-        /**
-         * send the heartbeat on message connections.
-         */
-        for (MessageConnection mcon : msgConnections) {
-            mcon.sendMsg(heartbeat);
-        }
-
-        /**
-         * Do delayed removeConnection() calls
-         */
-        sendingHeartbeats.set(false);
-        for (Connection con : msgConDelayedDelete) {
-            removeConnection(con);
+        if (terminated) {
+            return;
         }
-        msgConDelayedDelete.clear();
+        final Heartbeat snapshot = prepareHeartbeat(timenow).toSnapshot();
+        final MessageConnection[] targets = msgConnections.toArray(new MessageConnection[msgConnections.size()]);
+        try {
+            sender.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    /**
+                     * send the heartbeat using multicast for heartbeat
+                     * connections
+                     */
+                    heartbeatComms.sendHeartbeat(snapshot);
+
+                    /**
+                     * send the heartbeat on message connections.
+                     */
+                    for (MessageConnection mcon : targets) {
+                        mcon.sendMsg(snapshot);
+                    }
 
-        if (agent != null) {
-            agent.updateHeartbeat(heartbeat);
+                    if (agent != null) {
+                        agent.updateHeartbeat(snapshot);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (log.isTraceEnabled()) {
+                log.trace(String.format("Heartbeat not sent as: %s is terminated",
+                                        identity));
+            }
         }
     }
 
@@ -736,6 +833,7 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
     public void terminate() {
         terminated = true;
         intervalExec.terminate();
+        sender.shutdown();
         connectionServer.terminate();
         for (Connection con : connections.values()) {
             con.terminate();
@@ -780,6 +878,7 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
         }
         connections.put(mcon.getSender(), mcon);
         msgConnections.add(mcon);
+        updateConsistency(mcon);
         return true;
     }
 
@@ -844,6 +943,8 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
     private void addConnection(Connection con) {
         connections.put(con.getSender(), con);
         connectionView.add(con.getSender());
+        members = connectionView.toBitSet().clone();
+        recheckConsistency();
         changeInViews.set(true);
         intervalExec.clearStability();
         viewNumber++;
@@ -851,36 +952,29 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
 
     /**
      * The set of views is consistent if all views agree with the local view
-     * (which is the connection set). This method sets the local view timestamp
-     * as a side-effect
+     * (which is the connection set). The connections whose views disagree are
+     * tracked as their views and the local view change, so the decision does
+     * not compare the views. This method sets the local view timestamp as a
+     * side-effect
      * 
      * @return
      */
     private boolean consistent(long timenow) {
+        if (!inconsistentViews.isEmpty()) {
+            connectionView.setTimeStamp(View.undefinedTimeStamp);
+            return false;
+        }
         connectionView.setTimeStamp(timenow + stability);
         for (Connection con : connections.values()) {
             /**
-             * if an active connection and it is not self then check it is
-             * consistent with self and check its stability time
+             * The following is an optimisation that can only be applied if the
+             * heartbeat protocol checks for synchronised clocks.
              */
-            if (connectionView.contains(con.getSender())
-                && !con.getSender().equalId(identity)) {
-                /**
-                 * if not equal the not consistent - set the time to undefined
-                 * and return false
-                 */
-                if (!con.equalsView(connectionView)) {
-                    connectionView.setTimeStamp(View.undefinedTimeStamp);
-                    return false;
-                }
-                /**
-                 * The following is an optimisation that can only be applied if
-                 * the heartbeat protocol checks for synchronised clocks.
-                 */
-                if (con.measuresClockSkew()
-                    && isBetterTimeStamp(con.getTimeStamp())) {
-                    connectionView.setTimeStamp(con.getTimeStamp());
-                }
+            if (con.measuresClockSkew()
+                && connectionView.contains(con.getSender())
+                && !con.getSender().equalId(identity)
+                && isBetterTimeStamp(con.getTimeStamp())) {
+                connectionView.setTimeStamp(con.getTimeStamp());
             }
         }
         return true;
@@ -915,6 +1009,53 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
                && (connectionView.getTimeStamp() == View.undefinedTimeStamp || timeStamp < connectionView.getTimeStamp());
     }
 
+    /**
+     * Track whether the view of every connection agrees with the local view,
+     * after the local view has changed
+     */
+    private void recheckConsistency() {
+        inconsistentViews.clear();
+        for (Connection con : connections.values()) {
+            updateConsistency(con);
+        }
+    }
+
+    /**
+     * Track whether the view of the connection agrees with the local view.
+     * Only connections in the local view, other than self, can make the set
+     * of views inconsistent. The views are compared by their fingerprints
+     * first.
+     * 
+     * @param con
+     */
+    private void updateConsistency(Connection con) {
+        Identity id = con.getSender();
+        if (connectionView.contains(id) && !id.equalId(identity)
+            && !connectionView.equalsView(con)) {
+            inconsistentViews.add(id);
+        } else {
+            inconsistentViews.remove(id);
+        }
+    }
+
+    private static ExecutorService newSender(Identity identity) {
+        final String name = "Heartbeat sender (node " + identity.id + ")";
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread daemon = new Thread(r, name);
+                daemon.setDaemon(true);
+                daemon.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
+                    @Override
+                    public void uncaughtException(Thread t, Throwable e) {
+                        log.warn("Uncaught exception", e);
+                    }
+                });
+                return daemon;
+            }
+        });
+    }
+
     private Heartbeat prepareHeartbeat(long timenow) {
         /**
          * prepare the heartbeat with the latest information
@@ -985,6 +1126,7 @@ public class ConnectionSet implements ViewListener, ConnectionManager {
                  */
                 if (con.isQuiesced(timenow, quiesce)) {
                     iter.remove();
+                    inconsistentViews.remove(con.getSender());
                     if (log.isTraceEnabled()) {
                         log.trace(String.format("Removed connection %s", con));
                     }
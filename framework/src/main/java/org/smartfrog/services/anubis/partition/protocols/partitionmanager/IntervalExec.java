@@ -19,7 +19,11 @@ For more information: www.smartfrog.org
  */
 package org.smartfrog.services.anubis.partition.protocols.partitionmanager;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,18 +31,32 @@ import org.smartfrog.services.anubis.partition.util.Identity;
 
 import com.hellblazer.jackal.partition.test.node.ControllerAgent;
 
+/**
+ * The interval executive is the connection set's event loop and drives its
+ * periodic checks. The checks are scheduled against deadlines on the
+ * monotonic clock, so adjustments to the system time do not move them: the
+ * heartbeat deadlines are a fixed grid of intervals, and the stability
+ * deadline is converted from the view's time stamp when it is set. The
+ * connection set itself is still given the system time, as that is the time
+ * carried on heartbeats and view time stamps.
+ */
 public class IntervalExec extends Thread {
 
-    private static final Logger      log           = LoggerFactory.getLogger(IntervalExec.class.getCanonicalName());
+    private static final Logger log                  = LoggerFactory.getLogger(IntervalExec.class.getCanonicalName());
+    static final int            MAX_BATCH            = 256;
+    private static final long   MAX_CLOCK_ADJUSTMENT = 1000;
+    private static final long   MAX_SCHEDULING_DELAY = 200;
 
     private final ConnectionSet      connectionSet;
-    private long                     heartbeatTime = 0;
-    private volatile long            interval      = 0;
-    private long                     lastCheckTime = 0;
-    private volatile boolean         running       = false;
-    private volatile long            stabilityTime = 0;
-    private final AtomicBoolean      stabilizing   = new AtomicBoolean(false);
-    private volatile ControllerAgent controller    = null;
+    private final Queue<Runnable>    events            = new ConcurrentLinkedQueue<Runnable>();
+    private volatile long            heartbeatDeadline = 0;
+    private volatile long            interval          = 0;
+    private long                     lastCheckNanos    = 0;
+    private long                     lastCheckTime     = 0;
+    private volatile boolean         running           = false;
+    private volatile long            stabilityDeadline = 0;
+    private final AtomicBoolean      stabilizing       = new AtomicBoolean(false);
+    private volatile ControllerAgent controller        = null;
 
     public IntervalExec(Identity id, ConnectionSet cs, long i) {
         super("Interval Executive (node " + id.id + ")");
@@ -58,7 +76,7 @@ public class IntervalExec extends Thread {
      */
     public void clearStability() {
         stabilizing.set(false);
-        stabilityTime = 0;
+        stabilityDeadline = 0;
     }
 
     /**
@@ -72,104 +90,65 @@ public class IntervalExec extends Thread {
         return buffer.toString();
     }
 
+    /**
+     * Queue an event for the loop. The event is run by the interval executive
+     * holding the connection set's monitor, in the order in which events are
+     * posted.
+     * 
+     * @param event
+     */
+    public void post(Runnable event) {
+        events.offer(event);
+        LockSupport.unpark(this);
+    }
+
     public void registerController(ControllerAgent controller) {
         this.controller = controller;
     }
 
     /**
-     * Connection set periodically sends heartbeat messages.
+     * The interval executive is the connection set's event loop: it runs the
+     * posted events in bounded batches and periodically sends heartbeat
+     * messages. The connection set's monitor is only held while events are
+     * run or the periodic checks are made, never while waiting.
      */
     @Override
     public void run() {
-        running = true;
-
-        long timenow = System.currentTimeMillis();
-        heartbeatTime = timenow + interval; // random.nextInt((int) interval);
-        lastCheckTime = timenow;
-        synchronized (connectionSet) {
-            while (running) {
-                try {
-                    /**
-                     * enter a sleep interval. Normally this is the regular
-                     * heartbeat interval as defined by wakeup. If we are
-                     * stablizing and the stability period ends before the next
-                     * heartbeat interval then wake up at the stability interval
-                     * end as defined by stabilityTime.
-                     */
-                    timenow = stabilizing.get()
-                              && heartbeatTime > stabilityTime ? sleepInterval(timenow,
-                                                                               stabilityTime)
-                                                              : sleepInterval(timenow,
-                                                                              heartbeatTime);
-
-                    checkSleepDelays(timenow, stabilityTime, heartbeatTime);
-
-                    /**
-                     * Operations performed once per heartbeat period only
-                     */
-                    if (timenow >= heartbeatTime) {
-
-                        /**
-                         * If controlled then produce delay info
-                         */
-                        if (controller != null) {
-                            controller.schedulingInfo(timenow, timenow
-                                                               - heartbeatTime);
-                        }
-
-                        /**
-                         * check the timeouts and cleanup
-                         */
-                        connectionSet.checkTimeouts(timenow);
-
-                        /**
-                         * viewChangeCheck - this is done before sending the
-                         * heartbeat so that any information determined in the
-                         * report check (i.e. convergence time for the
-                         * partition) can be sent out on the heartbeat
-                         */
-                        connectionSet.viewChangeCheck(timenow);
-
-                        /**
-                         * send a new heartbeat from this node - note comments
-                         * about doing the viewChangeCheck first (above).
-                         */
-                        connectionSet.sendHeartbeat(timenow);
-
-                        /**
-                         * set next heartbeatTime time
-                         */
-                        heartbeatTime = nextHeartbeatTime(timenow,
-                                                          heartbeatTime);
-
-                    }
-
-                    /**
-                     * check for stability - only done on a stability boundary
-                     */
-                    if (stabilizing.get() && timenow >= stabilityTime) {
-
-                        /**
-                         * If controlled then produce delay info
-                         */
-                        if (controller != null) {
-                            controller.schedulingInfo(timenow, timenow
-                                                               - stabilityTime);
-                        }
-
-                        connectionSet.checkStability(timenow);
+        long now = System.nanoTime();
+        heartbeatDeadline = now + TimeUnit.MILLISECONDS.toNanos(interval); // random.nextInt((int) interval);
+        lastCheckNanos = now;
+        lastCheckTime = System.currentTimeMillis();
+        while (running) {
+            try {
+                /**
+                 * wait for events until the next deadline. Normally this is
+                 * the regular heartbeat deadline. If we are stablizing and
+                 * the stability period ends before the next heartbeat then
+                 * the deadline is the end of the stability period.
+                 */
+                long deadline = nextDeadline();
+                now = awaitEvents(now, deadline);
+
+                processEvents();
+
+                if (now - deadline >= 0) {
+                    long timenow = System.currentTimeMillis();
+                    checkSleepDelays(timenow, now, deadline);
+                    synchronized (connectionSet) {
+                        tick(timenow, now);
                     }
-                } catch (Throwable e) {
-                    log.warn("Error during interval maintenance", e);
                 }
+            } catch (Throwable e) {
+                log.warn("Error during interval maintenance", e);
             }
         }
     }
 
     public void setInterval(long interval) {
         this.interval = interval;
-        heartbeatTime = System.currentTimeMillis() + interval; // random.nextInt((int) interval);
-        interrupt();
+        heartbeatDeadline = System.nanoTime()
+                            + TimeUnit.MILLISECONDS.toNanos(interval); // random.nextInt((int) interval);
+        LockSupport.unpark(this);
     }
 
     /**
@@ -180,8 +159,20 @@ public class IntervalExec extends Thread {
      *            - the time that stability is expected.
      */
     public void setStability(long s) {
+        stabilityDeadline = System.nanoTime()
+                            + TimeUnit.MILLISECONDS.toNanos(s
+                                                            - System.currentTimeMillis());
         stabilizing.set(true);
-        stabilityTime = s;
+    }
+
+    /**
+     * The loop is marked as running before the thread starts, so that a
+     * terminate which races with the start of the thread is not lost
+     */
+    @Override
+    public synchronized void start() {
+        running = true;
+        super.start();
     }
 
     /**
@@ -190,86 +181,183 @@ public class IntervalExec extends Thread {
      */
     public void terminate() {
         running = false;
+        LockSupport.unpark(this);
     }
 
-    private void checkSleepDelays(long timenow, long stabilityTime,
-                                  long heartbeatTime) {
-        long earliest;
-        long delay;
-
-        if (timenow < lastCheckTime) {
-            log.error("IntervalExec observed a system time adjustment - time has gone backwards during the sleep interval");
-
+    /**
+     * waits for events until the deadline. returns the monotonic time that the
+     * wait returns (due to an event being posted, the deadline passing,
+     * terminate, or a change in the interval).
+     * 
+     * @param now
+     * @param deadline
+     * @return
+     */
+    private long awaitEvents(long now, long deadline) {
+        long delay = deadline - now;
+        if (delay > 0 && events.isEmpty()) {
+            LockSupport.parkNanos(this, delay);
         }
+        return System.nanoTime();
+    }
 
+    /**
+     * Report adjustments of the system time, which are the difference between
+     * the time elapsed on the system and monotonic clocks, and excessive
+     * delays in waking up for a deadline. Neither moves the deadlines.
+     * 
+     * @param timenow
+     * @param now
+     * @param deadline
+     */
+    private void checkSleepDelays(long timenow, long now, long deadline) {
+        long adjustment = timenow - lastCheckTime
+                          - TimeUnit.NANOSECONDS.toMillis(now - lastCheckNanos);
         lastCheckTime = timenow;
+        lastCheckNanos = now;
 
-        if (!stabilizing.get() || stabilityTime > heartbeatTime) {
-            earliest = heartbeatTime;
-        } else {
-            earliest = stabilityTime;
+        if (Math.abs(adjustment) > MAX_CLOCK_ADJUSTMENT) {
+            log.error("IntervalExec observed a system time adjustment of "
+                      + adjustment
+                      + "ms - the interval executive's schedule is not affected");
         }
 
-        delay = timenow - earliest;
-
-        if (delay > 15000) {
-            log.error("IntervalExec may have observed a system time adjustment - overslept by "
-                      + delay
-                      + "ms - this is excessive for a scheduling delay and is most likely to be a system time adjustment");
-            if (log.isTraceEnabled()) {
-                log.trace(String.format("timenow: %s, delay:%s, stabilityTime: %s, heartbeatTime: %s",
-                                        timenow, delay, stabilityTime,
-                                        heartbeatTime));
-            }
-        } else if (delay > 200) {
+        long delay = TimeUnit.NANOSECONDS.toMillis(now - deadline);
+        if (delay > MAX_SCHEDULING_DELAY) {
             if (log.isInfoEnabled()) {
                 log.info("IntervalExec overslept by " + delay
-                         + "ms - this is a scheduling delay or time adjustment");
-            }
-            if (log.isTraceEnabled()) {
-                log.trace(String.format("timenow: %s, delay:%s, stabilityTime: %s, heartbeatTime: %s",
-                                        timenow, delay, stabilityTime,
-                                        heartbeatTime));
+                         + "ms - this is a scheduling delay");
             }
         }
     }
 
     /**
-     * calculates next heartbeatTime. It is likely that the sleep will actually
-     * wake up just after it is supposed to due to scheduling delays. If the
-     * delay is particularly long the node may start to miss the heartbeat
-     * interval all together. Make sure we go to the next appropriate regular
-     * interval boundary, no matter what the delay.
+     * calculates the next heartbeat deadline. It is likely that the wait will
+     * actually return just after the deadline due to scheduling delays. If
+     * the delay is particularly long the node may miss whole intervals. The
+     * missed intervals are skipped rather than caught up in a burst, and the
+     * next deadline stays on the grid of regular intervals, so the delays do
+     * not accumulate as drift.
      * 
-     * @param timenow
-     * @param wakeup
+     * @param now
+     * @param deadline
      * @return
      */
-    private long nextHeartbeatTime(long timenow, long wakeup) {
-        while (wakeup <= timenow) {
-            wakeup += interval;
+    long nextHeartbeatDeadline(long now, long deadline) {
+        long period = Math.max(1, TimeUnit.MILLISECONDS.toNanos(interval));
+        return deadline + ((now - deadline) / period + 1) * period;
+    }
+
+    /**
+     * The earliest of the heartbeat and stability deadlines
+     */
+    private long nextDeadline() {
+        long deadline = heartbeatDeadline;
+        if (stabilizing.get() && stabilityDeadline - deadline < 0) {
+            return stabilityDeadline;
+        }
+        return deadline;
+    }
+
+    /**
+     * runs the posted events, at most MAX_BATCH of them, so that a flood of
+     * events cannot hold off the periodic checks
+     */
+    void processEvents() {
+        if (events.isEmpty()) {
+            return;
+        }
+        synchronized (connectionSet) {
+            for (int i = 0; i < MAX_BATCH; i++) {
+                Runnable event = events.poll();
+                if (event == null) {
+                    return;
+                }
+                try {
+                    event.run();
+                } catch (Throwable e) {
+                    log.warn("Error processing event", e);
+                }
+            }
         }
-        return wakeup;
     }
 
     /**
-     * goes to sleep for a period of time determined by the difference between
-     * the timenow and the wakeup time. returns the time that wait returns (due
-     * to completing wait timeout, notify on terminate, or interrupt).
+     * The periodic checks, made holding the connection set's monitor
      * 
      * @param timenow
-     * @param wakeup
-     * @return
+     *            - the system time
+     * @param now
+     *            - the monotonic time
      */
-    private long sleepInterval(long timenow, long wakeup) {
-        try {
-            long delay = wakeup - timenow;
-            if (delay > 0) {
-                connectionSet.wait(delay);
+    void tick(long timenow, long now) {
+
+        /**
+         * Operations performed once per heartbeat period only
+         */
+        long deadline = heartbeatDeadline;
+        if (now - deadline >= 0) {
+
+            /**
+             * If controlled then produce delay info
+             */
+            if (controller != null) {
+                controller.schedulingInfo(timenow,
+                                          TimeUnit.NANOSECONDS.toMillis(now
+                                                                        - deadline));
+            }
+
+            /**
+             * check the timeouts and cleanup
+             */
+            connectionSet.checkTimeouts(timenow);
+
+            /**
+             * viewChangeCheck - this is done before sending the heartbeat so
+             * that any information determined in the report check (i.e.
+             * convergence time for the partition) can be sent out on the
+             * heartbeat
+             */
+            connectionSet.viewChangeCheck(timenow);
+
+            /**
+             * send a new heartbeat from this node - note comments about doing
+             * the viewChangeCheck first (above).
+             */
+            connectionSet.sendHeartbeat(timenow);
+
+            /**
+             * set the next heartbeat deadline
+             */
+            heartbeatDeadline = nextHeartbeatDeadline(now, deadline);
+
+        }
+
+        /**
+         * check for stability - only done on a stability boundary
+         */
+        deadline = stabilityDeadline;
+        if (stabilizing.get() && now - deadline >= 0) {
+
+            /**
+             * If controlled then produce delay info
+             */
+            if (controller != null) {
+                controller.schedulingInfo(timenow,
+                                          TimeUnit.NANOSECONDS.toMillis(now
+                                                                        - deadline));
+            }
+
+            connectionSet.checkStability(timenow);
+
+            /**
+             * The view's time stamp is a system time. If the system time has
+             * been set back the view is not yet stable by its time stamp, so
+             * check again at the next heartbeat rather than immediately.
+             */
+            if (stabilizing.get() && stabilityDeadline == deadline) {
+                stabilityDeadline = heartbeatDeadline;
             }
-        } catch (InterruptedException ex) {
         }
-        return System.currentTimeMillis();
     }
-
 }
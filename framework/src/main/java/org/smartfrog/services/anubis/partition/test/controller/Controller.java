@@ -116,6 +116,10 @@ public class Controller implements ConnectionManager {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public void leave(Identity peer) {
+    }
+
     public synchronized void deliverObject(Object obj, NodeData node) {
         node.deliverObject(obj);
     }
@@ -26,15 +26,18 @@ public class StatsMsg implements Serializable {
      * 
      */
     private static final long serialVersionUID = 1L;
+    public long[]             schedulingHistogram;
     public long               schedulingLongest;
     public long               schedulingOneHour;
     public long               schedulingOneMinute;
     public long               schedulingTenMinute;
 
-    public StatsMsg(long sOneM, long sTenM, long sOneH, long longest) {
+    public StatsMsg(long sOneM, long sTenM, long sOneH, long longest,
+                    long[] histogram) {
         schedulingOneMinute = sOneM;
         schedulingTenMinute = sTenM;
         schedulingOneHour = sOneH;
         schedulingLongest = longest;
+        schedulingHistogram = histogram;
     }
 }
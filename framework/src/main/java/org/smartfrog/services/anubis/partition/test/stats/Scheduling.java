@@ -21,7 +21,29 @@ package org.smartfrog.services.anubis.partition.test.stats;
 
 public class Scheduling {
 
+    /**
+     * The number of buckets in the histogram of scheduling delays. Bucket 0
+     * counts delays of less than 1ms, bucket i delays of at least 2^(i-1)ms
+     * and less than 2^i ms, and the last bucket all longer delays.
+     */
+    public static final int HISTOGRAM_BUCKETS = 16;
+
+    /**
+     * The histogram bucket of a delay
+     * 
+     * @param delay
+     * @return
+     */
+    public static int bucket(long delay) {
+        if (delay <= 0) {
+            return 0;
+        }
+        return Math.min(64 - Long.numberOfLeadingZeros(delay),
+                        HISTOGRAM_BUCKETS - 1);
+    }
+
     private long          big                 = 0;
+    private final long[]  histogram           = new long[HISTOGRAM_BUCKETS];
     private AveCalculator oneHourCalculator   = new TimedAveCalculator(
                                                                        60 * 60 * 1000);
     private AveCalculator oneMinuteCalculator = new TimedAveCalculator(
@@ -36,6 +58,7 @@ public class Scheduling {
         if (delay > big) {
             big = delay;
         }
+        histogram[bucket(delay)]++;
         oneMinuteCalculator.add(time, delay);
         tenMinuteCalculator.add(time, delay);
         oneHourCalculator.add(time, delay);
@@ -45,6 +68,10 @@ public class Scheduling {
         return big;
     }
 
+    public synchronized long[] histogram() {
+        return histogram.clone();
+    }
+
     public long oneHourAve() {
         return oneHourCalculator.average();
     }
@@ -50,6 +50,7 @@ public class StatsManager {
 
     public StatsMsg statsMsg() {
         return new StatsMsg(scheduling.oneMinAve(), scheduling.tenMinAve(),
-                            scheduling.oneHourAve(), scheduling.biggest());
+                            scheduling.oneHourAve(), scheduling.biggest(),
+                            scheduling.histogram());
     }
 }
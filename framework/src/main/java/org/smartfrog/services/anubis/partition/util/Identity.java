@@ -39,7 +39,7 @@ import org.smartfrog.services.anubis.partition.wire.WireSizes;
  * number to differentiate incarnations of the same manager.
  */
 public class Identity implements Serializable, Cloneable, WireSizes {
-    public static int         MAX_ID           = 2047;             // The maximum id possible
+    public static int         MAX_ID           = 0xFFFE;           // The maximum id possible, 0xFFFF is the unknown id of a digest
 
     static final private int  magicIdx         = 0;
     static final private int  idIdx            = magicIdx + intSz;
@@ -85,7 +85,7 @@ public class Identity implements Serializable, Cloneable, WireSizes {
     public static int getProcessUniqueId() throws IOException {
         int ip = getIdFromLocalIpAddress();
         int pid = getPID();
-        return (pid ^ ip) & MAX_ID;
+        return ((pid ^ ip) & Integer.MAX_VALUE) % (MAX_ID + 1);
     }
 
     public static Identity readWireForm(ByteBuffer bytes, int idx) {
@@ -19,6 +19,10 @@ For more information: www.smartfrog.org
  */
 package org.smartfrog.services.anubis.partition.util;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
@@ -28,31 +32,107 @@ import java.util.NoSuchElementException;
 import org.smartfrog.services.anubis.partition.wire.WireFormException;
 import org.smartfrog.services.anubis.partition.wire.WireSizes;
 
+import com.hellblazer.jackal.util.VarInt;
+
 /**
  * The NodeIdSet is the implementation of a set of node ids used as the basis
  * for views and other abstractions that represent node groups. Nodes are either
  * present or not present. There are some methods to manipulate or inspect
  * individual nodes and the entire set of nodes.
+ * 
+ * The ids are held 64 to a word. The cardinality and the fingerprint of the
+ * set are maintained as ids are added and removed, so neither requires a scan.
+ * The set still has a size in bytes, which is what is sent on the wire: the
+ * byte length followed by the bytes of the words in little endian order.
+ * <p>
+ * The set also has a sparse encoding, whose size follows the ids in the set
+ * rather than the highest id: the ids as runs of consecutive ids, or the bytes
+ * up to the highest id, whichever is smaller. The encodings lead with a tag
+ * byte, which is never the leading byte of the big endian length of the dense
+ * encoding, so a reader accepts either encoding.
  */
 
 public class NodeIdSet implements Serializable, Cloneable, WireSizes,
         Iterable<Integer> {
 
-    private static final int  DEFAULT_SIZE     = 33;
-    private static final long serialVersionUID = 1L;
+    /**
+     * A visitor of the ids in a set, which are presented in ascending order
+     * without boxing
+     */
+    public interface Visitor {
+        void visit(int id);
+    }
+
+    private static final byte                BITMAP_ENCODING        = (byte) 0x82;
+    private static final int                 DEFAULT_SIZE           = 33;
+    private static final long                GOLDEN_GAMMA           = 0x9e3779b97f4a7c15L;
+    private static final byte                RUN_ENCODING           = (byte) 0x81;
+    private static final long                serialVersionUID       = 1L;
+
+    /**
+     * the serialized form is the byte array of earlier versions
+     */
+    private static final ObjectStreamField[] serialPersistentFields = { new ObjectStreamField(
+                                                                                             "storage",
+                                                                                             byte[].class) };
 
     public static NodeIdSet readWireForm(ByteBuffer bytes, int idx, int len) {
         assert bytes.hasRemaining() : "Empty byte buffer";
         bytes.position(idx);
-        byte[] storage = new byte[bytes.getInt()];
-        bytes.get(storage);
-        return new NodeIdSet(storage);
+        return new NodeIdSet(bytes);
+    }
+
+    private static int bytesFor(int bits) {
+        return (bits + 7) >>> 3;
+    }
+
+    /**
+     * The contribution of the id to the fingerprint of a set
+     */
+    private static long mix(int id) {
+        long z = (id + 1) * GOLDEN_GAMMA;
+        z = (z ^ z >>> 30) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ z >>> 27) * 0x94d049bb133111ebL;
+        return z ^ z >>> 31;
+    }
+
+    /**
+     * Read a count of the sparse encoding
+     * 
+     * @throws IllegalArgumentException
+     *             if the count is not between 0 and max, inclusive
+     */
+    private static int readCount(ByteBuffer buffer, int max) {
+        long count = VarInt.readLong(buffer);
+        if (count < 0 || count > max) {
+            throw new IllegalArgumentException("Invalid node id set encoding");
+        }
+        return (int) count;
     }
 
+    private static int wordsFor(int bytes) {
+        return (bytes + 7) >>> 3;
+    }
+
+    /**
+     * the number of ids in the set
+     */
+    private transient int    cardinality;
+
+    /**
+     * the sum of the mixed ids in the set
+     */
+    private transient long   fingerprint;
+
     /**
-     * use a byte array to hold the bits for messaging efficency.
+     * the size of the set in bytes
      */
-    private byte[] storage;
+    private transient int    length;
+
+    /**
+     * the bits of the set, 64 ids to a word
+     */
+    private transient long[] words;
 
     /**
      * create a bitset with a default size
@@ -61,10 +141,32 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
         this(DEFAULT_SIZE);
     }
 
+    /**
+     * read a bitset in either the dense or the sparse encoding
+     * 
+     * @param buffer
+     */
     public NodeIdSet(ByteBuffer buffer) {
-        int size = buffer.getInt();
-        storage = new byte[size];
-        buffer.get(storage);
+        byte encoding = buffer.get(buffer.position());
+        if (encoding != RUN_ENCODING && encoding != BITMAP_ENCODING) {
+            length = buffer.getInt();
+            if (length < 0) {
+                throw new IllegalArgumentException(
+                                                   "Invalid node id set encoding");
+            }
+            words = new long[wordsFor(length)];
+            readBytes(buffer, length);
+        } else {
+            buffer.get();
+            length = readCount(buffer, Integer.MAX_VALUE >>> 3);
+            words = new long[wordsFor(length)];
+            if (encoding == RUN_ENCODING) {
+                readRuns(buffer);
+            } else {
+                readBytes(buffer, readCount(buffer, length));
+            }
+        }
+        recount();
     }
 
     /**
@@ -74,11 +176,8 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      *            int
      */
     public NodeIdSet(int i) {
-        storage = createByteArray(i, null);
-    }
-
-    private NodeIdSet(byte[] storage) {
-        this.storage = storage;
+        length = bytesFor(i);
+        words = new long[wordsFor(length)];
     }
 
     /**
@@ -89,13 +188,20 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      * @return boolean
      */
     public boolean add(int i) {
+        if (i < 0) {
+            return false;
+        }
         if (i >= size()) {
             // resize
-            storage = createByteArray(i + 1, storage);
+            grow(bytesFor(i + 1));
+        }
+        long bit = 1L << i;
+        int word = i >>> 6;
+        if ((words[word] & bit) == 0) {
+            words[word] |= bit;
+            cardinality++;
+            fingerprint += mix(i);
         }
-        int byteNbr = i / 8;
-        byte pos = (byte) (i % 8);
-        storage[byteNbr] = (byte) (storage[byteNbr] | 1 << pos);
         return true;
     }
 
@@ -105,13 +211,7 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      * @return int
      */
     public int cardinality() {
-        int bc = 0;
-        for (int i = 0; i < storage.length; ++i) {
-            for (int j = 0; j < 8; ++j) {
-                bc += storage[i] >> j & 1;
-            }
-        }
-        return bc;
+        return cardinality;
     }
 
     /**
@@ -127,12 +227,15 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
         } catch (CloneNotSupportedException e) {
             throw new IllegalStateException("Unable to clone!", e);
         }
-        cloneBS.storage = Arrays.copyOf(storage, storage.length);
+        cloneBS.words = words.clone();
         return cloneBS;
     }
-    
+
     public void copyFrom(NodeIdSet original) {
-        storage = Arrays.copyOf(original.storage, original.storage.length);
+        words = original.words.clone();
+        length = original.length;
+        cardinality = original.cardinality;
+        fingerprint = original.fingerprint;
     }
 
     /**
@@ -143,7 +246,16 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      * @return boolean
      */
     public boolean containedIn(NodeIdSet s) {
-        return compare(s.getBytes(), storage);
+        if (cardinality > s.cardinality) {
+            return false;
+        }
+        for (int i = 0; i < words.length; ++i) {
+            long test = i < s.words.length ? s.words[i] : 0L;
+            if ((words[i] & ~test) != 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -154,14 +266,7 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      * @return boolean
      */
     public boolean contains(int i) {
-        boolean containOk = false;
-        if (i < size()) {
-            int byteNbr = i / 8;
-            byte pos = (byte) (i % 8);
-            byte test = (byte) (storage[byteNbr] & 1 << pos);
-            containOk = test != 0;
-        }
-        return containOk;
+        return i >= 0 && i < size() && (words[i >>> 6] & 1L << i) != 0;
     }
 
     /**
@@ -172,7 +277,7 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      * @return boolean
      */
     public boolean contains(NodeIdSet s) {
-        return compare(storage, s.getBytes());
+        return s.containedIn(this);
     }
 
     /**
@@ -184,24 +289,44 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      */
     @Override
     public boolean equals(Object obj) {
-        boolean equalOk = false;
-        if (obj != null && obj instanceof NodeIdSet) {
-            NodeIdSet objBS = (NodeIdSet) obj;
-            equalOk = this.contains(objBS)
-                      && cardinality() == objBS.cardinality();
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof NodeIdSet)) {
+            return false;
+        }
+        NodeIdSet objBS = (NodeIdSet) obj;
+        if (cardinality != objBS.cardinality
+            || fingerprint != objBS.fingerprint) {
+            return false;
+        }
+        int max = Math.max(words.length, objBS.words.length);
+        for (int i = 0; i < max; ++i) {
+            long mine = i < words.length ? words[i] : 0L;
+            long theirs = i < objBS.words.length ? objBS.words[i] : 0L;
+            if (mine != theirs) {
+                return false;
+            }
         }
-        return equalOk;
+        return true;
     }
 
     public int first() {
-        for (int i = 0; i < storage.length; ++i) {
-            for (int j = 0; j < 8; ++j) {
-                if ((storage[i] >> j & 1) > 0) {
-                    return i * 8 + j;
-                }
-            }
-        }
-        return 0;
+        int first = nextSetBit(0);
+        return first < 0 ? 0 : first;
+    }
+
+    /**
+     * A 64 bit fingerprint of the ids in the set. Equal sets have equal
+     * fingerprints whatever their storage size, so sets with different
+     * fingerprints are known to differ without comparing their bits. The
+     * fingerprint is the sum of a mix of each id, and is maintained as ids are
+     * added and removed.
+     * 
+     * @return long
+     */
+    public long fingerprint() {
+        return fingerprint;
     }
 
     /**
@@ -212,66 +337,86 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      * @return boolean
      */
     public boolean flip(int i) {
-        boolean flipOk = false;
+        if (i < 0) {
+            return false;
+        }
         if (i >= size()) {
             // resize
-            storage = createByteArray(i + 1, storage);
+            grow(bytesFor(i + 1));
+        }
+        long bit = 1L << i;
+        int word = i >>> 6;
+        words[word] ^= bit;
+        if ((words[word] & bit) != 0) {
+            cardinality++;
+            fingerprint += mix(i);
+        } else {
+            cardinality--;
+            fingerprint -= mix(i);
+        }
+        return true;
+    }
+
+    /**
+     * Visit the ids of the set in ascending order
+     * 
+     * @param visitor
+     */
+    public void forEachId(Visitor visitor) {
+        for (int i = 0; i < words.length; ++i) {
+            long word = words[i];
+            while (word != 0) {
+                visitor.visit((i << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
         }
-        //        if (i < this.size()){
-        int byteNbr = i / 8;
-        byte pos = (byte) (i % 8);
-        storage[byteNbr] = (byte) (storage[byteNbr] ^ 1 << pos);
-        flipOk = true;
-        //        } 
-        return flipOk;
     }
 
+    /**
+     * Answer the bytes of the set, as sent on the wire
+     * 
+     * @return byte[]
+     */
     public byte[] getBytes() {
+        byte[] storage = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            storage[i] = (byte) (words[i >>> 3] >>> ((i & 7) << 3));
+        }
         return storage;
     }
 
+    /**
+     * Answer the number of bytes of the sparse encoding of the set
+     * 
+     * @return int
+     */
+    public int getSparseSize() {
+        return 1 + VarInt.sizeOf(length) + Math.min(runsSize(), bitmapSize());
+    }
+
     /**
      * gives the index of the highest set bit
      * 
      * @return int
      */
     public int getMaxBitPos() {
-        int retPos = 0;
-        one: for (int i = storage.length - 1; i >= 0; --i) {
-            if (storage[i] != 0) {
-                // found the byte where the msb is
-                for (int j = 7; j >= 0; --j) {
-                    if ((storage[i] & 1 << j) != 0) {
-                        retPos = i * 8 + j;
-                        break one;
-                    }
-                }
+        for (int i = words.length - 1; i >= 0; --i) {
+            if (words[i] != 0) {
+                return (i << 6) + 63 - Long.numberOfLeadingZeros(words[i]);
             }
         }
-        return retPos;
+        return 0;
     }
 
     /**
-     * a decent hash function
+     * The hash is folded from the fingerprint, so it does not depend on the
+     * size of the set
      * 
      * @return int
      */
     @Override
     public int hashCode() {
-        long hash = 23;
-        int ctr = 1;
-        boolean override = false;
-        for (int i = storage.length - 1; i >= 0; --i) {
-            if (storage[i] != 0 || override) {
-                ++ctr;
-                hash ^= storage[i] & 0xff;
-                hash = hash * 111 * ctr;
-                // or could use (?)
-                // hash = hash*37 + storage[i];
-                override = true;
-            }
-        }
-        return (int) hash;
+        return (int) (fingerprint ^ fingerprint >>> 32);
     }
 
     /**
@@ -280,24 +425,18 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      * @return boolean
      */
     public boolean isEmpty() {
-        return cardinality() == 0;
+        return cardinality == 0;
     }
 
     @Override
     public Iterator<Integer> iterator() {
-        int i = 0;
-        for (i = 0; i < size(); i++) {
-            if (contains(i)) {
-                break;
-            }
-        }
-        final int startPos = i;
+        final int startPos = nextSetBit(0);
         return new Iterator<Integer>() {
             int index = startPos;
 
             @Override
             public boolean hasNext() {
-                return contains(index);
+                return index >= 0 && contains(index);
             }
 
             @Override
@@ -306,13 +445,7 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
                     throw new NoSuchElementException();
                 }
                 int value = index;
-                int i = index + 1;
-                for (; i < size(); i++) {
-                    if (contains(i)) {
-                        break;
-                    }
-                }
-                index = i;
+                index = nextSetBit(index + 1);
                 return value;
             }
 
@@ -324,14 +457,7 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
     }
 
     public int last() {
-        for (int i = storage.length - 1; i >= 0; --i) {
-            for (int j = 7; j >= 0; --j) {
-                if ((storage[i] >> j & 1) > 0) {
-                    return i * 8 + j;
-                }
-            }
-        }
-        return 0;
+        return getMaxBitPos();
     }
 
     /**
@@ -343,34 +469,13 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      *         id or the id is the only member of the set
      */
     public int leftNeighborOf(int id) {
-        if (id >= size()) {
+        if (!contains(id)) {
             // not a member of the set
             return -1;
         }
-        final int byteNbr = id / 8;
-        final byte pos = (byte) (id % 8);
-        final byte homeByte = storage[byteNbr];
-        if ((byte) (homeByte & 1 << pos) == 0) {
-            // not a member of the set
-            return -1;
-        }
-
-        // See if the left neighbor is in the home byte
-        for (int i = pos - 1; i >= 0; i--) {
-            if ((homeByte & 1 << i) != 0) {
-                return byteNbr * 8 + i;
-            }
-        }
-        // scan through the previous bytes
-        for (int i = byteNbr - 1; i >= 0; i--) {
-            for (int j = 7; j >= 0; j--) {
-                if ((storage[i] >> j & 1) > 0) {
-                    return i * 8 + j;
-                }
-            }
-        }
+        int left = previousSetBit(id - 1);
         // wrap around
-        return last();
+        return left < 0 ? last() : left;
     }
 
     /**
@@ -383,19 +488,20 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      * @return BitSet
      */
     public boolean merge(NodeIdSet s) {
-        boolean mergeOk = false;
+        if (s.isEmpty()) {
+            return false;
+        }
         int msb = s.getMaxBitPos();
-        if (msb > size()) {
-            storage = createByteArray(msb, storage);
+        if (msb >= size()) {
+            grow(bytesFor(msb + 1));
         }
-        byte[] test = s.getBytes();
-        byte oldValue = 0;
-        int minLength = storage.length < test.length ? storage.length
-                                                    : test.length;
+        boolean mergeOk = false;
+        int minLength = Math.min(words.length, s.words.length);
         for (int i = 0; i < minLength; ++i) {
-            oldValue = storage[i];
-            storage[i] |= test[i];
-            if (storage[i] != oldValue) {
+            long added = s.words[i] & ~words[i];
+            if (added != 0) {
+                words[i] |= added;
+                account(i, added, true);
                 mergeOk = true;
             }
         }
@@ -411,63 +517,41 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      *         contain the id
      */
     public int[] neighborsOf(int id) {
-        if (id >= size()) {
+        if (!contains(id)) {
             // not a member of the set
             return null;
         }
-        final int byteNbr = id / 8;
-        final byte pos = (byte) (id % 8);
-        final byte homeByte = storage[byteNbr];
-        if ((byte) (homeByte & 1 << pos) == 0) {
-            // not a member of the set
-            return null;
-        }
-
-        int[] neighbors = new int[] { -1, -1 };
-
-        // See if the right neighbor is in the home byte
-        for (int i = pos + 1; i < 8; i++) {
-            if ((homeByte & 1 << i) != 0) {
-                neighbors[1] = byteNbr * 8 + i;
-                break;
-            }
-        }
+        int left = previousSetBit(id - 1);
+        int right = nextSetBit(id + 1);
+        // wrap around
+        return new int[] { left < 0 ? last() : left,
+                          right < 0 ? first() : right };
+    }
 
-        // scan through the remaining bytes
-        for (int i = byteNbr + 1; neighbors[1] == -1 && i < storage.length; i++) {
-            for (int j = 0; j < 8; j++) {
-                if ((storage[i] >> j & 1) > 0) {
-                    neighbors[1] = i * 8 + j;
-                    break;
-                }
-            }
+    /**
+     * Answer the lowest id in the set at or above from
+     * 
+     * @param from
+     * @return the id, or -1 if there is none
+     */
+    public int nextSetBit(int from) {
+        if (from < 0) {
+            from = 0;
         }
-        if (neighbors[1] == -1) {
-            // wrap around
-            neighbors[1] = first();
+        int i = from >>> 6;
+        if (i >= words.length) {
+            return -1;
         }
-
-        // See if the left neighbor is in the home byte
-        for (int i = pos - 1; i >= 0; i--) {
-            if ((homeByte & 1 << i) != 0) {
-                neighbors[0] = byteNbr * 8 + i;
-                break;
+        long word = words[i] & -1L << from;
+        while (true) {
+            if (word != 0) {
+                return (i << 6) + Long.numberOfTrailingZeros(word);
             }
-        }
-        // scan through the previous bytes
-        for (int i = byteNbr - 1; neighbors[0] == -1 && i >= 0; i--) {
-            for (int j = 7; j >= 0; j--) {
-                if ((storage[i] >> j & 1) > 0) {
-                    neighbors[0] = i * 8 + j;
-                    break;
-                }
+            if (++i == words.length) {
+                return -1;
             }
+            word = words[i];
         }
-        if (neighbors[0] == -1) {
-            // wrap around
-            neighbors[0] = last();
-        }
-        return neighbors;
     }
 
     /**
@@ -478,17 +562,13 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      * @return boolean
      */
     public boolean overlap(NodeIdSet s) {
-        boolean overlapOk = false;
-        byte[] test = s.getBytes();
-        int minLength = storage.length < test.length ? storage.length
-                                                    : test.length;
+        int minLength = Math.min(words.length, s.words.length);
         for (int i = 0; i < minLength; ++i) {
-            if ((storage[i] & test[i]) != 0) {
-                overlapOk = true;
-                break;
+            if ((words[i] & s.words[i]) != 0) {
+                return true;
             }
         }
-        return overlapOk;
+        return false;
     }
 
     /**
@@ -499,14 +579,17 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      * @return boolean
      */
     public boolean remove(int i) {
-        boolean removeOk = false;
-        if (i < size()) {
-            int byteNbr = i / 8;
-            byte pos = (byte) (i % 8);
-            storage[byteNbr] = (byte) (storage[byteNbr] & ~(1 << pos));
-            removeOk = true;
+        if (i < 0 || i >= size()) {
+            return false;
+        }
+        long bit = 1L << i;
+        int word = i >>> 6;
+        if ((words[word] & bit) != 0) {
+            words[word] &= ~bit;
+            cardinality--;
+            fingerprint -= mix(i);
         }
-        return removeOk;
+        return true;
     }
 
     /**
@@ -520,14 +603,12 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      */
     public boolean removeComplement(NodeIdSet s) {
         boolean rcOk = false;
-        byte[] test = s.getBytes();
-        int minLength = storage.length < test.length ? storage.length
-                                                    : test.length;
-        byte oldValue = 0;
-        for (int i = 0; i < minLength; ++i) {
-            oldValue = storage[i];
-            storage[i] &= test[i];
-            if (storage[i] != oldValue) {
+        for (int i = 0; i < words.length; ++i) {
+            long test = i < s.words.length ? s.words[i] : 0L;
+            long removed = words[i] & ~test;
+            if (removed != 0) {
+                words[i] &= test;
+                account(i, removed, false);
                 rcOk = true;
             }
         }
@@ -543,45 +624,23 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      *         id
      */
     public int rightNeighborOf(int id) {
-        if (id >= size()) {
-            // not a member of the set
-            return -1;
-        }
-        final int byteNbr = id / 8;
-        final byte pos = (byte) (id % 8);
-        final byte homeByte = storage[byteNbr];
-        if ((byte) (homeByte & 1 << pos) == 0) {
+        if (!contains(id)) {
             // not a member of the set
             return -1;
         }
-
-        // See if the right neighbor is in the home byte
-        for (int i = pos + 1; i < 8; i++) {
-            if ((homeByte & 1 << i) != 0) {
-                return byteNbr * 8 + i;
-            }
-        }
-
-        // scan through the remaining bytes
-        for (int i = byteNbr + 1; i < storage.length; i++) {
-            for (int j = 0; j < 8; j++) {
-                if ((storage[i] >> j & 1) > 0) {
-                    return i * 8 + j;
-                }
-            }
-        }
+        int right = nextSetBit(id + 1);
         // wrap around
-        return first();
+        return right < 0 ? first() : right;
     }
 
     /**
-     * maximum bit index in the current storage array - i.e. storage.length *
+     * maximum bit index in the current storage - i.e. the length in bytes *
      * bits_per_byte.
      * 
      * @return int
      */
     public int size() {
-        return storage.length * 8;
+        return length << 3;
     }
 
     /**
@@ -595,14 +654,12 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
      */
     public boolean subtract(NodeIdSet s) {
         boolean subOk = false;
-        byte[] test = s.getBytes();
-        int minLength = storage.length < test.length ? storage.length
-                                                    : test.length;
-        byte oldValue = 0;
+        int minLength = Math.min(words.length, s.words.length);
         for (int i = 0; i < minLength; ++i) {
-            oldValue = storage[i];
-            storage[i] &= ~test[i];
-            if (storage[i] != oldValue) {
+            long removed = words[i] & s.words[i];
+            if (removed != 0) {
+                words[i] &= ~removed;
+                account(i, removed, false);
                 subOk = true;
             }
         }
@@ -611,72 +668,257 @@ public class NodeIdSet implements Serializable, Cloneable, WireSizes,
 
     @Override
     public String toString() {
-        StringBuffer stBuf = new StringBuffer();
+        StringBuilder stBuf = new StringBuilder();
         stBuf.append("[");
-        int maxSz = getMaxBitPos();
-        for (int i = 0; i <= maxSz; ++i) {
-            if (contains(i)) {
-                stBuf.append(" " + i);
-            }
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            stBuf.append(' ').append(i);
         }
         stBuf.append(" ]");
         return stBuf.toString();
     }
 
+    /**
+     * Write the sparse encoding of the set
+     * 
+     * @param buffer
+     */
+    public void writeSparseTo(ByteBuffer buffer) {
+        int last = highestByte();
+        if (bitmapSize() < runsSize()) {
+            buffer.put(BITMAP_ENCODING);
+            VarInt.writeLong(length, buffer);
+            VarInt.writeLong(last, buffer);
+            for (int i = 0; i < last; ++i) {
+                buffer.put((byte) (words[i >>> 3] >>> ((i & 7) << 3)));
+            }
+            return;
+        }
+        buffer.put(RUN_ENCODING);
+        VarInt.writeLong(length, buffer);
+        VarInt.writeLong(runCount(), buffer);
+        int end = 0;
+        for (int start = nextSetBit(0); start >= 0; start = nextSetBit(end)) {
+            int next = nextClearBit(start);
+            VarInt.writeLong(start - end, buffer);
+            VarInt.writeLong(next - start - 1, buffer);
+            end = next;
+        }
+    }
+
     public void writeTo(ByteBuffer buffer) {
-        buffer.putInt(storage.length);
-        buffer.put(storage);
+        buffer.putInt(length);
+        for (int i = 0; i < length; ++i) {
+            buffer.put((byte) (words[i >>> 3] >>> ((i & 7) << 3)));
+        }
     }
 
+    /**
+     * Write the set in the fixed size field of a message. The set is written
+     * in the dense encoding if it fits, so that the field can be read by
+     * earlier versions, otherwise it is written in the sparse encoding.
+     * 
+     * @param bytes
+     * @param idx
+     * @param len
+     * @throws WireFormException
+     *             if neither encoding fits
+     */
     public void writeWireForm(ByteBuffer bytes, int idx, int len)
                                                                  throws WireFormException {
-
-        if (storage.length + intSz > len) {
+        if (length + intSz <= len) {
+            bytes.position(idx);
+            writeTo(bytes);
+            return;
+        }
+        if (getSparseSize() > len) {
             throw new WireFormException("BitSet to large for allowed length ("
                                         + len + ")");
         }
-
         bytes.position(idx);
-        bytes.putInt(storage.length);
-        bytes.put(storage);
+        writeSparseTo(bytes);
     }
 
-    private boolean compare(byte[] base, byte[] test) {
-        boolean compareOk = true;
-        int minLength = base.length < test.length ? base.length : test.length;
-        for (int i = 0; i < minLength; ++i) {
-            if (test[i] != (base[i] & test[i])) {
-                compareOk = false;
-                break;
+    /**
+     * Account for the ids of the changed bits of the word in the cardinality
+     * and fingerprint
+     */
+    private void account(int word, long changed, boolean added) {
+        int count = Long.bitCount(changed);
+        long sum = 0L;
+        while (changed != 0) {
+            sum += mix((word << 6) + Long.numberOfTrailingZeros(changed));
+            changed &= changed - 1;
+        }
+        if (added) {
+            cardinality += count;
+            fingerprint += sum;
+        } else {
+            cardinality -= count;
+            fingerprint -= sum;
+        }
+    }
+
+    /**
+     * The size of the bitmap of the sparse encoding, less the common header
+     */
+    private int bitmapSize() {
+        int last = highestByte();
+        return VarInt.sizeOf(last) + last;
+    }
+
+    private void grow(int bytes) {
+        length = bytes;
+        int required = wordsFor(bytes);
+        if (required > words.length) {
+            words = Arrays.copyOf(words, required);
+        }
+    }
+
+    /**
+     * Answer the number of bytes up to and including the byte of the highest
+     * id in the set
+     */
+    private int highestByte() {
+        return isEmpty() ? 0 : (getMaxBitPos() >>> 3) + 1;
+    }
+
+    /**
+     * Answer the lowest id not in the set at or above from, which may be
+     * beyond the size of the set
+     */
+    private int nextClearBit(int from) {
+        int i = from >>> 6;
+        if (i >= words.length) {
+            return from;
+        }
+        long word = ~words[i] & -1L << from;
+        while (true) {
+            if (word != 0) {
+                return (i << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++i == words.length) {
+                return i << 6;
             }
+            word = ~words[i];
         }
-        if (compareOk && base.length < test.length) {
-            int bc = 0;
-            for (int i = minLength; i < test.length; ++i) {
-                for (int j = 0; j < 8; ++j) {
-                    bc += test[i] >> j & 1;
-                }
+    }
+
+    private int previousSetBit(int from) {
+        if (from < 0 || words.length == 0) {
+            return -1;
+        }
+        int i = from >>> 6;
+        if (i >= words.length) {
+            i = words.length - 1;
+            from = -1;
+        }
+        long word = words[i] & -1L >>> 63 - (from & 63);
+        while (true) {
+            if (word != 0) {
+                return (i << 6) + 63 - Long.numberOfLeadingZeros(word);
             }
-            if (bc != 0) {
-                compareOk = false;
+            if (--i < 0) {
+                return -1;
             }
+            word = words[i];
+        }
+    }
+
+    private void readBytes(ByteBuffer buffer, int size) {
+        for (int i = 0; i < size; i++) {
+            words[i >>> 3] |= (buffer.get() & 0xffL) << ((i & 7) << 3);
         }
-        return compareOk;
     }
 
-    private byte[] createByteArray(int index, byte[] seed) {
-        byte[] retBa = null;
-        int byteNbr = index / 8;
-        if (index % 8 != 0) {
-            ++byteNbr;
+    private void readObject(ObjectInputStream in) throws IOException,
+                                                 ClassNotFoundException {
+        byte[] storage = (byte[]) in.readFields().get("storage", null);
+        if (storage == null) {
+            storage = new byte[0];
         }
-        retBa = new byte[byteNbr];
-        if (seed != null && seed.length <= retBa.length) {
-            for (int i = 0; i < seed.length; ++i) {
-                retBa[i] = seed[i];
+        length = storage.length;
+        words = new long[wordsFor(length)];
+        for (int i = 0; i < length; ++i) {
+            words[i >>> 3] |= (storage[i] & 0xffL) << ((i & 7) << 3);
+        }
+        recount();
+    }
+
+    /**
+     * Read the runs of the sparse encoding, each the gap from the end of the
+     * previous run and the length of the run less one
+     */
+    private void readRuns(ByteBuffer buffer) {
+        int runs = readCount(buffer, size());
+        int end = 0;
+        for (int run = 0; run < runs; run++) {
+            int start = end + readCount(buffer, size() - end);
+            end = start + readCount(buffer, size() - start - 1) + 1;
+            setRange(start, end);
+        }
+    }
+
+    /**
+     * Recompute the cardinality and fingerprint from the words
+     */
+    private void recount() {
+        cardinality = 0;
+        fingerprint = 0L;
+        for (int i = 0; i < words.length; ++i) {
+            if (words[i] != 0) {
+                account(i, words[i], true);
             }
         }
-        return retBa;
     }
 
+    private int runCount() {
+        int count = 0;
+        int start = nextSetBit(0);
+        while (start >= 0) {
+            start = nextSetBit(nextClearBit(start));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * The size of the runs of the sparse encoding, less the common header
+     */
+    private int runsSize() {
+        int count = 0;
+        int size = 0;
+        int end = 0;
+        for (int start = nextSetBit(0); start >= 0; start = nextSetBit(end)) {
+            int next = nextClearBit(start);
+            size += VarInt.sizeOf(start - end) + VarInt.sizeOf(next - start - 1);
+            end = next;
+            count++;
+        }
+        return VarInt.sizeOf(count) + size;
+    }
+
+    /**
+     * Add the ids from the start, inclusive, to the end, exclusive, to the
+     * words, without accounting for them
+     */
+    private void setRange(int start, int end) {
+        int first = start >>> 6;
+        int last = end - 1 >>> 6;
+        long firstMask = -1L << start;
+        long lastMask = -1L >>> -end;
+        if (first == last) {
+            words[first] |= firstMask & lastMask;
+            return;
+        }
+        words[first] |= firstMask;
+        for (int i = first + 1; i < last; i++) {
+            words[i] = -1L;
+        }
+        words[last] |= lastMask;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.putFields().put("storage", getBytes());
+        out.writeFields();
+    }
 }
@@ -21,7 +21,6 @@ package org.smartfrog.services.anubis.partition.views;
 
 import java.io.Serializable;
 import java.util.Iterator;
-import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -111,12 +110,7 @@ public class BitView implements View, Cloneable, Serializable,
         if (view.size() < v.size()) {
             return false;
         }
-        for (int i = 0; i < view.size(); i++) {
-            if (v.contains(i) && !contains(i)) {
-                return false;
-            }
-        }
-        return true;
+        return view.contains(v.toBitSet());
     }
 
     public BitView copyView(View v) {
@@ -165,42 +159,7 @@ public class BitView implements View, Cloneable, Serializable,
 
     @Override
     public Iterator<Integer> iterator() {
-        int i = 0;
-        for (i = 0; i < size(); i++) {
-            if (contains(i)) {
-                break;
-            }
-        }
-        final int startPos = i;
-        return new Iterator<Integer>() {
-            int index = startPos;
-
-            @Override
-            public boolean hasNext() {
-                return contains(index);
-            }
-
-            @Override
-            public Integer next() {
-                if (!hasNext()) {
-                    throw new NoSuchElementException();
-                }
-                int value = index;
-                int i = index + 1;
-                for (; i < size(); i++) {
-                    if (contains(i)) {
-                        break;
-                    }
-                }
-                index = i;
-                return value;
-            }
-
-            @Override
-            public void remove() {
-                throw new UnsupportedOperationException();
-            }
-        };
+        return view.iterator();
     }
 
     public BitView merge(View v) {
@@ -266,10 +225,8 @@ public class BitView implements View, Cloneable, Serializable,
         builder.append("<");
         builder.append("|");
         builder.append(isStable() ? "stable: " : "unstable: ");
-        for (int i = 0; i < size(); i++) {
-            if (contains(i)) {
-                builder.append(i).append(" ");
-            }
+        for (int i = view.nextSetBit(0); i >= 0; i = view.nextSetBit(i + 1)) {
+            builder.append(i).append(" ");
         }
         builder.append(">");
         return builder.toString();
@@ -45,4 +45,6 @@ public interface Heartbeat extends Sender, Timed, NumberedView {
     void setMsgLinks(NodeIdSet ml);
 
     Heartbeat toClose();
+
+    Heartbeat toSnapshot();
 }
@@ -33,7 +33,7 @@ import com.hellblazer.jackal.util.ByteBufferPool;
 
 public class HeartbeatMsg extends TimedMsg implements Heartbeat {
 
-    static final public int  MAX_BIT_SIZE            = 256;                                       // allows 2000 servers
+    static final public int  MAX_BIT_SIZE            = 256;                                       // allows 2048 servers, larger ids use the sparse encoding
     static final private int msgLinksSz              = MAX_BIT_SIZE + intSz;
 
     static final private int heartbeatInitialIdx     = TIMED_MSG_WIRE_SIZE;
@@ -216,6 +216,17 @@ public class HeartbeatMsg extends TimedMsg implements Heartbeat {
         return new CloseMsg(this);
     }
 
+    /**
+     * generate a copy of this heartbeat that does not share its link and view
+     * sets, so the copy can be sent while this heartbeat is updated
+     */
+    @Override
+    public HeartbeatMsg toSnapshot() {
+        HeartbeatMsg snapshot = new HeartbeatMsg(this);
+        snapshot.detach(this);
+        return snapshot;
+    }
+
     @Override
     public String toString() {
         String str = "[" + super.toString() + " | ";
@@ -230,6 +241,18 @@ public class HeartbeatMsg extends TimedMsg implements Heartbeat {
         return str;
     }
 
+    /**
+     * Replace the link and view sets shared with the heartbeat this message
+     * was copied from with copies of their own
+     * 
+     * @param original
+     */
+    protected void detach(HeartbeatMsg original) {
+        controllerInterface = original.controllerInterface;
+        msgLinks = original.msgLinks.clone();
+        view = original.view.clone();
+    }
+
     @Override
     protected int getType() {
         return HEARTBEAT_MSG_WIRE_TYPE;
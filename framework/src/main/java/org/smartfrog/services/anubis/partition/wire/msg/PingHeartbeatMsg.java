@@ -107,6 +107,14 @@ public class PingHeartbeatMsg extends HeartbeatMsg {
         return new PingCloseMsg(this);
     }
 
+    @Override
+    public synchronized PingHeartbeatMsg toSnapshot() {
+        PingHeartbeatMsg snapshot = new PingHeartbeatMsg(this);
+        snapshot.detach(this);
+        snapshot.pings = pings.clone();
+        return snapshot;
+    }
+
     @Override
     public synchronized String toString() {
         return "[" + super.toString() + ", pings=" + pings.toString() + "]";
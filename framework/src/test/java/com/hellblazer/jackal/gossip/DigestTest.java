@@ -22,6 +22,8 @@ import java.nio.ByteBuffer;
 
 import junit.framework.TestCase;
 
+import org.smartfrog.services.anubis.partition.util.Identity;
+
 import com.hellblazer.jackal.gossip.Digest.DigestComparator;
 
 /**
@@ -36,13 +38,15 @@ public class DigestTest extends TestCase {
         Digest s = new Digest(address, 667);
         assertEquals(667, s.getTime());
         assertEquals(address, s.getAddress());
+        assertEquals(-1, s.getId());
         byte[] bytes = new byte[GossipMessages.DIGEST_BYTE_SIZE];
         ByteBuffer msg = ByteBuffer.wrap(bytes);
-        s.writeTo(msg);
+        s.writeTo(msg, 600);
         msg.flip();
-        Digest d = new Digest(msg);
+        Digest d = new Digest(msg, 600);
         assertEquals(667, d.getTime());
         assertEquals(address, d.getAddress());
+        assertEquals(s, d);
         DigestComparator comparator = new DigestComparator();
         assertEquals(0, comparator.compare(s, d));
 
@@ -51,4 +55,22 @@ public class DigestTest extends TestCase {
         Digest g2 = new Digest(address, 668);
         assertEquals(1, comparator.compare(g2, d));
     }
+
+    public void testCompact() throws Exception {
+        long baseTime = 1310000000000L;
+        Digest known = new Digest(Identity.MAX_ID, null, baseTime + 1500);
+        Digest unknown = new Digest(Identity.MAX_ID, null, -1);
+        ByteBuffer msg = ByteBuffer.allocate(2 * GossipMessages.DIGEST_BYTE_SIZE);
+        known.writeTo(msg, baseTime);
+        assertEquals(4, msg.position());
+        unknown.writeTo(msg, baseTime);
+        msg.flip();
+
+        Digest d = new Digest(msg, baseTime);
+        assertEquals(known, d);
+        assertEquals(Identity.MAX_ID, d.getId());
+        assertNull(d.getAddress());
+        assertEquals(unknown, new Digest(msg, baseTime));
+        assertFalse(msg.hasRemaining());
+    }
 }
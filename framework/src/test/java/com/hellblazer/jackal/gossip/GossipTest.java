@@ -1,25 +1,41 @@
 package com.hellblazer.jackal.gossip;
 
 import static java.util.Arrays.asList;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
+import org.mockito.ArgumentCaptor;
 import org.mockito.internal.verification.Times;
 import org.smartfrog.services.anubis.partition.protocols.partitionmanager.ConnectionManager;
 import org.smartfrog.services.anubis.partition.util.Identity;
+import org.smartfrog.services.anubis.partition.util.NodeIdSet;
+import org.smartfrog.services.anubis.partition.views.BitView;
+
+import com.hellblazer.jackal.configuration.GossipHeartbeatAndDiscoveryConfig.GossipConfiguration;
+import com.hellblazer.jackal.gossip.MembershipEvent.Type;
 
 public class GossipTest extends TestCase {
 
@@ -147,16 +163,18 @@ public class GossipTest extends TestCase {
         gossip.apply(asList(state1, state2, state3, state4));
 
         verify(ep1, new Times(2)).getTime();
-        verify(ep1).record(state1);
+        verify(ep1).record(eq(state1), anyLong());
         verify(ep1).getState();
+        verify(ep1).setLegacy(false);
         verifyNoMoreInteractions(ep1);
 
         verify(ep2).getTime();
         verifyNoMoreInteractions(ep2);
 
         verify(ep3, new Times(2)).getTime();
-        verify(ep3).record(state3);
+        verify(ep3).record(eq(state3), anyLong());
         verify(ep3).getState();
+        verify(ep3).setLegacy(false);
         verifyNoMoreInteractions(ep3);
 
         verify(ep4).getTime();
@@ -169,6 +187,56 @@ public class GossipTest extends TestCase {
         verifyNoMoreInteractions(communications);
     }
 
+    public void testApplyZoneChange() throws Exception {
+        GossipCommunications communications = mock(GossipCommunications.class);
+        ConnectionManager receiver = mock(ConnectionManager.class);
+        FailureDetectorFactory fdFactory = mock(FailureDetectorFactory.class);
+        SystemView view = mock(SystemView.class);
+        Random random = mock(Random.class);
+        InetSocketAddress localAddress = new InetSocketAddress("127.0.0.1", 0);
+        when(view.getLocalAddress()).thenReturn(localAddress);
+        when(view.getLocalZone()).thenReturn("a");
+        when(communications.getLocalAddress()).thenReturn(localAddress);
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 1);
+        HeartbeatState state1 = new HeartbeatState(null,
+                                                   new Identity(666, 1, 1),
+                                                   address);
+        state1.setZone("a");
+        state1.setTime(1);
+        HeartbeatState state2 = new HeartbeatState(null,
+                                                   new Identity(666, 1, 1),
+                                                   address);
+        state2.setZone("a");
+        state2.setTime(2);
+        HeartbeatState state3 = new HeartbeatState(null,
+                                                   new Identity(666, 1, 1),
+                                                   address);
+        state3.setZone("b");
+        state3.setTime(3);
+
+        Endpoint ep = mock(Endpoint.class);
+        when(ep.getTime()).thenReturn(1L, 1L, 2L, 2L);
+        when(ep.getState()).thenReturn(state1, state2);
+
+        Gossip gossip = new Gossip(view, random, communications, 4,
+                                   TimeUnit.DAYS, fdFactory, new Identity(0, 0,
+                                                                          0));
+        gossip.create(receiver);
+
+        Field field = Gossip.class.getDeclaredField("endpoints");
+        field.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        ConcurrentMap<InetSocketAddress, Endpoint> endpoints = (ConcurrentMap<InetSocketAddress, Endpoint>) field.get(gossip);
+        endpoints.put(address, ep);
+
+        gossip.apply(asList(state2));
+        verify(view, never()).markAlive(eq(address), anyString());
+
+        gossip.apply(asList(state3));
+        verify(view).markAlive(address, "b");
+    }
+
     public void testExamineAllNew() throws Exception {
         GossipCommunications communications = mock(GossipCommunications.class);
         GossipMessages gossipHandler = mock(GossipMessages.class);
@@ -265,4 +333,520 @@ public class GossipTest extends TestCase {
                                     asList(state2, state4));
         verifyNoMoreInteractions(gossipHandler);
     }
+
+    public void testFanout() throws Exception {
+        GossipCommunications communications = mock(GossipCommunications.class);
+        FailureDetectorFactory fdFactory = mock(FailureDetectorFactory.class);
+        SystemView view = mock(SystemView.class);
+        Random random = mock(Random.class);
+        @SuppressWarnings("unchecked")
+        Collection<InetSocketAddress> live = mock(Collection.class);
+        when(view.getLiveMembers()).thenReturn(live);
+
+        Gossip gossip = new Gossip(view, random, communications, fdFactory,
+                                   new Identity(0, 0, 0),
+                                   configuration(3, 0, 0, 0, false, 4, 4));
+        assertEquals(3, gossip.getFanout());
+
+        gossip = new Gossip(view, random, communications, fdFactory,
+                            new Identity(0, 0, 0),
+                            configuration(Gossip.AUTOMATIC_FANOUT, 0, 0, 0,
+                                          false, 4, 4));
+        when(live.size()).thenReturn(0, 2, 3, 1000, 1024, 1025);
+        assertEquals(1, gossip.getFanout());
+        assertEquals(1, gossip.getFanout());
+        assertEquals(2, gossip.getFanout());
+        assertEquals(10, gossip.getFanout());
+        assertEquals(10, gossip.getFanout());
+        assertEquals(11, gossip.getFanout());
+    }
+
+    public void testIgnoringAddress() throws Exception {
+        GossipCommunications communications = mock(GossipCommunications.class);
+        FailureDetectorFactory fdFactory = mock(FailureDetectorFactory.class);
+        SystemView view = mock(SystemView.class);
+        Random random = mock(Random.class);
+        InetSocketAddress member = new InetSocketAddress("127.0.0.1", 1);
+        InetSocketAddress seed = new InetSocketAddress("127.0.0.1", 2);
+        InetSocketAddress unknown = new InetSocketAddress("127.0.0.1", 3);
+
+        Gossip gossip = new Gossip(view, random, communications, 4,
+                                   TimeUnit.DAYS, fdFactory, new Identity(0, 0,
+                                                                          0));
+        Field ep = Gossip.class.getDeclaredField("endpoints");
+        ep.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        ConcurrentMap<InetSocketAddress, Endpoint> endpoints = (ConcurrentMap<InetSocketAddress, Endpoint>) ep.get(gossip);
+        endpoints.put(member,
+                      new Endpoint(new HeartbeatState(null,
+                                                      new Identity(666, 5, 5),
+                                                      member), null));
+        endpoints.put(seed, new Endpoint(new HeartbeatState(seed), null));
+        assertFalse(gossip.isIgnoring(member));
+
+        NodeIdSet shunned = new NodeIdSet();
+        shunned.add(5);
+        gossip.setIgnoring(new BitView(true, shunned, 0L));
+        assertTrue(gossip.isIgnoring(member));
+        assertFalse(gossip.isIgnoring(seed));
+        assertFalse(gossip.isIgnoring(unknown));
+    }
+
+    public void testLegacyMembers() throws Exception {
+        GossipCommunications communications = mock(GossipCommunications.class);
+        FailureDetectorFactory fdFactory = mock(FailureDetectorFactory.class);
+        SystemView view = mock(SystemView.class);
+        Random random = mock(Random.class);
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 1);
+
+        HeartbeatState legacy = mock(HeartbeatState.class);
+        when(legacy.getWireVersion()).thenReturn((byte) 0);
+        when(legacy.getSender()).thenReturn(new Identity(666, 1, 1));
+        HeartbeatState current = new HeartbeatState(null,
+                                                    new Identity(666, 1, 1),
+                                                    address);
+
+        Gossip gossip = new Gossip(view, random, communications, 4,
+                                   TimeUnit.DAYS, fdFactory, new Identity(0, 0,
+                                                                          0));
+        Method readSparse = Gossip.class.getDeclaredMethod("readSparseIdSets");
+        readSparse.setAccessible(true);
+        Field ep = Gossip.class.getDeclaredField("endpoints");
+        ep.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        ConcurrentMap<InetSocketAddress, Endpoint> endpoints = (ConcurrentMap<InetSocketAddress, Endpoint>) ep.get(gossip);
+
+        Endpoint endpoint = new Endpoint(legacy, null);
+        endpoints.put(address, endpoint);
+        assertEquals(true, readSparse.invoke(gossip));
+
+        gossip.index(legacy, endpoint);
+        gossip.index(legacy, endpoint);
+        assertEquals(false, readSparse.invoke(gossip));
+
+        gossip.index(current, endpoint);
+        assertEquals(true, readSparse.invoke(gossip));
+
+        gossip.index(legacy, endpoint);
+        assertEquals(false, readSparse.invoke(gossip));
+
+        assertTrue(gossip.convict(address, endpoint, 0L));
+        assertEquals(true, readSparse.invoke(gossip));
+    }
+
+    public void testLegacyIdLimit() throws Exception {
+        GossipCommunications communications = mock(GossipCommunications.class);
+        FailureDetectorFactory fdFactory = mock(FailureDetectorFactory.class);
+        SystemView view = mock(SystemView.class);
+        Random random = mock(Random.class);
+        InetSocketAddress localAddress = new InetSocketAddress("127.0.0.1", 0);
+        when(view.getLocalAddress()).thenReturn(localAddress);
+        InetSocketAddress legacyAddress = new InetSocketAddress("127.0.0.1", 1);
+        InetSocketAddress lowAddress = new InetSocketAddress("127.0.0.1", 2);
+        InetSocketAddress highAddress = new InetSocketAddress("127.0.0.1", 3);
+
+        HeartbeatState legacy = mock(HeartbeatState.class);
+        when(legacy.getWireVersion()).thenReturn((byte) 0);
+        when(legacy.getSender()).thenReturn(new Identity(666, 1, 1));
+        when(legacy.getHeartbeatAddress()).thenReturn(legacyAddress);
+        HeartbeatState low = new HeartbeatState(
+                                                null,
+                                                new Identity(
+                                                             666,
+                                                             HeartbeatState.MAX_DENSE_ID,
+                                                             1), lowAddress);
+        HeartbeatState high = new HeartbeatState(
+                                                 null,
+                                                 new Identity(
+                                                              666,
+                                                              HeartbeatState.MAX_DENSE_ID + 1,
+                                                              1), highAddress);
+
+        Gossip gossip = new Gossip(view, random, communications, 4,
+                                   TimeUnit.DAYS, fdFactory, new Identity(0, 0,
+                                                                          0));
+        gossip.index(legacy, new Endpoint(legacy, null));
+        gossip.discover(low);
+        gossip.discover(high);
+        verify(communications).connect(eq(lowAddress), isA(Endpoint.class),
+                                       isA(Runnable.class));
+        verify(communications, never()).connect(eq(highAddress),
+                                                isA(Endpoint.class),
+                                                isA(Runnable.class));
+
+        gossip = new Gossip(view, random, communications, 4, TimeUnit.DAYS,
+                            fdFactory, new Identity(0, 0, 0));
+        gossip.index(high, new Endpoint(high, null));
+        gossip.discover(legacy);
+        verify(communications, never()).connect(eq(legacyAddress),
+                                                isA(Endpoint.class),
+                                                isA(Runnable.class));
+
+        gossip = new Gossip(view, random, communications, 4, TimeUnit.DAYS,
+                            fdFactory, new Identity(0,
+                                                    HeartbeatState.MAX_DENSE_ID + 1,
+                                                    0));
+        gossip.discover(legacy);
+        verify(communications, never()).connect(eq(legacyAddress),
+                                                isA(Endpoint.class),
+                                                isA(Runnable.class));
+
+        gossip = new Gossip(view, random, communications, 4, TimeUnit.DAYS,
+                            fdFactory, new Identity(0, 0, 0));
+        gossip.index(low, new Endpoint(low, null));
+        gossip.discover(legacy);
+        verify(communications).connect(eq(legacyAddress), isA(Endpoint.class),
+                                       isA(Runnable.class));
+    }
+
+    public void testLeave() throws Exception {
+        GossipCommunications communications = mock(GossipCommunications.class);
+        FailureDetectorFactory fdFactory = mock(FailureDetectorFactory.class);
+        FailureDetector fd = mock(FailureDetector.class);
+        ConnectionManager receiver = mock(ConnectionManager.class);
+        SystemView view = mock(SystemView.class);
+        Random random = mock(Random.class);
+        InetSocketAddress localAddress = new InetSocketAddress("127.0.0.1", 0);
+        when(view.getLocalAddress()).thenReturn(localAddress);
+
+        InetSocketAddress address1 = new InetSocketAddress("127.0.0.1", 1);
+        InetSocketAddress address2 = new InetSocketAddress("127.0.0.1", 2);
+        Identity id1 = new Identity(666, 1, 0);
+        Endpoint endpoint = new Endpoint(new HeartbeatState(null, id1,
+                                                            address1), fd);
+        when(view.getLiveMembers()).thenReturn(asList(address2));
+        when(view.getRandomLiveMembers(1)).thenReturn(asList(address2));
+
+        Gossip gossip = new Gossip(view, random, communications, 4,
+                                   TimeUnit.DAYS, fdFactory, new Identity(666,
+                                                                          0, 0));
+        gossip.create(receiver);
+
+        Field ep = Gossip.class.getDeclaredField("endpoints");
+        ep.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        ConcurrentMap<InetSocketAddress, Endpoint> endpoints = (ConcurrentMap<InetSocketAddress, Endpoint>) ep.get(gossip);
+        endpoints.put(address1, endpoint);
+        gossip.start(new HeartbeatState(null, new Identity(666, 0, 0),
+                                        localAddress));
+
+        // a departing member is removed even though suspicion is disabled
+        gossip.handle(asList(new MembershipEvent(Type.LEAVE, address1, 0)));
+        assertFalse(endpoint.isAlive());
+        assertFalse(endpoints.containsKey(address1));
+        verify(view).markDead(eq(address1), anyLong());
+        verify(receiver, timeout(1000)).leave(id1);
+        assertTrue(gossip.nextEvents().contains(new MembershipEvent(
+                                                                    Type.LEAVE,
+                                                                    address1, 0)));
+
+        gossip.terminate();
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArgumentCaptor<Collection<InetSocketAddress>> members = (ArgumentCaptor) ArgumentCaptor.forClass(Collection.class);
+        verify(communications).gossip(anyListOf(Digest.class),
+                                      members.capture());
+        assertEquals(1, members.getValue().size());
+        assertTrue(members.getValue().contains(address2));
+        assertTrue(gossip.nextEvents().contains(new MembershipEvent(
+                                                                    Type.LEAVE,
+                                                                    localAddress,
+                                                                    0)));
+    }
+
+    public void testProbe() throws Exception {
+        GossipCommunications communications = mock(GossipCommunications.class);
+        FailureDetectorFactory fdFactory = mock(FailureDetectorFactory.class);
+        FailureDetector fd = mock(FailureDetector.class);
+        SystemView view = mock(SystemView.class);
+        Random random = mock(Random.class);
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 1);
+        InetSocketAddress relay1 = new InetSocketAddress("127.0.0.1", 2);
+        InetSocketAddress relay2 = new InetSocketAddress("127.0.0.1", 3);
+        HeartbeatState state = new HeartbeatState(null,
+                                                  new Identity(666, 1, 0),
+                                                  address);
+        Endpoint endpoint = new Endpoint(state, fd);
+        when(view.getRandomLiveMembers(3)).thenReturn(new ArrayList<InetSocketAddress>(
+                                                                                      asList(relay1,
+                                                                                             address,
+                                                                                             relay2)));
+
+        Gossip gossip = new Gossip(view, random, communications, fdFactory,
+                                   new Identity(0, 0, 0),
+                                   configuration(1, 2, 100, 0, false, 4, 4));
+
+        assertFalse(gossip.probe(address, endpoint, 0));
+        int sequence = endpoint.getProbeSequence();
+        verify(communications).ping(address, sequence);
+        assertFalse(gossip.probe(address, endpoint, 50));
+
+        assertFalse(gossip.probe(address, endpoint, 150));
+        verify(communications).requestPing(address, sequence,
+                                           asList(relay1, relay2));
+        assertFalse(gossip.probe(address, endpoint, 200));
+        assertTrue(gossip.probe(address, endpoint, 300));
+        assertFalse(endpoint.isProbing());
+
+        assertFalse(gossip.probe(address, endpoint, 400));
+        sequence = endpoint.getProbeSequence();
+        assertTrue(endpoint.acknowledge(sequence, 450));
+        assertFalse(endpoint.isProbing());
+        assertFalse(gossip.probe(address, endpoint, 500));
+        assertFalse(endpoint.isProbing());
+        assertFalse(gossip.probe(address, endpoint, 600));
+        assertTrue(endpoint.isProbing());
+    }
+
+    public void testRejoin() throws Exception {
+        GossipCommunications communications = mock(GossipCommunications.class);
+        FailureDetectorFactory fdFactory = mock(FailureDetectorFactory.class);
+        InetSocketAddress local = new InetSocketAddress("127.0.0.1", 1);
+        SystemView view = new SystemView(new Random(), local,
+                                         new ArrayList<InetSocketAddress>(),
+                                         30, 400);
+        List<HeartbeatState> states = new ArrayList<HeartbeatState>();
+        for (int i = 0; i < 8; i++) {
+            states.add(new HeartbeatState(null, new Identity(666, i + 2, 0),
+                                          new InetSocketAddress("127.0.0.1",
+                                                                i + 2)));
+        }
+        states.add(new HeartbeatState(null, new Identity(666, 1, 0), local));
+
+        File file = File.createTempFile("snapshot", ".dat");
+        try {
+            MembershipSnapshot snapshot = new MembershipSnapshot(file);
+            snapshot.write(states);
+
+            Gossip gossip = new Gossip(view, new Random(), communications, 4,
+                                       TimeUnit.DAYS, fdFactory,
+                                       new Identity(666, 1, 0));
+            gossip.setSnapshot(snapshot, 1, TimeUnit.DAYS);
+            gossip.start(new HeartbeatState(null, new Identity(666, 1, 0),
+                                            local));
+
+            assertEquals(8, view.getUnreachableMembers().size());
+            assertFalse(view.getUnreachableMembers().contains(local));
+            // floor(log2(8)) + 2 members are contacted immediately
+            verify(communications, new Times(5)).connect(isA(InetSocketAddress.class),
+                                                         isA(Endpoint.class),
+                                                         isA(Runnable.class));
+            gossip.terminate();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testSuspicion() throws Exception {
+        GossipCommunications communications = mock(GossipCommunications.class);
+        FailureDetectorFactory fdFactory = mock(FailureDetectorFactory.class);
+        FailureDetector fd = mock(FailureDetector.class);
+        SystemView view = mock(SystemView.class);
+        Random random = mock(Random.class);
+        InetSocketAddress localAddress = new InetSocketAddress("127.0.0.1", 0);
+        when(view.getLocalAddress()).thenReturn(localAddress);
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 1);
+        HeartbeatState state = new HeartbeatState(null,
+                                                  new Identity(666, 1, 0),
+                                                  address);
+        Endpoint endpoint = new Endpoint(state, fd);
+
+        Gossip gossip = new Gossip(view, random, communications, fdFactory,
+                                   new Identity(0, 0, 0),
+                                   configuration(1, 0, 0, 100, false, 4, 4));
+
+        Field ep = Gossip.class.getDeclaredField("endpoints");
+        ep.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        ConcurrentMap<InetSocketAddress, Endpoint> endpoints = (ConcurrentMap<InetSocketAddress, Endpoint>) ep.get(gossip);
+        endpoints.put(address, endpoint);
+
+        assertFalse(gossip.suspect(address, endpoint, 0));
+        assertTrue(endpoint.isSuspected());
+        List<MembershipEvent> events = gossip.nextEvents();
+        assertEquals(asList(new MembershipEvent(Type.SUSPECT, address, 0)),
+                     events);
+        assertFalse(gossip.suspect(address, endpoint, 100));
+        assertTrue(gossip.suspect(address, endpoint, 101));
+
+        gossip.handle(asList(new MembershipEvent(Type.ALIVE, address, 1)));
+        assertFalse(endpoint.isSuspected());
+        assertEquals(1, endpoint.getIncarnation());
+
+        gossip.handle(asList(new MembershipEvent(Type.SUSPECT, address, 0)));
+        assertFalse(endpoint.isSuspected());
+        gossip.handle(asList(new MembershipEvent(Type.SUSPECT, address, 1)));
+        assertTrue(endpoint.isSuspected());
+
+        gossip.handle(asList(new MembershipEvent(Type.CONFIRM, address, 1)));
+        assertFalse(endpoint.isAlive());
+        assertFalse(endpoints.containsKey(address));
+        verify(view).markDead(eq(address), anyLong());
+        assertTrue(gossip.nextEvents().contains(new MembershipEvent(
+                                                                    Type.CONFIRM,
+                                                                    address, 1)));
+
+        gossip.handle(asList(new MembershipEvent(Type.SUSPECT, localAddress,
+                                                 0)));
+        assertTrue(gossip.nextEvents().contains(new MembershipEvent(
+                                                                    Type.ALIVE,
+                                                                    localAddress,
+                                                                    1)));
+    }
+
+    public void testAdaptiveInterval() throws Exception {
+        GossipCommunications communications = mock(GossipCommunications.class);
+        FailureDetectorFactory fdFactory = mock(FailureDetectorFactory.class);
+        FailureDetector fd = mock(FailureDetector.class);
+        SystemView view = mock(SystemView.class);
+        Random random = mock(Random.class);
+
+        try {
+            new Gossip(view, random, communications, fdFactory,
+                       new Identity(0, 0, 0),
+                       configuration(1, 0, 0, 0, false, 5, 8));
+            fail("Floor above the interval accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        Gossip gossip = new Gossip(view, random, communications, fdFactory,
+                                   new Identity(0, 0, 0),
+                                   configuration(1, 0, 0, 0, false, 1, 16));
+        assertEquals(4, gossip.getCurrentInterval());
+        assertEquals(8, gossip.adaptInterval(0));
+        assertEquals(16, gossip.adaptInterval(0));
+        assertEquals(16, gossip.adaptInterval(0));
+        assertEquals(8, gossip.adaptInterval(3));
+        assertEquals(4, gossip.adaptInterval(1));
+        assertEquals(2, gossip.adaptInterval(1));
+        assertEquals(1, gossip.adaptInterval(1));
+        assertEquals(1, gossip.adaptInterval(1));
+        assertEquals(1, gossip.getCurrentInterval());
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 1);
+        HeartbeatState state = new HeartbeatState(null, new Identity(666, 17,
+                                                                     0),
+                                                  address);
+        Endpoint endpoint = new Endpoint(state, fd);
+        Field ep = Gossip.class.getDeclaredField("endpoints");
+        ep.setAccessible(true);
+        @SuppressWarnings("unchecked")
+        ConcurrentMap<InetSocketAddress, Endpoint> endpoints = (ConcurrentMap<InetSocketAddress, Endpoint>) ep.get(gossip);
+        endpoints.put(address, endpoint);
+
+        assertTrue(gossip.convict(address, endpoint, 0L));
+        assertFalse(gossip.convict(address, endpoint, 0L));
+        Runnable round = gossip.gossipTask();
+        round.run();
+        assertEquals(1, gossip.getLastRoundDeltas());
+        round.run();
+        assertEquals(0, gossip.getLastRoundDeltas());
+    }
+
+    public void testMerkle() throws Exception {
+        GossipCommunications communications = mock(GossipCommunications.class);
+        FailureDetectorFactory fdFactory = mock(FailureDetectorFactory.class);
+        FailureDetector fd = mock(FailureDetector.class);
+        SystemView view = mock(SystemView.class);
+        Random random = mock(Random.class);
+        GossipMessages handler = mock(GossipMessages.class);
+
+        InetSocketAddress address1 = new InetSocketAddress("127.0.0.1", 1);
+        InetSocketAddress address2 = new InetSocketAddress("127.0.0.1", 2);
+        HeartbeatState state1 = new HeartbeatState(null,
+                                                   new Identity(666, 17, 0),
+                                                   address1);
+        state1.setTime(5);
+        HeartbeatState state2 = new HeartbeatState(null,
+                                                   new Identity(666, 18, 0),
+                                                   address2);
+        state2.setTime(7);
+
+        Gossip gossip = new Gossip(view, random, communications, fdFactory,
+                                   new Identity(0, 0, 0),
+                                   configuration(1, 0, 0, 0, true, 4, 4));
+        gossip.index(state1, new Endpoint(state1, fd));
+        gossip.index(state2, new Endpoint(state2, fd));
+
+        MerkleTree local = new MerkleTree(Identity.MAX_ID + 1);
+        local.update(17, 5);
+        local.update(18, 7);
+        MerkleTree remote = new MerkleTree(Identity.MAX_ID + 1);
+        remote.update(17, 5);
+
+        gossip.merkle(new int[] { 0 }, new long[] { local.getHash(0) },
+                      handler);
+        verifyNoMoreInteractions(handler);
+
+        gossip.merkle(new int[] { 0 }, new long[] { remote.getHash(0) },
+                      handler);
+        verify(handler).merkle(aryEq(children(local, 0)),
+                               aryEq(hashes(local, children(local, 0))));
+
+        int leaf = 0;
+        while (!local.isLeaf(leaf)) {
+            leaf = local.firstChild(leaf);
+        }
+        leaf += 18 >> MerkleTree.BUCKET_BITS;
+        List<Integer> path = new ArrayList<Integer>();
+        int parent = (leaf - 1) / MerkleTree.FANOUT;
+        while (parent > 0) {
+            path.add(0, parent);
+            parent = (parent - 1) / MerkleTree.FANOUT;
+        }
+        for (int node : path) {
+            gossip.merkle(new int[] { node },
+                          new long[] { remote.getHash(node) }, handler);
+            verify(handler).merkle(aryEq(children(local, node)),
+                                   aryEq(hashes(local, children(local, node))));
+        }
+
+        gossip.merkle(new int[] { leaf }, new long[] { remote.getHash(leaf) },
+                      handler);
+        List<Digest> digests = new ArrayList<Digest>();
+        for (int id = 16; id < 24; id++) {
+            if (id == 17) {
+                digests.add(new Digest(state1));
+            } else if (id == 18) {
+                digests.add(new Digest(state2));
+            } else {
+                digests.add(new Digest(id, null, -1));
+            }
+        }
+        verify(handler).gossip(digests);
+        verifyNoMoreInteractions(handler);
+    }
+
+    private int[] children(MerkleTree tree, int node) {
+        int[] children = new int[MerkleTree.FANOUT];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = tree.firstChild(node) + i;
+        }
+        return children;
+    }
+
+    private GossipConfiguration configuration(int fanout, int indirectProbes,
+                                              long probeTimeout,
+                                              long suspicionTimeout,
+                                              boolean merkleAntiEntropy,
+                                              int minInterval, int maxInterval) {
+        return new GossipConfiguration.Builder(4, TimeUnit.DAYS).fanout(fanout)
+                                                                .indirectProbes(indirectProbes)
+                                                                .probeTimeout(probeTimeout)
+                                                                .suspicionTimeout(suspicionTimeout)
+                                                                .merkleAntiEntropy(merkleAntiEntropy)
+                                                                .minInterval(minInterval)
+                                                                .maxInterval(maxInterval)
+                                                                .build();
+    }
+
+    private long[] hashes(MerkleTree tree, int[] nodes) {
+        long[] hashes = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            hashes[i] = tree.getHash(nodes[i]);
+        }
+        return hashes;
+    }
 }
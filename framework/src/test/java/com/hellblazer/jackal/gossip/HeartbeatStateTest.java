@@ -19,11 +19,13 @@ package com.hellblazer.jackal.gossip;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import junit.framework.TestCase;
 
 import org.smartfrog.services.anubis.partition.util.Identity;
 import org.smartfrog.services.anubis.partition.util.NodeIdSet;
+import org.smartfrog.services.anubis.partition.views.BitView;
 import org.smartfrog.services.anubis.partition.views.View;
 
 /**
@@ -78,12 +80,11 @@ public class HeartbeatStateTest extends TestCase {
         assertEquals(viewTimestamp, view.getTimeStamp());
         assertEquals(stable, view.isStable());
 
-        byte[] bytes = new byte[GossipMessages.HEARTBEAT_STATE_BYTE_SIZE];
-        ByteBuffer msg = ByteBuffer.wrap(bytes);
-        state.writeTo(msg);
+        ByteBuffer msg = ByteBuffer.allocate(state.getFrame().remaining() + 2);
+        assertTrue(state.writeCompactTo(msg));
         msg.flip();
 
-        HeartbeatState dState = new HeartbeatState(msg);
+        HeartbeatState dState = HeartbeatState.readCompact(msg);
         assertEquals(msgLinks, dState.getMsgLinks());
         assertEquals(sender, dState.getSender());
         assertEquals(senderAddress, dState.getSenderAddress());
@@ -103,4 +104,263 @@ public class HeartbeatStateTest extends TestCase {
         assertEquals(viewTimestamp, view.getTimeStamp());
         assertEquals(stable, view.isStable());
     }
+
+    public void testCompact() throws Exception {
+        NodeIdSet msgLinks = new NodeIdSet();
+        Identity candidate = new Identity(0x1638, Identity.MAX_ID, 667);
+        Identity sender = new Identity(0x1638, 23, 22);
+        InetSocketAddress heartbeatAddress = new InetSocketAddress("localhost",
+                                                                   80);
+        InetSocketAddress senderAddress = new InetSocketAddress("localhost", 80);
+        InetSocketAddress testInterface = new InetSocketAddress("localhost",
+                                                                443);
+        NodeIdSet v = new NodeIdSet();
+        msgLinks.add(candidate.id);
+        msgLinks.add(sender.id);
+        v.add(candidate.id);
+        HeartbeatState state = new HeartbeatState(candidate, false,
+                                                  heartbeatAddress, msgLinks,
+                                                  true, sender, senderAddress,
+                                                  true, testInterface, v, 128L,
+                                                  990876L);
+        state.setTime(564567L);
+        state.setIncarnation(3L);
+        state.setZone("rack-1");
+        state.setSparseIdSets(true);
+
+        ByteBuffer msg = ByteBuffer.allocate(1500);
+        assertTrue(state.writeCompactTo(msg));
+        int compactSize = msg.position();
+        assertEquals(state.getFrame().remaining() + 2, compactSize);
+        assertTrue(state.writeCompactTo(msg));
+        assertEquals(2 * compactSize, msg.position());
+        msg.flip();
+
+        HeartbeatState dState = HeartbeatState.readCompact(msg);
+        assertEquals(compactSize, msg.position());
+        assertEquals(candidate, dState.getCandidate());
+        assertEquals(heartbeatAddress, dState.getHeartbeatAddress());
+        assertEquals(msgLinks, dState.getMsgLinks());
+        assertEquals(sender, dState.getSender());
+        assertEquals(564567L, dState.getTime());
+        assertEquals(128L, dState.getViewNumber());
+        assertEquals(3L, dState.getIncarnation());
+        assertEquals("rack-1", dState.getZone());
+        assertEquals(sender, HeartbeatState.readCompact(msg).getSender());
+        assertFalse(msg.hasRemaining());
+
+        ByteBuffer small = ByteBuffer.allocate(compactSize - 1);
+        assertFalse(state.writeCompactTo(small));
+        assertEquals(0, small.position());
+    }
+
+    public void testDenseLimit() throws Exception {
+        HeartbeatState state = denseState(HeartbeatState.MAX_DENSE_ID);
+        assertTrue(state.getFrame().remaining() <= HeartbeatState.MAX_FRAME_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(HeartbeatState.MAX_FRAME_SIZE + 2);
+        assertTrue(state.writeCompactTo(buffer));
+
+        state = denseState(HeartbeatState.MAX_DENSE_ID + 1);
+        assertTrue(state.getFrame().remaining() > HeartbeatState.MAX_FRAME_SIZE);
+        buffer.clear();
+        assertFalse(state.writeCompactTo(buffer));
+    }
+
+    /**
+     * Answer a state of the largest addresses and zone, holding the id in its
+     * node id sets in the dense encoding
+     */
+    private HeartbeatState denseState(int id) throws Exception {
+        InetSocketAddress address = new InetSocketAddress("::1", 80);
+        Identity sender = new Identity(0x1638, id, 22);
+        NodeIdSet msgLinks = new NodeIdSet();
+        msgLinks.add(id);
+        NodeIdSet v = new NodeIdSet();
+        v.add(id);
+        HeartbeatState state = new HeartbeatState(sender, true, address,
+                                                  msgLinks, true, sender,
+                                                  address, true, address, v,
+                                                  128L, 990876L);
+        StringBuilder zone = new StringBuilder();
+        while (zone.length() < GossipMessages.ZONE_MAX_BYTE_SIZE) {
+            zone.append('z');
+        }
+        state.setZone(zone.toString());
+        state.setSparseIdSets(false);
+        return state;
+    }
+
+    public void testWireVersion() throws Exception {
+        NodeIdSet msgLinks = new NodeIdSet();
+        Identity sender = new Identity(0x1638, 23, 22);
+        InetSocketAddress heartbeatAddress = new InetSocketAddress("localhost",
+                                                                   80);
+        NodeIdSet v = new NodeIdSet();
+        for (int i = 0; i < 2500; i++) {
+            v.add(i);
+            msgLinks.add(i);
+        }
+        v.add(Identity.MAX_ID);
+        HeartbeatState state = new HeartbeatState(sender, false,
+                                                  heartbeatAddress, msgLinks,
+                                                  true, sender,
+                                                  heartbeatAddress, true, null,
+                                                  v, 128L, 990876L);
+        state.setTime(564567L);
+        int dense = state.getFrame().remaining();
+        state.setSparseIdSets(true);
+        ByteBuffer frame = state.getFrame();
+        assertTrue(frame.remaining() < 200);
+        assertTrue(frame.remaining() < dense);
+
+        ByteBuffer msg = ByteBuffer.allocate(1500);
+        assertTrue(state.writeCompactTo(msg));
+        msg.flip();
+        HeartbeatState dState = HeartbeatState.readCompact(msg);
+        assertEquals(HeartbeatState.WIRE_VERSION, dState.getWireVersion());
+        assertEquals(v, dState.getMembers());
+        assertEquals(msgLinks, dState.getMsgLinks());
+
+        // a frame of an earlier version ends with the zone
+        state.setSparseIdSets(false);
+        state.setView(new BitView(true, msgLinks, 990876L));
+        frame = state.getFrame();
+        msg.clear();
+        msg.putShort((short) (frame.remaining() - 1));
+        frame.limit(frame.limit() - 1);
+        msg.put(frame);
+        msg.flip();
+        dState = HeartbeatState.readCompact(msg);
+        assertEquals(0, dState.getWireVersion());
+        assertEquals(msgLinks, dState.getMembers());
+        assertEquals(sender, dState.getSender());
+    }
+
+    public void testFrame() throws Exception {
+        NodeIdSet msgLinks = new NodeIdSet();
+        Identity candidate = new Identity(0x1638, Identity.MAX_ID, 667);
+        Identity sender = new Identity(0x1638, 23, 22);
+        InetSocketAddress heartbeatAddress = new InetSocketAddress("localhost",
+                                                                   80);
+        NodeIdSet v = new NodeIdSet();
+        v.add(sender.id);
+        HeartbeatState state = new HeartbeatState(candidate, false,
+                                                  heartbeatAddress, msgLinks,
+                                                  true, sender,
+                                                  heartbeatAddress, true, null,
+                                                  v, 128L, 990876L);
+        state.setTime(564567L);
+
+        ByteBuffer frame = state.getFrame();
+        assertTrue(frame.isReadOnly());
+        assertEquals(frame, state.getFrame());
+
+        ByteBuffer msg = ByteBuffer.allocate(1500);
+        assertTrue(state.writeCompactTo(msg));
+        msg.flip();
+        HeartbeatState dState = HeartbeatState.readCompact(msg);
+        assertEquals(heartbeatAddress, dState.getHeartbeatAddress());
+        assertEquals(564567L, dState.getTime());
+
+        // Forwarding the received state shares the frame it was read from
+        assertEquals(frame, dState.getFrame());
+        ByteBuffer forwarded = ByteBuffer.allocate(1500);
+        assertTrue(dState.writeCompactTo(forwarded));
+        msg.rewind();
+        forwarded.flip();
+        assertEquals(msg, forwarded);
+
+        assertEquals(sender, dState.getSender());
+        assertEquals(128L, dState.getViewNumber());
+        assertTrue(dState.getMembers().contains(sender.id));
+
+        dState.setViewNumber(129L);
+        assertFalse(frame.equals(dState.getFrame()));
+        msg.clear();
+        assertTrue(dState.writeCompactTo(msg));
+        msg.flip();
+        HeartbeatState updated = HeartbeatState.readCompact(msg);
+        assertEquals(129L, updated.getViewNumber());
+        assertEquals(564567L, updated.getTime());
+        assertEquals(candidate, updated.getCandidate());
+    }
+
+    public void testEqualityIgnoresEncoding() throws Exception {
+        Identity sender = new Identity(0x1638, 23, 22);
+        InetSocketAddress heartbeatAddress = new InetSocketAddress("localhost",
+                                                                   80);
+        NodeIdSet v = new NodeIdSet();
+        v.add(sender.id);
+        HeartbeatState state = new HeartbeatState(sender, false,
+                                                  heartbeatAddress,
+                                                  new NodeIdSet(), true,
+                                                  sender, heartbeatAddress,
+                                                  true, null, v, 128L, 990876L);
+        state.setTime(564567L);
+        int hash = state.hashCode();
+
+        ByteBuffer msg = ByteBuffer.allocate(1500);
+        assertTrue(state.writeCompactTo(msg));
+        msg.flip();
+        HeartbeatState dState = HeartbeatState.readCompact(msg);
+        assertEquals(state, dState);
+        assertEquals(hash, state.hashCode());
+        assertEquals(hash, dState.hashCode());
+
+        // invalidating the frame of one state does not change its identity
+        state.setTime(564568L);
+        assertEquals(state, dState);
+        assertEquals(hash, state.hashCode());
+
+        dState.setViewNumber(129L);
+        assertFalse(state.equals(dState));
+    }
+
+    public void testConcurrentModification() throws Exception {
+        Identity sender = new Identity(0x1638, 23, 22);
+        InetSocketAddress heartbeatAddress = new InetSocketAddress("localhost",
+                                                                   80);
+        final NodeIdSet small = new NodeIdSet();
+        small.add(sender.id);
+        final NodeIdSet large = new NodeIdSet();
+        for (int i = 0; i < 2000; i += 2) {
+            large.add(i);
+        }
+        final HeartbeatState state = new HeartbeatState(sender, false,
+                                                        heartbeatAddress,
+                                                        small.clone(), true,
+                                                        sender,
+                                                        heartbeatAddress, true,
+                                                        null, small.clone(),
+                                                        128L, 990876L);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; !done.get(); i++) {
+                    NodeIdSet links = (i & 1) == 0 ? large : small;
+                    state.setMsgLinks(links);
+                    state.setView(new BitView(true, links, i));
+                    state.setViewNumber(i);
+                }
+            }
+        };
+        writer.start();
+        try {
+            for (int i = 0; i < 10000; i++) {
+                ByteBuffer frame = state.getFrame();
+                ByteBuffer msg = ByteBuffer.allocate(frame.remaining() + 2);
+                msg.putShort((short) frame.remaining());
+                msg.put(frame);
+                msg.flip();
+                HeartbeatState dState = HeartbeatState.readCompact(msg);
+                NodeIdSet links = dState.getMsgLinks();
+                assertTrue(links.equals(small) || links.equals(large));
+                assertFalse(msg.hasRemaining());
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
 }
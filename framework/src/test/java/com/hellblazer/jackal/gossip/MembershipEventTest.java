@@ -0,0 +1,105 @@
+/** 
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.hellblazer.jackal.gossip.MembershipEvent.Type;
+
+/**
+ * Basic testing of the membership events and their dissemination
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class MembershipEventTest extends TestCase {
+    public void testBasic() throws Exception {
+        InetSocketAddress address = new InetSocketAddress("localhost", 80);
+        MembershipEvent event = new MembershipEvent(Type.SUSPECT, address,
+                                                    1024L);
+        ByteBuffer msg = ByteBuffer.allocate(MembershipEvent.MAX_BYTE_SIZE);
+        event.writeTo(msg);
+        msg.flip();
+        MembershipEvent dEvent = new MembershipEvent(msg);
+        assertEquals(event, dEvent);
+        assertEquals(Type.SUSPECT, dEvent.getType());
+        assertEquals(address, dEvent.getMember());
+        assertEquals(1024L, dEvent.getIncarnation());
+        assertFalse(msg.hasRemaining());
+
+        msg.clear();
+        new MembershipEvent(Type.LEAVE, address, 7L).writeTo(msg);
+        msg.flip();
+        assertEquals(Type.LEAVE, new MembershipEvent(msg).getType());
+    }
+
+    public void testDissemination() throws Exception {
+        InetSocketAddress address1 = new InetSocketAddress("localhost", 1);
+        InetSocketAddress address2 = new InetSocketAddress("localhost", 2);
+        MembershipEvents events = new MembershipEvents(2);
+        assertTrue(events.add(new MembershipEvent(Type.SUSPECT, address1, 0)));
+        assertFalse(events.add(new MembershipEvent(Type.SUSPECT, address1, 0)));
+
+        List<MembershipEvent> next = events.next(8, 3);
+        assertEquals(1, next.size());
+        assertEquals(Type.SUSPECT, next.get(0).getType());
+
+        assertTrue(events.add(new MembershipEvent(Type.ALIVE, address1, 1)));
+        assertTrue(events.add(new MembershipEvent(Type.SUSPECT, address2, 0)));
+        next = events.next(1, 3);
+        assertEquals(1, next.size());
+        next = events.next(1, 3);
+        assertEquals(1, next.size());
+
+        // 2 * ceil(log2(3 + 1)) transmissions of each event
+        for (int i = 0; i < 3; i++) {
+            assertEquals(2, events.next(8, 3).size());
+        }
+        assertEquals(0, events.size());
+        assertTrue(events.next(8, 3).isEmpty());
+    }
+
+    public void testOverrides() throws Exception {
+        InetSocketAddress address = new InetSocketAddress("localhost", 80);
+        MembershipEvent alive0 = new MembershipEvent(Type.ALIVE, address, 0);
+        MembershipEvent alive1 = new MembershipEvent(Type.ALIVE, address, 1);
+        MembershipEvent suspect0 = new MembershipEvent(Type.SUSPECT, address, 0);
+        MembershipEvent suspect1 = new MembershipEvent(Type.SUSPECT, address, 1);
+        MembershipEvent confirm = new MembershipEvent(Type.CONFIRM, address, 0);
+        MembershipEvent leave = new MembershipEvent(Type.LEAVE, address, 0);
+
+        assertTrue(suspect0.overrides(alive0));
+        assertFalse(suspect0.overrides(alive1));
+        assertTrue(alive1.overrides(suspect0));
+        assertFalse(alive1.overrides(suspect1));
+        assertTrue(suspect1.overrides(suspect0));
+        assertTrue(confirm.overrides(alive1));
+        assertTrue(confirm.overrides(suspect1));
+        assertFalse(alive1.overrides(confirm));
+        assertFalse(suspect1.overrides(confirm));
+        assertTrue(leave.overrides(alive1));
+        assertTrue(leave.overrides(suspect1));
+        assertFalse(leave.overrides(confirm));
+        assertFalse(alive1.overrides(leave));
+        assertFalse(suspect1.overrides(leave));
+    }
+}
@@ -0,0 +1,136 @@
+/** 
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.smartfrog.services.anubis.partition.util.Identity;
+import org.smartfrog.services.anubis.partition.util.NodeIdSet;
+
+/**
+ * Test the crash safety of the membership snapshot
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class MembershipSnapshotTest extends TestCase {
+    private File file;
+
+    public void testCapacity() throws Exception {
+        List<HeartbeatState> states = states(100, 1L);
+        MembershipSnapshot snapshot = new MembershipSnapshot(file, 1024);
+        int written = snapshot.write(states);
+        assertTrue(written > 0);
+        assertTrue(written < states.size());
+        assertEquals(written, snapshot.read().size());
+        snapshot.close();
+    }
+
+    public void testEmpty() throws Exception {
+        MembershipSnapshot snapshot = new MembershipSnapshot(file);
+        assertEquals(0, snapshot.getSequence());
+        assertTrue(snapshot.read().isEmpty());
+        snapshot.close();
+    }
+
+    public void testTornWrite() throws Exception {
+        MembershipSnapshot snapshot = new MembershipSnapshot(file, 4096);
+        snapshot.write(states(3, 1L));
+        snapshot.write(states(5, 2L));
+        assertEquals(2, snapshot.getSequence());
+        snapshot.close();
+
+        // Corrupt the latest snapshot, in the slot of the even sequence
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(40);
+        raf.write(~raf.read());
+        raf.close();
+
+        snapshot = new MembershipSnapshot(file, 4096);
+        assertEquals(1, snapshot.getSequence());
+        List<HeartbeatState> states = snapshot.read();
+        assertEquals(3, states.size());
+        assertEquals(1L, states.get(0).getTime());
+
+        // The next snapshot overwrites the corrupted slot
+        snapshot.write(states(4, 3L));
+        snapshot.close();
+        snapshot = new MembershipSnapshot(file, 4096);
+        assertEquals(2, snapshot.getSequence());
+        assertEquals(4, snapshot.read().size());
+        snapshot.close();
+    }
+
+    public void testWriteRead() throws Exception {
+        MembershipSnapshot snapshot = new MembershipSnapshot(file);
+        List<HeartbeatState> states = states(10, 7L);
+        assertEquals(10, snapshot.write(states));
+        assertEquals(1, snapshot.getSequence());
+        snapshot.close();
+
+        snapshot = new MembershipSnapshot(file);
+        assertEquals(1, snapshot.getSequence());
+        List<HeartbeatState> read = snapshot.read();
+        assertEquals(states.size(), read.size());
+        for (int i = 0; i < states.size(); i++) {
+            assertEquals(states.get(i).getHeartbeatAddress(),
+                         read.get(i).getHeartbeatAddress());
+            assertEquals(states.get(i).getSender(), read.get(i).getSender());
+            assertEquals(7L, read.get(i).getTime());
+        }
+        snapshot.close();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("snapshot", ".dat");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private List<HeartbeatState> states(int count, long time) {
+        List<HeartbeatState> states = new ArrayList<HeartbeatState>();
+        for (int i = 0; i < count; i++) {
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1",
+                                                              1000 + i);
+            NodeIdSet v = new NodeIdSet();
+            v.add(i);
+            HeartbeatState state = new HeartbeatState(
+                                                      new Identity(0x1638, i,
+                                                                   1),
+                                                      false, address,
+                                                      new NodeIdSet(), true,
+                                                      new Identity(0x1638, i,
+                                                                   1), address,
+                                                      true, null, v, 1L, 1L);
+            state.setTime(time);
+            states.add(state);
+        }
+        return states;
+    }
+}
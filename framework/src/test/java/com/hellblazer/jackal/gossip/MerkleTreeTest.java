@@ -0,0 +1,113 @@
+/** 
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip;
+
+import junit.framework.TestCase;
+
+/**
+ * Basic testing of the Merkle tree of heartbeat times
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class MerkleTreeTest extends TestCase {
+    public void testStructure() throws Exception {
+        MerkleTree tree = new MerkleTree(2048);
+        assertEquals(1 + 16 + 256, tree.size());
+        assertFalse(tree.isLeaf(0));
+        assertFalse(tree.isLeaf(16));
+        assertTrue(tree.isLeaf(17));
+        assertEquals(1, tree.firstChild(0));
+        assertEquals(17, tree.firstChild(1));
+        assertEquals(0, tree.firstId(17));
+        assertEquals(MerkleTree.BUCKET_SIZE, tree.firstId(18));
+
+        MerkleTree single = new MerkleTree(MerkleTree.BUCKET_SIZE);
+        assertEquals(1, single.size());
+        assertTrue(single.isLeaf(0));
+        single.update(3, 100L);
+        assertEquals(MerkleTree.hash(3, 100L), single.getHash(0));
+    }
+
+    public void testUpdate() throws Exception {
+        MerkleTree tree1 = new MerkleTree(2048);
+        MerkleTree tree2 = new MerkleTree(2048);
+        tree1.update(1, 10L);
+        tree1.update(100, 20L);
+        tree1.update(2047, 30L);
+        tree2.update(2047, 30L);
+        tree2.update(100, 25L);
+        tree2.update(1, 10L);
+        assertTrue(tree1.getHash(0) != tree2.getHash(0));
+
+        // only the path from the root to the leaf of member 100 differs
+        int leaf = 17 + (100 >> MerkleTree.BUCKET_BITS);
+        int parent = (leaf - 1) / MerkleTree.FANOUT;
+        for (int node = 0; node < tree1.size(); node++) {
+            boolean onPath = node == 0 || node == parent || node == leaf;
+            assertEquals(onPath, tree1.getHash(node) != tree2.getHash(node));
+        }
+
+        tree2.update(100, 20L);
+        for (int node = 0; node < tree1.size(); node++) {
+            assertEquals(tree1.getHash(node), tree2.getHash(node));
+        }
+
+        tree1.remove(1);
+        tree1.remove(100);
+        tree1.remove(2047);
+        for (int node = 0; node < tree1.size(); node++) {
+            assertEquals(0L, tree1.getHash(node));
+        }
+    }
+
+    public void testSpanningTree() throws Exception {
+        MerkleTree full = new MerkleTree(65535);
+        MerkleTree small = new MerkleTree(65535);
+        assertEquals(full.size(), small.size());
+        for (int node = 0; node < full.size(); node += 97) {
+            assertEquals(0L, full.getHash(node));
+        }
+        small.remove(65534);
+        full.update(65534, 40L);
+        full.update(3, 10L);
+        small.update(3, 10L);
+        assertEquals(MerkleTree.hash(3, 10L) ^ MerkleTree.hash(65534, 40L),
+                     full.getHash(0));
+
+        // the trees differ only on the path to the leaf of member 65534
+        int leaf = full.size() - 1;
+        while (full.getHash(leaf) == 0L) {
+            leaf--;
+        }
+        assertTrue(full.isLeaf(leaf));
+        assertEquals(65534 & ~(MerkleTree.BUCKET_SIZE - 1), full.firstId(leaf));
+        int differing = 0;
+        for (int node = 0; node < full.size(); node++) {
+            if (full.getHash(node) != small.getHash(node)) {
+                differing++;
+            }
+        }
+        assertEquals(5, differing);
+
+        small.update(65534, 40L);
+        for (int node = 0; node < full.size(); node++) {
+            assertEquals(full.getHash(node), small.getHash(node));
+        }
+    }
+}
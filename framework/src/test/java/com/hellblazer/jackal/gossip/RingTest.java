@@ -0,0 +1,132 @@
+package com.hellblazer.jackal.gossip;
+
+import static java.util.Arrays.asList;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import junit.framework.TestCase;
+
+import org.mockito.ArgumentCaptor;
+import org.smartfrog.services.anubis.partition.util.Identity;
+import org.smartfrog.services.anubis.partition.util.NodeIdSet;
+
+/**
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class RingTest extends TestCase {
+
+    @SuppressWarnings("unchecked")
+    public void testMultipleRings() throws Exception {
+        int memberCount = 16;
+        int rings = 3;
+        NodeIdSet members = new NodeIdSet();
+        AtomicReferenceArray<Endpoint> endpoints = new AtomicReferenceArray<Endpoint>(
+                                                                                      Identity.MAX_ID + 1);
+        for (int i = 0; i < memberCount; i++) {
+            members.add(i * 7);
+            HeartbeatState state = mock(HeartbeatState.class);
+            Endpoint endpoint = mock(Endpoint.class);
+            when(endpoint.getState()).thenReturn(state);
+            when(state.getHeartbeatAddress()).thenReturn(new InetSocketAddress(
+                                                                               "127.0.0.1",
+                                                                               i * 7 + 1));
+            endpoints.set(i * 7, endpoint);
+        }
+
+        // Each member forwards to its left neighbor on every ring
+        for (int member : members) {
+            GossipCommunications comms = mock(GossipCommunications.class);
+            Ring ring = new Ring(member, rings, comms);
+            ring.update(members, endpoints);
+            HeartbeatState local = mock(HeartbeatState.class);
+            ring.send(local);
+            Set<InetSocketAddress> expected = new HashSet<InetSocketAddress>();
+            for (int r = 0; r < rings; r++) {
+                expected.add(new InetSocketAddress("127.0.0.1",
+                                                   neighborOf(member, r,
+                                                              members) + 1));
+            }
+            ArgumentCaptor<Collection<InetSocketAddress>> neighbors = ArgumentCaptor.forClass((Class<Collection<InetSocketAddress>>) (Class<?>) Collection.class);
+            verify(comms).send(eq(local), neighbors.capture());
+            assertEquals(expected.size(), neighbors.getValue().size());
+            assertEquals(expected,
+                         new HashSet<InetSocketAddress>(neighbors.getValue()));
+        }
+
+        // Each ring's neighbor relation is a single cycle through all the
+        // members, and the hashed rings are different permutations
+        Set<List<Integer>> permutations = new HashSet<List<Integer>>();
+        for (int r = 0; r < rings; r++) {
+            List<Integer> cycle = new ArrayList<Integer>();
+            int current = 0;
+            do {
+                assertFalse(cycle.contains(current));
+                cycle.add(current);
+                current = neighborOf(current, r, members);
+            } while (current != 0);
+            assertEquals(memberCount, cycle.size());
+            assertTrue(permutations.add(cycle));
+        }
+    }
+
+    public void testUpdate() throws Exception {
+        GossipCommunications comms = mock(GossipCommunications.class);
+        HeartbeatState state = mock(HeartbeatState.class);
+        HeartbeatState local = mock(HeartbeatState.class);
+        Endpoint endpoint = mock(Endpoint.class);
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 0);
+        when(endpoint.getState()).thenReturn(state);
+        when(state.getHeartbeatAddress()).thenReturn(address);
+
+        AtomicReferenceArray<Endpoint> endpoints = new AtomicReferenceArray<Endpoint>(
+                                                                                      Identity.MAX_ID + 1);
+        NodeIdSet members = new NodeIdSet();
+        members.add(3);
+        members.add(7);
+
+        Ring ring = new Ring(7, comms);
+        ring.update(members, endpoints);
+        ring.send(local);
+        verifyZeroInteractions(comms);
+
+        endpoints.set(3, endpoint);
+        ring.update(members, endpoints);
+        ring.send(local);
+        verify(comms).send(local, asList(address));
+    }
+
+    private int neighborOf(int id, int ring, NodeIdSet members) {
+        if (ring == 0) {
+            return members.leftNeighborOf(id);
+        }
+        long home = Ring.position(ring, id);
+        int left = -1;
+        long distance = Long.MAX_VALUE;
+        for (int member : members) {
+            if (member == id) {
+                continue;
+            }
+            // distance travelling left around the ring
+            long d = (home - Ring.position(ring, member) + (1L << 32))
+                     % (1L << 32);
+            if (d < distance) {
+                distance = d;
+                left = member;
+            }
+        }
+        return left;
+    }
+}
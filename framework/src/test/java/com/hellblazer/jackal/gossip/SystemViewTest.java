@@ -21,8 +21,11 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 
 import junit.framework.TestCase;
@@ -64,6 +67,34 @@ public class SystemViewTest extends TestCase {
         assertEquals(live3, view.getRandomLiveMember());
     }
 
+    public void testPreload() throws Exception {
+        InetSocketAddress local = new InetSocketAddress("127.0.0.1", 1);
+        InetSocketAddress seed = new InetSocketAddress("127.0.0.1", 2);
+        InetSocketAddress live = new InetSocketAddress("127.0.0.1", 10);
+        InetSocketAddress member1 = new InetSocketAddress("127.0.0.1", 11);
+        InetSocketAddress member2 = new InetSocketAddress("127.0.0.1", 12);
+
+        SystemView view = new SystemView(new Random(), local,
+                                         Arrays.asList(seed), 30, 400);
+        view.markAlive(live);
+
+        List<InetSocketAddress> preloaded = view.preload(Arrays.asList(local,
+                                                                       live,
+                                                                       member1,
+                                                                       member2),
+                                                         100L);
+        assertEquals(Arrays.asList(member1, member2), preloaded);
+        assertEquals(new HashSet<InetSocketAddress>(preloaded),
+                     new HashSet<InetSocketAddress>(
+                                                    view.getUnreachableMembers()));
+        assertTrue(view.preload(Arrays.asList(member1), 200L).isEmpty());
+
+        view.markAlive(member1);
+        assertEquals(Arrays.asList(member2),
+                     new ArrayList<InetSocketAddress>(
+                                                                view.getUnreachableMembers()));
+    }
+
     public void testQuarantined() throws Exception {
         Random random = mock(Random.class);
 
@@ -218,4 +249,51 @@ public class SystemViewTest extends TestCase {
         assertNull(view.getRandomUnreachableMember());
         assertEquals(unreachable3, view.getRandomUnreachableMember());
     }
+
+    public void testZones() throws Exception {
+        Random random = mock(Random.class);
+        when(random.nextDouble()).thenReturn(0.5, 0.05);
+
+        InetSocketAddress local = new InetSocketAddress("127.0.0.1", 1);
+        InetSocketAddress zone1 = new InetSocketAddress("127.0.0.1", 10);
+        InetSocketAddress zone2 = new InetSocketAddress("127.0.0.1", 11);
+        InetSocketAddress remote1 = new InetSocketAddress("127.0.0.1", 20);
+        InetSocketAddress remote2 = new InetSocketAddress("127.0.0.1", 21);
+
+        SystemView view = new SystemView(random, local,
+                                         Arrays.<InetSocketAddress> asList(),
+                                         30, 400, "rack1", 0.1, false);
+        assertEquals("rack1", view.getLocalZone());
+        view.markAlive(zone1, "rack1");
+        view.markAlive(zone2, "rack1");
+        view.markAlive(remote1, "rack2");
+        view.markAlive(remote2);
+        assertEquals(4, view.getLiveMembers().size());
+
+        List<InetSocketAddress> partners = view.getRandomGossipPartners(2);
+        assertEquals(new HashSet<InetSocketAddress>(Arrays.asList(zone1,
+                                                                  zone2)),
+                     new HashSet<InetSocketAddress>(partners));
+
+        partners = view.getRandomGossipPartners(2);
+        assertEquals(3, partners.size());
+        assertTrue(partners.containsAll(Arrays.asList(zone1, zone2)));
+        assertTrue(partners.contains(remote1) || partners.contains(remote2));
+
+        view.markAlive(zone1, "rack2");
+        view.markDead(zone2, 0);
+        partners = view.getRandomGossipPartners(5);
+        assertEquals(new HashSet<InetSocketAddress>(Arrays.asList(zone1,
+                                                                  remote1,
+                                                                  remote2)),
+                     new HashSet<InetSocketAddress>(partners));
+
+        SystemView bridge = new SystemView(random, local,
+                                           Arrays.<InetSocketAddress> asList(),
+                                           30, 400, "rack1", 0.0, true);
+        bridge.markAlive(zone1, "rack1");
+        bridge.markAlive(remote1, "rack2");
+        assertEquals(Arrays.asList(zone1, remote1),
+                     bridge.getRandomGossipPartners(1));
+    }
 }
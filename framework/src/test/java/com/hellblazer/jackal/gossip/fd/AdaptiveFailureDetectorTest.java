@@ -5,6 +5,7 @@ import java.util.Random;
 import junit.framework.TestCase;
 
 import com.hellblazer.jackal.gossip.FailureDetector;
+import com.hellblazer.jackal.util.Clock;
 
 public class AdaptiveFailureDetectorTest extends TestCase {
 
@@ -14,7 +15,7 @@ public class AdaptiveFailureDetectorTest extends TestCase {
                                                                       1000,
                                                                       0.95,
                                                                       500, 0,
-                                                                      0.0).create();
+                                                                      0.0).create(Clock.SYSTEM);
         Random random = new Random(666);
 
         long average = 500;
@@ -29,6 +30,10 @@ public class AdaptiveFailureDetectorTest extends TestCase {
 
         assertEquals(false, detector.shouldConvict(now + variance));
 
+        long deadline = detector.nextConvictionTime();
+        assertFalse(detector.shouldConvict(deadline - 1));
+        assertTrue(detector.shouldConvict(deadline + 1));
+
         now += 573;
         assertFalse(detector.shouldConvict(now));
 
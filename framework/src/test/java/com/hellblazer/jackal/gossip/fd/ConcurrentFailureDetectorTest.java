@@ -0,0 +1,74 @@
+/** 
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.fd;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.hellblazer.jackal.gossip.FailureDetector;
+import com.hellblazer.jackal.util.Clock;
+
+/**
+ * Check that the concurrent failure detectors judge conviction as the
+ * detectors they are variants of
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class ConcurrentFailureDetectorTest extends TestCase {
+
+    public void testAdaptive() throws Exception {
+        compare(new AdaptiveFailureDetector(0.95, 100, 0.95, 500, 0, 0.0,
+                                            Clock.SYSTEM),
+                new ConcurrentAdaptiveFailureDetector(0.95, 100, 0.95, 500, 0,
+                                                      0.0, Clock.SYSTEM));
+    }
+
+    public void testPhiAverage() throws Exception {
+        compare(new PhiAccrualFailureDetector(11, false, 100, 500, 0, 1.0,
+                                              Clock.SYSTEM),
+                new ConcurrentPhiAccrualFailureDetector(11, false, 100, 500,
+                                                        0, 1.0, Clock.SYSTEM));
+    }
+
+    public void testPhiMedian() throws Exception {
+        compare(new PhiAccrualFailureDetector(3, true, 100, 500, 0, 1.0,
+                                              Clock.SYSTEM),
+                new ConcurrentPhiAccrualFailureDetector(3, true, 100, 500, 0,
+                                                        1.0, Clock.SYSTEM));
+    }
+
+    private void compare(FailureDetector expected, FailureDetector detector) {
+        Random random = new Random(666);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 500; i++) {
+            now += 500 + 50 - random.nextInt(100);
+            long delay = random.nextInt(10);
+            expected.record(now, delay);
+            detector.record(now, delay);
+            for (long probe = now; probe < now + 10000; probe += 97) {
+                assertEquals(expected.shouldConvict(probe),
+                             detector.shouldConvict(probe));
+            }
+        }
+        long deadline = detector.nextConvictionTime();
+        assertFalse(detector.shouldConvict(deadline - 1));
+        assertTrue(detector.shouldConvict(deadline + 1));
+    }
+}
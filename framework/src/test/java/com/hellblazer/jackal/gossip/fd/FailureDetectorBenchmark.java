@@ -0,0 +1,124 @@
+/** 
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.fd;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hellblazer.jackal.gossip.FailureDetector;
+import com.hellblazer.jackal.gossip.FailureDetectorFactory;
+import com.hellblazer.jackal.util.Clock;
+
+/**
+ * A rough benchmark of the failure detectors. Each detector has heartbeats
+ * recorded by one thread while a number of reader threads judge conviction,
+ * as the gossip dispatchers and the gossip scheduler do. The readers judge at
+ * times spread over the ten seconds following the last heartbeat. The writer
+ * records as fast as it can, so this is the worst case of contention between
+ * the writer and the readers. The throughput of the writer and the readers is
+ * reported. Run by hand, with the JIT warmed up
+ * by the first rounds:
+ * 
+ * <pre>
+ * java -cp ... com.hellblazer.jackal.gossip.fd.FailureDetectorBenchmark [readers] [millis]
+ * </pre>
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class FailureDetectorBenchmark {
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int readers = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        long duration = args.length > 1 ? Long.parseLong(args[1]) : 2000L;
+        FailureDetectorFactory[] factories = {
+                new PhiFailureDetectorFactory(11, 1000, 500, 100, 1.0, false),
+                new ConcurrentPhiFailureDetectorFactory(11, 1000, 500, 100,
+                                                        1.0, false),
+                new PhiFailureDetectorFactory(11, 1000, 500, 100, 1.0, true),
+                new ConcurrentPhiFailureDetectorFactory(11, 1000, 500, 100,
+                                                        1.0, true),
+                new AdaptiveFailureDetectorFactory(0.95, 1000, 0.95, 500, 100,
+                                                   1.0),
+                new ConcurrentAdaptiveFailureDetectorFactory(0.95, 1000, 0.95,
+                                                             500, 100, 1.0) };
+        for (int round = 0; round < ROUNDS; round++) {
+            System.out.println("Round " + round);
+            for (FailureDetectorFactory factory : factories) {
+                run(factory.create(Clock.SYSTEM), readers, duration);
+            }
+        }
+    }
+
+    private static void run(final FailureDetector detector, int readers,
+                            long duration) throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong records = new AtomicLong();
+        final AtomicLong judgements = new AtomicLong();
+        final AtomicLong convictions = new AtomicLong();
+        final CountDownLatch finished = new CountDownLatch(readers + 1);
+        final long start = System.currentTimeMillis();
+        final AtomicLong clock = new AtomicLong(start);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long now = start;
+                long count = 0;
+                while (running.get()) {
+                    now += 500 + (count & 63) - 32;
+                    detector.record(now, count & 7);
+                    clock.lazySet(now);
+                    count++;
+                }
+                records.set(count);
+                finished.countDown();
+            }
+        }, "writer");
+        writer.start();
+        for (int i = 0; i < readers; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    long convicted = 0;
+                    while (running.get()) {
+                        if (detector.shouldConvict(clock.get() + (count & 1023)
+                                                   * 10)) {
+                            convicted++;
+                        }
+                        count++;
+                    }
+                    judgements.addAndGet(count);
+                    convictions.addAndGet(convicted);
+                    finished.countDown();
+                }
+            }, "reader " + i).start();
+        }
+        Thread.sleep(duration);
+        running.set(false);
+        finished.await();
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println(String.format("%-40s records/s: %12d judgements/s: %12d (convictions: %s)",
+                                         detector.getClass().getSimpleName(),
+                                         records.get() * 1000 / elapsed,
+                                         judgements.get() * 1000 / elapsed,
+                                         convictions.get()));
+    }
+}
@@ -20,6 +20,7 @@ package com.hellblazer.jackal.gossip.fd;
 import junit.framework.TestCase;
 
 import com.hellblazer.jackal.gossip.FailureDetector;
+import com.hellblazer.jackal.util.Clock;
 
 /**
  * Basic testing of the failure detector
@@ -33,7 +34,8 @@ public class PhiAccrualFailureDetectorTest extends TestCase {
 
         FailureDetector detector = new PhiAccrualFailureDetector(11, false,
                                                                  1000, 500, 0,
-                                                                 1.0);
+                                                                 1.0,
+                                                                 Clock.SYSTEM);
         long inc = 500;
 
         long now = System.currentTimeMillis();
@@ -56,6 +58,28 @@ public class PhiAccrualFailureDetectorTest extends TestCase {
 
         assertFalse(detector.shouldConvict(now));
 
+        long deadline = detector.nextConvictionTime();
+        assertFalse(detector.shouldConvict(deadline - 1));
+        assertTrue(detector.shouldConvict(deadline + 1));
+
         assertTrue(detector.shouldConvict(now + 30000));
     }
+
+    public void testInitialSamplesUseClock() throws Exception {
+        final long start = 100000L;
+        Clock clock = new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return start;
+            }
+        };
+        FailureDetector detector = new PhiAccrualFailureDetector(11, false,
+                                                                 1000, 500, 5,
+                                                                 1.0, clock);
+
+        assertEquals((long) (start + 11 * 500 * Math.log(10.0)),
+                     detector.nextConvictionTime());
+        assertFalse(detector.shouldConvict(start));
+        assertTrue(detector.shouldConvict(start + 30000));
+    }
 }
@@ -0,0 +1,494 @@
+/**
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.simulation;
+
+import static java.lang.String.format;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.smartfrog.services.anubis.partition.protocols.partitionmanager.ConnectionManager;
+import org.smartfrog.services.anubis.partition.util.Identity;
+import org.smartfrog.services.anubis.partition.util.NodeIdSet;
+import org.smartfrog.services.anubis.partition.wire.msg.Heartbeat;
+
+import com.hellblazer.jackal.configuration.GossipHeartbeatAndDiscoveryConfig.GossipConfiguration;
+import com.hellblazer.jackal.gossip.FailureDetectorFactory;
+import com.hellblazer.jackal.gossip.Gossip;
+import com.hellblazer.jackal.gossip.HeartbeatState;
+import com.hellblazer.jackal.gossip.SystemView;
+import com.hellblazer.jackal.gossip.fd.TimedFailureDetectorFactory;
+
+/**
+ * A deterministic simulation of a gossip cluster, running unmodified
+ * {@link Gossip} members in a single thread on a virtual clock, connected by a
+ * {@link SimulatedNetwork} with configurable latency, loss and partitions.
+ * All the randomness of the members and the network is drawn from the seed of
+ * the simulation, so a run is reproducible.
+ * <p>
+ * The simulator measures the time the members take to converge on the same
+ * view of the live members, the bytes sent per member per round of gossip,
+ * and the convictions of members, distinguishing the false convictions of
+ * members which were running and reachable from the convicting member.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class GossipSimulator {
+    private class Member implements ConnectionManager {
+        private final SimulatedCommunications communications;
+        private Gossip                        gossip;
+        private final Identity                identity;
+        private boolean                       running;
+        private final VirtualScheduler        scheduler;
+        private long                          started   = -1;
+        private long                          stopped   = -1;
+        private MemberView                    view;
+
+        Member(int id) {
+            identity = new Identity(MAGIC, id, 0);
+            communications = new SimulatedCommunications(network,
+                                                         addressOf(id));
+            scheduler = new VirtualScheduler("member " + id, simulation);
+        }
+
+        @Override
+        public void connectTo(Identity peer) {
+        }
+
+        @Override
+        public void leave(Identity peer) {
+        }
+
+        @Override
+        public boolean receiveHeartbeat(Heartbeat hb) {
+            return true;
+        }
+
+        void beat() {
+            gossip.sendHeartbeat(heartbeat());
+        }
+
+        HeartbeatState heartbeat() {
+            NodeIdSet members = new NodeIdSet();
+            members.add(identity.id);
+            for (InetSocketAddress address : view.getLiveMembers()) {
+                Member member = byAddress.get(address);
+                if (member != null) {
+                    members.add(member.identity.id);
+                }
+            }
+            HeartbeatState heartbeat = new HeartbeatState(
+                                                          new Identity(
+                                                                       MAGIC,
+                                                                       0, 0),
+                                                          false,
+                                                          communications.getLocalAddress(),
+                                                          new NodeIdSet(),
+                                                          true, identity,
+                                                          null, false, null,
+                                                          members, 0, 0);
+            heartbeat.setTime(simulation.currentTimeMillis());
+            return heartbeat;
+        }
+
+        long lifetime() {
+            if (started < 0) {
+                return 0L;
+            }
+            return (stopped < 0 ? simulation.currentTimeMillis() : stopped)
+                   - started;
+        }
+
+        void start(List<InetSocketAddress> seedHosts) {
+            Random random = new Random(simulation.getEntropy().nextLong());
+            view = new MemberView(this, random, seedHosts);
+            gossip = new Gossip(view, random, communications, fdFactory,
+                                identity,
+                                new GossipConfiguration.Builder(
+                                                                gossipInterval,
+                                                                TimeUnit.MILLISECONDS).fanout(fanout)
+                                                                                      .indirectProbes(indirectProbes)
+                                                                                      .probeTimeout(probeTimeout)
+                                                                                      .suspicionTimeout(suspicionTimeout)
+                                                                                      .merkleAntiEntropy(merkle)
+                                                                                      .rings(rings)
+                                                                                      .build(),
+                                simulation, scheduler, scheduler);
+            gossip.create(this);
+            running = true;
+            started = simulation.currentTimeMillis();
+            gossip.start(heartbeat());
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    beat();
+                }
+            }, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+        }
+
+        void stop(boolean graceful) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            stopped = simulation.currentTimeMillis();
+            if (graceful) {
+                gossip.terminate();
+            } else {
+                communications.terminate();
+                scheduler.shutdownNow();
+            }
+        }
+    }
+
+    private class MemberView extends SystemView {
+        private final Member member;
+
+        MemberView(Member member, Random random,
+                   Collection<InetSocketAddress> seedHosts) {
+            super(random, member.communications.getLocalAddress(), seedHosts,
+                  QUARANTINE_DELAY, UNREACHABLE_DELAY);
+            this.member = member;
+        }
+
+        @Override
+        public void markDead(InetSocketAddress endpoint, long now) {
+            if (getLiveMembers().contains(endpoint)) {
+                convicted(member, endpoint);
+            }
+            super.markDead(endpoint, now);
+        }
+    }
+
+    public static final long  DEFAULT_FAILURE_TIMEOUT = 10000L;
+    public static final int   DEFAULT_INTERVAL        = 1000;
+    public static final int   DEFAULT_SEEDS           = 3;
+    private static final int  MAGIC                   = 666;
+    /**
+     * The initial time of the virtual clock, fixed so that runs are
+     * reproducible
+     */
+    private static final long ORIGIN                  = 1300000000000L;
+    private static final int  PORT                    = 7000;
+    private static final int  QUARANTINE_DELAY        = 30000;
+    private static final int  UNREACHABLE_DELAY       = 600000;
+
+    private final Map<InetSocketAddress, Member> byAddress         = new HashMap<InetSocketAddress, Member>();
+    private long                                 convictions;
+    private long                                 falseConvictions;
+    private int                                  fanout            = Gossip.AUTOMATIC_FANOUT;
+    private FailureDetectorFactory               fdFactory         = new TimedFailureDetectorFactory(DEFAULT_FAILURE_TIMEOUT);
+    private int                                  gossipInterval    = DEFAULT_INTERVAL;
+    private long                                 heartbeatInterval = DEFAULT_INTERVAL;
+    private int                                  indirectProbes;
+    private final List<Member>                   members           = new ArrayList<Member>();
+    private boolean                              merkle;
+    private final SimulatedNetwork               network;
+    private long                                 probeTimeout;
+    private int                                  rings             = 1;
+    private int                                  seeds             = DEFAULT_SEEDS;
+    private final Simulation                     simulation;
+    private long                                 suspicionTimeout;
+
+    /**
+     * @param seed
+     *            - the seed of the entropy of the simulation
+     */
+    public GossipSimulator(long seed) {
+        simulation = new Simulation(seed, ORIGIN);
+        network = new SimulatedNetwork(simulation);
+    }
+
+    /**
+     * Add members to the simulation, each starting at a random time within
+     * the next gossip interval. The first members added are the seeds.
+     * 
+     * @param count
+     *            - the number of members to add
+     */
+    public void add(int count) {
+        if (members.size() + count > Identity.MAX_ID + 1) {
+            throw new IllegalArgumentException(
+                                               format("Cannot simulate more than %s members",
+                                                      Identity.MAX_ID + 1));
+        }
+        final List<InetSocketAddress> seedHosts = new ArrayList<InetSocketAddress>();
+        for (int i = 0; i < Math.min(seeds, members.size() + count); i++) {
+            seedHosts.add(addressOf(i));
+        }
+        for (int i = 0; i < count; i++) {
+            final Member member = new Member(members.size());
+            members.add(member);
+            byAddress.put(member.communications.getLocalAddress(), member);
+            simulation.schedule(simulation.getEntropy().nextInt(gossipInterval),
+                                new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        member.start(seedHosts);
+                                    }
+                                });
+        }
+    }
+
+    /**
+     * Run the simulation until the members have converged, or the timeout
+     * has elapsed. The members have converged when each running member sees
+     * all and only the running members reachable from it as live.
+     * 
+     * @param timeout
+     *            - the virtual milliseconds to wait for convergence
+     * @return the virtual milliseconds taken to converge, or -1 if the
+     *         members did not converge within the timeout
+     */
+    public long awaitConvergence(long timeout) {
+        long start = simulation.currentTimeMillis();
+        long deadline = start + timeout;
+        long step = Math.max(1, gossipInterval / 4);
+        while (simulation.currentTimeMillis() < deadline) {
+            simulation.runUntil(Math.min(deadline,
+                                         simulation.currentTimeMillis() + step));
+            if (isConverged()) {
+                return simulation.currentTimeMillis() - start;
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Stop the member abruptly, without announcing its departure
+     * 
+     * @param id
+     *            - the id of the member
+     */
+    public void crash(int id) {
+        members.get(id).stop(false);
+    }
+
+    public InetSocketAddress getAddress(int id) {
+        return addressOf(id);
+    }
+
+    /**
+     * @return the bytes sent, on average, by each member in each round of
+     *         gossip
+     */
+    public double getBytesPerMemberPerRound() {
+        double rounds = getMemberRounds();
+        return rounds == 0.0 ? 0.0 : network.getBytes() / rounds;
+    }
+
+    /**
+     * @return the number of members convicted by another member
+     */
+    public long getConvictions() {
+        return convictions;
+    }
+
+    /**
+     * @return the number of convictions of members which were running and
+     *         reachable from the convicting member
+     */
+    public long getFalseConvictions() {
+        return falseConvictions;
+    }
+
+    /**
+     * @return the false convictions per member per round of gossip
+     */
+    public double getFalseConvictionRate() {
+        double rounds = getMemberRounds();
+        return rounds == 0.0 ? 0.0 : falseConvictions / rounds;
+    }
+
+    public Gossip getGossip(int id) {
+        return members.get(id).gossip;
+    }
+
+    public SimulatedNetwork getNetwork() {
+        return network;
+    }
+
+    public Simulation getSimulation() {
+        return simulation;
+    }
+
+    public SystemView getView(int id) {
+        return members.get(id).view;
+    }
+
+    /**
+     * Answer true if each running member sees all and only the running
+     * members reachable from it as live
+     * 
+     * @return true if the members have converged
+     */
+    public boolean isConverged() {
+        for (Member member : members) {
+            if (!member.running) {
+                continue;
+            }
+            InetSocketAddress address = member.communications.getLocalAddress();
+            int expected = 0;
+            for (Member other : members) {
+                if (other != member && other.running
+                    && network.isReachable(address,
+                                           other.communications.getLocalAddress())) {
+                    expected++;
+                }
+            }
+            Collection<InetSocketAddress> live = member.view.getLiveMembers();
+            if (live.size() != expected) {
+                return false;
+            }
+            for (InetSocketAddress peer : live) {
+                Member other = byAddress.get(peer);
+                if (other == null || !other.running
+                    || !network.isReachable(address, peer)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop the member gracefully, announcing its departure
+     * 
+     * @param id
+     *            - the id of the member
+     */
+    public void leave(int id) {
+        members.get(id).stop(true);
+    }
+
+    /**
+     * Separate the members from the rest of the simulation
+     * 
+     * @param ids
+     *            - the ids of the members of the new partition
+     */
+    public void partition(int... ids) {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>(
+                                                                             ids.length);
+        for (int id : ids) {
+            addresses.add(addressOf(id));
+        }
+        network.partition(addresses);
+    }
+
+    /**
+     * Advance the virtual clock
+     * 
+     * @param millis
+     *            - the virtual milliseconds to run the simulation for
+     */
+    public void run(long millis) {
+        simulation.runUntil(simulation.currentTimeMillis() + millis);
+    }
+
+    /**
+     * Set the failure detector of the members. The detector must only depend
+     * on the times it records, rather than on the system clock.
+     * 
+     * @param fdFactory
+     */
+    public void setFailureDetectorFactory(FailureDetectorFactory fdFactory) {
+        this.fdFactory = fdFactory;
+    }
+
+    public void setFanout(int fanout) {
+        this.fanout = fanout;
+    }
+
+    public void setGossipInterval(int gossipInterval) {
+        this.gossipInterval = gossipInterval;
+    }
+
+    public void setHeartbeatInterval(long heartbeatInterval) {
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    public void setMerkle(boolean merkle) {
+        this.merkle = merkle;
+    }
+
+    public void setProbes(int indirectProbes, long probeTimeout) {
+        this.indirectProbes = indirectProbes;
+        this.probeTimeout = probeTimeout;
+    }
+
+    public void setRings(int rings) {
+        this.rings = rings;
+    }
+
+    public void setSeeds(int seeds) {
+        this.seeds = seeds;
+    }
+
+    public void setSuspicionTimeout(long suspicionTimeout) {
+        this.suspicionTimeout = suspicionTimeout;
+    }
+
+    @Override
+    public String toString() {
+        return format("members: %s, time: %s ms, bytes/member/round: %.1f, datagrams: %s, dropped: %s, convictions: %s, false convictions: %s",
+                      members.size(),
+                      simulation.currentTimeMillis() - ORIGIN,
+                      getBytesPerMemberPerRound(), network.getDatagrams(),
+                      network.getDropped(), convictions, falseConvictions);
+    }
+
+    private InetSocketAddress addressOf(int id) {
+        try {
+            return new InetSocketAddress(
+                                         InetAddress.getByAddress(new byte[] {
+                                                 10, 0, (byte) (id >>> 8),
+                                                 (byte) id }), PORT);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void convicted(Member member, InetSocketAddress endpoint) {
+        convictions++;
+        Member convicted = byAddress.get(endpoint);
+        if (convicted != null
+            && convicted.running
+            && network.isReachable(member.communications.getLocalAddress(),
+                                   endpoint)) {
+            falseConvictions++;
+        }
+    }
+
+    private double getMemberRounds() {
+        long lifetimes = 0L;
+        for (Member member : members) {
+            lifetimes += member.lifetime();
+        }
+        return (double) lifetimes / gossipInterval;
+    }
+}
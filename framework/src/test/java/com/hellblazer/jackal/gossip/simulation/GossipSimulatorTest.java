@@ -0,0 +1,103 @@
+/** 
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.simulation;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the behavior of the gossip members in the simulator
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class GossipSimulatorTest extends TestCase {
+
+    public void testConvergence() throws Exception {
+        GossipSimulator simulator = new GossipSimulator(0L);
+        simulator.add(256);
+        long converged = simulator.awaitConvergence(60000L);
+        assertTrue("members did not converge", converged >= 0);
+        assertEquals(0, simulator.getFalseConvictions());
+        assertTrue(simulator.getBytesPerMemberPerRound() > 0.0);
+    }
+
+    public void testCrash() throws Exception {
+        GossipSimulator simulator = new GossipSimulator(1L);
+        simulator.add(64);
+        assertTrue(simulator.awaitConvergence(60000L) >= 0);
+        simulator.crash(7);
+        long converged = simulator.awaitConvergence(60000L);
+        assertTrue("crash was not detected", converged >= 0);
+        assertTrue(converged >= GossipSimulator.DEFAULT_FAILURE_TIMEOUT);
+        assertEquals(63, simulator.getConvictions());
+        assertEquals(0, simulator.getFalseConvictions());
+    }
+
+    public void testDeterminism() throws Exception {
+        GossipSimulator first = new GossipSimulator(42L);
+        GossipSimulator second = new GossipSimulator(42L);
+        first.getNetwork().setLatency(1, 20);
+        second.getNetwork().setLatency(1, 20);
+        first.getNetwork().setLoss(0.05);
+        second.getNetwork().setLoss(0.05);
+        first.add(32);
+        second.add(32);
+        first.run(20000L);
+        second.run(20000L);
+        assertEquals(first.getNetwork().getDatagrams(),
+                     second.getNetwork().getDatagrams());
+        assertEquals(first.getNetwork().getBytes(),
+                     second.getNetwork().getBytes());
+        assertEquals(first.getNetwork().getDropped(),
+                     second.getNetwork().getDropped());
+        assertEquals(first.getSimulation().getProcessed(),
+                     second.getSimulation().getProcessed());
+    }
+
+    public void testLeave() throws Exception {
+        GossipSimulator simulator = new GossipSimulator(2L);
+        simulator.add(64);
+        assertTrue(simulator.awaitConvergence(60000L) >= 0);
+        simulator.leave(7);
+        long converged = simulator.awaitConvergence(60000L);
+        assertTrue("departure was not disseminated", converged >= 0);
+        assertTrue("departure waited for the failure detector",
+                   converged < GossipSimulator.DEFAULT_FAILURE_TIMEOUT);
+        assertEquals(0, simulator.getFalseConvictions());
+    }
+
+    public void testPartition() throws Exception {
+        GossipSimulator simulator = new GossipSimulator(3L);
+        simulator.getNetwork().setLatency(1, 10);
+        simulator.add(32);
+        assertTrue(simulator.awaitConvergence(60000L) >= 0);
+        int[] minority = new int[8];
+        for (int i = 0; i < minority.length; i++) {
+            minority[i] = 24 + i;
+        }
+        // let the latest heartbeats of all the members propagate
+        simulator.run(3000L);
+        simulator.partition(minority);
+        simulator.run(20000L);
+        assertEquals(2 * 24 * 8, simulator.getConvictions());
+        assertEquals(0, simulator.getFalseConvictions());
+        for (int i = 0; i < 24; i++) {
+            assertEquals(23, simulator.getView(i).getLiveMembers().size());
+        }
+    }
+}
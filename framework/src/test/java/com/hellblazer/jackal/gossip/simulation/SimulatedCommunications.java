@@ -0,0 +1,99 @@
+/**
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.simulation;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import com.hellblazer.jackal.gossip.udp.AbstractUdpCommunications;
+import com.hellblazer.jackal.gossip.udp.InboundDispatcher.OverloadPolicy;
+import com.hellblazer.jackal.util.ByteBufferPool;
+
+/**
+ * The gossip communications of a simulated member. The datagrams are encoded
+ * and decoded by the same protocol as the UDP communications, so the bytes
+ * accounted are the bytes which would be sent on the wire, but rather than a
+ * socket the datagrams are moved by the simulated network, and are processed
+ * as events of the simulation rather than by the inbound workers.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class SimulatedCommunications extends AbstractUdpCommunications {
+    private final InetSocketAddress address;
+    private long                    bytesSent;
+    private final SimulatedNetwork  network;
+
+    public SimulatedCommunications(SimulatedNetwork network,
+                                   InetSocketAddress address) {
+        super(null, new ByteBufferPool("Simulated comms " + address, 1), 1,
+              1, OverloadPolicy.DROP_NEWEST);
+        this.network = network;
+        this.address = address;
+        network.attach(this);
+    }
+
+    /**
+     * @return the number of bytes sent by the member
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return address;
+    }
+
+    @Override
+    public void start() {
+        running.set(true);
+    }
+
+    @Override
+    public void terminate() {
+        running.set(false);
+    }
+
+    void deliver(InetSocketAddress sender, ByteBuffer datagram) {
+        if (running.get()) {
+            process(sender, datagram.duplicate());
+        }
+    }
+
+    @Override
+    protected Runnable serviceTask() {
+        throw new UnsupportedOperationException(
+                                                "Simulated datagrams are delivered by the network");
+    }
+
+    @Override
+    protected void transmit(ByteBuffer buffer, SocketAddress target) {
+        if (!running.get()) {
+            return;
+        }
+        ByteBuffer contents = buffer.duplicate();
+        contents.flip();
+        ByteBuffer datagram = ByteBuffer.allocate(contents.remaining());
+        datagram.put(contents);
+        datagram.flip();
+        bytesSent += datagram.remaining();
+        network.transmit(address, target, datagram);
+    }
+}
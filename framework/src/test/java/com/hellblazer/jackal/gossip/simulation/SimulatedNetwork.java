@@ -0,0 +1,165 @@
+/**
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.simulation;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The network connecting the simulated members. Datagrams are delivered after
+ * a latency drawn uniformly from the configured range, and are lost with the
+ * configured probability. The members may be partitioned into groups, and
+ * datagrams between members of different groups are dropped. All the
+ * randomness is drawn from the entropy of the simulation.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class SimulatedNetwork {
+    private long                                              bytes;
+    private long                                              datagrams;
+    private long                                              dropped;
+    private final Map<SocketAddress, SimulatedCommunications> endpoints  = new HashMap<SocketAddress, SimulatedCommunications>();
+    private final Random                                      entropy;
+    private double                                            loss;
+    private long                                              maxLatency = 1;
+    private long                                              minLatency = 1;
+    private int                                               partitionCount;
+    private final Map<SocketAddress, Integer>                 partitions = new HashMap<SocketAddress, Integer>();
+    private final Simulation                                  simulation;
+
+    public SimulatedNetwork(Simulation simulation) {
+        this.simulation = simulation;
+        entropy = simulation.getEntropy();
+    }
+
+    /**
+     * @return the number of bytes transmitted, including the datagrams dropped
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of datagrams transmitted, including those dropped
+     */
+    public long getDatagrams() {
+        return datagrams;
+    }
+
+    /**
+     * @return the number of datagrams lost or dropped by a partition
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Remove all partitions
+     */
+    public void heal() {
+        partitions.clear();
+    }
+
+    /**
+     * Answer true if datagrams can be delivered between the addresses
+     * 
+     * @param a
+     * @param b
+     * @return true if the addresses are in the same partition
+     */
+    public boolean isReachable(SocketAddress a, SocketAddress b) {
+        Integer p1 = partitions.get(a);
+        Integer p2 = partitions.get(b);
+        return p1 == null ? p2 == null : p1.equals(p2);
+    }
+
+    /**
+     * Separate the addresses from the rest of the network. Addresses in
+     * earlier partitions are moved to the new partition.
+     * 
+     * @param members
+     *            - the addresses of the new partition
+     */
+    public void partition(Collection<? extends SocketAddress> members) {
+        Integer partition = ++partitionCount;
+        for (SocketAddress member : members) {
+            partitions.put(member, partition);
+        }
+    }
+
+    /**
+     * @param minLatency
+     *            - the minimum milliseconds to deliver a datagram
+     * @param maxLatency
+     *            - the maximum milliseconds to deliver a datagram
+     */
+    public void setLatency(long minLatency, long maxLatency) {
+        if (minLatency < 0 || maxLatency < minLatency) {
+            throw new IllegalArgumentException(
+                                               String.format("Invalid latency, min: %s, max: %s",
+                                                             minLatency,
+                                                             maxLatency));
+        }
+        this.minLatency = minLatency;
+        this.maxLatency = maxLatency;
+    }
+
+    /**
+     * @param loss
+     *            - the probability a datagram is lost
+     */
+    public void setLoss(double loss) {
+        if (loss < 0.0 || loss > 1.0) {
+            throw new IllegalArgumentException("Invalid loss probability: "
+                                               + loss);
+        }
+        this.loss = loss;
+    }
+
+    void attach(SimulatedCommunications endpoint) {
+        endpoints.put(endpoint.getLocalAddress(), endpoint);
+    }
+
+    void transmit(final InetSocketAddress sender, SocketAddress target,
+                  final ByteBuffer datagram) {
+        datagrams++;
+        bytes += datagram.remaining();
+        final SimulatedCommunications receiver = endpoints.get(target);
+        if (receiver == null || !isReachable(sender, target)
+            || (loss > 0.0 && entropy.nextDouble() < loss)) {
+            dropped++;
+            return;
+        }
+        long latency = minLatency;
+        if (maxLatency > minLatency) {
+            latency += (long) (entropy.nextDouble() * (maxLatency - minLatency + 1));
+        }
+        simulation.schedule(latency, new Runnable() {
+            @Override
+            public void run() {
+                receiver.deliver(sender, datagram);
+            }
+        });
+    }
+}
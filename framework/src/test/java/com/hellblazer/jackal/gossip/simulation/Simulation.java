@@ -0,0 +1,137 @@
+/**
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.simulation;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import com.hellblazer.jackal.util.Clock;
+
+/**
+ * A discrete event simulation driven by a virtual clock. Events are processed
+ * in the order of their scheduled time, and in the order of their scheduling
+ * for events of the same time, so that a simulation is deterministic for a
+ * given seed of its entropy. The clock only advances as events are processed,
+ * and the simulation is single threaded.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Simulation implements Clock {
+    private static class Event implements Comparable<Event> {
+        private final Runnable action;
+        private final long     sequence;
+        private final long     time;
+
+        Event(long time, long sequence, Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1
+                                            : sequence == other.sequence ? 0
+                                                                        : 1;
+        }
+    }
+
+    private final Random               entropy;
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private long                       now;
+    private long                       processed;
+    private long                       sequence;
+
+    /**
+     * @param seed
+     *            - the seed of the entropy of the simulation
+     * @param origin
+     *            - the initial time of the virtual clock
+     */
+    public Simulation(long seed, long origin) {
+        entropy = new Random(seed);
+        now = origin;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    /**
+     * @return the source of entropy of the simulation
+     */
+    public Random getEntropy() {
+        return entropy;
+    }
+
+    /**
+     * @return the number of events processed
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * Advance the clock, processing the events scheduled up to and including
+     * the time
+     * 
+     * @param time
+     *            - the time to advance the clock to
+     */
+    public void runUntil(long time) {
+        while (!events.isEmpty() && events.peek().time <= time) {
+            step();
+        }
+        if (time > now) {
+            now = time;
+        }
+    }
+
+    /**
+     * Schedule the action
+     * 
+     * @param delay
+     *            - the milliseconds from now the action is processed. Negative
+     *            delays are processed now
+     * @param action
+     */
+    public void schedule(long delay, Runnable action) {
+        events.add(new Event(now + Math.max(0L, delay), sequence++, action));
+    }
+
+    /**
+     * Process the next event, advancing the clock to its time
+     * 
+     * @return false if there are no events to process
+     */
+    public boolean step() {
+        Event event = events.poll();
+        if (event == null) {
+            return false;
+        }
+        now = event.time;
+        processed++;
+        event.action.run();
+        return true;
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.simulation;
+
+import static java.lang.String.format;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A scheduled executor running its tasks as the events of a simulation, on
+ * the virtual clock of the simulation. Each simulated member has its own
+ * scheduler, so that shutting down a member only cancels the tasks of that
+ * member. As with the scheduled executors of the JDK, a periodic task which
+ * throws is not run again.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class VirtualScheduler extends AbstractExecutorService implements
+        ScheduledExecutorService {
+    private class Task<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        /**
+         * Positive for a fixed rate, negative for a fixed delay and zero for a
+         * one shot task
+         */
+        private final long period;
+        private long       time;
+
+        Task(Callable<V> callable, long time) {
+            super(callable);
+            this.time = time;
+            period = 0;
+        }
+
+        Task(Runnable runnable, long time, long period) {
+            super(runnable, null);
+            this.time = time;
+            this.period = period;
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long diff = getDelay(TimeUnit.MILLISECONDS)
+                        - o.getDelay(TimeUnit.MILLISECONDS);
+            return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - simulation.currentTimeMillis(),
+                                TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            if (shutdown) {
+                cancel(false);
+                return;
+            }
+            if (period == 0) {
+                super.run();
+            } else if (runAndReset()) {
+                time = period > 0 ? time + period
+                                 : simulation.currentTimeMillis() - period;
+                enqueue(this);
+            }
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            if (log.isWarnEnabled()) {
+                log.warn(format("Exception in task of %s", name), t);
+            }
+            super.setException(t);
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(VirtualScheduler.class);
+
+    private final String        name;
+    private volatile boolean    shutdown;
+    private final Simulation    simulation;
+
+    public VirtualScheduler(String name, Simulation simulation) {
+        this.name = name;
+        this.simulation = simulation;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return shutdown;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown;
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay,
+                                           TimeUnit unit) {
+        return enqueue(new Task<V>(callable, deadline(delay, unit)));
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay,
+                                       TimeUnit unit) {
+        return enqueue(new Task<Object>(command, deadline(delay, unit), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+                                                  long initialDelay,
+                                                  long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive");
+        }
+        return enqueue(new Task<Object>(command,
+                                        deadline(initialDelay, unit),
+                                        Math.max(1, unit.toMillis(period))));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+                                                     long initialDelay,
+                                                     long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("Delay must be positive");
+        }
+        return enqueue(new Task<Object>(command,
+                                        deadline(initialDelay, unit),
+                                        -Math.max(1, unit.toMillis(delay))));
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        return Collections.emptyList();
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualScheduler [" + name + "]";
+    }
+
+    private long deadline(long delay, TimeUnit unit) {
+        return simulation.currentTimeMillis()
+               + Math.max(0L, unit.toMillis(delay));
+    }
+
+    private <V> Task<V> enqueue(Task<V> task) {
+        if (shutdown) {
+            task.cancel(false);
+            return task;
+        }
+        simulation.schedule(task.time - simulation.currentTimeMillis(), task);
+        return task;
+    }
+}
@@ -24,6 +24,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
@@ -38,6 +39,7 @@ import org.smartfrog.services.anubis.partition.wire.msg.Heartbeat;
 
 import com.hellblazer.jackal.gossip.FailureDetectorFactory;
 import com.hellblazer.jackal.gossip.Gossip;
+import com.hellblazer.jackal.gossip.GossipCommunications;
 import com.hellblazer.jackal.gossip.HeartbeatState;
 import com.hellblazer.jackal.gossip.SystemView;
 import com.hellblazer.jackal.gossip.fd.PhiFailureDetectorFactory;
@@ -73,6 +75,10 @@ public class EndToEndTest extends TestCase {
             throw new UnsupportedOperationException();
         }
 
+        @Override
+        public void leave(Identity peer) {
+        }
+
         @Override
         public boolean receiveHeartbeat(Heartbeat hb) {
             assert hb.getSender().id >= 0;
@@ -172,11 +178,10 @@ public class EndToEndTest extends TestCase {
                 return t;
             }
         };
-        UdpCommunications communications = new UdpCommunications(
-                                                                 new InetSocketAddress(
-                                                                                       "127.0.0.1",
-                                                                                       0),
-                                                                 Executors.newCachedThreadPool(threadFactory));
+        GossipCommunications communications = createTransport(new InetSocketAddress(
+                                                                                     "127.0.0.1",
+                                                                                     0),
+                                                              Executors.newCachedThreadPool(threadFactory));
 
         SystemView view = new SystemView(new Random(),
                                          communications.getLocalAddress(),
@@ -187,14 +192,24 @@ public class EndToEndTest extends TestCase {
                                                                          1,
                                                                          1.0,
                                                                          true);
-        Gossip gossip = new Gossip(view, new Random(), communications, 1,
-                                   TimeUnit.SECONDS, fdFactory, new Identity(0,
-                                                                             i,
-                                                                             0));
+        Gossip gossip = createGossip(view, communications, fdFactory,
+                                     new Identity(0, i, 0));
         gossip.create(receiver);
         return gossip;
     }
 
+    protected Gossip createGossip(SystemView view,
+                                  GossipCommunications communications,
+                                  FailureDetectorFactory fdFactory, Identity id) {
+        return new Gossip(view, new Random(), communications, 1,
+                          TimeUnit.SECONDS, fdFactory, id);
+    }
+
+    protected GossipCommunications createTransport(InetSocketAddress endpoint,
+                                                   ExecutorService executor) {
+        return new UdpCommunications(endpoint, executor);
+    }
+
     protected void updateAndAwait(int iteration, int membership,
                                   Receiver[] receivers, List<Gossip> members)
                                                                              throws InterruptedException {
@@ -0,0 +1,275 @@
+/** (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.udp;
+
+import static java.util.Arrays.asList;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.hellblazer.jackal.gossip.udp.InboundDispatcher.DatagramHandler;
+import com.hellblazer.jackal.gossip.udp.InboundDispatcher.OverloadPolicy;
+import com.hellblazer.jackal.util.ByteBufferPool;
+
+/**
+ * Test the bounded dispatch of inbound datagrams
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class InboundDispatcherTest extends TestCase {
+    private static class BlockingHandler implements DatagramHandler {
+        private final CountDownLatch entered  = new CountDownLatch(1);
+        private final CountDownLatch release  = new CountDownLatch(1);
+        private final List<Integer>  received = new ArrayList<Integer>();
+        private final CountDownLatch done;
+
+        private BlockingHandler(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void handle(InetSocketAddress sender, ByteBuffer buffer) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            received.add(buffer.getInt());
+            done.countDown();
+        }
+    }
+
+    private ExecutorService executor;
+
+    public void testDropNewest() throws Exception {
+        BlockingHandler handler = new BlockingHandler(5);
+        InboundDispatcher dispatcher = new InboundDispatcher(
+                                                             1,
+                                                             4,
+                                                             OverloadPolicy.DROP_NEWEST,
+                                                             new ByteBufferPool(
+                                                                                "test",
+                                                                                10),
+                                                             handler);
+        fill(dispatcher, handler);
+        assertTrue(handler.done.await(10, TimeUnit.SECONDS));
+        assertEquals(asList(1, 2, 3, 4, 5), handler.received);
+        assertEquals(2, dispatcher.getDropped());
+        dispatcher.terminate();
+    }
+
+    public void testDropOldest() throws Exception {
+        BlockingHandler handler = new BlockingHandler(5);
+        InboundDispatcher dispatcher = new InboundDispatcher(
+                                                             1,
+                                                             4,
+                                                             OverloadPolicy.DROP_OLDEST,
+                                                             new ByteBufferPool(
+                                                                                "test",
+                                                                                10),
+                                                             handler);
+        fill(dispatcher, handler);
+        assertTrue(handler.done.await(10, TimeUnit.SECONDS));
+        assertEquals(asList(1, 4, 5, 6, 7), handler.received);
+        assertEquals(2, dispatcher.getDropped());
+        dispatcher.terminate();
+    }
+
+    public void testFullRingsReuseBuffers() throws Exception {
+        final Semaphore permits = new Semaphore(0);
+        final Semaphore handled = new Semaphore(0);
+        ByteBufferPool pool = new ByteBufferPool(
+                                                 "test",
+                                                 InboundDispatcher.bufferLimit(1,
+                                                                               4));
+        InboundDispatcher dispatcher = new InboundDispatcher(
+                                                             1,
+                                                             4,
+                                                             OverloadPolicy.DROP_NEWEST,
+                                                             pool,
+                                                             new DatagramHandler() {
+                                                                 @Override
+                                                                 public void handle(InetSocketAddress sender,
+                                                                                    ByteBuffer buffer) {
+                                                                     permits.acquireUninterruptibly();
+                                                                     handled.release();
+                                                                 }
+                                                             });
+        dispatcher.start(executor);
+        InetSocketAddress sender = new InetSocketAddress("127.0.0.1", 1000);
+        for (int round = 0; round < 2; round++) {
+            // the worker blocks on the first datagram, the next 4 fill its
+            // ring and the last is dropped
+            assertTrue(dispatcher.dispatch(sender, datagram(pool, 0)));
+            waitFor(dispatcher, 0);
+            for (int i = 1; i <= 4; i++) {
+                assertTrue(dispatcher.dispatch(sender, datagram(pool, i)));
+            }
+            assertFalse(dispatcher.dispatch(sender, datagram(pool, 5)));
+            permits.release(5);
+            assertTrue(handled.tryAcquire(5, 10, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (pool.size() < 6 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(6, pool.size());
+            assertEquals(6, pool.getCreated());
+            assertEquals(0, pool.getDiscarded());
+        }
+        dispatcher.terminate();
+    }
+
+    public void testPerSenderOrder() throws Exception {
+        int senders = 16;
+        int datagrams = 500;
+        final CountDownLatch done = new CountDownLatch(senders * datagrams);
+        final Map<InetSocketAddress, List<Integer>> received = new HashMap<InetSocketAddress, List<Integer>>();
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (int i = 0; i < senders; i++) {
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1",
+                                                              1000 + i);
+            addresses.add(address);
+            received.put(address, new ArrayList<Integer>());
+        }
+        InboundDispatcher dispatcher = new InboundDispatcher(
+                                                             4,
+                                                             senders
+                                                                     * datagrams,
+                                                             OverloadPolicy.DROP_NEWEST,
+                                                             new ByteBufferPool(
+                                                                                "test",
+                                                                                10),
+                                                             new DatagramHandler() {
+                                                                 @Override
+                                                                 public void handle(InetSocketAddress sender,
+                                                                                    ByteBuffer buffer) {
+                                                                     List<Integer> list = received.get(sender);
+                                                                     synchronized (list) {
+                                                                         list.add(buffer.getInt());
+                                                                     }
+                                                                     done.countDown();
+                                                                 }
+                                                             });
+        dispatcher.start(executor);
+        for (int i = 0; i < datagrams; i++) {
+            for (InetSocketAddress address : addresses) {
+                assertTrue(dispatcher.dispatch(address, datagram(i)));
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (InetSocketAddress address : addresses) {
+            List<Integer> list = received.get(address);
+            synchronized (list) {
+                assertEquals(datagrams, list.size());
+                for (int i = 0; i < datagrams; i++) {
+                    assertEquals(i, list.get(i).intValue());
+                }
+            }
+        }
+        // a datagram is counted as processed after its handler returns
+        long deadline = System.currentTimeMillis() + 10000;
+        while (dispatcher.getProcessed() < senders * datagrams
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(senders * datagrams, dispatcher.getProcessed());
+        assertEquals(0, dispatcher.getDropped());
+        assertEquals(0, dispatcher.getQueued());
+        dispatcher.terminate();
+    }
+
+    public void testTerminateDrops() throws Exception {
+        BlockingHandler handler = new BlockingHandler(1);
+        InboundDispatcher dispatcher = new InboundDispatcher(
+                                                             1,
+                                                             4,
+                                                             OverloadPolicy.DROP_NEWEST,
+                                                             new ByteBufferPool(
+                                                                                "test",
+                                                                                10),
+                                                             handler);
+        dispatcher.terminate();
+        assertFalse(dispatcher.dispatch(new InetSocketAddress("127.0.0.1",
+                                                              1000),
+                                        datagram(0)));
+        assertEquals(0, dispatcher.getQueued());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private ByteBuffer datagram(ByteBufferPool pool, int value) {
+        ByteBuffer buffer = pool.allocate(4);
+        buffer.putInt(value);
+        buffer.flip();
+        return buffer;
+    }
+
+    private ByteBuffer datagram(int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(value);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Block the worker on the first datagram, then overflow its ring of 4 with
+     * 6 more datagrams
+     */
+    private void fill(InboundDispatcher dispatcher, BlockingHandler handler)
+                                                                            throws InterruptedException {
+        InetSocketAddress sender = new InetSocketAddress("127.0.0.1", 1000);
+        dispatcher.start(executor);
+        assertTrue(dispatcher.dispatch(sender, datagram(1)));
+        assertTrue(handler.entered.await(10, TimeUnit.SECONDS));
+        for (int i = 2; i <= 7; i++) {
+            dispatcher.dispatch(sender, datagram(i));
+        }
+        assertEquals(4, dispatcher.getQueued());
+        handler.release.countDown();
+    }
+
+    private void waitFor(InboundDispatcher dispatcher, int queued)
+                                                                  throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (dispatcher.getQueued() != queued
+               && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(queued, dispatcher.getQueued());
+    }
+}
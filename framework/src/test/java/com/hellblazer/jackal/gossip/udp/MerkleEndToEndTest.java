@@ -0,0 +1,46 @@
+/** (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.udp;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.smartfrog.services.anubis.partition.util.Identity;
+
+import com.hellblazer.jackal.configuration.GossipHeartbeatAndDiscoveryConfig.GossipConfiguration;
+import com.hellblazer.jackal.gossip.FailureDetectorFactory;
+import com.hellblazer.jackal.gossip.Gossip;
+import com.hellblazer.jackal.gossip.GossipCommunications;
+import com.hellblazer.jackal.gossip.SystemView;
+
+/**
+ * End to end testing of the Merkle tree anti-entropy mode of gossip
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class MerkleEndToEndTest extends NioEndToEndTest {
+
+    @Override
+    protected Gossip createGossip(SystemView view,
+                                  GossipCommunications communications,
+                                  FailureDetectorFactory fdFactory, Identity id) {
+        return new Gossip(view, new Random(), communications, fdFactory, id,
+                          new GossipConfiguration.Builder(1, TimeUnit.SECONDS).merkleAntiEntropy(true)
+                                                                              .build());
+    }
+}
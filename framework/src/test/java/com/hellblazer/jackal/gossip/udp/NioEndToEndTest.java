@@ -0,0 +1,37 @@
+/** (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.udp;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+
+import com.hellblazer.jackal.gossip.GossipCommunications;
+
+/**
+ * Basic end to end testing of the non blocking UDP transport
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class NioEndToEndTest extends EndToEndTest {
+
+    @Override
+    protected GossipCommunications createTransport(InetSocketAddress endpoint,
+                                                   ExecutorService executor) {
+        return new NioUdpCommunications(endpoint, executor);
+    }
+}
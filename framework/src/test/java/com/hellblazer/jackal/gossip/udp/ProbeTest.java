@@ -0,0 +1,87 @@
+/** (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.gossip.udp;
+
+import static java.util.Arrays.asList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import com.hellblazer.jackal.gossip.Gossip;
+
+/**
+ * Test the direct and indirect probing of members over UDP
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class ProbeTest extends TestCase {
+    private ExecutorService executor;
+
+    public void testProbe() throws Exception {
+        Gossip originGossip = mock(Gossip.class);
+        Gossip relayGossip = mock(Gossip.class);
+        Gossip targetGossip = mock(Gossip.class);
+        NioUdpCommunications origin = create(originGossip);
+        NioUdpCommunications relay = create(relayGossip);
+        NioUdpCommunications target = create(targetGossip);
+        try {
+            origin.ping(target.getLocalAddress(), 1);
+            verify(originGossip, timeout(2000)).acknowledge(target.getLocalAddress(),
+                                                            1);
+
+            origin.requestPing(target.getLocalAddress(), 2,
+                               asList(relay.getLocalAddress()));
+            verify(originGossip, timeout(2000)).acknowledge(target.getLocalAddress(),
+                                                            2);
+            verify(relayGossip, never()).acknowledge(target.getLocalAddress(),
+                                                     2);
+        } finally {
+            origin.terminate();
+            relay.terminate();
+            target.terminate();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private NioUdpCommunications create(Gossip gossip) {
+        NioUdpCommunications communications = new NioUdpCommunications(
+                                                                       new InetSocketAddress(
+                                                                                             "127.0.0.1",
+                                                                                             0),
+                                                                       executor);
+        communications.setGossip(gossip);
+        communications.start();
+        return communications;
+    }
+}
@@ -0,0 +1,108 @@
+/** 
+ * (C) Copyright 2010 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.util;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class RandomAccessSetTest {
+    @Test
+    public void testAddRemove() {
+        RandomAccessSet<Integer> test = new RandomAccessSet<Integer>();
+        assertNull(test.random(new Random(0x666)));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(test.add(i));
+            assertFalse(test.add(i));
+        }
+        assertEquals(100, test.size());
+        assertTrue(test.remove(0));
+        assertFalse(test.remove(0));
+        assertTrue(test.remove(50));
+        assertTrue(test.remove(99));
+        assertEquals(97, test.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i != 0 && i != 50 && i != 99, test.contains(i));
+        }
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        RandomAccessSet<Integer> test = new RandomAccessSet<Integer>();
+        for (int i = 0; i < 10; i++) {
+            test.add(i);
+        }
+        for (Iterator<Integer> iterator = test.iterator(); iterator.hasNext();) {
+            if (iterator.next() % 2 == 0) {
+                iterator.remove();
+            }
+        }
+        assertEquals(5, test.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i % 2 != 0, test.contains(i));
+        }
+    }
+
+    @Test
+    public void testRandom() {
+        Random r = new Random(0x666);
+        RandomAccessSet<Integer> test = new RandomAccessSet<Integer>();
+        for (int i = 0; i < 20; i++) {
+            test.add(i);
+        }
+        for (int i = 0; i < 20; i += 3) {
+            test.remove(i);
+        }
+        Set<Integer> sampled = new HashSet<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            Integer member = test.random(r);
+            assertTrue(test.contains(member));
+            sampled.add(member);
+        }
+        assertEquals(test.size(), sampled.size());
+    }
+
+    @Test
+    public void testSample() {
+        Random r = new Random(0x666);
+        RandomAccessSet<Integer> test = new RandomAccessSet<Integer>();
+        for (int i = 0; i < 100; i++) {
+            test.add(i);
+        }
+        for (int i = 0; i < 100; i++) {
+            List<Integer> sample = test.sample(7, r);
+            assertEquals(7, sample.size());
+            assertEquals(7, new HashSet<Integer>(sample).size());
+            assertTrue(test.containsAll(sample));
+        }
+        assertEquals(100, new HashSet<Integer>(test.sample(200, r)).size());
+    }
+}
@@ -0,0 +1,38 @@
+package com.hellblazer.jackal.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SortedWindowTest extends TestCase {
+    public void testOrderStatistics() {
+        Random random = new Random(666);
+        SortedWindow window = new SortedWindow(100);
+        List<Double> input = new ArrayList<Double>();
+
+        for (int i = 0; i < 1000; i++) {
+            double sample = random.nextInt(50);
+            input.add(sample);
+            window.sample(sample);
+            List<Double> current = new ArrayList<Double>(
+                                                         input.subList(Math.max(0,
+                                                                                input.size() - 100),
+                                                                       input.size()));
+            Collections.sort(current);
+            assertEquals(current.size(), window.size());
+            for (int j = 0; j < current.size(); j++) {
+                assertEquals(current.get(j), window.get(j));
+            }
+            double probe = random.nextInt(52) - 1;
+            int expected = 0;
+            while (expected < current.size()
+                   && current.get(expected) <= probe) {
+                expected++;
+            }
+            assertEquals(expected, window.countLessThanEqualTo(probe));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/** 
+ * (C) Copyright 2011 Hal Hildebrand, All Rights Reserved
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.hellblazer.jackal.util;
+
+import static java.util.Arrays.asList;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author hhildebrand
+ * 
+ */
+public class TimingWheelTest {
+    @Test
+    public void testExpire() {
+        TimingWheel<String> wheel = new TimingWheel<String>(6, 10, 1000);
+        assertEquals(80, wheel.getHorizon());
+        wheel.schedule("a", 1015);
+        wheel.schedule("b", 1025);
+        wheel.schedule("c", 1500);
+        wheel.schedule("d", 900);
+        assertEquals(4, wheel.size());
+
+        assertEquals(asList("d"), wheel.expire(1005));
+        assertTrue(wheel.expire(1009).isEmpty());
+        assertEquals(asList("a"), wheel.expire(1010));
+        assertEquals(asList("b"), wheel.expire(1100));
+        assertEquals(1, wheel.size());
+        assertTrue(wheel.expire(1499).isEmpty());
+        assertEquals(asList("c"), wheel.expire(1500));
+        assertEquals(0, wheel.size());
+        assertTrue(wheel.expire(1000).isEmpty());
+    }
+
+    @Test
+    public void testReschedule() {
+        TimingWheel<String> wheel = new TimingWheel<String>(8, 10, 0);
+        wheel.schedule("a", 15);
+        wheel.schedule("b", 15);
+        wheel.schedule("a", 45);
+        assertTrue(wheel.cancel("b"));
+        assertFalse(wheel.cancel("b"));
+        assertTrue(wheel.expire(30).isEmpty());
+        assertEquals(asList("a"), wheel.expire(40));
+
+        wheel.schedule("a", 100);
+        wheel.schedule("a", 20);
+        assertEquals(asList("a"), wheel.expire(50));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testManyRotations() {
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(16, 1, 0);
+        for (int i = 0; i < 1000; i++) {
+            wheel.schedule(i, i);
+        }
+        HashSet<Integer> expired = new HashSet<Integer>();
+        for (long now = 0; now < 1000; now += 7) {
+            List<Integer> batch = wheel.expire(now);
+            for (Integer i : batch) {
+                assertTrue(i <= now);
+                assertTrue(expired.add(i));
+            }
+        }
+        expired.addAll(wheel.expire(1000));
+        assertEquals(1000, expired.size());
+        assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,210 @@
+/** (C) Copyright 1998-2005 Hewlett-Packard Development Company, LP
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+For more information: www.smartfrog.org
+
+ */
+package org.smartfrog.services.anubis.partition.protocols.partitionmanager;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.smartfrog.services.anubis.partition.comms.Connection;
+import org.smartfrog.services.anubis.partition.comms.IOConnectionServer;
+import org.smartfrog.services.anubis.partition.comms.IOConnectionServerFactory;
+import org.smartfrog.services.anubis.partition.comms.multicast.HeartbeatCommsFactory;
+import org.smartfrog.services.anubis.partition.comms.multicast.HeartbeatCommsIntf;
+import org.smartfrog.services.anubis.partition.protocols.heartbeat.HeartbeatProtocol;
+import org.smartfrog.services.anubis.partition.protocols.heartbeat.HeartbeatProtocolFactory;
+import org.smartfrog.services.anubis.partition.protocols.leader.Candidate;
+import org.smartfrog.services.anubis.partition.protocols.leader.LeaderMgr;
+import org.smartfrog.services.anubis.partition.protocols.leader.LeaderProtocolFactory;
+import org.smartfrog.services.anubis.partition.util.Identity;
+import org.smartfrog.services.anubis.partition.util.NodeIdSet;
+import org.smartfrog.services.anubis.partition.views.View;
+import org.smartfrog.services.anubis.partition.views.ViewListener;
+import org.smartfrog.services.anubis.partition.wire.msg.Heartbeat;
+
+/**
+ * Test the connection set's event loop: which events are posted to the
+ * interval executive and which are handled inline, the sending of heartbeats
+ * on the sender thread, and termination
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class ConnectionSetTest extends TestCase {
+    private static final int         MAGIC = 12345;
+
+    private ConnectionSet            connectionSet;
+    private HeartbeatCommsIntf       heartbeatComms;
+    private HeartbeatProtocolFactory heartbeatProtocolFactory;
+    private Identity                 identity;
+    private Identity                 peer;
+    private HeartbeatProtocol        peerProtocol;
+
+    public void testHeartbeatInlineHoldingMonitor() throws Exception {
+        Heartbeat hb = heartbeatFrom(peer);
+        synchronized (connectionSet) {
+            assertTrue(connectionSet.receiveHeartbeat(hb));
+        }
+        verify(heartbeatProtocolFactory).createProtocol(eq(hb),
+                                                        eq(connectionSet),
+                                                        any(Heartbeat.class));
+        assertNotNull(connectionSet.getConnection(peer));
+    }
+
+    public void testHeartbeatPosted() throws Exception {
+        Heartbeat hb = heartbeatFrom(peer);
+        assertTrue(connectionSet.receiveHeartbeat(hb));
+        verify(heartbeatProtocolFactory, never()).createProtocol(any(Heartbeat.class),
+                                                                 any(ViewListener.class),
+                                                                 any(Heartbeat.class));
+        assertNull(connectionSet.getConnection(peer));
+
+        connectionSet.start();
+        verify(heartbeatProtocolFactory, timeout(2000)).createProtocol(eq(hb),
+                                                                       eq(connectionSet),
+                                                                       any(Heartbeat.class));
+    }
+
+    public void testLeavePosted() throws Exception {
+        synchronized (connectionSet) {
+            connectionSet.receiveHeartbeat(heartbeatFrom(peer));
+        }
+        assertNotNull(connectionSet.getConnection(peer));
+
+        connectionSet.leave(peer);
+        assertNotNull(connectionSet.getConnection(peer));
+
+        synchronized (connectionSet) {
+            connectionSet.leave(peer);
+        }
+        assertNull(connectionSet.getConnection(peer));
+    }
+
+    public void testSenderThread() throws Exception {
+        final AtomicReference<Thread> sendingThread = new AtomicReference<Thread>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                sendingThread.compareAndSet(null, Thread.currentThread());
+                return null;
+            }
+        }).when(heartbeatComms).sendHeartbeat(isA(Heartbeat.class));
+
+        connectionSet.start();
+        verify(heartbeatComms, timeout(2000)).sendHeartbeat(isA(Heartbeat.class));
+        Thread sender = sendingThread.get();
+        assertNotNull(sender);
+        assertEquals("Heartbeat sender (node " + identity.id + ")",
+                     sender.getName());
+        assertNotSame(intervalExec(), sender);
+    }
+
+    public void testTerminate() throws Exception {
+        connectionSet.start();
+        IntervalExec intervalExec = intervalExec();
+        assertTrue(intervalExec.isAlive());
+
+        connectionSet.terminate();
+        intervalExec.join(2000);
+        assertFalse(intervalExec.isAlive());
+
+        reset(heartbeatComms);
+        assertFalse(connectionSet.receiveHeartbeat(heartbeatFrom(peer)));
+        connectionSet.sendHeartbeat(System.currentTimeMillis());
+        Thread.sleep(100);
+        verify(heartbeatComms, never()).sendHeartbeat(isA(Heartbeat.class));
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        identity = new Identity(MAGIC, 1, 1);
+        peer = new Identity(MAGIC, 2, 1);
+        heartbeatComms = mock(HeartbeatCommsIntf.class);
+        HeartbeatCommsFactory heartbeatCommsFactory = mock(HeartbeatCommsFactory.class);
+        when(heartbeatCommsFactory.create(any(ConnectionSet.class))).thenReturn(heartbeatComms);
+        IOConnectionServer connectionServer = mock(IOConnectionServer.class);
+        when(connectionServer.getAddress()).thenReturn(new InetSocketAddress(
+                                                                             "127.0.0.1",
+                                                                             0));
+        IOConnectionServerFactory connectionServerFactory = mock(IOConnectionServerFactory.class);
+        when(connectionServerFactory.create(any(InetSocketAddress.class),
+                                            eq(identity),
+                                            any(ConnectionSet.class))).thenReturn(connectionServer);
+        LeaderProtocolFactory leaderProtocolFactory = mock(LeaderProtocolFactory.class);
+        when(leaderProtocolFactory.createCandidate(any(Heartbeat.class))).thenReturn(mock(Candidate.class));
+        when(leaderProtocolFactory.createMgr(anyMapOf(Identity.class,
+                                                      Connection.class),
+                                             any(Candidate.class))).thenReturn(mock(LeaderMgr.class));
+        Heartbeat heartbeat = mock(Heartbeat.class);
+        when(heartbeat.toSnapshot()).thenReturn(mock(Heartbeat.class));
+        heartbeatProtocolFactory = mock(HeartbeatProtocolFactory.class);
+        when(heartbeatProtocolFactory.createMsg(eq(identity),
+                                                any(InetSocketAddress.class))).thenReturn(heartbeat);
+        peerProtocol = mock(HeartbeatProtocol.class);
+        when(peerProtocol.getSender()).thenReturn(peer);
+        when(peerProtocol.toBitSet()).thenReturn(new NodeIdSet());
+        when(heartbeatProtocolFactory.createProtocol(any(Heartbeat.class),
+                                                     any(ViewListener.class),
+                                                     any(Heartbeat.class))).thenReturn(peerProtocol);
+        connectionSet = new ConnectionSet(
+                                          new InetSocketAddress("127.0.0.1", 0),
+                                          identity, heartbeatCommsFactory,
+                                          connectionServerFactory,
+                                          leaderProtocolFactory,
+                                          heartbeatProtocolFactory,
+                                          mock(PartitionProtocol.class), 50,
+                                          2, false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        connectionSet.terminate();
+    }
+
+    private Heartbeat heartbeatFrom(Identity sender) {
+        Heartbeat hb = mock(Heartbeat.class);
+        when(hb.getSender()).thenReturn(sender);
+        when(hb.getTime()).thenReturn(System.currentTimeMillis());
+        when(hb.getView()).thenReturn(mock(View.class));
+        return hb;
+    }
+
+    private IntervalExec intervalExec() throws Exception {
+        Field field = ConnectionSet.class.getDeclaredField("intervalExec");
+        field.setAccessible(true);
+        return (IntervalExec) field.get(connectionSet);
+    }
+}
@@ -0,0 +1,227 @@
+/** (C) Copyright 1998-2005 Hewlett-Packard Development Company, LP
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+For more information: www.smartfrog.org
+
+ */
+package org.smartfrog.services.anubis.partition.protocols.partitionmanager;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.smartfrog.services.anubis.partition.util.Identity;
+
+/**
+ * Test the interval executive's processing of posted events and its
+ * scheduling of the periodic checks. The scheduling is tested by driving the
+ * checks directly with chosen monotonic times, rather than by waiting.
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class IntervalExecTest extends TestCase {
+    private static final long PERIOD = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private ConnectionSet     connectionSet;
+    private IntervalExec      intervalExec;
+
+    public void testBatchBounded() throws Exception {
+        final int[] processed = new int[1];
+        int posted = IntervalExec.MAX_BATCH + IntervalExec.MAX_BATCH / 2;
+        for (int i = 0; i < posted; i++) {
+            intervalExec.post(new Runnable() {
+                @Override
+                public void run() {
+                    assertTrue(Thread.holdsLock(connectionSet));
+                    processed[0]++;
+                }
+            });
+        }
+        intervalExec.processEvents();
+        assertEquals(IntervalExec.MAX_BATCH, processed[0]);
+        intervalExec.processEvents();
+        assertEquals(posted, processed[0]);
+        intervalExec.processEvents();
+        assertEquals(posted, processed[0]);
+    }
+
+    public void testEventsInOrder() throws Exception {
+        final List<Integer> processed = new ArrayList<Integer>();
+        for (int i = 0; i < 10; i++) {
+            final int event = i;
+            intervalExec.post(new Runnable() {
+                @Override
+                public void run() {
+                    processed.add(event);
+                }
+            });
+        }
+        intervalExec.processEvents();
+        assertEquals(10, processed.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, processed.get(i).intValue());
+        }
+    }
+
+    public void testFailedEventDoesNotStopBatch() throws Exception {
+        final int[] processed = new int[1];
+        intervalExec.post(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("failed event");
+            }
+        });
+        intervalExec.post(new Runnable() {
+            @Override
+            public void run() {
+                processed[0]++;
+            }
+        });
+        intervalExec.processEvents();
+        assertEquals(1, processed[0]);
+    }
+
+    public void testMissedIntervalsSkipped() throws Exception {
+        long deadline = 10 * PERIOD;
+        setDeadline("heartbeatDeadline", deadline);
+
+        intervalExec.tick(1000L, deadline + 2 * PERIOD + PERIOD / 2);
+        verify(connectionSet).sendHeartbeat(1000L);
+        assertEquals(deadline + 3 * PERIOD, getDeadline("heartbeatDeadline"));
+
+        intervalExec.tick(1001L, deadline + 3 * PERIOD - 1);
+        verify(connectionSet, never()).sendHeartbeat(1001L);
+    }
+
+    public void testNextHeartbeatDeadline() throws Exception {
+        long deadline = 1000 * PERIOD + 17;
+        assertEquals(deadline + PERIOD,
+                     intervalExec.nextHeartbeatDeadline(deadline, deadline));
+        assertEquals(deadline + PERIOD,
+                     intervalExec.nextHeartbeatDeadline(deadline + 1, deadline));
+        assertEquals(deadline + PERIOD,
+                     intervalExec.nextHeartbeatDeadline(deadline + PERIOD - 1,
+                                                        deadline));
+        assertEquals(deadline + 2 * PERIOD,
+                     intervalExec.nextHeartbeatDeadline(deadline + PERIOD,
+                                                        deadline));
+        assertEquals(deadline + 4 * PERIOD,
+                     intervalExec.nextHeartbeatDeadline(deadline + 3 * PERIOD
+                                                        + PERIOD / 2, deadline));
+        assertEquals(deadline + 101 * PERIOD,
+                     intervalExec.nextHeartbeatDeadline(deadline + 100
+                                                        * PERIOD + 1, deadline));
+
+        // the deadlines stay on the grid, however late the wake up
+        for (long late = 0; late < 10 * PERIOD; late += PERIOD / 7) {
+            long next = intervalExec.nextHeartbeatDeadline(deadline + late,
+                                                           deadline);
+            assertEquals(0, (next - deadline) % PERIOD);
+            assertTrue(next > deadline + late);
+            assertTrue(next <= deadline + late + PERIOD);
+        }
+    }
+
+    public void testStabilityChecked() throws Exception {
+        long heartbeat = 10 * PERIOD;
+        long stability = heartbeat - PERIOD / 2;
+        setDeadline("heartbeatDeadline", heartbeat);
+        intervalExec.setStability(0L);
+        setDeadline("stabilityDeadline", stability);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                intervalExec.clearStability();
+                return null;
+            }
+        }).when(connectionSet).checkStability(anyLong());
+
+        intervalExec.tick(1000L, stability);
+        verify(connectionSet).checkStability(1000L);
+        verify(connectionSet, never()).sendHeartbeat(anyLong());
+        assertEquals(0L, getDeadline("stabilityDeadline"));
+        assertEquals(heartbeat, getDeadline("heartbeatDeadline"));
+    }
+
+    public void testStabilityRetriedAtNextHeartbeat() throws Exception {
+        long heartbeat = 10 * PERIOD;
+        long stability = heartbeat - PERIOD / 2;
+        setDeadline("heartbeatDeadline", heartbeat);
+        intervalExec.setStability(0L);
+        setDeadline("stabilityDeadline", stability);
+
+        // not yet stable by the view's time stamp: check again at the next
+        // heartbeat rather than immediately
+        intervalExec.tick(1000L, stability);
+        verify(connectionSet).checkStability(1000L);
+        assertEquals(heartbeat, getDeadline("stabilityDeadline"));
+
+        intervalExec.tick(1001L, stability + 1);
+        verify(connectionSet, never()).checkStability(1001L);
+
+        // both deadlines pass: the heartbeat is sent and stability is
+        // retried at the following heartbeat
+        intervalExec.tick(1002L, heartbeat);
+        verify(connectionSet).sendHeartbeat(1002L);
+        verify(connectionSet).checkStability(1002L);
+        assertEquals(heartbeat + PERIOD, getDeadline("heartbeatDeadline"));
+        assertEquals(heartbeat + PERIOD, getDeadline("stabilityDeadline"));
+    }
+
+    public void testTerminateBeforeRun() throws Exception {
+        intervalExec.start();
+        intervalExec.terminate();
+        intervalExec.join(2000);
+        assertFalse(intervalExec.isAlive());
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        connectionSet = mock(ConnectionSet.class);
+        intervalExec = new IntervalExec(new Identity(12345, 1, 1),
+                                        connectionSet,
+                                        TimeUnit.NANOSECONDS.toMillis(PERIOD));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        intervalExec.terminate();
+    }
+
+    private long getDeadline(String name) throws Exception {
+        Field field = IntervalExec.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.getLong(intervalExec);
+    }
+
+    private void setDeadline(String name, long deadline) throws Exception {
+        Field field = IntervalExec.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.setLong(intervalExec, deadline);
+    }
+}
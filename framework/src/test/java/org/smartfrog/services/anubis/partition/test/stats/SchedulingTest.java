@@ -0,0 +1,79 @@
+/** (C) Copyright 1998-2005 Hewlett-Packard Development Company, LP
+
+This library is free software; you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public
+License as published by the Free Software Foundation; either
+version 2.1 of the License, or (at your option) any later version.
+
+This library is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public
+License along with this library; if not, write to the Free Software
+Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+
+For more information: www.smartfrog.org
+
+ */
+package org.smartfrog.services.anubis.partition.test.stats;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the histogram of scheduling delays
+ * 
+ * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
+ * 
+ */
+public class SchedulingTest extends TestCase {
+
+    public void testBucket() throws Exception {
+        assertEquals(0, Scheduling.bucket(-5));
+        assertEquals(0, Scheduling.bucket(0));
+        assertEquals(1, Scheduling.bucket(1));
+        assertEquals(2, Scheduling.bucket(2));
+        assertEquals(2, Scheduling.bucket(3));
+        assertEquals(3, Scheduling.bucket(4));
+        assertEquals(10, Scheduling.bucket(1023));
+        assertEquals(11, Scheduling.bucket(1024));
+        assertEquals(14, Scheduling.bucket((1 << 14) - 1));
+        assertEquals(Scheduling.HISTOGRAM_BUCKETS - 1,
+                     Scheduling.bucket(1 << 14));
+        assertEquals(Scheduling.HISTOGRAM_BUCKETS - 1,
+                     Scheduling.bucket(Long.MAX_VALUE));
+
+        // bucket i holds the delays of at least 2^(i-1) and less than 2^i
+        for (int i = 1; i < Scheduling.HISTOGRAM_BUCKETS - 1; i++) {
+            assertEquals(i, Scheduling.bucket(1L << (i - 1)));
+            assertEquals(i, Scheduling.bucket((1L << i) - 1));
+        }
+    }
+
+    public void testHistogram() throws Exception {
+        Scheduling scheduling = new Scheduling();
+        long time = System.currentTimeMillis();
+        scheduling.add(time, 0);
+        scheduling.add(time, 0);
+        scheduling.add(time, 5);
+        scheduling.add(time, 7);
+        scheduling.add(time, 100000);
+
+        long[] histogram = scheduling.histogram();
+        assertEquals(Scheduling.HISTOGRAM_BUCKETS, histogram.length);
+        assertEquals(2, histogram[0]);
+        assertEquals(2, histogram[3]);
+        assertEquals(1, histogram[Scheduling.HISTOGRAM_BUCKETS - 1]);
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        assertEquals(5, total);
+        assertEquals(100000, scheduling.biggest());
+
+        // the histogram answered is a copy
+        histogram[0] = 0;
+        assertEquals(2, scheduling.histogram()[0]);
+    }
+}
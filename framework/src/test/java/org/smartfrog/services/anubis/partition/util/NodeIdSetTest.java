@@ -19,6 +19,11 @@ For more information: www.smartfrog.org
  */
 package org.smartfrog.services.anubis.partition.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Random;
@@ -26,8 +31,12 @@ import java.util.Set;
 
 import junit.framework.TestCase;
 
+import org.smartfrog.services.anubis.partition.views.BitView;
+import org.smartfrog.services.anubis.partition.wire.WireFormException;
 import org.smartfrog.services.anubis.partition.wire.msg.HeartbeatMsg;
 
+import com.hellblazer.jackal.util.VarInt;
+
 /**
  * 
  * @author <a href="mailto:hal.hildebrand@gmail.com">Hal Hildebrand</a>
@@ -52,7 +61,7 @@ public class NodeIdSetTest extends TestCase {
             }
         }
         assertEquals(entered.size(), bs.cardinality());
-        assertEquals(HeartbeatMsg.MAX_BIT_SIZE * 8, bs.size());
+        assertEquals((max + 8) / 8 * 8, bs.size());
         for (Iterator<Integer> stream = entered.iterator(); stream.hasNext(); stream.remove()) {
             for (int i : entered) {
                 assertTrue(bs.contains(i));
@@ -82,6 +91,75 @@ public class NodeIdSetTest extends TestCase {
 
     }
 
+    public void testFingerprint() {
+        NodeIdSet small = new NodeIdSet();
+        NodeIdSet large = new NodeIdSet();
+
+        small.add(10);
+        small.add(20);
+
+        large.add(Identity.MAX_ID);
+        large.remove(Identity.MAX_ID);
+        large.add(20);
+        large.add(10);
+
+        assertTrue(small.size() < large.size());
+        assertEquals(small.fingerprint(), large.fingerprint());
+        assertEquals(small, large);
+
+        long fingerprint = large.fingerprint();
+        large.add(30);
+        assertFalse(fingerprint == large.fingerprint());
+        assertFalse(small.equals(large));
+
+        small.merge(large);
+        assertEquals(large.fingerprint(), small.fingerprint());
+        assertEquals(small, large);
+
+        large.subtract(small);
+        assertEquals(new NodeIdSet().fingerprint(), large.fingerprint());
+        assertTrue(large.isEmpty());
+    }
+
+    public void testForEach() {
+        final NodeIdSet set = new NodeIdSet();
+        int[] ids = new int[] { 0, 7, 63, 64, 65, 127, 200, Identity.MAX_ID };
+        for (int id : ids) {
+            set.add(id);
+        }
+        assertEquals(ids.length, set.cardinality());
+
+        final int[] visited = new int[ids.length];
+        final int[] count = new int[1];
+        set.forEachId(new NodeIdSet.Visitor() {
+            @Override
+            public void visit(int id) {
+                visited[count[0]++] = id;
+            }
+        });
+        assertEquals(ids.length, count[0]);
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], visited[i]);
+        }
+
+        int i = 0;
+        for (int id = set.nextSetBit(0); id >= 0; id = set.nextSetBit(id + 1)) {
+            assertEquals(ids[i++], id);
+        }
+        assertEquals(ids.length, i);
+        assertEquals(64, set.nextSetBit(64));
+        assertEquals(-1, set.nextSetBit(Identity.MAX_ID + 1));
+
+        assertEquals(63, set.leftNeighborOf(64));
+        assertEquals(Identity.MAX_ID, set.leftNeighborOf(0));
+        assertEquals(0, set.rightNeighborOf(Identity.MAX_ID));
+        assertEquals(-1, set.rightNeighborOf(1));
+        int[] neighbors = set.neighborsOf(127);
+        assertEquals(65, neighbors[0]);
+        assertEquals(200, neighbors[1]);
+        assertNull(set.neighborsOf(128));
+    }
+
     public void testMergeDifferentBitSize() {
         NodeIdSet small = new NodeIdSet();
         NodeIdSet large = new NodeIdSet();
@@ -96,6 +174,32 @@ public class NodeIdSetTest extends TestCase {
         large.merge(small);
     }
 
+    public void testMergeGrowsToTopBit() {
+        NodeIdSet small = new NodeIdSet(8);
+        NodeIdSet large = new NodeIdSet();
+        large.add(15);
+
+        assertTrue(small.merge(large));
+        assertTrue(small.contains(15));
+        assertEquals(large, small);
+    }
+
+    public void testNegativeIds() {
+        NodeIdSet set = new NodeIdSet();
+        set.add(3);
+        assertFalse(set.contains(-1));
+        assertFalse(set.contains(-65));
+        assertFalse(set.add(-1));
+        assertFalse(set.remove(-1));
+        assertFalse(set.flip(-9));
+        assertEquals(1, set.cardinality());
+        assertFalse(new NodeIdSet().contains(-1));
+
+        BitView view = new BitView(true, set, 0L);
+        assertFalse(view.contains(new Identity(-1, -1, -1)));
+        assertTrue(view.contains(new Identity(0, 3, 0)));
+    }
+
     public void testOverlapDifferentBitSize() {
         NodeIdSet small = new NodeIdSet();
         NodeIdSet large = new NodeIdSet();
@@ -109,4 +213,130 @@ public class NodeIdSetTest extends TestCase {
 
         large.overlap(small);
     }
+
+    public void testSparseEncoding() throws Exception {
+        NodeIdSet contiguous = new NodeIdSet();
+        for (int i = 0; i < 3000; i++) {
+            contiguous.add(i);
+        }
+        assertTrue(contiguous.getSparseSize() < 10);
+        assertSparse(contiguous);
+
+        Random random = new Random(666);
+        NodeIdSet sparse = new NodeIdSet();
+        for (int i = 0; i < 1000; i++) {
+            sparse.add(random.nextInt(Identity.MAX_ID + 1));
+        }
+        assertTrue(sparse.getSparseSize() < sparse.size() / 8 / 2);
+        assertSparse(sparse);
+
+        NodeIdSet dense = new NodeIdSet();
+        for (int i = 0; i < 2048; i += 2) {
+            dense.add(i);
+        }
+        assertTrue(dense.getSparseSize() <= dense.size() / 8 + 6);
+        assertSparse(dense);
+
+        assertSparse(new NodeIdSet());
+        assertSparse(new NodeIdSet(0));
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put((byte) 0x81);
+        VarInt.writeLong(1, buffer);
+        VarInt.writeLong(1, buffer);
+        VarInt.writeLong(0, buffer);
+        VarInt.writeLong(8, buffer);
+        buffer.flip();
+        try {
+            new NodeIdSet(buffer);
+            fail("Run beyond the size of the set");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testWireFormFallsBackToSparse() throws Exception {
+        int slot = HeartbeatMsg.MAX_BIT_SIZE + 4;
+        ByteBuffer buffer = ByteBuffer.allocate(slot + 16);
+
+        NodeIdSet small = new NodeIdSet();
+        small.add(1);
+        small.add(2047);
+        small.writeWireForm(buffer, 16, slot);
+        buffer.clear();
+        assertEquals(small.size() / 8, buffer.getInt(16));
+        assertEquals(small, NodeIdSet.readWireForm(buffer, 16, slot));
+
+        NodeIdSet large = new NodeIdSet();
+        for (int i = 0; i < 3000; i++) {
+            large.add(i);
+        }
+        large.add(Identity.MAX_ID);
+        large.writeWireForm(buffer, 16, slot);
+        buffer.clear();
+        assertEquals(large, NodeIdSet.readWireForm(buffer, 16, slot));
+
+        Random random = new Random(666);
+        NodeIdSet scattered = new NodeIdSet();
+        for (int i = 0; i < 1000; i++) {
+            scattered.add(random.nextInt(Identity.MAX_ID + 1));
+        }
+        try {
+            scattered.writeWireForm(buffer, 16, slot);
+            fail("Set should not fit the slot");
+        } catch (WireFormException e) {
+            // expected
+        }
+    }
+
+    public void testWireForm() throws Exception {
+        NodeIdSet set = new NodeIdSet();
+        set.add(3);
+        set.add(70);
+        set.add(Identity.MAX_ID);
+        byte[] bytes = set.getBytes();
+        assertEquals(set.size() / 8, bytes.length);
+        assertEquals(1 << 3, bytes[0]);
+        assertEquals(1 << 6, bytes[70 / 8]);
+
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 4);
+        set.writeTo(buffer);
+        buffer.flip();
+        assertEquals(bytes.length, buffer.getInt());
+        for (byte b : bytes) {
+            assertEquals(b, buffer.get());
+        }
+
+        buffer.rewind();
+        NodeIdSet read = NodeIdSet.readWireForm(buffer, 0, buffer.limit());
+        assertEquals(set, read);
+        assertEquals(set.size(), read.size());
+        assertEquals(set.cardinality(), read.cardinality());
+        assertEquals(set.hashCode(), read.hashCode());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(baos);
+        out.writeObject(set);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(
+                                                     new ByteArrayInputStream(
+                                                                              baos.toByteArray()));
+        NodeIdSet deserialized = (NodeIdSet) in.readObject();
+        assertEquals(set, deserialized);
+        assertEquals(set.cardinality(), deserialized.cardinality());
+        assertEquals(set.fingerprint(), deserialized.fingerprint());
+    }
+
+    private void assertSparse(NodeIdSet set) {
+        ByteBuffer buffer = ByteBuffer.allocate(set.getSparseSize() + 1);
+        set.writeSparseTo(buffer);
+        assertEquals(set.getSparseSize(), buffer.position());
+        buffer.flip();
+        NodeIdSet read = new NodeIdSet(buffer);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(set, read);
+        assertEquals(set.size(), read.size());
+        assertEquals(set.cardinality(), read.cardinality());
+        assertEquals(set.toString(), read.toString());
+    }
 }